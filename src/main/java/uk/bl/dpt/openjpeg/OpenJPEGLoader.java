@@ -16,15 +16,33 @@
  */
 package uk.bl.dpt.openjpeg;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.Imaging;
@@ -60,6 +78,11 @@ public class OpenJPEGLoader {
 	private final static String EXE_DECOMPRESS_151 = "j2k_to_image";
 
 	private final static boolean gUseExecutable = true;
+	//longest wait for a pipe reader to open the pipe, or to finish once the executable has exited
+	private final static long PIPETIMEOUT = 60000;
+	private final static long PIPEPOLLMS = 10;
+	//whether the executable writes to a named pipe that is read directly, rather than to a temporary tif
+	private static volatile boolean gPipeOutput = !System.getProperty("os.name").toLowerCase().contains("windows");
 	
 	private final static String VERSION = VERSION_151;
 	private final static String DLL_OPENJPEG_JNI = DLL_OPENJPEG_JNI_151;
@@ -117,18 +140,194 @@ public class OpenJPEGLoader {
 	// Public methods
 	////////////////////////////////////////////////////////////////////////////////////////////	
 	
+	/**
+	 * Use a particular decoder executable (e.g. an installed opj_decompress) instead of the bundled one.
+	 * Areas are only decoded by the executable itself (-d) if it is opj_decompress 2.x; the bundled
+	 * j2k_to_image 1.5.1 can only reduce the resolution (-r), so areas are copied out of a full decode.
+	 * @param pExecutable executable to use, or null to go back to the bundled one
+	 */
+	public static synchronized void setExecutable(File pExecutable) {
+		OPENJPEGEXE = pExecutable;
+		INITIALISED = null!=pExecutable;
+	}
+
+	/**
+	 * Check whether an OpenJPEG decoder can be used
+	 * @return true if the decoder executable was found
+	 */
+	public static boolean isAvailable() {
+		init();
+		if(gUseExecutable) {
+			return null!=OPENJPEGEXE&&OPENJPEGEXE.exists();
+		}
+		return false;
+	}
+	
+	/**
+	 * Set whether the executable writes its output to a named pipe that is read straight into memory
+	 * (the default where mkfifo is available), or to a temporary tif file that is read back in
+	 * @param pPipeOutput true to use a named pipe
+	 */
+	public static void setPipeOutput(boolean pPipeOutput) {
+		gPipeOutput = pPipeOutput;
+	}
+
+	/**
+	 * @return whether the executable writes its output to a named pipe
+	 */
+	public static boolean isPipeOutput() {
+		return gPipeOutput;
+	}
+
 	/**
 	 * Method to load a JP2 file using OpenJPEG 2.0.0 from CodecCentral
 	 * @param pFile jp2 file to load
 	 * @return decoded buffered image from file
 	 */
 	public static BufferedImage loadJP2(File pFile) {
-		init();
+		return loadJP2(pFile, 0, null);
+	}
+
+	/**
+	 * Load part of a JP2 file, at a lower resolution level and/or for an area only.  Discarding
+	 * resolution levels halves the width and height for each level and is much cheaper than a full 
+	 * decode (note that the result is the wavelet low-pass image, not a subsample of the full image).
+	 * Decoding only the area needs opj_decompress 2.x (see setExecutable); with the bundled 1.5.1
+	 * executable the whole image is decoded and the area copied out of it.
+	 * @param pFile jp2 file to load
+	 * @param pReduce number of resolution levels to discard (0 for full resolution)
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @return decoded buffered image of the area at the reduced resolution (see getReducedArea)
+	 */
+	public static BufferedImage loadJP2(File pFile, int pReduce, Rectangle pArea) {
+		return loadJP2(pFile, pReduce, pArea, 0);
+	}
+
+	/**
+	 * Load part of a JP2 file, killing the decoder if it takes too long.  If the thread is interrupted
+	 * the decoder is killed, null is returned and the thread's interrupt status is set.
+	 * @param pFile jp2 file to load
+	 * @param pReduce number of resolution levels to discard (0 for full resolution)
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @param pTimeout time the decoder may run for in milliseconds (0 for no limit)
+	 * @return decoded buffered image of the area at the reduced resolution, or null on error
+	 */
+	public static BufferedImage loadJP2(File pFile, int pReduce, Rectangle pArea, long pTimeout) {
+		if(!isAvailable()) {
+			logger.error("No OpenJPEG decoder available for "+pFile.getAbsolutePath());
+			return null;
+		}
 		if(gUseExecutable) {
-			return loadJP2_Executable(pFile);
+			return loadJP2_Executable(pFile, pReduce, pArea, pTimeout);
+		}
+		return null;
+	}
+
+	/**
+	 * Calculate the area of the reduced resolution image that corresponds to a full resolution area,
+	 * rounding the corners up as OpenJPEG does
+	 * @param pArea area in full resolution coordinates
+	 * @param pReduce number of resolution levels discarded
+	 * @return area in reduced resolution coordinates
+	 */
+	public static Rectangle getReducedArea(Rectangle pArea, int pReduce) {
+		final int x0 = ceilDivPow2(pArea.x, pReduce);
+		final int y0 = ceilDivPow2(pArea.y, pReduce);
+		final int x1 = ceilDivPow2(pArea.x+pArea.width, pReduce);
+		final int y1 = ceilDivPow2(pArea.y+pArea.height, pReduce);
+		return new Rectangle(x0, y0, x1-x0, y1-y0);
+	}
+
+	private static int ceilDivPow2(int pValue, int pPower) {
+		return (int)((pValue+(1L<<pPower)-1)>>pPower);
+	}
+
+	/**
+	 * Read the width and height of a JP2 file (or raw codestream) from its header, without decoding it
+	 * @param pFile jp2 or j2k file
+	 * @return dimensions of the image, or null if the header cannot be read
+	 */
+	public static Dimension getDimensions(File pFile) {
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(pFile)));
+			final int first = input.readInt();
+			if(first==0xFF4FFF51) {
+				//raw codestream: SOC then SIZ
+				return readSize(input);
+			}
+			//jp2: walk the boxes to jp2h, then ihdr (height before width)
+			long length = first&0xFFFFFFFFL;
+			int type = input.readInt();
+			while(true) {
+				long header = 8;
+				if(length==1) {
+					length = input.readLong();
+					header = 16;
+				}
+				if(type==0x6A703268) {
+					//jp2h is a superbox, so step into it
+					length = input.readInt()&0xFFFFFFFFL;
+					type = input.readInt();
+					continue;
+				}
+				if(type==0x69686472) {
+					final int height = input.readInt();
+					final int width = input.readInt();
+					return new Dimension(width, height);
+				}
+				if(type==0x6A703263) {
+					//contiguous codestream without a jp2h box first
+					if(input.readInt()!=0xFF4FFF51) return null;
+					return readSize(input);
+				}
+				if(length==0) return null;
+				skipFully(input, length-header);
+				length = input.readInt()&0xFFFFFFFFL;
+				type = input.readInt();
+			}
+		} catch (IOException e) {
+			logger.error("Cannot read jp2 header of "+pFile.getAbsolutePath());
+		} finally {
+			if(null!=input) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
 		}
 		return null;
 	}
+
+	/**
+	 * Read the image size from a SIZ marker segment (Lsiz, Rsiz, Xsiz, Ysiz, XOsiz, YOsiz)
+	 * @param pInput stream positioned after the SIZ marker
+	 * @return dimensions of the image
+	 * @throws IOException on error
+	 */
+	private static Dimension readSize(DataInputStream pInput) throws IOException {
+		pInput.readInt();
+		final long x = pInput.readInt()&0xFFFFFFFFL;
+		final long y = pInput.readInt()&0xFFFFFFFFL;
+		final long xo = pInput.readInt()&0xFFFFFFFFL;
+		final long yo = pInput.readInt()&0xFFFFFFFFL;
+		return new Dimension((int)(x-xo), (int)(y-yo));
+	}
+
+	private static void skipFully(DataInputStream pInput, long pBytes) throws IOException {
+		long left = pBytes;
+		while(left>0) {
+			final long skipped = pInput.skip(left);
+			if(skipped<=0) {
+				//skip can return 0 before the end, so check with a read
+				if(pInput.read()<0) throw new EOFException();
+				left--;
+			} else {
+				left -= skipped;
+			}
+		}
+	}
 	
 	////////////////////////////////////////////////////////////////////////////////////////////
 	// OpenJPEG-executable methods
@@ -192,68 +391,363 @@ public class OpenJPEGLoader {
 				}
 			}
 		}
-		logger.trace("OpenJPEG exe: "+OPENJPEGEXE.getAbsolutePath());
+		if(null!=OPENJPEGEXE) {
+			logger.trace("OpenJPEG exe: "+OPENJPEGEXE.getAbsolutePath());
+		}
 	}
 	
 	/**
 	 * Method to load a JP2 file using OpenJPEG executable
 	 * @param pFile jp2 file to load
+	 * @param pReduce number of resolution levels to discard
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @param pTimeout time the executable may run for in milliseconds (0 for no limit)
 	 * @return decoded buffered image from file
 	 */
-	private static BufferedImage loadJP2_Executable(File pFile) {
+	private static BufferedImage loadJP2_Executable(File pFile, int pReduce, Rectangle pArea, long pTimeout) {
 		logger.trace("executable decoder: "+pFile.getAbsolutePath());
+		BufferedImage image = null;
+		boolean decoded = false;
+		if(gPipeOutput) {
+			try {
+				image = loadJP2_Pipe(pFile, pReduce, pArea, pTimeout);
+				decoded = true;
+			} catch (InterruptedIOException e) {
+				logFailure(pFile, e);
+				return null;
+			} catch (IOException e) {
+				logger.warn("Pipe decode failed, using a temporary file: "+e.getMessage());
+			}
+		}
+		if(!decoded) {
+			image = loadJP2_TempFile(pFile, pReduce, pArea, pTimeout);
+		}
+		if(null!=image&&null!=pArea&&!canDecodeArea()) {
+			//the executable decoded everything, so copy out the area (a getSubimage view would keep 
+			//the whole decoded raster in memory for as long as the area is used)
+			final Rectangle area = getReducedArea(pArea, pReduce).intersection(
+										new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+			if(area.isEmpty()) return null;
+			image = copyArea(image, area);
+		}
+		return image;
+	}
+
+	/**
+	 * Whether the executable can decode an area itself: opj_decompress 2.x has -d, j2k_to_image 1.5.1 
+	 * does not
+	 * @return true if -d can be passed to the executable
+	 */
+	private static boolean canDecodeArea() {
+		return null!=OPENJPEGEXE&&OPENJPEGEXE.getName().startsWith(EXE_DECOMPRESS_200CC);
+	}
+
+	/**
+	 * Copy an area of an image into a new image of its own
+	 * @param pImage image
+	 * @param pArea area to copy (within the image)
+	 * @return new image containing only the area
+	 */
+	private static BufferedImage copyArea(BufferedImage pImage, Rectangle pArea) {
+		final ColorModel colorModel = pImage.getColorModel();
+		final WritableRaster raster = colorModel.createCompatibleWritableRaster(pArea.width, pArea.height);
+		raster.setRect(-pArea.x, -pArea.y, pImage.getRaster());
+		return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Load a JP2 file by having the executable write a tif file, then reading that back in
+	 * @param pFile jp2 file to load
+	 * @param pReduce number of resolution levels to discard
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @param pTimeout time the executable may run for in milliseconds (0 for no limit)
+	 * @return decoded buffered image from file, or null on error
+	 */
+	private static BufferedImage loadJP2_TempFile(File pFile, int pReduce, Rectangle pArea, long pTimeout) {
 		File tempOutput = null;
 		try {
 			tempOutput = File.createTempFile("dissimilar_"+pFile.getName()+"_", ".tif");
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			return null;
 		}
-		//FIXME: null check?
-		tempOutput.deleteOnExit();
 		
-		List<String> commandLine = new LinkedList<String>();
-		commandLine.add(OPENJPEGEXE.getAbsolutePath());
-		commandLine.add("-i");
-		commandLine.add(pFile.getAbsolutePath());
-		commandLine.add("-o");
-		commandLine.add(tempOutput.getAbsolutePath());
-		
-		logger.trace("running: "+commandLine.toString());
-		
-		ToolRunner runner = new ToolRunner(true);
-		int exitCode = 0;
 		try {
-			exitCode = runner.runCommand(commandLine);
-			logger.trace("exit code: "+exitCode);
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			List<String> commandLine = getCommandLine(pFile, tempOutput, pReduce, pArea);
+			logger.trace("running: "+commandLine.toString());
+			
+			ToolRunner runner = new ToolRunner(true);
+			runner.setTimeout(pTimeout);
+			int exitCode = -1;
+			try {
+				exitCode = runner.runCommand(commandLine);
+				logger.trace("exit code: "+exitCode);
+			} catch (IOException e1) {
+				logFailure(pFile, e1);
+				return null;
+			}
+			
+			if(exitCode!=0) {
+				//some error
+				logOutput(runner);
+			} else {
+				try {
+					return Imaging.getBufferedImage(tempOutput);
+				} catch (ImageReadException | IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			//always delete now, rather than on exit, so long runs do not accumulate files
+			tempOutput.delete();
 		}
 		
-		if(exitCode!=0) {
-			//some error
-			BufferedReader log = runner.getStdout();
+		return null;
+	}
+
+	/**
+	 * Load a JP2 file by having the executable write a pgm/ppm image to a named pipe, which is read 
+	 * straight into the image raster, so the uncompressed image never goes to disk
+	 * @param pFile jp2 file to load
+	 * @param pReduce number of resolution levels to discard
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @param pTimeout time the executable may run for in milliseconds (0 for no limit)
+	 * @return decoded buffered image from file, or null if the executable failed
+	 * @throws IOException if the pipe cannot be used or its output cannot be read (try a temporary file)
+	 */
+	private static BufferedImage loadJP2_Pipe(File pFile, int pReduce, Rectangle pArea, long pTimeout) throws IOException {
+		final File pipeDir = Files.createTempDirectory("dissimilar_").toFile();
+		//the executable picks the output format from the extension; ppm is written as pgm for greyscale
+		final File pipe = new File(pipeDir, "output.ppm");
+		try {
+			if(!makePipe(pipe)) {
+				//no mkfifo (e.g. on windows), so do not try again
+				gPipeOutput = false;
+				throw new IOException("Cannot create a named pipe");
+			}
+			
+			List<String> commandLine = getCommandLine(pFile, pipe, pReduce, pArea);
+			logger.trace("running: "+commandLine.toString());
+			
+			//read the pipe in another thread; opening it blocks until the executable opens it
+			final CountDownLatch opened = new CountDownLatch(1);
+			final AtomicReference<InputStream> stream = new AtomicReference<InputStream>();
+			final FutureTask<BufferedImage> reader = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+				@Override
+				public BufferedImage call() throws Exception {
+					InputStream input = null;
+					try {
+						input = new FileInputStream(pipe);
+						stream.set(input);
+					} finally {
+						opened.countDown();
+					}
+					try {
+						final PushbackInputStream output = new PushbackInputStream(new BufferedInputStream(input, 1<<16));
+						final int first = output.read();
+						//nothing written: the executable failed before writing, which its exit code shows
+						if(first<0) return null;
+						output.unread(first);
+						return PNMReader.read(output);
+					} finally {
+						input.close();
+					}
+				}
+			});
+			final Thread thread = new Thread(reader, "dissimilar-pipe-"+pFile.getName());
+			thread.setDaemon(true);
+			thread.start();
+			
+			ToolRunner runner = new ToolRunner(true);
+			runner.setTimeout(pTimeout);
+			int exitCode = -1;
+			IOException failure = null;
 			try {
-				while(log.ready()) {
-					logger.error("log: "+log.readLine());
+				exitCode = runner.waitForCommand(runner.startCommand(commandLine));
+				logger.trace("exit code: "+exitCode);
+			} catch (IOException e) {
+				//timed out, cancelled or could not be run: the executable has been killed
+				failure = e;
+			} finally {
+				releaseReader(pipe, opened);
+			}
+			
+			//the reader finishes now the pipe has no writers
+			BufferedImage image = null;
+			Throwable readFailure = null;
+			try {
+				image = reader.get(PIPETIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				abortReader(reader, stream);
+				logger.trace("cancelled: "+pFile.getAbsolutePath());
+				return null;
+			} catch (TimeoutException e) {
+				abortReader(reader, stream);
+				logger.error("Timed out reading decoder output for "+pFile.getAbsolutePath());
+				return null;
+			} catch (ExecutionException e) {
+				readFailure = e.getCause();
+			}
+			if(null!=failure) {
+				logFailure(pFile, failure);
+				return null;
+			}
+			if(null!=readFailure) {
+				//e.g. output the reader does not handle; the reader closing the pipe makes the executable
+				//fail too, so its exit code says nothing about the decode
+				throw new IOException("Cannot read decoder output", readFailure);
+			}
+			if(exitCode!=0) {
+				//some error
+				logOutput(runner);
+				return null;
+			}
+			return image;
+		} finally {
+			delete(pipeDir);
+		}
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it
+	 * @param pFile file or directory to delete
+	 */
+	private static void delete(File pFile) {
+		final File[] files = pFile.listFiles();
+		if(null!=files) {
+			for(File file:files) {
+				delete(file);
+			}
+		}
+		if(!pFile.delete()&&pFile.exists()) {
+			logger.warn("Cannot delete "+pFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Make sure the pipe reader is not left waiting to open the pipe once the executable has finished.
+	 * If the executable never opened the pipe (it failed, or was killed) the reader is still waiting, or
+	 * is about to wait, so keep opening (and closing) the pipe as a writer too ("rw" never blocks) until 
+	 * the reader's open has returned; it then gets to the end of the pipe.  Bounded by PIPETIMEOUT, and
+	 * an interrupt is kept for the caller rather than stopping this.
+	 * @param pPipe pipe being read
+	 * @param pOpened latch the reader counts down once its open has returned
+	 * @throws IOException if the pipe cannot be opened
+	 */
+	private static void releaseReader(File pPipe, CountDownLatch pOpened) throws IOException {
+		final long end = System.currentTimeMillis()+PIPETIMEOUT;
+		boolean interrupted = false;
+		try {
+			while(pOpened.getCount()>0&&System.currentTimeMillis()<end) {
+				new RandomAccessFile(pPipe, "rw").close();
+				try {
+					pOpened.await(PIPEPOLLMS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
 				}
-			} catch(IOException e) {
-				
 			}
-		} else {
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop a pipe reader that is no longer wanted, closing its stream so it is not left blocked
+	 * @param pReader reader task
+	 * @param pStream the reader's stream, if it has opened it
+	 */
+	private static void abortReader(FutureTask<BufferedImage> pReader, AtomicReference<InputStream> pStream) {
+		pReader.cancel(true);
+		final InputStream input = pStream.get();
+		if(null!=input) {
 			try {
-				BufferedImage image = Imaging.getBufferedImage(tempOutput);
-				//force a delete
-				tempOutput.delete();
-				return image;
-			} catch (ImageReadException | IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				input.close();
+			} catch (IOException e) {
+				//ignore
 			}
 		}
-		
-		return null;
+	}
+
+	/**
+	 * Create a named pipe
+	 * @param pPipe pipe to create
+	 * @return true if it was created
+	 * @throws InterruptedIOException if the thread was interrupted
+	 */
+	private static boolean makePipe(File pPipe) throws InterruptedIOException {
+		List<String> commandLine = new LinkedList<String>();
+		commandLine.add("mkfifo");
+		commandLine.add(pPipe.getAbsolutePath());
+		try {
+			if(new ToolRunner(true).runCommand(commandLine)==0&&pPipe.exists()) return true;
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			//no mkfifo
+		}
+		//a cancelled decode is not a reason to stop using pipes
+		if(Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Cancelled");
+		return false;
+	}
+
+	/**
+	 * Build the command line for the executable
+	 * @param pFile jp2 file to load
+	 * @param pOutput file for the executable to write to (the extension sets the format)
+	 * @param pReduce number of resolution levels to discard
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @return command line
+	 */
+	private static List<String> getCommandLine(File pFile, File pOutput, int pReduce, Rectangle pArea) {
+		List<String> commandLine = new LinkedList<String>();
+		commandLine.add(OPENJPEGEXE.getAbsolutePath());
+		commandLine.add("-i");
+		commandLine.add(pFile.getAbsolutePath());
+		commandLine.add("-o");
+		commandLine.add(pOutput.getAbsolutePath());
+		if(pReduce>0) {
+			commandLine.add("-r");
+			commandLine.add(""+pReduce);
+		}
+		if(null!=pArea&&canDecodeArea()) {
+			commandLine.add("-d");
+			commandLine.add(pArea.x+","+pArea.y+","+(pArea.x+pArea.width)+","+(pArea.y+pArea.height));
+		}
+		return commandLine;
+	}
+
+	/**
+	 * Log an executable that could not be run, timed out or was cancelled; if it was cancelled the thread's
+	 * interrupt status is set again, so the caller can see why it failed
+	 * @param pFile file being decoded
+	 * @param pFailure exception from the ToolRunner
+	 */
+	private static void logFailure(File pFile, IOException pFailure) {
+		if(pFailure instanceof InterruptedIOException) {
+			logger.trace("cancelled: "+pFile.getAbsolutePath());
+			Thread.currentThread().interrupt();
+			return;
+		}
+		logger.error("OpenJPEG failed for "+pFile.getAbsolutePath()+": "+pFailure.getMessage());
+	}
+
+	/**
+	 * Log the output of a failed executable
+	 * @param pRunner runner that ran it
+	 */
+	private static void logOutput(ToolRunner pRunner) {
+		BufferedReader log = pRunner.getStdout();
+		if(null==log) return;
+		try {
+			while(log.ready()) {
+				final String line = log.readLine();
+				if(null==line) break;
+				logger.error("log: "+line);
+			}
+		} catch(IOException e) {
+			//ignore
+		}
 	}
 
 	////////////////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.openjpeg;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of OpenJPEG decodes: at most a fixed number of decoder processes run at once, the rest
+ * are queued.  Decodes are submitted asynchronously and return futures of the decoded images, so jp2 
+ * decoding can overlap with other work (e.g. calculating metrics on the previous image).  Cancelling a 
+ * future (with interruption) kills its decoder process, as does exceeding the timeout.
+ * @author wpalmer
+ *
+ */
+public class OpenJPEGPool {
+
+	/**
+	 * Heap allowed for each concurrent decode when sizing the pool by default (the decoded image is 
+	 * held on the heap, plus the caller's copy of its pixels)
+	 */
+	public final static long MEMORYPERDECODE = 256L<<20;
+
+	/**
+	 * Default time a decoder process may run for in milliseconds, so a hung decoder cannot hold a pool
+	 * thread for ever (far longer than a healthy decode of even a very large jp2 takes)
+	 */
+	public final static long DEFAULTTIMEOUT = 30*60*1000L;
+
+	private final ExecutorService gExecutor;
+	private final int gProcesses;
+	private final long gTimeout;
+
+	/**
+	 * Create a new OpenJPEGPool sized to the number of cores and the heap, with the default timeout
+	 */
+	public OpenJPEGPool() {
+		this(getDefaultProcesses(), DEFAULTTIMEOUT);
+	}
+
+	/**
+	 * Create a new OpenJPEGPool
+	 * @param pProcesses maximum number of decoder processes to run at once
+	 * @param pTimeout time each decoder process may run for in milliseconds (0 for no limit)
+	 */
+	public OpenJPEGPool(int pProcesses, long pTimeout) {
+		if(pProcesses<1) throw new IllegalArgumentException("At least one process is needed");
+		gProcesses = pProcesses;
+		gTimeout = pTimeout;
+		final AtomicInteger threads = new AtomicInteger();
+		gExecutor = Executors.newFixedThreadPool(pProcesses, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable pRunnable) {
+				//daemon threads, so an unused pool does not stop the jvm exiting
+				final Thread thread = new Thread(pRunnable, "dissimilar-openjpeg-"+threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Default number of concurrent decodes: one per core, but no more than the heap allows at
+	 * MEMORYPERDECODE each
+	 * @return number of processes
+	 */
+	public static int getDefaultProcesses() {
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final long memory = Runtime.getRuntime().maxMemory()/MEMORYPERDECODE;
+		return (int)Math.max(1, Math.min(cores, memory));
+	}
+
+	/**
+	 * Submit a jp2 file to be decoded in full
+	 * @param pFile jp2 file to decode
+	 * @return future decoded image; get() throws an ExecutionException wrapping an IOException if it 
+	 * cannot be decoded
+	 */
+	public Future<BufferedImage> submit(File pFile) {
+		return submit(pFile, 0, null);
+	}
+
+	/**
+	 * Submit part of a jp2 file to be decoded (see OpenJPEGLoader.loadJP2)
+	 * @param pFile jp2 file to decode
+	 * @param pReduce number of resolution levels to discard (0 for full resolution)
+	 * @param pArea area to decode, in full resolution coordinates (null for the whole image)
+	 * @return future decoded image; get() throws an ExecutionException wrapping an IOException if it 
+	 * cannot be decoded
+	 */
+	public Future<BufferedImage> submit(final File pFile, final int pReduce, final Rectangle pArea) {
+		return gExecutor.submit(new Callable<BufferedImage>() {
+			@Override
+			public BufferedImage call() throws IOException {
+				final BufferedImage image = OpenJPEGLoader.loadJP2(pFile, pReduce, pArea, gTimeout);
+				if(null==image) throw new IOException("OpenJPEG could not decode "+pFile);
+				return image;
+			}
+		});
+	}
+
+	/**
+	 * Submit other work that runs a decoder process (e.g. a decode followed by subsampling), so that it 
+	 * is bounded by the pool too; the work should pass getTimeout() to OpenJPEGLoader
+	 * @param pTask work to run
+	 * @return future result of the work (cancel it to interrupt the work, killing its decoder)
+	 */
+	public <T> Future<T> submit(Callable<T> pTask) {
+		return gExecutor.submit(pTask);
+	}
+
+	/**
+	 * @return maximum number of decoder processes run at once
+	 */
+	public int getProcesses() {
+		return gProcesses;
+	}
+
+	/**
+	 * @return time each decoder process may run for in milliseconds (0 for no limit)
+	 */
+	public long getTimeout() {
+		return gTimeout;
+	}
+
+	/**
+	 * Stop the pool: queued decodes are not started and running decoder processes are killed
+	 */
+	public void shutdown() {
+		gExecutor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.openjpeg;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads binary PGM (P5) and PPM (P6) images, as written by the OpenJPEG executables, straight into the
+ * raster of a BufferedImage with 8 or 16 bits per sample (interleaved grey or sRGB, as RasterPixels reads
+ * quickly).  Samples with a maximum value other than 255 or 65535 (e.g. 12-bit) are scaled to the full
+ * range of the sample size.
+ * @author wpalmer
+ *
+ */
+public class PNMReader {
+
+	private PNMReader() {}
+
+	/**
+	 * Read a PGM or PPM image from a stream
+	 * @param pInput stream to read from (not closed)
+	 * @return decoded image
+	 * @throws IOException if the stream cannot be read or is not a binary PGM or PPM image
+	 */
+	public static BufferedImage read(InputStream pInput) throws IOException {
+		if(pInput.read()!='P') throw new IOException("Not a PNM image");
+		final int magic = pInput.read();
+		if(magic!='5'&&magic!='6') throw new IOException("Unsupported PNM type: P"+(char)magic);
+		final int bands = (magic=='5')?1:3;
+		final int width = readHeaderValue(pInput);
+		final int height = readHeaderValue(pInput);
+		final int maxValue = readHeaderValue(pInput);
+		if(width<=0||height<=0||maxValue<=0||maxValue>65535) throw new IOException("Invalid PNM header");
+		if((long)width*height*bands>Integer.MAX_VALUE) throw new IOException("PNM image too large");
+		
+		final DataInputStream input = new DataInputStream(pInput);
+		final int samples = width*height*bands;
+		final boolean shorts = maxValue>255;
+		final WritableRaster raster = Raster.createInterleavedRaster(shorts?DataBuffer.TYPE_USHORT:DataBuffer.TYPE_BYTE, 
+											width, height, width*bands, bands, (bands==1)?new int[] { 0 }:new int[] { 0, 1, 2 }, null);
+		if(shorts) {
+			final short[] data = ((DataBufferUShort)raster.getDataBuffer()).getData();
+			//read a row at a time; samples are big-endian
+			final byte[] row = new byte[width*bands*2];
+			for(int y=0;y<height;y++) {
+				input.readFully(row);
+				final int offset = y*width*bands;
+				for(int i=0;i<width*bands;i++) {
+					data[offset+i] = (short)(((row[i*2]&0xFF)<<8)|(row[i*2+1]&0xFF));
+				}
+			}
+			if(maxValue!=65535) scale(data, maxValue, 65535);
+		} else {
+			final byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+			input.readFully(data, 0, samples);
+			if(maxValue!=255) scale(data, maxValue, 255);
+		}
+		
+		final ColorSpace colorSpace = ColorSpace.getInstance((bands==1)?ColorSpace.CS_GRAY:ColorSpace.CS_sRGB);
+		final ComponentColorModel colorModel = new ComponentColorModel(colorSpace, false, false, Transparency.OPAQUE, 
+													shorts?DataBuffer.TYPE_USHORT:DataBuffer.TYPE_BYTE);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Read a decimal value from the header, skipping whitespace and comments before it and the single
+	 * whitespace character after it
+	 * @param pInput stream to read from
+	 * @return value
+	 * @throws IOException on error
+	 */
+	private static int readHeaderValue(InputStream pInput) throws IOException {
+		int c = pInput.read();
+		while(c=='#'||Character.isWhitespace(c)) {
+			if(c=='#') {
+				while(c!='\n'&&c!='\r'&&c>=0) c = pInput.read();
+			}
+			c = pInput.read();
+		}
+		if(c<0) throw new EOFException();
+		long value = 0;
+		while(c>='0'&&c<='9') {
+			value = value*10+(c-'0');
+			if(value>Integer.MAX_VALUE) throw new IOException("Invalid PNM header");
+			c = pInput.read();
+		}
+		if(!Character.isWhitespace(c)) throw new IOException("Invalid PNM header");
+		return (int)value;
+	}
+
+	private static void scale(short[] pData, int pFrom, int pTo) {
+		for(int i=0;i<pData.length;i++) {
+			pData[i] = (short)Math.min(pTo, ((long)(pData[i]&0xFFFF)*pTo+pFrom/2)/pFrom);
+		}
+	}
+
+	private static void scale(byte[] pData, int pFrom, int pTo) {
+		for(int i=0;i<pData.length;i++) {
+			pData[i] = (byte)Math.min(pTo, ((pData[i]&0xFF)*pTo+pFrom/2)/pFrom);
+		}
+	}
+
+}
@@ -17,10 +17,17 @@
 package uk.bl.dpt.openjpeg;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * This class runs an external tool via command line and buffers stdout and stderr
@@ -32,6 +39,13 @@ public class ToolRunner {
 
 	private boolean gRedirectStderr = false;
 	
+	/**
+	 * Interval to poll for the exit of a process that has a timeout
+	 */
+	private final static long POLLMS = 10;
+	
+	private long gTimeout = 0;
+	
 	/**
 	 * Create a new ToolRunner (not redirecting stderr to stdout)
 	 */
@@ -47,16 +61,45 @@ public class ToolRunner {
 		gRedirectStderr = pRedirectStderr;
 	}
 	
+	/**
+	 * Set the time a command is allowed to run for before it is killed
+	 * @param pTimeout timeout in milliseconds (0 for none, the default)
+	 */
+	public void setTimeout(long pTimeout) {
+		gTimeout = pTimeout;
+	}
+
+	/**
+	 * @return the time a command is allowed to run for in milliseconds (0 for none)
+	 */
+	public long getTimeout() {
+		return gTimeout;
+	}
+	
 	private BufferedReader gStdout = null;
 	private BufferedReader gStderr = null;
+	private File gStdoutFile = null;
+	private File gStderrFile = null;
 	
 	/**
 	 * Executes a given command line.  Note stdout and stderr will be populated by this method.
 	 * @param pCommandLine command line to run
 	 * @return exit code from execution of the command line
-	 * @throws IOException error
+	 * @throws IOException error, including the command timing out, or InterruptedIOException if the
+	 * thread was interrupted (the process is killed in both cases)
 	 */
 	public int runCommand(List<String> pCommandLine) throws IOException {
+		return waitForCommand(startCommand(pCommandLine));
+	}
+
+	/**
+	 * Starts a given command line without waiting for it to finish, so that the caller can read
+	 * its output (e.g. from a named pipe) while it runs.  Call waitForCommand afterwards.
+	 * @param pCommandLine command line to run
+	 * @return the running process
+	 * @throws IOException error
+	 */
+	public Process startCommand(List<String> pCommandLine) throws IOException {
 		//check there are no command line options that are empty
 		while(pCommandLine.contains("")) {
 			pCommandLine.remove("");
@@ -69,31 +112,122 @@ public class ToolRunner {
 
 		//log outputs to file(s) - fixes hangs on windows
 		//and logs *all* output (unlike when using IOStreamThread)
-		File stdoutFile = File.createTempFile("stdout-log-", ".log");
-		stdoutFile.deleteOnExit();
-		File stderrFile = File.createTempFile("stderr-log-", ".log");
-		stderrFile.deleteOnExit();
-		pb.redirectOutput(stdoutFile);
+		gStdoutFile = File.createTempFile("stdout-log-", ".log");
+		gStderrFile = File.createTempFile("stderr-log-", ".log");
+		pb.redirectOutput(gStdoutFile);
 		if(!gRedirectStderr) {
-			pb.redirectError(stderrFile);
+			pb.redirectError(gStderrFile);
 		}
 		
 		//start the executable
-		Process proc = pb.start();
+		try {
+			return pb.start();
+		} catch (IOException e) {
+			deleteLogs();
+			throw e;
+		}
+	}
 
+	/**
+	 * Waits for a command started with startCommand to finish.  Note stdout and stderr will be 
+	 * populated by this method.
+	 * @param pProcess process returned by startCommand
+	 * @return exit code from execution of the command line
+	 * @throws IOException error, including the command timing out, or InterruptedIOException if the
+	 * thread was interrupted (the process is killed in both cases)
+	 */
+	public int waitForCommand(Process pProcess) throws IOException {
+		boolean finished = false;
 		try {
 			//wait for process to end before continuing
-			proc.waitFor();
+			finished = waitFor(pProcess, gTimeout);
 		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}		
+			//cancelled, so do not leave the process running
+			pProcess.destroy();
+			deleteLogs();
+			throw new InterruptedIOException("Command cancelled");
+		}
+		if(!finished) {
+			pProcess.destroy();
+			deleteLogs();
+			throw new IOException("Command timed out after "+gTimeout+"ms");
+		}
 		
-		//create a log of the console output
-		gStdout = new BufferedReader(new FileReader(stdoutFile));
-		gStderr = new BufferedReader(new FileReader(stderrFile));
+		//create a log of the console output; it is read into memory so the log files can be
+		//deleted now, rather than accumulating until exit
+		try {
+			gStdout = new BufferedReader(new StringReader(readLog(gStdoutFile)));
+			gStderr = new BufferedReader(new StringReader(readLog(gStderrFile)));
+		} finally {
+			deleteLogs();
+		}
 		
-		return proc.exitValue();
+		return pProcess.exitValue();
+	}
+
+	/**
+	 * Executes a given command line on an executor, e.g. a fixed size pool to limit the number of
+	 * processes running at once.  Cancelling the future (with interruption) kills the process.  Use 
+	 * a separate ToolRunner for each command that may be running at the same time.
+	 * @param pCommandLine command line to run
+	 * @param pExecutor executor to run it on
+	 * @return future exit code from execution of the command line
+	 */
+	public Future<Integer> submitCommand(final List<String> pCommandLine, ExecutorService pExecutor) {
+		return pExecutor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				return runCommand(pCommandLine);
+			}
+		});
+	}
+
+	/**
+	 * Wait for a process to finish, polling for its exit if there is a timeout (there is no 
+	 * Process.waitFor with a timeout before Java 8)
+	 * @param pProcess process to wait for
+	 * @param pTimeout timeout in milliseconds (0 for none)
+	 * @return true if the process finished, false if it timed out
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	private static boolean waitFor(Process pProcess, long pTimeout) throws InterruptedException {
+		if(pTimeout<=0) {
+			pProcess.waitFor();
+			return true;
+		}
+		final long end = System.currentTimeMillis()+pTimeout;
+		while(true) {
+			try {
+				pProcess.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				//still running
+			}
+			final long left = end-System.currentTimeMillis();
+			if(left<=0) return false;
+			Thread.sleep(Math.min(left, POLLMS));
+		}
+	}
+
+	private static String readLog(File pFile) throws IOException {
+		//not Files.readAllBytes, which fails if the thread has been interrupted
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		final FileInputStream input = new FileInputStream(pFile);
+		try {
+			final byte[] buffer = new byte[32768];
+			int bytesRead = 0;
+			while((bytesRead = input.read(buffer))>=0) {
+				log.write(buffer, 0, bytesRead);
+			}
+		} finally {
+			input.close();
+		}
+		return new String(log.toByteArray(), Charset.defaultCharset());
+	}
+
+	private void deleteLogs() {
+		gStdoutFile.delete();
+		gStderrFile.delete();
 	}
 	
 	/**
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * PixelSource for an image that has already been decoded.  Rows are converted a band at a time,
+ * so no whole-image pixel array is created.
+ * @author wpalmer
+ *
+ */
+public class BufferedImagePixelSource implements PixelSource {
+
+	private BufferedImage gImage = null;
+
+	/**
+	 * Create a new BufferedImagePixelSource
+	 * @param pImage decoded image
+	 */
+	public BufferedImagePixelSource(BufferedImage pImage) {
+		gImage = pImage;
+	}
+
+	@Override
+	public int getWidth() {
+		return gImage.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return gImage.getHeight();
+	}
+
+	@Override
+	public boolean isGreyscale() {
+		return (gImage.getType()==BufferedImage.TYPE_BYTE_GRAY||gImage.getType()==BufferedImage.TYPE_USHORT_GRAY);
+	}
+
+	@Override
+	public void getRows(int pY, int pRows, int[] pPixels) {
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		RasterPixels.getRows(gImage, pY, pRows, pPixels);
+	}
+
+	@Override
+	public BufferedImage getBand(int pY, int pRows) {
+		return gImage.getSubimage(0, pY, gImage.getWidth(), pRows);
+	}
+
+	@Override
+	public void close() {
+		gImage = null;
+	}
+
+}
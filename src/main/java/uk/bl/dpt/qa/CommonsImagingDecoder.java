@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.Imaging;
+
+/**
+ * ImageDecoder using commons-imaging; the reference decoder for tiff files (see DissimilarV2)
+ * @author wpalmer
+ *
+ */
+public class CommonsImagingDecoder implements ImageDecoder {
+
+	/**
+	 * Name of this decoder
+	 */
+	public final static String NAME = "imaging";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public boolean canReduce() {
+		return false;
+	}
+
+	@Override
+	public boolean keepsBitDepth() {
+		//commons-imaging decodes to packed 8 bits per component
+		return false;
+	}
+
+	@Override
+	public BufferedImage decode(File pFile) throws IOException {
+		try {
+			return Imaging.getBufferedImage(pFile);
+		} catch (ImageReadException e) {
+			throw new IOException(e);
+		} catch (NullPointerException e) {
+			//commons-imaging throws these for some unsupported files
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public DecodedImage decode(File pFile, int pScale) throws IOException {
+		//no reduced resolution decoding, so decode in full and subsample
+		return new DecodedImage(DecodedImage.subsample(decode(pFile), pScale), Math.max(1, pScale));
+	}
+
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+/**
+ * Results from comparing a pair of images in a single pass: SSIM window statistics, the
+ * sum of squared errors for each channel (from which MSE and PSNR are derived) and some
+ * simple error statistics.  The PSNR peak follows the bit depth of the images (255 unless set).
+ *
+ * When comparing against thresholds the comparison may stop early, as soon as the pair is
+ * certain to fail.  The result is then not exact: the SSIM mean, SSIM minimum and PSNR are upper
+ * bounds, the error statistics are for the part of the images compared and the SSIM variance is NaN.
+ *
+ * When estimated from a sample (see isSampled) the values are estimates from the sampled pixels,
+ * with 95% confidence intervals for the SSIM mean and PSNR.
+ * @author wpalmer
+ *
+ */
+public class ComparisonResult {
+
+	private int gWidth = 0;
+	private int gHeight = 0;
+	private boolean gGreyscale = false;
+	private int gBitDepth = 8;
+	private int gDecodeScale = 1;
+	private double gSsimMean = 0;
+	private double gSsimMin = 0;
+	private double gSsimVariance = 0;
+	private long gSseRed = 0;
+	private long gSseGreen = 0;
+	private long gSseBlue = 0;
+	private double gSseLuma = 0;
+	private int gMaxAbsoluteError = 0;
+	private long gDifferingPixels = 0;
+	private boolean gExact = true;
+	private boolean gAccepted = true;
+	private boolean gIdentical = false;
+	private long gSampledPixels = 0;
+	private long gComparedPixels = 0;
+	private double gSsimError = 0;
+	private double gMseError = 0;
+	private double gMsssim = 0;
+	private double[] gMsssimContrast = null;
+	private double gMsssimLuminance = 0;
+	private int gTileSize = 0;
+	private int gTilesWide = 0;
+	private int gTilesHigh = 0;
+	private long[] gTileSse = null;
+	private int[] gTileMaxError = null;
+	private double[] gTileSsim = null;
+
+	/**
+	 * Create a new, empty, ComparisonResult
+	 */
+	public ComparisonResult() {
+	}
+
+	/**
+	 * Add the error statistics from another (partial) result to this one
+	 * @param pOther result to add
+	 */
+	void addErrors(final ComparisonResult pOther) {
+		gSseRed += pOther.gSseRed;
+		gSseGreen += pOther.gSseGreen;
+		gSseBlue += pOther.gSseBlue;
+		gSseLuma += pOther.gSseLuma;
+		gMaxAbsoluteError = Math.max(gMaxAbsoluteError, pOther.gMaxAbsoluteError);
+		gDifferingPixels += pOther.gDifferingPixels;
+	}
+
+	/**
+	 * Add the error statistics for a run of pixels to this result
+	 * @param pSseRed sum of squared errors for the red channel
+	 * @param pSseGreen sum of squared errors for the green channel
+	 * @param pSseBlue sum of squared errors for the blue channel
+	 * @param pMaxAbsoluteError maximum absolute error in any channel
+	 * @param pDifferingPixels number of pixels that were different
+	 */
+	void addErrors(final long pSseRed, final long pSseGreen, final long pSseBlue, final int pMaxAbsoluteError, final long pDifferingPixels) {
+		gSseRed += pSseRed;
+		gSseGreen += pSseGreen;
+		gSseBlue += pSseBlue;
+		gMaxAbsoluteError = Math.max(gMaxAbsoluteError, pMaxAbsoluteError);
+		gDifferingPixels += pDifferingPixels;
+	}
+
+	/**
+	 * Add the sum of squared luma errors for a run of pixels to this result (only needed for colour images;
+	 * for greyscale the luma is the single channel)
+	 * @param pSseLuma sum of squared luma errors, in squared sample levels
+	 */
+	void addLumaErrors(final double pSseLuma) {
+		gSseLuma += pSseLuma;
+	}
+
+	/**
+	 * Allocate per-tile error maps, to be filled in by the SSIM engine as it goes (one tile per SSIM window)
+	 * @param pTileSize size of the (square) tiles
+	 * @param pTilesWide number of tiles across
+	 * @param pTilesHigh number of tiles down
+	 */
+	void enableTileMaps(final int pTileSize, final int pTilesWide, final int pTilesHigh) {
+		gTileSize = pTileSize;
+		gTilesWide = pTilesWide;
+		gTilesHigh = pTilesHigh;
+		gTileSse = new long[pTilesWide*pTilesHigh];
+		gTileMaxError = new int[pTilesWide*pTilesHigh];
+	}
+
+	/**
+	 * Share the tile maps of another result, so that partial results for separate bands of tiles
+	 * can fill in the same maps
+	 * @param pOther result whose maps to share
+	 */
+	void shareTileMaps(final ComparisonResult pOther) {
+		gTileSize = pOther.gTileSize;
+		gTilesWide = pOther.gTilesWide;
+		gTilesHigh = pOther.gTilesHigh;
+		gTileSse = pOther.gTileSse;
+		gTileMaxError = pOther.gTileMaxError;
+	}
+
+	/**
+	 * Add the error statistics for part of a tile
+	 * @param pTile index of the tile (row by row)
+	 * @param pSse sum of squared errors over all channels
+	 * @param pMaxAbsoluteError maximum absolute error in any channel
+	 */
+	void addTileErrors(final int pTile, final long pSse, final int pMaxAbsoluteError) {
+		gTileSse[pTile] += pSse;
+		gTileMaxError[pTile] = Math.max(gTileMaxError[pTile], pMaxAbsoluteError);
+	}
+
+	/**
+	 * Record the SSIM value of each tile
+	 * @param pSsim SSIM for each window (row by row)
+	 */
+	void setTileSsim(final double[] pSsim) {
+		gTileSsim = pSsim;
+	}
+
+	/**
+	 * Record that this result was estimated from a sample
+	 * @param pSampledPixels number of pixels sampled
+	 * @param pSsimError half-width of the 95% confidence interval for the SSIM mean
+	 * @param pMseError half-width of the 95% confidence interval for the MSE
+	 */
+	void setSample(final long pSampledPixels, final double pSsimError, final double pMseError) {
+		gSampledPixels = pSampledPixels;
+		gSsimError = pSsimError;
+		gMseError = pMseError;
+	}
+
+	/**
+	 * Get the mean squared error (over one channel for greyscale images, otherwise over all three)
+	 * @return mean squared error
+	 */
+	public double getMse() {
+		//if sampled, the sse is just for the sampled pixels
+		final double pixels = comparedPixels();
+		if(gGreyscale) {
+			return gSseBlue/pixels;
+		}
+		return (gSseRed+gSseGreen+gSseBlue)/(3.0*pixels);
+	}
+
+	/**
+	 * Get the PSNR; see http://en.wikipedia.org/wiki/Peak_signal-to-noise_ratio
+	 * @return psnr (infinite if the images are identical)
+	 */
+	public double getPsnr() {
+		return psnr(getMse());
+	}
+
+	/**
+	 * Get the PSNR of the red channel
+	 * @return psnr (the same as getPsnr for greyscale)
+	 */
+	public double getPsnrRed() {
+		return gGreyscale?getPsnr():psnr(gSseRed/comparedPixels());
+	}
+
+	/**
+	 * Get the PSNR of the green channel
+	 * @return psnr (the same as getPsnr for greyscale)
+	 */
+	public double getPsnrGreen() {
+		return gGreyscale?getPsnr():psnr(gSseGreen/comparedPixels());
+	}
+
+	/**
+	 * Get the PSNR of the blue channel
+	 * @return psnr (the same as getPsnr for greyscale)
+	 */
+	public double getPsnrBlue() {
+		return gGreyscale?getPsnr():psnr(gSseBlue/comparedPixels());
+	}
+
+	/**
+	 * Get the PSNR of the Rec. 709 luma (0.2126r+0.7152g+0.0722b)
+	 * @return psnr (the same as getPsnr for greyscale)
+	 */
+	public double getPsnrLuma() {
+		return gGreyscale?getPsnr():psnr(gSseLuma/comparedPixels());
+	}
+
+	/**
+	 * @return number of pixels the squared errors were summed over (the sampled pixels, if sampled, or
+	 * the pixels in the mask, if masked)
+	 */
+	private double comparedPixels() {
+		if(isSampled()) return gSampledPixels;
+		return (gComparedPixels>0)?gComparedPixels:getPixels();
+	}
+
+	/**
+	 * Set the number of pixels compared, when that is not all of them (i.e. only those in a mask)
+	 * @param pComparedPixels number of pixels compared
+	 */
+	void setComparedPixels(final long pComparedPixels) {
+		gComparedPixels = pComparedPixels;
+	}
+
+	/**
+	 * @return the number of pixels in the mask, if the comparison was restricted to one, otherwise zero
+	 */
+	public long getMaskedPixels() {
+		return gComparedPixels;
+	}
+
+	/**
+	 * Calculate the PSNR for a given MSE
+	 * @param pMse mean squared error
+	 * @return psnr
+	 */
+	private double psnr(final double pMse) {
+		final double maxPixelValue = (1 << gBitDepth)-1;
+		return 10*Math.log10((maxPixelValue*maxPixelValue)/pMse);
+	}
+
+	/**
+	 * @return true if the values were estimated from a sample of the pixels
+	 */
+	public boolean isSampled() {
+		return gSampledPixels>0;
+	}
+
+	/**
+	 * @return the number of pixels sampled (zero if not sampled)
+	 */
+	public long getSampledPixels() {
+		return gSampledPixels;
+	}
+
+	/**
+	 * @return lower end of the 95% confidence interval for the SSIM mean (the mean, if not sampled)
+	 */
+	public double getSsimLower() {
+		return gSsimMean-gSsimError;
+	}
+
+	/**
+	 * @return upper end of the 95% confidence interval for the SSIM mean (the mean, if not sampled)
+	 */
+	public double getSsimUpper() {
+		return gSsimMean+gSsimError;
+	}
+
+	/**
+	 * @return lower end of the 95% confidence interval for the PSNR (the PSNR, if not sampled)
+	 */
+	public double getPsnrLower() {
+		return psnr(getMse()+gMseError);
+	}
+
+	/**
+	 * @return upper end of the 95% confidence interval for the PSNR (the PSNR, if not sampled)
+	 */
+	public double getPsnrUpper() {
+		return psnr(Math.max(0, getMse()-gMseError));
+	}
+
+	/**
+	 * @return true if per-tile maps were calculated
+	 */
+	public boolean hasTileMaps() {
+		return null!=gTileSse;
+	}
+
+	/**
+	 * @return the size of the (square) tiles; tiles on the right and bottom edges may be smaller
+	 */
+	public int getTileSize() {
+		return gTileSize;
+	}
+
+	/**
+	 * @return the number of tiles across
+	 */
+	public int getTilesWide() {
+		return gTilesWide;
+	}
+
+	/**
+	 * @return the number of tiles down
+	 */
+	public int getTilesHigh() {
+		return gTilesHigh;
+	}
+
+	/**
+	 * @return the sum of squared errors (over all channels) for each tile, row by row (null if not calculated)
+	 */
+	public long[] getTileSse() {
+		return (null==gTileSse)?null:gTileSse.clone();
+	}
+
+	/**
+	 * @return the maximum absolute error for each tile, row by row (null if not calculated)
+	 */
+	public int[] getTileMaxError() {
+		return (null==gTileMaxError)?null:gTileMaxError.clone();
+	}
+
+	/**
+	 * @return the SSIM for each tile, row by row (null if not calculated)
+	 */
+	public double[] getTileSsim() {
+		return (null==gTileSsim)?null:gTileSsim.clone();
+	}
+
+	/**
+	 * @return the mean squared error for each tile, row by row (null if not calculated)
+	 */
+	public double[] getTileMse() {
+		if(null==gTileSse) return null;
+		final int channels = gGreyscale?1:3;
+		final double[] mse = new double[gTileSse.length];
+		for(int y=0;y<gTilesHigh;y++) {
+			final int rows = Math.min(gTileSize, gHeight-y*gTileSize);
+			for(int x=0;x<gTilesWide;x++) {
+				final int columns = Math.min(gTileSize, gWidth-x*gTileSize);
+				final int tile = y*gTilesWide+x;
+				mse[tile] = gTileSse[tile]/((double)rows*columns*channels);
+			}
+		}
+		return mse;
+	}
+
+	/**
+	 * @return the PSNR for each tile, row by row (infinite for identical tiles; null if not calculated)
+	 */
+	public double[] getTilePsnr() {
+		final double[] psnr = getTileMse();
+		if(null==psnr) return null;
+		for(int tile=0;tile<psnr.length;tile++) {
+			psnr[tile] = psnr(psnr[tile]);
+		}
+		return psnr;
+	}
+
+	/**
+	 * @return the number of pixels compared
+	 */
+	public long getPixels() {
+		return (long)gWidth*gHeight;
+	}
+
+	/**
+	 * @return the width
+	 */
+	public int getWidth() {
+		return gWidth;
+	}
+
+	/**
+	 * @param pWidth the width to set
+	 */
+	public void setWidth(int pWidth) {
+		gWidth = pWidth;
+	}
+
+	/**
+	 * @return the height
+	 */
+	public int getHeight() {
+		return gHeight;
+	}
+
+	/**
+	 * @param pHeight the height to set
+	 */
+	public void setHeight(int pHeight) {
+		gHeight = pHeight;
+	}
+
+	/**
+	 * @return whether the images were compared as greyscale
+	 */
+	public boolean isGreyscale() {
+		return gGreyscale;
+	}
+
+	/**
+	 * @param pGreyscale whether the images were compared as greyscale
+	 */
+	public void setGreyscale(boolean pGreyscale) {
+		gGreyscale = pGreyscale;
+	}
+
+	/**
+	 * @return bits per sample of the compared images (the PSNR peak is 2^bitDepth-1)
+	 */
+	public int getBitDepth() {
+		return gBitDepth;
+	}
+
+	/**
+	 * @param pBitDepth bits per sample of the compared images
+	 */
+	public void setBitDepth(int pBitDepth) {
+		gBitDepth = pBitDepth;
+	}
+
+	/**
+	 * @return reduction factor the images were decoded at (1 for full resolution); the width and
+	 * height are those of the reduced images, and the metrics are only approximations when this is above 1
+	 */
+	public int getDecodeScale() {
+		return gDecodeScale;
+	}
+
+	/**
+	 * @param pDecodeScale reduction factor the images were decoded at
+	 */
+	public void setDecodeScale(int pDecodeScale) {
+		gDecodeScale = pDecodeScale;
+	}
+
+	/**
+	 * @return the ssimMean
+	 */
+	public double getSsimMean() {
+		return gSsimMean;
+	}
+
+	/**
+	 * @param pSsimMean the ssimMean to set
+	 */
+	public void setSsimMean(double pSsimMean) {
+		gSsimMean = pSsimMean;
+	}
+
+	/**
+	 * @return the ssimMin
+	 */
+	public double getSsimMin() {
+		return gSsimMin;
+	}
+
+	/**
+	 * @param pSsimMin the ssimMin to set
+	 */
+	public void setSsimMin(double pSsimMin) {
+		gSsimMin = pSsimMin;
+	}
+
+	/**
+	 * @return the ssimVariance
+	 */
+	public double getSsimVariance() {
+		return gSsimVariance;
+	}
+
+	/**
+	 * @param pSsimVariance the ssimVariance to set
+	 */
+	public void setSsimVariance(double pSsimVariance) {
+		gSsimVariance = pSsimVariance;
+	}
+
+	/**
+	 * @return the sum of squared errors for the red channel (zero for greyscale)
+	 */
+	public long getSseRed() {
+		return gSseRed;
+	}
+
+	/**
+	 * @return the sum of squared errors for the green channel (zero for greyscale)
+	 */
+	public long getSseGreen() {
+		return gSseGreen;
+	}
+
+	/**
+	 * @return the sum of squared errors for the blue channel (the only channel for greyscale)
+	 */
+	public long getSseBlue() {
+		return gSseBlue;
+	}
+
+	/**
+	 * @return the sum of squared luma errors, in squared sample levels (zero for greyscale)
+	 */
+	public double getSseLuma() {
+		return gSseLuma;
+	}
+
+	/**
+	 * @return the maximum absolute difference between any two corresponding samples
+	 */
+	public int getMaxAbsoluteError() {
+		return gMaxAbsoluteError;
+	}
+
+	/**
+	 * @return the number of pixels that differ between the images
+	 */
+	public long getDifferingPixels() {
+		return gDifferingPixels;
+	}
+
+	/**
+	 * @return true if the values are exact, false if they are bounds because the comparison stopped early,
+	 * or estimates from a sample
+	 */
+	public boolean isExact() {
+		return gExact;
+	}
+
+	/**
+	 * @param pExact whether the values are exact
+	 */
+	public void setExact(boolean pExact) {
+		gExact = pExact;
+	}
+
+	/**
+	 * @return whether the pair met the thresholds it was compared against (true if there were none)
+	 */
+	public boolean isAccepted() {
+		return gAccepted;
+	}
+
+	/**
+	 * @param pAccepted whether the pair met the thresholds
+	 */
+	public void setAccepted(boolean pAccepted) {
+		gAccepted = pAccepted;
+	}
+
+	/**
+	 * @return true if the images were found to be pixel-identical before any metrics were calculated
+	 * (the SSIM values are then 1, the errors 0 and the PSNR infinite)
+	 */
+	public boolean isIdentical() {
+		return gIdentical;
+	}
+
+	/**
+	 * @param pIdentical whether the images are pixel-identical
+	 */
+	void setIdentical(boolean pIdentical) {
+		gIdentical = pIdentical;
+	}
+
+	/**
+	 * Record the multi-scale SSIM values
+	 * @param pMsssim MS-SSIM
+	 * @param pContrast mean contrast-structure term for each scale, finest first
+	 * @param pLuminance mean luminance term at the coarsest scale
+	 */
+	void setMultiScale(final double pMsssim, final double[] pContrast, final double pLuminance) {
+		gMsssim = pMsssim;
+		gMsssimContrast = pContrast.clone();
+		gMsssimLuminance = pLuminance;
+	}
+
+	/**
+	 * @return the MS-SSIM (zero if not calculated)
+	 */
+	public double getMsssim() {
+		return gMsssim;
+	}
+
+	/**
+	 * @return the mean contrast-structure term for each MS-SSIM scale, finest first (null if not calculated)
+	 */
+	public double[] getMsssimContrast() {
+		return (null==gMsssimContrast)?null:gMsssimContrast.clone();
+	}
+
+	/**
+	 * @return the mean luminance term at the coarsest MS-SSIM scale
+	 */
+	public double getMsssimLuminance() {
+		return gMsssimLuminance;
+	}
+
+}
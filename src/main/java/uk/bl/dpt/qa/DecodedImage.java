@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A decoded image and the reduction factor it was decoded at, so that metrics calculated on a reduced
+ * resolution decode can be labelled as such
+ * @author wpalmer
+ *
+ */
+public class DecodedImage {
+
+	private final BufferedImage gImage;
+	private final int gScale;
+	private final String gDecoder;
+
+	/**
+	 * Create a new DecodedImage
+	 * @param pImage decoded image
+	 * @param pScale reduction factor of the image (1 for full resolution, 8 for 1/8 width and height)
+	 */
+	public DecodedImage(final BufferedImage pImage, final int pScale) {
+		this(pImage, pScale, null);
+	}
+
+	/**
+	 * Create a new DecodedImage
+	 * @param pImage decoded image
+	 * @param pScale reduction factor of the image (1 for full resolution, 8 for 1/8 width and height)
+	 * @param pDecoder name of the decoder that decoded it (can be null)
+	 */
+	public DecodedImage(final BufferedImage pImage, final int pScale, final String pDecoder) {
+		gImage = pImage;
+		gScale = pScale;
+		gDecoder = pDecoder;
+	}
+
+	/**
+	 * Reduce the resolution of a fully decoded image by keeping every pScale'th pixel of every pScale'th
+	 * row, starting from the first.  This picks the same pixels as ImageReadParam.setSourceSubsampling,
+	 * so images reduced by different decoders can still be compared with each other.
+	 * @param pImage full resolution image
+	 * @param pScale reduction factor
+	 * @return reduced image (ceil(width/pScale) by ceil(height/pScale), TYPE_INT_RGB), or pImage if pScale is 1
+	 */
+	public static BufferedImage subsample(final BufferedImage pImage, final int pScale) {
+		if(pScale<=1) return pImage;
+		final int width = pImage.getWidth();
+		final int height = pImage.getHeight();
+		final int reducedWidth = (width+pScale-1)/pScale;
+		final int reducedHeight = (height+pScale-1)/pScale;
+		final BufferedImage reduced = new BufferedImage(reducedWidth, reducedHeight, BufferedImage.TYPE_INT_RGB);
+		final int[] row = new int[width];
+		final int[] reducedRow = new int[reducedWidth];
+		for(int y=0;y<reducedHeight;y++) {
+			RasterPixels.getRows(pImage, y*pScale, 1, row);
+			for(int x=0;x<reducedWidth;x++) {
+				reducedRow[x] = row[x*pScale];
+			}
+			reduced.setRGB(0, y, reducedWidth, 1, reducedRow, 0, reducedWidth);
+		}
+		return reduced;
+	}
+
+	/**
+	 * @return the decoded image
+	 */
+	public BufferedImage getImage() {
+		return gImage;
+	}
+
+	/**
+	 * @return the reduction factor (1 for full resolution, 8 for 1/8 width and height)
+	 */
+	public int getScale() {
+		return gScale;
+	}
+
+	/**
+	 * @return name of the decoder that decoded the image (null if not known)
+	 */
+	public String getDecoder() {
+		return gDecoder;
+	}
+
+}
@@ -16,15 +16,26 @@
  */
 package uk.bl.dpt.qa;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -32,11 +43,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
-import org.apache.commons.imaging.ImageReadException;
-import org.apache.commons.imaging.Imaging;
-import org.apache.commons.math3.stat.correlation.Covariance;
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.moment.Variance;
 
 /*
  * NOTE: this currently uses a snapshot of commons-imaging to load tiff files
@@ -60,62 +66,115 @@ public class DissimilarV2 {
 	 * Version string (loaded from Maven properties in jar)
 	 */
 	private static String version = "NOVERSION";
+
+	/**
+	 * Decoders used to load image files
+	 */
+	private static ImageDecoders decoders = new ImageDecoders();
+
+	/**
+	 * Number of bands of SSIM windows per thread when calculating in parallel (for load balancing)
+	 */
+	private final static int BANDSPERTHREAD = 4;
+	
+	/**
+	 * PSNR (dB) shown as white in the tile psnr map
+	 */
+	private final static double TILEMAPMAXPSNR = 60;
+	
+	/**
+	 * Number of pixels unpacked at a time when calculating the MSE
+	 */
+	private final static int KERNELCHUNK = 4096;
+
+	/**
+	 * Number of rows read at a time when building off-heap luma planes
+	 */
+	private final static int STREAMBANDROWS = 16;
+
+	/**
+	 * Last block SSIM engine used on each thread.  The engines hold tables sized for one image width and
+	 * are not thread safe, so each thread keeps its own and re-uses it while the width and parameters stay
+	 * the same (e.g. for a batch of images from one scanner)
+	 */
+	private final static ThreadLocal<IntegralImageSSIM> BLOCKENGINE = new ThreadLocal<IntegralImageSSIM>();
+
+	/**
+	 * Last Gaussian SSIM engine used on each thread (see BLOCKENGINE)
+	 */
+	private final static ThreadLocal<GaussianSSIM> GAUSSIANENGINE = new ThreadLocal<GaussianSSIM>();
 	
 	/**
-	 * Calculate the SSIM value on a window of pixels
-	 * @param pLumaOne luma values for first image
-	 * @param pLumaTwo luma values for second image
+	 * Calculate the SSIM; see http://en.wikipedia.org/wiki/Structural_similarity
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
 	 * @param pWidth width of the two images
 	 * @param pHeight height of the two images
-	 * @param pWindowSize window size
-	 * @param pStartX start x coordinate for the window
-	 * @param pStartY start y coordinate for the window
-	 * @return SSIM for the window
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png)
+	 * @param pMin list to hold return value for ssim-minimum
+	 * @param pVariance list to hold return value for ssim-variance
+	 * @return SSIM
 	 */
-	private static double calcSSIMOnWindow(final double[] pLumaOne, final double[] pLumaTwo, final int pWidth,
-			final int pHeight, final int pWindowSize, final int pStartX, final int pStartY) {
-		
-		final double k1 = 0.01;
-		final double k2 = 0.03;
-		final double L = Math.pow(2, 8)-1;//255 (at least for the moment all pixel values are 8-bit)
-		final double c1 = Math.pow(k1*L, 2); 
-		final double c2 = Math.pow(k2*L, 2); 
+	public static double calcSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+									final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance) {
+		return calcSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pMin, pVariance, 1);
+	}
 
-		final int windowWidth = ((pWindowSize+pStartX)>pWidth)?(pWidth-pStartX):(pWindowSize);
-		final int windowHeight = ((pWindowSize+pStartY)>pHeight)?(pHeight-pStartY):(pWindowSize);
-		
-		if(windowWidth<=0||windowHeight<=0) {
-			System.out.println(pWidth+" "+pStartX+" "+windowWidth+" "+windowHeight);
-			System.out.println(pHeight+" "+pStartY+" "+windowWidth+" "+windowHeight);
+	/**
+	 * Calculate the SSIM with the given parameters into a result object, which can be re-used for any
+	 * number of pairs; nothing is boxed and no SSIM map is stored
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pParameters SSIM parameters (e.g. SSIMParameters.block() or SSIMParameters.gaussian())
+	 * @param pResult result to hold the SSIM mean, minimum and variance (reset first)
+	 * @return true if successful, false if the images cannot be compared or are smaller than the window
+	 */
+	public static boolean calcSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+									final SSIMParameters pParameters, final SSIMResult pResult) {
+		pResult.reset();
+		if(!checkPair(pOne, pTwo, pWidth, pHeight)) return false;
+		if(SSIMParameters.Weighting.GAUSSIAN==pParameters.getWeighting()) {
+			return getGaussianEngine(pWidth, pParameters).calcSSIM(pOne, pTwo, pHeight, pGreyscale, pResult);
 		}
-		
-		//store a temporary copy of the pixels
-		double[] pixelsOne = new double[windowWidth*windowHeight];
-		double[] pixelsTwo = new double[windowWidth*windowHeight];
-		
-		for(int h=0;h<windowHeight;h++) {
-			for(int w=0;w<windowWidth;w++) {
-				pixelsOne[(h*windowWidth)+w] = pLumaOne[(pStartY+h)*pWidth+pStartX+w];
-				pixelsTwo[(h*windowWidth)+w] = pLumaTwo[(pStartY+h)*pWidth+pStartX+w];
-			}
-		}		
-		
-		final double ux = new Mean().evaluate(pixelsOne, 0, pixelsOne.length);
-		final double uy = new Mean().evaluate(pixelsTwo, 0, pixelsTwo.length);
-		final double o2x = new Variance().evaluate(pixelsOne);
-		final double o2y = new Variance().evaluate(pixelsTwo);
-		final double oxy = new Covariance().covariance(pixelsOne, pixelsTwo);
-		
-		final double num = (2*ux*uy+c1)*(2*oxy+c2);
-		final double den = (ux*ux+uy*uy+c1)*(o2x+o2y+c2);
-		
-		final double ssim = num/den;
-		
-		return ssim;
+		getBlockEngine(pWidth, pParameters).calcSSIM(pOne, pTwo, pHeight, pGreyscale, pResult);
+		return pResult.getWindows()>0;
 	}
-	
+
 	/**
-	 * Calculate the SSIM; see http://en.wikipedia.org/wiki/Structural_similarity
+	 * @param pWidth width of the images
+	 * @param pParameters SSIM parameters (uniform weighting)
+	 * @return this thread's block SSIM engine for the width and parameters, made if the last one does not match
+	 */
+	private static IntegralImageSSIM getBlockEngine(final int pWidth, final SSIMParameters pParameters) {
+		IntegralImageSSIM engine = BLOCKENGINE.get();
+		if(null==engine||engine.getWidth()!=pWidth||!engine.getParameters().equals(pParameters)) {
+			engine = new IntegralImageSSIM(pWidth, pParameters);
+			BLOCKENGINE.set(engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * @param pWidth width of the images
+	 * @param pParameters SSIM parameters (Gaussian weighting)
+	 * @return this thread's Gaussian SSIM engine for the width and parameters, made if the last one does not match
+	 */
+	private static GaussianSSIM getGaussianEngine(final int pWidth, final SSIMParameters pParameters) {
+		GaussianSSIM engine = GAUSSIANENGINE.get();
+		if(null==engine||engine.getWidth()!=pWidth||!engine.getParameters().equals(pParameters)) {
+			engine = new GaussianSSIM(pWidth, pParameters);
+			GAUSSIANENGINE.set(engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * Calculate the SSIM using multiple threads; see http://en.wikipedia.org/wiki/Structural_similarity
+	 * The result is the same whatever the number of threads.
 	 * @param pOne array of integer pixel values for first image
 	 * @param pTwo array of integer pixel values for second image
 	 * @param pWidth width of the two images
@@ -124,70 +183,1108 @@ public class DissimilarV2 {
 	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png)
 	 * @param pMin list to hold return value for ssim-minimum
 	 * @param pVariance list to hold return value for ssim-variance
+	 * @param pThreads number of threads to use (1 to run on the calling thread)
 	 * @return SSIM
 	 */
 	public static double calcSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
-									final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance) {
+									final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance, final int pThreads) {
+		if(pThreads<=1) {
+			return calcSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pMin, pVariance, null, 1);
+		}
+		ForkJoinPool pool = new ForkJoinPool(pThreads);
+		try {
+			return calcSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pMin, pVariance, pool, pThreads*BANDSPERTHREAD);
+		} finally {
+			//interrupts any bands still running if the calculation was cancelled
+			pool.shutdownNow();
+		}
+	}
 
-		if(!checkPair(pOne, pTwo)) return -1;
+	/**
+	 * Calculate the SSIM using a caller-supplied executor; see http://en.wikipedia.org/wiki/Structural_similarity
+	 * The result is the same whatever the number of threads in the executor.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png)
+	 * @param pMin list to hold return value for ssim-minimum
+	 * @param pVariance list to hold return value for ssim-variance
+	 * @param pExecutor executor to calculate the SSIM windows on (not shut down by this method)
+	 * @return SSIM
+	 */
+	public static double calcSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+									final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance, final ExecutorService pExecutor) {
+		return calcSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pMin, pVariance, pExecutor, 
+							Runtime.getRuntime().availableProcessors()*BANDSPERTHREAD);
+	}
+
+	/**
+	 * Calculate the SSIM; see http://en.wikipedia.org/wiki/Structural_similarity
+	 * Without a heatmap or an executor this is just a wrapper for calcSSIM with SSIMParameters.block() and
+	 * an SSIMResult, so no SSIM map is stored; otherwise the map is needed for the heatmap or the bands.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png)
+	 * @param pMin list to hold return value for ssim-minimum
+	 * @param pVariance list to hold return value for ssim-variance
+	 * @param pExecutor executor to calculate the SSIM windows on (null to use the calling thread)
+	 * @param pBands number of bands to split the windows into when using the executor
+	 * @return SSIM
+	 */
+	private static double calcSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+									final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance, 
+									final ExecutorService pExecutor, final int pBands) {
+
+		if(!checkPair(pOne, pTwo, pWidth, pHeight)) return -1;
+
+		if(null==pHeatMapFilename&&null==pExecutor) {
+			if(pGreyscale) {
+				System.out.println("=> Greyscale");
+			}
+			final SSIMResult ssim = new SSIMResult();
+			if(!calcSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, SSIMParameters.block(), ssim)) return -1;
+			if(null!=pMin) {
+				pMin.add(0, new Double(ssim.getMin()));
+			}
+			if(null!=pVariance) {
+				pVariance.add(0, new Double(ssim.getVariance()));
+			}
+			return ssim.getMean();
+		}
 
-		double[] lumaOne = null; 
-		double[] lumaTwo = null; 
+		ComparisonResult result = new ComparisonResult();
+		if(!calcBlockSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pExecutor, pBands, result, false)) {
+			return -1;
+		}
+		
+		if(null!=pMin) {
+			pMin.add(0, new Double(result.getSsimMin()));
+		}
+		if(null!=pVariance) {
+			pVariance.add(0, new Double(result.getSsimVariance()));
+		}
 		
-		//if the image is greyscale then don't extract the luma
+		return result.getSsimMean();
+	}
+
+	/**
+	 * Calculate the block SSIM, storing the mean, minimum and variance in a result object
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png)
+	 * @param pExecutor executor to calculate the SSIM windows on (null to use the calling thread)
+	 * @param pBands number of bands to split the windows into when using the executor
+	 * @param pResult result to store the values in
+	 * @param pErrors whether to also calculate the error statistics (sse, etc) in the same pass
+	 * @return true if successful
+	 */
+	private static boolean calcBlockSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+											final String pHeatMapFilename, final ExecutorService pExecutor, final int pBands,
+											final ComparisonResult pResult, final boolean pErrors) {
+
 		if(pGreyscale) {
 			System.out.println("=> Greyscale");
-			lumaOne = new double[pOne.length];
-			lumaTwo = new double[pTwo.length];
-			for(int i=0;i<lumaOne.length;i++) {
-				//all rgb values are the same
-				lumaOne[i] = (pOne[i] >> 0 ) & 0xFF;
-				lumaTwo[i] = (pTwo[i] >> 0 ) & 0xFF;
-			}
-		} else {
-			lumaOne = calcLuma(pOne);
-			lumaTwo = calcLuma(pTwo);			
 		}
 
 		final int windowSize = SSIMWINDOWSIZE;
 		
-		final int windowsH = (int)Math.ceil((double)pHeight/windowSize);
-		final int windowsW = (int)Math.ceil((double)pWidth/windowSize);
+		final int windowsH = countWindows(pHeight);
+		final int windowsW = countWindows(pWidth);
 		
 		double[] mssim = new double[windowsH*windowsW]; 
 
-		double mean = 0;
-		double min = 1;
+		pResult.setWidth(pWidth);
+		pResult.setHeight(pHeight);
+		pResult.setGreyscale(pGreyscale);
+		final ComparisonResult errors = pErrors?pResult:null;
+
+		//window statistics come from summed-area tables, so no luma arrays are needed here
+		if(null==pExecutor) {
+			getBlockEngine(pWidth, SSIMParameters.block(windowSize)).calcSSIM(pOne, pTwo, pHeight, pGreyscale, mssim, 0, windowsH, errors);
+		} else {
+			try {
+				IntegralImageSSIM.calcSSIM(pOne, pTwo, pWidth, pHeight, windowSize, pGreyscale, mssim, pExecutor, pBands, errors);
+			} catch (InterruptedException e) {
+				//cancelled: stop, keeping the interrupt for the caller
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		storeBlockSSIM(mssim, windowsH, windowsW, pHeatMapFilename, pResult);
+		
+		return true;
+	}
+
+	/**
+	 * @param pPixels width or height of an image
+	 * @return number of block SSIM windows across it (the last may be partial)
+	 */
+	private static int countWindows(final int pPixels) {
+		return (int)Math.ceil((double)pPixels/SSIMWINDOWSIZE);
+	}
+
+	/**
+	 * Reduce the SSIM of every window to the mean, minimum and variance and store them in a result, 
+	 * saving the heat map and tile map if wanted
+	 * @param pSsim ssim for each window, row by row
+	 * @param pWindowsH number of rows of windows
+	 * @param pWindowsW number of windows in a row
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null)
+	 * @param pResult result to store the values in
+	 */
+	private static void storeBlockSSIM(final double[] pSsim, final int pWindowsH, final int pWindowsW, 
+										final String pHeatMapFilename, final ComparisonResult pResult) {
+		//the reduction is always done in window order so the result does not depend on the threading, and 
+		//through an SSIMResult so it is the same as for calcSSIM(..., SSIMParameters, SSIMResult)
+		final SSIMResult ssim = new SSIMResult();
+		for(int window=0;window<pWindowsH*pWindowsW;window++) {
+			ssim.add(pSsim[window]);
+		}
+
+		//if(variance>0.001) System.out.println("warning: high variance");
+		
+		if(null!=pHeatMapFilename) {
+			dumpSSIMHeatMap(pSsim, pWindowsH, pWindowsW, pHeatMapFilename);
+		}
+
+		if(pResult.hasTileMaps()) {
+			pResult.setTileSsim(pSsim);
+		}
+
+		pResult.setSsimMean(ssim.getMean());
+		pResult.setSsimMin(ssim.getMin());
+		pResult.setSsimVariance(ssim.getVariance());
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for a rectangle of two images; only the rectangle is unpacked
+	 * and compared.  The width and height of the result are those of the (clipped) rectangle.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pRegion region to compare (clipped to the images)
+	 * @param pHeatMapFilename filename for the ssim heatmap image of the region to be saved to (png, can be null)
+	 * @param pThreads number of threads to use (1 to run on the calling thread)
+	 * @return comparison result, or null if the images cannot be compared or the region is outside them
+	 */
+	public static ComparisonResult calcMetricsRegion(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, 
+														final boolean pGreyscale, final Rectangle pRegion, final String pHeatMapFilename, 
+														final int pThreads) {
+		if(!checkPair(pOne, pTwo)) return null;
+		final Rectangle region = RegionComparison.clip(pRegion, pWidth, pHeight);
+		if(null==region) return null;
+		return calcMetrics(RegionComparison.crop(pOne, pWidth, region), RegionComparison.crop(pTwo, pWidth, region), 
+							region.width, region.height, pGreyscale, pHeatMapFilename, pThreads);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for just the pixels set in a mask.  The images are first cropped 
+	 * to the bounding box of the mask, and the width and height of the result are those of the bounding box.
+	 * The errors (and so the PSNR) are over exactly the pixels in the mask; the SSIM is over the windows at
+	 * least half inside it (NaN if there are none).  See RegionComparison.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pMask mask (pWidth*pHeight, row by row; true for pixels to compare)
+	 * @param pThreads number of threads to use (1 to run on the calling thread)
+	 * @return comparison result, or null if the images cannot be compared or the mask is empty
+	 */
+	public static ComparisonResult calcMetricsMasked(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, 
+														final boolean pGreyscale, final boolean[] pMask, final int pThreads) {
+		if(!checkPair(pOne, pTwo)) return null;
+		if(pMask.length!=pOne.length) return null;
+		final Rectangle region = RegionComparison.bounds(pMask, pWidth, pHeight);
+		if(null==region) return null;
+		final int[] one = RegionComparison.crop(pOne, pWidth, region);
+		final int[] two = RegionComparison.crop(pTwo, pWidth, region);
+		final boolean[] mask = RegionComparison.crop(pMask, pWidth, region);
+		final long maskPixels = RegionComparison.applyMask(one, two, mask);
+		final ComparisonResult result = calcMetrics(one, two, region.width, region.height, pGreyscale, null, pThreads, true);
+		if(null!=result) {
+			RegionComparison.restrictToMask(result, mask, maskPixels);
+		}
+		return result;
+	}
+
+	/**
+	 * Start decoding a file asynchronously if it will be decoded by OpenJPEG (the first choice decoder
+	 * for its format), which runs in an external process anyway
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor (1 for full resolution)
+	 * @return future decoded image, or null if OpenJPEG is not the decoder for the file
+	 */
+	private static Future<DecodedImage> submitOpenJPEG(final File pFile, final int pScale) {
+		final List<ImageDecoder> priority = decoders.getPriority(ImageDecoders.getFormat(pFile));
+		if(priority.isEmpty()||!(priority.get(0) instanceof OpenJPEGDecoder)||!priority.get(0).isAvailable()) return null;
+		return ((OpenJPEGDecoder)priority.get(0)).submit(pFile, pScale);
+	}
+
+	/**
+	 * Open an image file as a PixelSource for reading a region with the given decoder, so that only the
+	 * region is decoded where the decoder allows it: OpenJPEG decodes just the region and javax.imageio
+	 * reads just its rows, while other decoders decode the whole image
+	 * @param pFile file to open
+	 * @param pDecoder decoder to use (see ImageDecoders.getFirstDecoder)
+	 * @return pixel source for the file
+	 * @throws IOException if the decoder cannot read the file
+	 */
+	private static PixelSource openRegionSource(final File pFile, final ImageDecoder pDecoder) throws IOException {
+		if(null==pDecoder) throw new IOException("No decoder available for "+pFile);
+		if(OpenJPEGDecoder.NAME.equals(pDecoder.getName())) {
+			try {
+				return new OpenJPEGPixelSource(pFile);
+			} catch (IOException e) {
+				//unreadable header, so decode it in full
+			}
+		} else if(ImageIODecoder.NAME.equals(pDecoder.getName())) {
+			try {
+				return new ImageReaderPixelSource(pFile);
+			} catch (IOException e) {
+				//no javax.imageio reader, so decode it in full
+			}
+		}
+		return new BufferedImagePixelSource(pDecoder.decode(pFile));
+	}
+
+	/**
+	 * Read a region of an image
+	 * @param pSource image to read from
+	 * @param pRegion region to read (within the image)
+	 * @return integer pixel values for the region (row by row)
+	 * @throws IOException if the region cannot be read
+	 */
+	private static int[] readRegion(final PixelSource pSource, final Rectangle pRegion) throws IOException {
+		final int[] pixels = new int[pRegion.width*pRegion.height];
+		if(pSource instanceof ImageReaderPixelSource) {
+			((ImageReaderPixelSource)pSource).getRegion(pRegion, pixels);
+			return pixels;
+		}
+		if(pSource instanceof OpenJPEGPixelSource) {
+			((OpenJPEGPixelSource)pSource).getRegion(pRegion, pixels);
+			return pixels;
+		}
+		//already decoded, so just copy the rows of the region one at a time
+		final int[] row = new int[pSource.getWidth()];
+		for(int y=0;y<pRegion.height;y++) {
+			pSource.getRows(pRegion.y+y, 1, row);
+			System.arraycopy(row, pRegion.x, pixels, y*pRegion.width, pRegion.width);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Read a mask image: pixels that are not black are in the mask
+	 * @param pFile mask image
+	 * @param pWidth expected width
+	 * @param pHeight expected height
+	 * @return mask (row by row), or null if it cannot be read or is not the same size as the images
+	 */
+	private static boolean[] readMask(final File pFile, final int pWidth, final int pHeight) {
+		try {
+			final BufferedImage image = decoders.decode(pFile);
+			if(image.getWidth()!=pWidth||image.getHeight()!=pHeight) return null;
+			final int[] pixels = RasterPixels.getPixels(image);
+			final boolean[] mask = new boolean[pixels.length];
+			for(int i=0;i<pixels.length;i++) {
+				mask[i] = (pixels[i] & 0xFFFFFF)!=0;
+			}
+			return mask;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for a region of two files, given as a rectangle or as a mask
+	 * image (or both, in which case only the part of the mask inside the rectangle is used).  Only the region 
+	 * (or the bounding box of the mask) is decoded, where the decoder supports it.  Both images are decoded
+	 * by the decoder the ImageDecoders policy picks for the first, as in a full comparison.
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pRegion region to compare (can be null)
+	 * @param pMask mask image, the same size as the images, with pixels to compare not black (can be null)
+	 * @param pHeatMapFilename filename for the ssim heatmap image of the region to be saved to (png, can be null; 
+	 * ignored with a mask)
+	 * @return comparison result, or null (with an error printed) if the images cannot be loaded or compared or the region is empty
+	 */
+	public static ComparisonResult calcMetricsRegion(final File pOne, final File pTwo, final Rectangle pRegion, final File pMask,
+														final String pHeatMapFilename) {
+		return calcMetricsRegion(pOne, pTwo, pRegion, pMask, pHeatMapFilename, 1);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for a region of two files, given as a rectangle or as a mask
+	 * image (or both), using several threads for the ssim; see calcMetricsRegion above
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pRegion region to compare (can be null)
+	 * @param pMask mask image, the same size as the images, with pixels to compare not black (can be null)
+	 * @param pHeatMapFilename filename for the ssim heatmap image of the region to be saved to (png, can be null; 
+	 * ignored with a mask)
+	 * @param pThreads number of threads to use (1 to run on the calling thread)
+	 * @return comparison result, or null (with an error printed) if the images cannot be loaded or compared or the region is empty
+	 */
+	public static ComparisonResult calcMetricsRegion(final File pOne, final File pTwo, final Rectangle pRegion, final File pMask,
+														final String pHeatMapFilename, final int pThreads) {
+		
+		PixelSource one = null;
+		PixelSource two = null;
+		try {
+			//the same decoder for both images, as for a full comparison, so the region matches one
+			final ImageDecoder oneDecoder = decoders.getFirstDecoder(pOne, null);
+			try {
+				one = openRegionSource(pOne, oneDecoder);
+			} catch (IOException e) {
+				printError(pOne, false, false, pTwo, false);
+				return null;
+			}
+			try {
+				two = openRegionSource(pTwo, decoders.getFirstDecoder(pTwo, oneDecoder.getName()));
+			} catch (IOException e) {
+				printError(pOne, true, true, pTwo, false);
+				return null;
+			}
+			final int width = one.getWidth();
+			final int height = one.getHeight();
+			if(width!=two.getWidth()||height!=two.getHeight()) {
+				printError(pOne, true, true, pTwo, true);
+				return null;
+			}
+			
+			boolean[] mask = null;
+			Rectangle region = new Rectangle(0, 0, width, height);
+			if(null!=pRegion) {
+				region = RegionComparison.clip(pRegion, width, height);
+				if(null==region) {
+					printError(pOne, true, true, pTwo, true);
+					return null;
+				}
+			}
+			if(null!=pMask) {
+				mask = readMask(pMask, width, height);
+				if(null==mask) {
+					printError(pOne, pTwo, pMask);
+					return null;
+				}
+				//only decode the bounding box of the (clipped) mask
+				final Rectangle bounds = RegionComparison.bounds(RegionComparison.crop(mask, width, region), region.width, region.height);
+				if(null==bounds) {
+					printError(pOne, true, true, pTwo, true);
+					return null;
+				}
+				bounds.translate(region.x, region.y);
+				region = bounds;
+				mask = RegionComparison.crop(mask, width, region);
+			}
+			
+			final int[] oneA = readRegion(one, region);
+			final int[] twoA = readRegion(two, region);
+			final boolean greyscale = (one.isGreyscale()||PixelKernels.isGreyscale(oneA, 0, oneA.length))&&
+										(two.isGreyscale()||PixelKernels.isGreyscale(twoA, 0, twoA.length));
+			final ComparisonResult result = (null==mask)?
+												calcMetrics(oneA, twoA, region.width, region.height, greyscale, pHeatMapFilename, pThreads):
+												calcMetricsMasked(oneA, twoA, region.width, region.height, greyscale, mask, pThreads);
+			if(null==result) {
+				printError(pOne, true, true, pTwo, true);
+			}
+			return result;
+		} catch (IOException e) {
+			e.printStackTrace();
+			printError(pOne, true, true, pTwo, true);
+			return null;
+		} finally {
+			try {
+				if(null!=one) one.close();
+				if(null!=two) two.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Compare a region of two files and print the result
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pRegion region to compare (can be null)
+	 * @param pMask mask image (can be null)
+	 * @param pHeatMapImage filename for the ssim heatmap image of the region (png, can be null)
+	 * @param pCalcSSIM whether to print the ssim
+	 * @param pCalcPSNR whether to print the psnr
+	 * @param pThreads number of threads to use for ssim
+	 */
+	private static void compareRegion(final File pOne, final File pTwo, final Rectangle pRegion, final File pMask, final String pHeatMapImage,
+										final boolean pCalcSSIM, final boolean pCalcPSNR, final int pThreads) {
+
+		final long time = System.currentTimeMillis();
+		final ComparisonResult result = calcMetricsRegion(pOne, pTwo, pRegion, pMask, pHeatMapImage, pThreads);
+		final long calcTime = System.currentTimeMillis()-time;
+		if(null==result) {
+			//the error element has already been printed
+			return;
+		}
+
+		final DecimalFormat format = new DecimalFormat("0.0000000");
+		System.out.println("<dissimilar version=\""+version+"\">");
+		System.out.println("     <file>"+pOne+"</file>");
+		System.out.println("     <file>"+pTwo+"</file>");
+		System.out.println("     <region width=\""+result.getWidth()+"\" height=\""+result.getHeight()+"\""+
+							((null!=pMask)?" maskedPixels=\""+result.getMaskedPixels()+"\"":"")+"/>");
+		if(pCalcSSIM) {
+			//a mask with no window mostly inside it has no ssim (NaN), so the element is left empty
+			System.out.println("     <ssim calcTimeMS=\""+calcTime+"\" window=\"block\">");
+			if(!Double.isNaN(result.getSsimMean())) {
+				System.out.println("          <mean>"+format.format(result.getSsimMean())+"</mean>");
+				System.out.println("          <min>"+format.format(result.getSsimMin())+"</min>");
+				System.out.println("          <variance>"+format.format(result.getSsimVariance())+"</variance>");
+			}
+			System.out.println("     </ssim>");
+		}
+		if(pCalcPSNR) {
+			System.out.println("     <psnr calcTimeMS=\""+calcTime+"\">"+psnrFormat().format(result.getPsnr())+"</psnr>");
+		}
+		System.out.println("     <difference maxAbsoluteError=\""+result.getMaxAbsoluteError()+"\" differingPixels=\""+result.getDifferingPixels()+"\"/>");
+		System.out.println("</dissimilar>");
+	}
+
+	/**
+	 * Check whether two images are pixel-identical, and if so make the result of comparing them without
+	 * calculating any metrics.  This stops at the first difference, so costs little for differing images.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null)
+	 * @param pTileMaps whether to fill in the tile maps
+	 * @return comparison result (see isIdentical), or null if the images differ
+	 */
+	private static ComparisonResult checkIdentical(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, 
+													final boolean pGreyscale, final String pHeatMapFilename, final boolean pTileMaps) {
+		
+		if(PixelKernels.firstDiffering(pOne, pTwo, 0, pOne.length, pGreyscale?0xFF:0xFFFFFF)>=0) return null;
+		
+		final ComparisonResult result = new ComparisonResult();
+		result.setWidth(pWidth);
+		result.setHeight(pHeight);
+		result.setGreyscale(pGreyscale);
+		result.setIdentical(true);
+		result.setSsimMean(1);
+		result.setSsimMin(1);
+		result.setSsimVariance(0);
+		
+		final int windowsH = (pHeight+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE;
+		final int windowsW = (pWidth+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE;
+		if(pTileMaps||null!=pHeatMapFilename) {
+			final double[] ssim = new double[windowsH*windowsW];
+			Arrays.fill(ssim, 1);
+			if(pTileMaps) {
+				result.enableTileMaps(SSIMWINDOWSIZE, windowsW, windowsH);
+				result.setTileSsim(ssim);
+			}
+			if(null!=pHeatMapFilename) {
+				dumpSSIMHeatMap(ssim, windowsH, windowsW, pHeatMapFilename);
+			}
+		}
+		
+		return result;
+	}
+
+	/**
+	 * Verify that two files decode to identical pixels, reading them a band of rows at a time and stopping
+	 * at the first difference; see LosslessVerification
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @return verification result, or null if the images cannot be loaded
+	 */
+	public static VerificationResult verifyLossless(final File pOne, final File pTwo) {
+		
+		PixelSource one = null;
+		PixelSource two = null;
+		try {
+			try {
+				one = openNativePixelSource(pOne);
+			} catch (IOException e) {
+				printError(pOne, false, false, pTwo, false);
+				return null;
+			}
+			try {
+				two = openNativePixelSource(pTwo);
+			} catch (IOException e) {
+				printError(pOne, true, true, pTwo, false);
+				return null;
+			}
+			return LosslessVerification.verify(one, two);
+		} catch (IOException e) {
+			//including images that cannot be compared exactly, which get no verdict
+			e.printStackTrace();
+			printError(pOne, true, true, pTwo, true);
+			return null;
+		} finally {
+			try {
+				if(null!=one) one.close();
+				if(null!=two) two.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return format for psnr values in the xml output, with identical images (infinite psnr) shown as "Infinity"
+	 */
+	private static DecimalFormat psnrFormat() {
+		final DecimalFormat format = new DecimalFormat("0.0000");
+		final DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+		symbols.setInfinity("Infinity");
+		format.setDecimalFormatSymbols(symbols);
+		return format;
+	}
+
+	/**
+	 * Verify that two files decode to identical pixels and print the result
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 */
+	private static void verify(final File pOne, final File pTwo) {
+
+		final long time = System.currentTimeMillis();
+		final VerificationResult result = verifyLossless(pOne, pTwo);
+		final long calcTime = System.currentTimeMillis()-time;
+		if(null==result) {
+			return;
+		}
+
+		System.out.println("<dissimilar version=\""+version+"\">");
+		System.out.println("     <file>"+pOne+"</file>");
+		System.out.println("     <file>"+pTwo+"</file>");
+		if(result.isIdentical()) {
+			System.out.println("     <verify calcTimeMS=\""+calcTime+"\" identical=\"true\" sha256=\""+result.getDigest()+"\"/>");
+		} else if(!result.isSameSize()) {
+			System.out.println("     <verify calcTimeMS=\""+calcTime+"\" identical=\"false\" sameSize=\"false\"/>");
+		} else {
+			System.out.println("     <verify calcTimeMS=\""+calcTime+"\" identical=\"false\" firstDifferenceX=\""+result.getFirstDifferenceX()+
+								"\" firstDifferenceY=\""+result.getFirstDifferenceY()+"\"/>");
+		}
+		System.out.println("</dissimilar>");
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two images in a single pass over the pixels
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null)
+	 * @param pThreads number of threads to use (1 to run on the calling thread)
+	 * @return comparison result, or null if the images cannot be compared
+	 */
+	public static ComparisonResult calcMetrics(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+												final String pHeatMapFilename, final int pThreads) {
+		return calcMetrics(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pThreads, false);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two images in a single pass over the pixels, optionally
+	 * also filling in per-tile maps (one tile per SSIM window) of the SSIM, sum of squared errors and maximum 
+	 * absolute error, to help find localised differences; see ComparisonResult.getTilePsnr etc.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null)
+	 * @param pThreads number of threads to use (1 to run on the calling thread)
+	 * @param pTileMaps whether to calculate the tile maps
+	 * @return comparison result, or null if the images cannot be compared
+	 */
+	public static ComparisonResult calcMetrics(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+												final String pHeatMapFilename, final int pThreads, final boolean pTileMaps) {
+		
+		if(!checkPair(pOne, pTwo)) return null;
+
+		final ComparisonResult identical = checkIdentical(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pTileMaps);
+		if(null!=identical) return identical;
+
+		ComparisonResult result = new ComparisonResult();
+		if(pTileMaps) {
+			result.enableTileMaps(SSIMWINDOWSIZE, (pWidth+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE, (pHeight+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE);
+		}
+		boolean ok = false;
+		if(pThreads<=1) {
+			ok = calcBlockSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, null, 1, result, true);
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(pThreads);
+			try {
+				ok = calcBlockSSIM(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, pool, pThreads*BANDSPERTHREAD, result, true);
+			} finally {
+				//interrupts any bands still running if the calculation was cancelled
+				pool.shutdownNow();
+			}
+		}
+		
+		return ok?result:null;
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two images, stopping as soon as the pair is certain
+	 * not to meet the thresholds.  The windows are calculated a row at a time and after each row the best
+	 * possible final values are found, assuming every remaining window has an SSIM of 1 and every remaining 
+	 * pixel is identical; if either is below its threshold then no more rows are calculated.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null; only saved if exact)
+	 * @param pSsimThreshold minimum acceptable mean SSIM (Double.NEGATIVE_INFINITY for no threshold)
+	 * @param pPsnrThreshold minimum acceptable PSNR (Double.NEGATIVE_INFINITY for no threshold)
+	 * @return comparison result (see isAccepted and isExact), or null if the images cannot be compared
+	 */
+	public static ComparisonResult calcMetrics(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+												final String pHeatMapFilename, final double pSsimThreshold, final double pPsnrThreshold) {
+
+		if(!checkPair(pOne, pTwo)) return null;
+
+		final ComparisonResult identical = checkIdentical(pOne, pTwo, pWidth, pHeight, pGreyscale, pHeatMapFilename, false);
+		if(null!=identical) return identical;
+
+		final int windowsH = countWindows(pHeight);
+		final int windowsW = countWindows(pWidth);
+		final int windows = windowsH*windowsW;
 		
+		double[] mssim = new double[windows]; 
+
+		ComparisonResult result = new ComparisonResult();
+		result.setWidth(pWidth);
+		result.setHeight(pHeight);
+		result.setGreyscale(pGreyscale);
+
+		final IntegralImageSSIM engine = getBlockEngine(pWidth, SSIMParameters.block());
+		double sum = 0;
+		double min = 1;
+		double bestMean = 1;
+		int window = 0;
 		for(int height=0;height<windowsH;height++) {
-			for(int width=0;width<windowsW;width++) {
-				final int window = (height*windowsW)+width; 
-				mssim[window] = calcSSIMOnWindow(lumaOne, lumaTwo, pWidth, pHeight, windowSize, width*windowSize, height*windowSize);
-				mean += mssim[window];
+			engine.calcSSIM(pOne, pTwo, pHeight, pGreyscale, mssim, height, height+1, result);
+			for(;window<(height+1)*windowsW;window++) {
+				sum += mssim[window];
 				if(mssim[window]<min) {
 					min = mssim[window];
 				}
 			}
+			//the sse can only grow, so the psnr so far is an upper bound too
+			bestMean = (sum+(windows-window))/windows;
+			if(bestMean<pSsimThreshold||result.getPsnr()<pPsnrThreshold) {
+				break;
+			}
 		}
 
-		final double variance = new Variance().evaluate(mssim);
+		final boolean exact = window==windows;
+		result.setExact(exact);
+		if(exact) {
+			//every window was calculated, so reduce them as for the full calculation
+			storeBlockSSIM(mssim, windowsH, windowsW, pHeatMapFilename, result);
+		} else {
+			//bounds only: the mean and minimum so far are upper bounds, and there is no variance
+			result.setSsimMean(bestMean);
+			result.setSsimMin(min);
+			result.setSsimVariance(Double.NaN);
+		}
+		result.setAccepted(result.getSsimMean()>=pSsimThreshold&&result.getPsnr()>=pPsnrThreshold);
+
+		return result;
+	}
+
+	/**
+	 * Estimate SSIM and PSNR for two images from a random sample of the SSIM windows and their pixels,
+	 * for triage.  If the confidence interval for either value includes its threshold then the outcome 
+	 * is not certain enough, and the full calculation is done instead (stopping early if the pair fails).
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pSampleFraction maximum fraction of the image to sample (0-1)
+	 * @param pTargetError stop sampling once the SSIM confidence interval half-width is this small (0 to always sample pSampleFraction)
+	 * @param pSsimThreshold minimum acceptable mean SSIM (Double.NEGATIVE_INFINITY for no threshold)
+	 * @param pPsnrThreshold minimum acceptable PSNR (Double.NEGATIVE_INFINITY for no threshold)
+	 * @return comparison result (an estimate if isSampled), or null if the images cannot be compared
+	 */
+	public static ComparisonResult calcMetricsSampled(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+														final double pSampleFraction, final double pTargetError, 
+														final double pSsimThreshold, final double pPsnrThreshold) {
+
+		if(!checkPair(pOne, pTwo)) return null;
+
+		ComparisonResult estimate = SampledComparison.estimate(pOne, pTwo, pWidth, pHeight, SSIMWINDOWSIZE, pGreyscale, pSampleFraction, pTargetError);
+
+		if(estimate.getSsimUpper()<pSsimThreshold||estimate.getPsnrUpper()<pPsnrThreshold) {
+			estimate.setAccepted(false);
+			return estimate;
+		}
+		if(estimate.getSsimLower()>=pSsimThreshold&&estimate.getPsnrLower()>=pPsnrThreshold) {
+			estimate.setAccepted(true);
+			return estimate;
+		}
+
+		//the interval straddles a threshold, so escalate
+		return calcMetrics(pOne, pTwo, pWidth, pHeight, pGreyscale, null, pSsimThreshold, pPsnrThreshold);
+	}
+
+	/**
+	 * Calculate the multi-scale SSIM (MS-SSIM) of two images, with the values for each scale, plus the
+	 * error statistics and single scale Gaussian SSIM that come from the same pass
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @return comparison result (see getMsssim), or null if the images cannot be compared or are too small
+	 */
+	public static ComparisonResult calcMSSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale) {
+		if(!checkPair(pOne, pTwo, pWidth, pHeight)) return null;
+		return MultiScaleSSIM.compare(pOne, pTwo, pWidth, pHeight, pGreyscale);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two images at their native bit depth (e.g. 16-bit
+	 * TIFFs), using 8x8 block SSIM with the dynamic range and PSNR peak set by the bit depth
+	 * @param pOne samples for first image, interleaved (see RasterPixels.getSamples)
+	 * @param pTwo samples for second image, interleaved
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pChannels number of channels (1 for greyscale, 3 for rgb)
+	 * @param pBitDepth bits per sample (at most 16)
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null)
+	 * @return comparison result, or null if the images cannot be compared
+	 */
+	public static ComparisonResult calcMetrics(final char[] pOne, final char[] pTwo, final int pWidth, final int pHeight, final int pChannels,
+												final int pBitDepth, final String pHeatMapFilename) {
+		
+		if(pOne.length!=pTwo.length||pOne.length!=pWidth*pHeight*pChannels) return null;
+		if(pBitDepth<1||pBitDepth>16) return null;
+		
+		final int windowsW = (pWidth+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE;
+		final int windowsH = (pHeight+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE;
+		final double[] ssimMap = new double[windowsW*windowsH];
+		final ComparisonResult result = HighBitDepthComparison.compare(pOne, pTwo, pWidth, pHeight, pChannels, pBitDepth, SSIMWINDOWSIZE, ssimMap);
+		
+		if(pHeatMapFilename!=null) {
+			dumpSSIMHeatMap(ssimMap, windowsH, windowsW, pHeatMapFilename);
+		}
 		
-		mean /= (windowsH*windowsW);
+		return result;
+	}
 
-		//if(variance>0.001) System.out.println("warning: high variance");
+	/**
+	 * Find the bits per sample of an image file from its header, without decoding it
+	 * @param pFile image file
+	 * @return bits per sample, or 8 if it cannot be determined (or is not supported by the native depth path)
+	 */
+	private static int readBitDepth(final File pFile) {
+		ImageInputStream input = null;
+		try {
+			input = ImageIO.createImageInputStream(pFile);
+			if(null==input) return 8;
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if(!readers.hasNext()) return 8;
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				final ImageTypeSpecifier type = reader.getRawImageType(0);
+				if(null==type) return 8;
+				return type.getSampleModel().getSampleSize(0);
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			return 8;
+		} finally {
+			if(null!=input) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the decoder to compare two files at their native bit depth with, reading the bit depth of each
+	 * file from its header once.  Both files must be deeper than 8 bits and have the same deep decoder
+	 * (see ImageDecoders.getDeepDecoder), so that both depths use decoders from the configured priorities;
+	 * deep files without one (e.g. tiff, by default, see the NOTE above) are compared at 8 bits per sample,
+	 * with a warning.
+	 * @param pOne first image file
+	 * @param pTwo second image file
+	 * @return decoder to use for both files, or null to compare them at 8 bits per sample
+	 */
+	private static ImageDecoder getDeepDecoder(final File pOne, final File pTwo) {
+		if(readBitDepth(pOne)<=8||readBitDepth(pTwo)<=8) return null;
+		final ImageDecoder one = decoders.getDeepDecoder(ImageDecoders.getFormat(pOne));
+		final ImageDecoder two = decoders.getDeepDecoder(ImageDecoders.getFormat(pTwo));
+		if(null==one||null==two||!one.getName().equals(two.getName())) {
+			System.err.println("Comparing at 8 bits per sample: no decoder configured for both files keeps their bit depth (see --decoders)");
+			return null;
+		}
+		return one;
+	}
+
+	/**
+	 * Check whether two decoded images can be compared by the native depth path
+	 * @param pOne first image
+	 * @param pOneSamples native samples for the first image (may be null)
+	 * @param pTwo second image
+	 * @param pTwoSamples native samples for the second image (may be null)
+	 * @return true if the samples are present and have matching channels, depth and size
+	 */
+	private static boolean checkNativePair(final BufferedImage pOne, final char[] pOneSamples, final BufferedImage pTwo, final char[] pTwoSamples) {
+		if(null==pOneSamples||null==pTwoSamples) return false;
+		if(pOneSamples.length!=pTwoSamples.length) return false;
+		return RasterPixels.getChannels(pOne)==RasterPixels.getChannels(pTwo)&&
+				RasterPixels.getBitDepth(pOne)==RasterPixels.getBitDepth(pTwo);
+	}
+
+	/**
+	 * Check whether an image is greyscale, either because of its type or because r=g=b for every
+	 * pixel; greyscale masters are often stored as RGB, and can still use the single channel path
+	 * @param pType BufferedImage type of the image
+	 * @param pPixels integer pixel values for the image
+	 * @return true if the image is greyscale
+	 */
+	public static boolean isGreyscale(final int pType, final int[] pPixels) {
+		return isGreyscale(pType, pPixels, pPixels.length);
+	}
+
+	/**
+	 * Check whether an image is greyscale, either because of its type or because r=g=b for every pixel
+	 * @param pType BufferedImage type of the image
+	 * @param pPixels integer pixel values for the image (may be longer than the image, e.g. from a PixelBufferPool)
+	 * @param pLength number of pixels in the image
+	 * @return true if the image is greyscale
+	 */
+	public static boolean isGreyscale(final int pType, final int[] pPixels, final int pLength) {
+		if(pType==BufferedImage.TYPE_BYTE_GRAY||pType==BufferedImage.TYPE_USHORT_GRAY) return true;
+		return PixelKernels.isGreyscale(pPixels, 0, pLength);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two files, decoding each file once
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @return comparison result, or null if the images cannot be loaded or compared
+	 */
+	public static ComparisonResult calcMetrics(final File pOne, final File pTwo) {
+		return calcMetrics(pOne, pTwo, 1);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two files, decoding each file once, optionally at a
+	 * reduced resolution for a quick approximate comparison (see ComparisonResult.getDecodeScale)
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pScale reduction factor to decode the images at (1 for full resolution, 8 for 1/8 width and height)
+	 * @return comparison result, or null if the images cannot be loaded or compared
+	 */
+	public static ComparisonResult calcMetrics(final File pOne, final File pTwo, final int pScale) {
+		
+		final ImageDecoder deepDecoder = (pScale<=1)?getDeepDecoder(pOne, pTwo):null;
+		if(null!=deepDecoder) {
+			//compare at native depth if we can, otherwise fall back to 8 bits per sample
+			try {
+				final BufferedImage imageOne = deepDecoder.decode(pOne);
+				final BufferedImage imageTwo = deepDecoder.decode(pTwo);
+				final char[] oneS = RasterPixels.getSamples(imageOne);
+				final char[] twoS = RasterPixels.getSamples(imageTwo);
+				if(checkNativePair(imageOne, oneS, imageTwo, twoS)) {
+					return calcMetrics(oneS, twoS, imageOne.getWidth(), imageOne.getHeight(), RasterPixels.getChannels(imageOne), 
+										RasterPixels.getBitDepth(imageOne), null);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		BufferedImage imageOne = null;
+		int scale = 1;
+		String decoder = null;
+		try {
+			final DecodedImage decoded = decoders.decode(pOne, pScale);
+			imageOne = decoded.getImage();
+			scale = decoded.getScale();
+			decoder = decoded.getDecoder();
+		} catch (IOException e) {
+			printError(pOne, false, false, pTwo, false);
+			return null;
+		} catch (NullPointerException e) {
+			printError(pOne, false, false, pTwo, false);
+			return null;
+		}
 		
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		final int[] oneA = RasterPixels.getPixels(imageOne);
+		final int width = imageOne.getWidth();
+		final int height = imageOne.getHeight();
+		final int oneType = imageOne.getType();
+		imageOne = null;
+		
+		BufferedImage imageTwo = null;
+		try {
+			//the same decoder for both images, so decoder differences do not show up as image differences
+			final DecodedImage decoded = decoders.decode(pTwo, pScale, decoder);
+			imageTwo = decoded.getImage();
+			scale = Math.max(scale, decoded.getScale());
+		} catch (IOException e) {
+			printError(pOne, true, true, pTwo, false);
+			return null;
+		} catch (NullPointerException e) {
+			printError(pOne, true, true, pTwo, false);
+			return null;
+		}
+
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		final int[] twoA = RasterPixels.getPixels(imageTwo);
+		//both images must be greyscale to use the single channel path
+		final boolean greyscale = isGreyscale(oneType, oneA)&&isGreyscale(imageTwo.getType(), twoA);
+		imageTwo = null;
+		
+		final ComparisonResult result = calcMetrics(oneA, twoA, width, height, greyscale, null, 1);
+		if(null!=result) {
+			result.setDecodeScale(scale);
+		}
+		return result;
+	}
+
+	/**
+	 * Calculate the SSIM using an 11x11 Gaussian window moved one pixel at a time, as in most published
+	 * SSIM tools; see http://en.wikipedia.org/wiki/Structural_similarity
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png), one pixel per window
+	 * @param pMin list to hold return value for ssim-minimum
+	 * @param pVariance list to hold return value for ssim-variance
+	 * @return SSIM
+	 */
+	public static double calcSSIMGaussian(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale, 
+											final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance) {
+		
+		if(!checkPair(pOne, pTwo)) return -1;
+
+		final int mapWidth = pWidth-GaussianSSIM.WINDOWSIZE+1;
+		final int mapHeight = pHeight-GaussianSSIM.WINDOWSIZE+1;
+		if(mapWidth<=0||mapHeight<=0) return -1;
+
+		//only keep the (image sized) ssim map if it is wanted
+		double[] map = null;
 		if(null!=pHeatMapFilename) {
-			dumpSSIMHeatMap(mssim, windowsH, windowsW, pHeatMapFilename);
+			map = new double[mapWidth*mapHeight];
 		}
+
+		final double mean = getGaussianEngine(pWidth, SSIMParameters.gaussian()).calcSSIM(pOne, pTwo, pHeight, pGreyscale, map, pMin, pVariance);
 		
-		if(null!=pMin) {
-			pMin.add(0, new Double(min));
+		if(null!=pHeatMapFilename) {
+			dumpSSIMHeatMap(map, mapHeight, mapWidth, pHeatMapFilename);
+		}
+		
+		return mean;
+	}
+
+	/**
+	 * Calculate the Gaussian sliding window SSIM of two luma planes (see calcSSIMGaussian for pixels)
+	 * @param pOne luma plane for first image
+	 * @param pTwo luma plane for second image
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png), one pixel per window
+	 * @param pMin list to hold return value for ssim-minimum
+	 * @param pVariance list to hold return value for ssim-variance
+	 * @return SSIM
+	 */
+	public static double calcSSIMGaussian(final LumaPlane pOne, final LumaPlane pTwo, final String pHeatMapFilename, 
+											List<Double> pMin, List<Double> pVariance) {
+		
+		if(pOne.getWidth()!=pTwo.getWidth()||pOne.getHeight()!=pTwo.getHeight()) return -1;
+
+		final int mapWidth = pOne.getWidth()-GaussianSSIM.WINDOWSIZE+1;
+		final int mapHeight = pOne.getHeight()-GaussianSSIM.WINDOWSIZE+1;
+		if(mapWidth<=0||mapHeight<=0) return -1;
+
+		double[] map = null;
+		if(null!=pHeatMapFilename) {
+			map = new double[mapWidth*mapHeight];
+		}
+
+		final double mean = getGaussianEngine(pOne.getWidth(), SSIMParameters.gaussian()).calcSSIM(pOne, pTwo, map, pMin, pVariance);
+		
+		if(null!=pHeatMapFilename) {
+			dumpSSIMHeatMap(map, mapHeight, mapWidth, pHeatMapFilename);
+		}
+		
+		return mean;
+	}
+
+	/**
+	 * Calculate the luma values for an image; see http://en.wikipedia.org/wiki/Luma_%28video%29
+	 * See LumaPlane.Precision for the memory use and error bounds of each precision.
+	 * @param pPixels pixels to calculate luma for
+	 * @param pWidth width of the image
+	 * @param pHeight height of the image
+	 * @param pGreyscale if the image is greyscale
+	 * @param pPrecision precision to store the luma values at
+	 * @return luma plane for the image
+	 */
+	public static LumaPlane calcLuma(final int[] pPixels, final int pWidth, final int pHeight, final boolean pGreyscale, 
+										final LumaPlane.Precision pPrecision) {
+		return LumaPlane.fromPixels(pPixels, pWidth, pHeight, pGreyscale, pPrecision);
+	}
+
+	/**
+	 * Write images of the per-tile psnr and maximum absolute error maps.  As with the ssim heatmap, tiles 
+	 * are darker the more they differ: psnr is scaled so that TILEMAPMAXPSNR (or identical) is white, and
+	 * the maximum error so that no error is white and the largest possible error is black.
+	 * @param pResult comparison result with tile maps
+	 * @param pPsnrFilename filename for the psnr map (png, can be null)
+	 * @param pMaxErrorFilename filename for the maximum error map (png, can be null)
+	 */
+	private static void dumpTileMaps(final ComparisonResult pResult, final String pPsnrFilename, final String pMaxErrorFilename) {
+		if(!pResult.hasTileMaps()) return;
+		if(null!=pPsnrFilename) {
+			final double[] psnr = pResult.getTilePsnr();
+			for(int tile=0;tile<psnr.length;tile++) {
+				psnr[tile] = Math.min(psnr[tile], TILEMAPMAXPSNR)/TILEMAPMAXPSNR;
+			}
+			dumpSSIMHeatMap(psnr, pResult.getTilesHigh(), pResult.getTilesWide(), pPsnrFilename);
 		}
-		if(null!=pVariance) {
-			pVariance.add(0, new Double(variance));
+		if(null!=pMaxErrorFilename) {
+			final int[] maxError = pResult.getTileMaxError();
+			final double maxValue = (1 << pResult.getBitDepth())-1;
+			final double[] values = new double[maxError.length];
+			for(int tile=0;tile<maxError.length;tile++) {
+				values[tile] = 1-maxError[tile]/maxValue;
+			}
+			dumpSSIMHeatMap(values, pResult.getTilesHigh(), pResult.getTilesWide(), pMaxErrorFilename);
 		}
-		
-		return mean;
 	}
 
 	/**
@@ -227,75 +1324,61 @@ public class DissimilarV2 {
 	}
 
 	/**
-	 * Calculate the luma values for an image; see http://en.wikipedia.org/wiki/Luma_%28video%29
-	 * @param pOne pixels to calculate luma for
-	 * @return array of luma values for input pixels
+	 * Calculate the error statistics (per-channel and luma sums of squared errors, maximum absolute
+	 * error and differing pixels) between two images, without calculating SSIM
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale whether the images are greyscale or not
+	 * @return comparison result (see getMse, getPsnr, getPsnrRed etc.), or null if the images cannot be compared
 	 */
-	private static double[] calcLuma(final int[] pOne) {
+	public static ComparisonResult calcErrors(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale) {
 		
-		double[] ret = new double[pOne.length];
+		if(!checkPair(pOne, pTwo, pWidth, pHeight)) return null;
+		final int pixels = pWidth*pHeight;
 		
-		int blue  = 0;
-		int green = 0;
-		int red   = 0;
-		for(int i=0;i<ret.length;i++) {
-			blue  = (pOne[i] >> 0 ) & 0xFF;
-			green = (pOne[i] >> 8 ) & 0xFF;
-			red   = (pOne[i] >> 16) & 0xFF;
-			ret[i] = (0.2126*red+0.7152*green+0.0722*blue);
-		}
+		final ComparisonResult result = new ComparisonResult();
+		result.setWidth(pWidth);
+		result.setHeight(pHeight);
+		result.setGreyscale(pGreyscale);
 		
-		return ret;
-	}
-
-	/**
-	 * Calculate the mean-squared-error between two images
-	 * @param pOne first image to compare
-	 * @param pTwo second image to compare
-	 * @param pGreyscale whether the images are greyscale or not
-	 * @return mean squared error
-	 */
-	private static double calcMSE(final int[] pOne, final int[] pTwo, final boolean pGreyscale) {
-		
-		//getRGB only returns 8 bits per component, so what about 16-bit images? 
-
-		if(pOne.length!=pTwo.length) return -1;
-		
-		int channels = 3;
-		if(pGreyscale) channels = 1;
-		
-		//FIXME: change to BigDecimal?
-		double sumSquaredErrors = 0;
-		
-		int oneBlue  = 0;
-		int oneGreen = 0;
-		int oneRed   = 0;
-		int twoBlue  = 0;
-		int twoGreen = 0;
-		int twoRed   = 0;
-		
-		for(int i=0;i<pOne.length;i++) {
-			//see javadoc for Color class
-			oneBlue  = (pOne[i] >> 0 ) & 0xFF;
-			twoBlue  = (pTwo[i] >> 0 ) & 0xFF;
-			//just use one channel - rgb should all be the same here (briefly tested)
-			sumSquaredErrors += Math.pow((oneBlue-twoBlue),2);	
-			if(!pGreyscale) {
-				oneGreen = (pOne[i] >> 8 ) & 0xFF;
-				oneRed   = (pOne[i] >> 16) & 0xFF;
-				twoGreen = (pTwo[i] >> 8 ) & 0xFF;
-				twoRed   = (pTwo[i] >> 16) & 0xFF;
-				sumSquaredErrors += /*Math.pow((oneBlue-twoBlue),2)+*/Math.pow((oneGreen-twoGreen),2)+Math.pow((oneRed-twoRed),2);
+		//exact integer sums, accumulated a chunk at a time with the vectorisable kernels
+		final int chunk = Math.max(1, Math.min(pixels, KERNELCHUNK));
+		final int[] oneBlue  = new int[chunk];
+		final int[] twoBlue  = new int[chunk];
+		final int[] oneGreen = pGreyscale?null:new int[chunk];
+		final int[] oneRed   = pGreyscale?null:new int[chunk];
+		final int[] twoGreen = pGreyscale?null:new int[chunk];
+		final int[] twoRed   = pGreyscale?null:new int[chunk];
+		final int[] oneLuma  = pGreyscale?null:new int[chunk];
+		final int[] twoLuma  = pGreyscale?null:new int[chunk];
+		
+		for(int i=0;i<pixels;i+=chunk) {
+			final int length = Math.min(chunk, pixels-i);
+			long sseRed = 0, sseGreen = 0;
+			int maxError = 0;
+			if(pGreyscale) {
+				//just use one channel - rgb should all be the same here (briefly tested)
+				PixelKernels.unpack(pOne, i, length, oneBlue);
+				PixelKernels.unpack(pTwo, i, length, twoBlue);
 			} else {
-			
+				PixelKernels.unpack(pOne, i, length, oneRed, oneGreen, oneBlue);
+				PixelKernels.unpack(pTwo, i, length, twoRed, twoGreen, twoBlue);
+				sseRed = PixelKernels.sumSquaredError(oneRed, twoRed, length);
+				sseGreen = PixelKernels.sumSquaredError(oneGreen, twoGreen, length);
+				maxError = Math.max(PixelKernels.maxAbsoluteError(oneRed, twoRed, length), 
+									PixelKernels.maxAbsoluteError(oneGreen, twoGreen, length));
+				PixelKernels.luma(oneRed, oneGreen, oneBlue, length, oneLuma);
+				PixelKernels.luma(twoRed, twoGreen, twoBlue, length, twoLuma);
+				result.addLumaErrors(PixelKernels.sumSquaredLumaError(oneLuma, twoLuma, length));
 			}
+			maxError = Math.max(maxError, PixelKernels.maxAbsoluteError(oneBlue, twoBlue, length));
+			result.addErrors(sseRed, sseGreen, PixelKernels.sumSquaredError(oneBlue, twoBlue, length), maxError,
+								PixelKernels.countDiffering(pOne, pTwo, i, length, pGreyscale?0xFF:0xFFFFFF));
 		}
 		
-		//System.out.println("SSE: "+sumSquaredErrors);
-		
-		final double meanSquaredError = sumSquaredErrors/(pOne.length*channels);
-		
-		return meanSquaredError;
+		return result;
 	}
 	
 	/**
@@ -313,6 +1396,20 @@ public class DissimilarV2 {
 		
 		return true;
 	}
+
+	/**
+	 * Check to see if the two images can be compared, when the dimensions are given; the arrays may be
+	 * longer than width*height (e.g. from a PixelBufferPool), and the extra values are ignored
+	 * @param pOne first image to check
+	 * @param pTwo second image to check
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @return whether the images should be compared or not
+	 */
+	private static boolean checkPair(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight) {
+		final long pixels = (long)pWidth*pHeight;
+		return pOne.length>=pixels&&pTwo.length>=pixels;
+	}
 	
 	/**
 	 * Print an error if one of the input files cannot be opened
@@ -332,6 +1429,21 @@ public class DissimilarV2 {
 		System.out.println("</dissimilar>");
 	}
 	
+	/**
+	 * Print an error if the mask image cannot be read or is not the same size as the images
+	 * @param pOne first image file
+	 * @param pTwo second image file
+	 * @param pMask mask image file
+	 */
+	private static void printError(final File pOne, final File pTwo, final File pMask) {
+		System.out.println("<dissimilar version=\""+version+"\">");
+		System.out.println("     <error/>");
+		System.out.println("     <file error=\"false\">"+pOne.getAbsolutePath()+"</file>");
+		System.out.println("     <file error=\"false\">"+pTwo.getAbsolutePath()+"</file>");
+		System.out.println("     <mask error=\"true\">"+pMask.getAbsolutePath()+"</mask>");
+		System.out.println("</dissimilar>");
+	}
+	
 	/**
 	 * Calculate PSNR; see http://en.wikipedia.org/wiki/Peak_signal-to-noise_ratio
 	 * @param pOne first image to compare
@@ -343,16 +1455,8 @@ public class DissimilarV2 {
 		
 		if(!checkPair(pOne, pTwo)) return -1;
 		
-		final double mse = calcMSE(pOne, pTwo, pGreyscale);
-		
-		//what to do if the bit depth of the images are different?
-		
-		//we are just using an 8-bit per channel representation at the moment
-		final double maxPixelValue = Math.pow(2, 8)-1;
-		
-		final double psnr = 10*Math.log10((maxPixelValue*maxPixelValue)/mse);
-		
-		return psnr;
+		//the dimensions do not matter for the psnr, just the number of pixels
+		return calcErrors(pOne, pTwo, pOne.length, 1, pGreyscale).getPsnr();
 	}
 	
 	/**
@@ -363,40 +1467,39 @@ public class DissimilarV2 {
 	 */
 	public static double calcPSNR(final File pOne, final File pTwo) {
 		BufferedImage imageOne = null;
+		String decoder = null;
 		try {
-			imageOne = Imaging.getBufferedImage(pOne);
+			final DecodedImage decoded = decoders.decode(pOne, 1);
+			imageOne = decoded.getImage();
+			decoder = decoded.getDecoder();
 		} catch (IOException e) {
 			printError(pOne, false, false, pTwo, false);
 			return -1;
 		} catch (NullPointerException e) {
 			printError(pOne, false, false, pTwo, false);
 			return -1;
-		} catch (ImageReadException e) {
-			printError(pOne, false, false, pTwo, false);
-			return -1;
 		}
 		
-		//getRGB only returns 8 bits per component, so what about 16-bit images? 
-		final int[] oneA = imageOne.getRGB(0, 0, imageOne.getWidth(), imageOne.getHeight(), null, 0, imageOne.getWidth());
-		final boolean greyscale = (imageOne.getType()==BufferedImage.TYPE_BYTE_GRAY||imageOne.getType()==BufferedImage.TYPE_USHORT_GRAY);
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		final int[] oneA = RasterPixels.getPixels(imageOne);
+		final int oneType = imageOne.getType();
 		imageOne = null;
 		
 		BufferedImage imageTwo = null;
 		try {
-			imageTwo = Imaging.getBufferedImage(pTwo);
+			imageTwo = decoders.decode(pTwo, 1, decoder).getImage();
 		} catch (IOException e) {
 			printError(pOne, true, true, pTwo, false);
 			return -1;
 		} catch (NullPointerException e) {
 			printError(pOne, true, true, pTwo, false);
 			return -1;
-		} catch (ImageReadException e) {
-			printError(pOne, true, true, pTwo, false);
-			return -1;
 		}
 
-		//getRGB only returns 8 bits per component, so what about 16-bit images? 
-		final int[] twoA = imageTwo.getRGB(0, 0, imageTwo.getWidth(), imageTwo.getHeight(), null, 0, imageTwo.getWidth());
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		final int[] twoA = RasterPixels.getPixels(imageTwo);
+		//both images must be greyscale to use the single channel path
+		final boolean greyscale = isGreyscale(oneType, oneA)&&isGreyscale(imageTwo.getType(), twoA);
 		imageTwo = null;
 		
 		final double psnr = calcPSNR(oneA, twoA, greyscale);		
@@ -426,42 +1529,41 @@ public class DissimilarV2 {
 	public static double calcSSIM(final File pOne, final File pTwo, final String pHeatMapFilename, List<Double> pMin, List<Double> pVariance) {
 		
 		BufferedImage imageOne = null;
+		String decoder = null;
 		try {
-			imageOne = Imaging.getBufferedImage(pOne);
+			final DecodedImage decoded = decoders.decode(pOne, 1);
+			imageOne = decoded.getImage();
+			decoder = decoded.getDecoder();
 		} catch (IOException e) {
 			printError(pOne, false, false, pTwo, false);
 			return -1;
 		} catch (NullPointerException e) {
 			printError(pOne, false, false, pTwo, false);
 			return -1;
-		} catch (ImageReadException e) {
-			printError(pOne, false, false, pTwo, false);
-			return -1;
 		}
 		
-		//getRGB only returns 8 bits per component, so what about 16-bit images? 
-		final int[] oneA = imageOne.getRGB(0, 0, imageOne.getWidth(), imageOne.getHeight(), null, 0, imageOne.getWidth());
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		final int[] oneA = RasterPixels.getPixels(imageOne);
 		final int width = imageOne.getWidth();
 		final int height = imageOne.getHeight();
-		final boolean greyscale = (imageOne.getType()==BufferedImage.TYPE_BYTE_GRAY||imageOne.getType()==BufferedImage.TYPE_USHORT_GRAY);
+		final int oneType = imageOne.getType();
 		imageOne = null;
 		
 		BufferedImage imageTwo = null;
 		try {
-			imageTwo = Imaging.getBufferedImage(pTwo);
+			imageTwo = decoders.decode(pTwo, 1, decoder).getImage();
 		} catch (IOException e) {
 			printError(pOne, true, true, pTwo, false);
 			return -1;
 		} catch (NullPointerException e) {
 			printError(pOne, true, true, pTwo, false);
 			return -1;
-		} catch (ImageReadException e) {
-			printError(pOne, true, true, pTwo, false);
-			return -1;
 		}
 
-		//getRGB only returns 8 bits per component, so what about 16-bit images? 
-		final int[] twoA = imageTwo.getRGB(0, 0, imageTwo.getWidth(), imageTwo.getHeight(), null, 0, imageTwo.getWidth());
+		//pixels are packed 8 bits per component, so what about 16-bit images? 
+		final int[] twoA = RasterPixels.getPixels(imageTwo);
+		//both images must be greyscale to use the single channel path
+		final boolean greyscale = isGreyscale(oneType, oneA)&&isGreyscale(imageTwo.getType(), twoA);
 		imageTwo = null;
 		
 		final double ssim = calcSSIM(oneA, twoA, width, height, greyscale, pHeatMapFilename, pMin, pVariance);		
@@ -469,6 +1571,285 @@ public class DissimilarV2 {
 		return ssim;
 	}
 
+	/**
+	 * Open an image file as a PixelSource, decoding it a band at a time if its reader can do that
+	 * cheaply, otherwise decoding it in full with the configured decoders
+	 * @param pFile file to open
+	 * @return pixel source for the file
+	 * @throws IOException if the file cannot be read
+	 */
+	private static PixelSource openPixelSource(final File pFile) throws IOException {
+		return openPixelSource(pFile, false);
+	}
+
+	/**
+	 * Open an image file as a PixelSource, decoding it a band at a time if its reader can do that
+	 * cheaply, otherwise decoding it in full with the configured decoders.  Sequential formats such as
+	 * png and jpeg are decoded in full: their readers would decode from the start of the image again for
+	 * every band, so the peak heap use for them is still one whole decoded image.
+	 * @param pFile file to open
+	 * @param pOffHeap whether to move the pixels of a fully decoded image off the Java heap, so that
+	 * only one decoded image is ever on the heap at a time
+	 * @return pixel source for the file
+	 * @throws IOException if the file cannot be read
+	 */
+	private static PixelSource openPixelSource(final File pFile, final boolean pOffHeap) throws IOException {
+		if(ImageReaderPixelSource.canStream(pFile)) {
+			return new ImageReaderPixelSource(pFile);
+		}
+		return openDecodedPixelSource(pFile, pOffHeap);
+	}
+
+	/**
+	 * Decode an image file in full with the configured decoders, as a PixelSource
+	 * @param pFile file to open
+	 * @param pOffHeap whether to move the pixels off the Java heap
+	 * @return pixel source for the file
+	 * @throws IOException if the file cannot be decoded
+	 */
+	private static PixelSource openDecodedPixelSource(final File pFile, final boolean pOffHeap) throws IOException {
+		final PixelSource decoded = new BufferedImagePixelSource(decoders.decode(pFile));
+		if(pOffHeap) {
+			return OffHeapPixels.copyOf(decoded);
+		}
+		return decoded;
+	}
+
+	/**
+	 * Open an image file as a PixelSource whose bands keep their native sample depth and alpha (see
+	 * PixelSource.getBand), for exact comparisons: commons-imaging decodes to 8 bits per sample, so deeper
+	 * images that cannot be streamed are decoded with the deep decoder for their format (see 
+	 * ImageDecoders.getDeepDecoder).  Deep images without one are refused, as verifying them at 8 bits
+	 * per sample could miss differences.
+	 * @param pFile file to open
+	 * @return pixel source for the file
+	 * @throws IOException if the file cannot be read, or is deep and no configured decoder keeps its bit depth
+	 */
+	private static PixelSource openNativePixelSource(final File pFile) throws IOException {
+		if(ImageReaderPixelSource.canStream(pFile)) {
+			return new ImageReaderPixelSource(pFile);
+		}
+		if(readBitDepth(pFile)>8) {
+			final ImageDecoder decoder = decoders.getDeepDecoder(ImageDecoders.getFormat(pFile));
+			if(null==decoder) {
+				System.err.println("Cannot verify "+pFile+" at 8 bits per sample: no decoder configured for it keeps its bit depth (see --decoders)");
+				throw new IOException("No deep decoder for "+pFile);
+			}
+			return new BufferedImagePixelSource(decoder.decode(pFile));
+		}
+		return openDecodedPixelSource(pFile, false);
+	}
+
+	/**
+	 * Calculate SSIM, PSNR and error statistics for two files, reading the pixels a band of rows at a time
+	 * so that the whole-image pixel arrays are never created.  Images that cannot be read a band at a time
+	 * (e.g. png and jpeg) are decoded in full and then held off the Java heap (see OffHeapPixels), so they 
+	 * are briefly on the heap while they are decoded.
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pHeatMapFilename filename for the ssim heatmap image to be saved to (png, can be null)
+	 * @return comparison result, or null if the images cannot be loaded or compared
+	 */
+	public static ComparisonResult calcMetricsStreaming(final File pOne, final File pTwo, final String pHeatMapFilename) {
+		
+		PixelSource one = null;
+		PixelSource two = null;
+		try {
+			try {
+				one = openPixelSource(pOne, true);
+			} catch (IOException e) {
+				printError(pOne, false, false, pTwo, false);
+				return null;
+			}
+			try {
+				two = openPixelSource(pTwo, true);
+			} catch (IOException e) {
+				printError(pOne, true, true, pTwo, false);
+				return null;
+			}
+			
+			final int windowsH = (one.getHeight()+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE;
+			final int windowsW = (one.getWidth()+SSIMWINDOWSIZE-1)/SSIMWINDOWSIZE;
+			double[] map = null;
+			if(null!=pHeatMapFilename) {
+				map = new double[windowsH*windowsW];
+			}
+			
+			final ComparisonResult result = StreamingComparison.compare(one, two, SSIMWINDOWSIZE, map);
+			
+			if(null!=result&&null!=pHeatMapFilename) {
+				dumpSSIMHeatMap(map, windowsH, windowsW, pHeatMapFilename);
+			}
+			return result;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			try {
+				if(null!=one) one.close();
+				if(null!=two) two.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Calculate Gaussian SSIM, PSNR and error statistics for two files, reading the pixels a band of rows at
+	 * a time into luma planes held off the Java heap, so that images that can be streamed (see 
+	 * calcMetricsStreaming) can be compared with a small heap, even beyond the Java array limit.  Png and
+	 * jpeg images are still decoded in full on the heap before their luma is calculated.  No SSIM map is 
+	 * kept (it would be the size of the image).
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pPrecision precision of the luma planes (null for exact)
+	 * @return comparison result, or null if the images cannot be loaded or compared
+	 */
+	public static ComparisonResult calcMetricsStreamingGaussian(final File pOne, final File pTwo, final LumaPlane.Precision pPrecision) {
+		
+		PixelSource one = null;
+		PixelSource two = null;
+		try {
+			try {
+				one = openPixelSource(pOne, true);
+			} catch (IOException e) {
+				printError(pOne, false, false, pTwo, false);
+				return null;
+			}
+			try {
+				two = openPixelSource(pTwo, true);
+			} catch (IOException e) {
+				printError(pOne, true, true, pTwo, false);
+				return null;
+			}
+			
+			final int width = one.getWidth();
+			final int height = one.getHeight();
+			if(width!=two.getWidth()||height!=two.getHeight()) return null;
+			final boolean greyscale = one.isGreyscale()&&two.isGreyscale();
+			final LumaPlane.Precision precision = (null==pPrecision)?LumaPlane.Precision.EXACT:pPrecision;
+			
+			final ComparisonResult result = new ComparisonResult();
+			result.setWidth(width);
+			result.setHeight(height);
+			result.setGreyscale(greyscale);
+			
+			//the luma planes and the error statistics come from the same pass over the pixels
+			final LumaPlane planeOne = new LumaPlane(width, height, precision, true);
+			final LumaPlane planeTwo = new LumaPlane(width, height, precision, true);
+			int[] bandOne = null;
+			int[] bandTwo = null;
+			for(int y=0;y<height;y+=STREAMBANDROWS) {
+				final int rows = Math.min(STREAMBANDROWS, height-y);
+				if(null==bandOne||bandOne.length!=rows*width) {
+					//calcErrors uses the whole array, so the last band gets its own
+					bandOne = new int[rows*width];
+					bandTwo = new int[rows*width];
+				}
+				one.getRows(y, rows, bandOne);
+				two.getRows(y, rows, bandTwo);
+				for(int row=0;row<rows;row++) {
+					planeOne.setRow(y+row, bandOne, row*width, greyscale);
+					planeTwo.setRow(y+row, bandTwo, row*width, greyscale);
+				}
+				result.addErrors(calcErrors(bandOne, bandTwo, width, rows, greyscale));
+			}
+			one.close();
+			one = null;
+			two.close();
+			two = null;
+			
+			final List<Double> min = new LinkedList<Double>();
+			final List<Double> variance = new LinkedList<Double>();
+			final double mean = calcSSIMGaussian(planeOne, planeTwo, null, min, variance);
+			if(min.isEmpty()) return null;
+			result.setSsimMean(mean);
+			result.setSsimMin(min.get(0));
+			result.setSsimVariance(variance.get(0));
+			return result;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			try {
+				if(null!=one) one.close();
+				if(null!=two) two.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Compare two files a band at a time and print the results (see compare())
+	 * @param pOne first file to compare
+	 * @param pTwo second file to compare
+	 * @param pHeatMapImage file to save ssim heat map image to
+	 * @param pCalcSSIM whether or not to output ssim
+	 * @param pCalcPSNR whether or not to output psnr
+	 * @param pGaussian whether to use a Gaussian sliding window for ssim (no heat map) instead of 8x8 blocks
+	 * @param pLumaPrecision precision of the off-heap luma planes for Gaussian ssim (null for exact)
+	 */
+	private static void compareStreaming(final File pOne, final File pTwo, final String pHeatMapImage, final boolean pCalcSSIM, final boolean pCalcPSNR,
+											final boolean pGaussian, final LumaPlane.Precision pLumaPrecision) {
+
+		final long time = System.currentTimeMillis();
+		final ComparisonResult result = pGaussian?calcMetricsStreamingGaussian(pOne, pTwo, pLumaPrecision):
+													calcMetricsStreaming(pOne, pTwo, pHeatMapImage);
+		final long calcTime = System.currentTimeMillis()-time;
+		if(null==result) {
+			return;
+		}
+
+		System.out.println("<dissimilar version=\""+version+"\">");
+		System.out.println("     <file>"+pOne+"</file>");
+		System.out.println("     <file>"+pTwo+"</file>");
+		if(pCalcSSIM) {
+			System.out.println("     <ssim calcTimeMS=\""+calcTime+"\" window=\""+(pGaussian?"gaussian":"block")+"\" streamed=\"true\">");
+			System.out.println("          <mean>"+new DecimalFormat("0.0000000").format(result.getSsimMean())+"</mean>");
+			System.out.println("          <min>"+new DecimalFormat("0.0000000").format(result.getSsimMin())+"</min>");
+			System.out.println("          <variance>"+new DecimalFormat("0.0000000").format(result.getSsimVariance())+"</variance>");
+			System.out.println("     </ssim>");
+		}
+		if(pCalcPSNR) {
+			System.out.println("     <psnr calcTimeMS=\""+calcTime+"\">"+psnrFormat().format(result.getPsnr())+"</psnr>");
+		}
+		System.out.println("     <difference maxAbsoluteError=\""+result.getMaxAbsoluteError()+"\" differingPixels=\""+result.getDifferingPixels()+"\"/>");
+		System.out.println("</dissimilar>");
+	}
+
+	/**
+	 * Warn about the options that do not apply to a pair of images deeper than 8 bits per sample: block
+	 * ssim and psnr are always calculated exactly at native depth, and the other metrics at 8 bits per sample
+	 * @param pGaussian whether gaussian ssim was asked for
+	 * @param pSampleFraction fraction of the image to sample (0 for none)
+	 * @param pSsimThreshold minimum acceptable ssim (Double.NEGATIVE_INFINITY for none)
+	 * @param pPsnrThreshold minimum acceptable psnr (Double.NEGATIVE_INFINITY for none)
+	 * @param pMultiScale whether ms-ssim was asked for
+	 * @param pPsnrMapImage filename for the per-tile psnr map image (can be null)
+	 * @param pMaxErrorMapImage filename for the per-tile maximum error map image (can be null)
+	 */
+	private static void warnNativeDepth(final boolean pGaussian, final double pSampleFraction, final double pSsimThreshold, 
+										final double pPsnrThreshold, final boolean pMultiScale, final String pPsnrMapImage, 
+										final String pMaxErrorMapImage) {
+		if(pGaussian) {
+			System.err.println("Comparing at 8 bits per sample: gaussian ssim does not use the native bit depth");
+			return;
+		}
+		if(pSampleFraction>0) {
+			System.err.println("Ignoring --estimate: images deeper than 8 bits are always compared in full");
+		}
+		if(pSsimThreshold>Double.NEGATIVE_INFINITY||pPsnrThreshold>Double.NEGATIVE_INFINITY) {
+			System.err.println("Images deeper than 8 bits are compared in full before the thresholds are checked");
+		}
+		if(pMultiScale) {
+			System.err.println("ms-ssim is calculated at 8 bits per sample");
+		}
+		if(null!=pPsnrMapImage||null!=pMaxErrorMapImage) {
+			System.err.println("Ignoring --psnr-map and --error-map: there are no tile maps at native bit depth");
+		}
+	}
+
 	/**
 	 * Compare two files, according to parameters passed via command line
 	 * @param pOne first file to compare
@@ -476,92 +1857,288 @@ public class DissimilarV2 {
 	 * @param pHeatMapImage file to save ssim heat map image to
 	 * @param pCalcSSIM whether or not to calculate ssim
 	 * @param pCalcPSNR whether or not to calculate psnr
+	 * @param pThreads number of threads to use for ssim calculation
+	 * @param pGaussian whether to use a Gaussian sliding window for ssim instead of 8x8 blocks
+	 * @param pLumaPrecision precision of the luma planes for Gaussian ssim (null to calculate luma row by row)
+	 * @param pSsimThreshold minimum acceptable ssim, for block ssim (Double.NEGATIVE_INFINITY for no threshold)
+	 * @param pPsnrThreshold minimum acceptable psnr, for block ssim (Double.NEGATIVE_INFINITY for no threshold)
+	 * @param pSampleFraction fraction of the image to sample to estimate block ssim and psnr (0 to calculate them exactly)
+	 * @param pTargetError target ssim confidence interval half-width when sampling (0 for none)
+	 * @param pMultiScale whether to also calculate ms-ssim
+	 * @param pPsnrMapImage filename for the per-tile psnr map image (png, can be null; block ssim only)
+	 * @param pMaxErrorMapImage filename for the per-tile maximum error map image (png, can be null; block ssim only)
+	 * @param pScale reduction factor to decode the images at (1 for full resolution)
 	 */
-	private static void compare(final File pOne, final File pTwo, final String pHeatMapImage, final boolean pCalcSSIM, final boolean pCalcPSNR) {
+	private static void compare(final File pOne, final File pTwo, final String pHeatMapImage, final boolean pCalcSSIM, final boolean pCalcPSNR,
+									final int pThreads, final boolean pGaussian, final LumaPlane.Precision pLumaPrecision,
+									final double pSsimThreshold, final double pPsnrThreshold, final double pSampleFraction, 
+									final double pTargetError, final boolean pMultiScale, final String pPsnrMapImage, 
+									final String pMaxErrorMapImage, final int pScale) {
 		
 		//just load the images once and use the internal methods for calculating ssim/psnr
+		//block ssim and psnr are calculated at native depth if both images have more than 8 bits per sample
+		final ImageDecoder deepDecoder = (pScale<=1)?getDeepDecoder(pOne, pTwo):null;
+		final boolean nativeDepth = null!=deepDecoder&&!pGaussian;
+		if(null!=deepDecoder) {
+			warnNativeDepth(pGaussian, pSampleFraction, pSsimThreshold, pPsnrThreshold, pMultiScale, pPsnrMapImage, pMaxErrorMapImage);
+		}
+		//start decoding the second image now if it is a jp2 for OpenJPEG, so the two decodes overlap
+		//(the command line compares a single pair; the GUI prefetches the next pair of a batch)
+		final Future<DecodedImage> prefetchTwo = nativeDepth?null:submitOpenJPEG(pTwo, pScale);
 		long time = System.currentTimeMillis();
 		BufferedImage imageOne = null;
+		int oneScale = 1;
+		String oneDecoder = null;
 		try {
-			imageOne = Imaging.getBufferedImage(pOne);
+			if(nativeDepth) {
+				imageOne = deepDecoder.decode(pOne);
+			} else {
+				final DecodedImage decoded = decoders.decode(pOne, pScale);
+				imageOne = decoded.getImage();
+				oneScale = decoded.getScale();
+				oneDecoder = decoded.getDecoder();
+			}
 		} catch (IOException e) {
+			if(null!=prefetchTwo) prefetchTwo.cancel(true);
 			printError(pOne, false, false, pTwo, false);
 			return;
 		} catch (NullPointerException e) {
-			printError(pOne, false, false, pTwo, false);
-			return;
-		} catch (ImageReadException e) {
+			if(null!=prefetchTwo) prefetchTwo.cancel(true);
 			printError(pOne, false, false, pTwo, false);
 			return;
 		}
 		final long oneLoadTime = System.currentTimeMillis()-time;
-		//getRGB only returns 8 bits per component, so what about 16-bit images?
-		final int[] oneA = imageOne.getRGB(0, 0, imageOne.getWidth(), imageOne.getHeight(), null, 0, imageOne.getWidth());
 		final int width = imageOne.getWidth();
 		final int height = imageOne.getHeight();
-		final boolean greyscale = (imageOne.getType()==BufferedImage.TYPE_BYTE_GRAY||imageOne.getType()==BufferedImage.TYPE_USHORT_GRAY);
-		imageOne = null;
+		final int oneType = imageOne.getType();
+		final char[] oneS = nativeDepth?RasterPixels.getSamples(imageOne):null;
+		int[] oneA = null;
+		if(!nativeDepth) {
+			//pixels are packed 8 bits per component
+			oneA = RasterPixels.getPixels(imageOne);
+			imageOne = null;
+		}
 		time = System.currentTimeMillis();
 		BufferedImage imageTwo = null;
+		int twoScale = 1;
+		String twoDecoder = null;
 		try {
-			imageTwo = Imaging.getBufferedImage(pTwo);
+			if(nativeDepth) {
+				imageTwo = deepDecoder.decode(pTwo);
+			} else {
+				DecodedImage decoded = null;
+				if(null!=prefetchTwo) {
+					if(OpenJPEGDecoder.NAME.equals(oneDecoder)) {
+						try {
+							decoded = prefetchTwo.get();
+						} catch (InterruptedException e) {
+							//cancelled: kill the decoder and stop, keeping the interrupt for the caller
+							prefetchTwo.cancel(true);
+							Thread.currentThread().interrupt();
+							printError(pOne, true, true, pTwo, false);
+							return;
+						} catch (ExecutionException e) {
+							//OpenJPEG has already failed on this file, so only try the other decoders
+							decoded = decoders.decodeWithout(pTwo, pScale, OpenJPEGDecoder.NAME);
+						}
+					} else {
+						//the first image was not decoded by OpenJPEG, so the second should not be either
+						prefetchTwo.cancel(true);
+					}
+				}
+				if(null==decoded) {
+					//the same decoder for both images, so decoder differences do not show up as image differences
+					decoded = decoders.decode(pTwo, pScale, oneDecoder);
+				}
+				imageTwo = decoded.getImage();
+				twoScale = decoded.getScale();
+				twoDecoder = decoded.getDecoder();
+			}
 		} catch (IOException e) {
 			printError(pOne, true, true, pTwo, false);
 			return;
 		} catch (NullPointerException e) {
 			printError(pOne, true, true, pTwo, false);
 			return;
-		} catch (ImageReadException e) {
-			printError(pOne, true, true, pTwo, false);
-			return;
 		}
 		final long twoLoadTime = System.currentTimeMillis()-time;
 
-		//getRGB only returns 8 bits per component, so what about 16-bit images?
-		final int[] twoA = imageTwo.getRGB(0, 0, imageTwo.getWidth(), imageTwo.getHeight(), null, 0, imageTwo.getWidth());
+		final char[] twoS = nativeDepth?RasterPixels.getSamples(imageTwo):null;
+		final boolean samples = nativeDepth&&checkNativePair(imageOne, oneS, imageTwo, twoS);
+		final int channels = samples?RasterPixels.getChannels(imageOne):0;
+		final int bitDepth = samples?RasterPixels.getBitDepth(imageOne):8;
+		if(nativeDepth&&(!samples||pMultiScale)) {
+			//ms-ssim (and images the native path cannot handle) still use 8 bits per component
+			oneA = RasterPixels.getPixels(imageOne);
+		}
+		final int[] twoA = (samples&&!pMultiScale)?null:RasterPixels.getPixels(imageTwo);
+		//both images must be greyscale to use the single channel path (unused for native samples)
+		final boolean greyscale = null!=twoA&&isGreyscale(oneType, oneA)&&isGreyscale(imageTwo.getType(), twoA);
+		imageOne = null;
 		imageTwo = null;
 		
-		//calculate psnr if wanted
 		time = System.currentTimeMillis();
 		double psnr = 0;		
 		long psnrCalc = 0;
-		if(pCalcPSNR) {
-			psnr = calcPSNR(oneA, twoA, greyscale);	
-			psnrCalc = System.currentTimeMillis()-time;
-		}
-		
-		//calculate ssim if wanted
-		time = System.currentTimeMillis();
-		List<Double> ssimMin = new LinkedList<Double>();
-		List<Double> ssimVariance = new LinkedList<Double>();
 		double ssim = 0;		
+		double ssimMin = 0;
+		double ssimVariance = 0;
 		long ssimCalc = 0;
-		if(pCalcSSIM) {
-			ssim = calcSSIM(oneA, twoA, width, height, greyscale, pHeatMapImage, ssimMin, ssimVariance);	
+		ComparisonResult metrics = null;
+		ComparisonResult errors = null;
+		if((pCalcSSIM&&!pGaussian)||samples) {
+			//psnr, ssim and the error statistics all come from one pass over the pixels
+			if(samples) {
+				//always exact; the thresholds are just checked afterwards
+				metrics = calcMetrics(oneS, twoS, width, height, channels, bitDepth, pHeatMapImage);
+				if(null!=metrics) {
+					metrics.setAccepted(metrics.getSsimMean()>=pSsimThreshold&&metrics.getPsnr()>=pPsnrThreshold);
+				}
+			} else if(pSampleFraction>0) {
+				//estimate, escalating to the full calculation if that is not good enough to decide
+				metrics = calcMetricsSampled(oneA, twoA, width, height, greyscale, pSampleFraction, pTargetError, pSsimThreshold, pPsnrThreshold);
+			} else if(pSsimThreshold>Double.NEGATIVE_INFINITY||pPsnrThreshold>Double.NEGATIVE_INFINITY) {
+				//stop early if the pair fails
+				metrics = calcMetrics(oneA, twoA, width, height, greyscale, pHeatMapImage, pSsimThreshold, pPsnrThreshold);
+			} else {
+				//the tile maps come from the same pass
+				final boolean tileMaps = null!=pPsnrMapImage||null!=pMaxErrorMapImage;
+				metrics = calcMetrics(oneA, twoA, width, height, greyscale, pHeatMapImage, pThreads, tileMaps);
+				if(null!=metrics) {
+					dumpTileMaps(metrics, pPsnrMapImage, pMaxErrorMapImage);
+				}
+			}
 			ssimCalc = System.currentTimeMillis()-time;
+			psnrCalc = ssimCalc;
+			errors = metrics;
+			if(null!=metrics) {
+				psnr = metrics.getPsnr();
+				ssim = metrics.getSsimMean();
+				ssimMin = metrics.getSsimMin();
+				ssimVariance = metrics.getSsimVariance();
+			} else {
+				psnr = -1;
+				ssim = -1;
+			}
+		} else {
+			//calculate psnr if wanted
+			if(pCalcPSNR) {
+				errors = calcErrors(oneA, twoA, width, height, greyscale);
+				psnr = (null==errors)?-1:errors.getPsnr();
+				psnrCalc = System.currentTimeMillis()-time;
+			}
+			
+			//calculate ssim if wanted
+			time = System.currentTimeMillis();
+			if(pCalcSSIM) {
+				List<Double> min = new LinkedList<Double>();
+				List<Double> variance = new LinkedList<Double>();
+				if(null==pLumaPrecision) {
+					ssim = calcSSIMGaussian(oneA, twoA, width, height, greyscale, pHeatMapImage, min, variance);
+				} else {
+					ssim = calcSSIMGaussian(calcLuma(oneA, width, height, greyscale, pLumaPrecision), 
+											calcLuma(twoA, width, height, greyscale, pLumaPrecision), pHeatMapImage, min, variance);
+				}
+				ssimCalc = System.currentTimeMillis()-time;
+				if(ssim>0) {
+					ssimMin = min.get(0);
+					ssimVariance = variance.get(0);
+				}
+			}
+		}
+
+		ComparisonResult multiScale = null;
+		long multiScaleCalc = 0;
+		if(pMultiScale) {
+			time = System.currentTimeMillis();
+			multiScale = calcMSSSIM(oneA, twoA, width, height, greyscale);
+			multiScaleCalc = System.currentTimeMillis()-time;
 		}
 
 		System.out.println("<dissimilar version=\""+version+"\">");
-		System.out.println("     <file loadTimeMS=\""+oneLoadTime+"\">"+pOne+"</file>");
-		System.out.println("     <file loadTimeMS=\""+twoLoadTime+"\">"+pTwo+"</file>");
+		//metrics from reduced resolution decodes are only approximate, so say so
+		//name the decoders if they differ (one could not decode the other image), as it may explain differences
+		final boolean mixed = null!=oneDecoder&&!oneDecoder.equals(twoDecoder);
+		System.out.println("     <file loadTimeMS=\""+oneLoadTime+"\""+(oneScale>1?" decodeScale=\""+oneScale+"\"":"")+
+							(mixed?" decoder=\""+oneDecoder+"\"":"")+">"+pOne+"</file>");
+		System.out.println("     <file loadTimeMS=\""+twoLoadTime+"\""+(twoScale>1?" decodeScale=\""+twoScale+"\"":"")+
+							(mixed?" decoder=\""+twoDecoder+"\"":"")+">"+pTwo+"</file>");
+		if(null!=metrics&&metrics.getBitDepth()!=8) {
+			System.out.println("     <bitDepth>"+metrics.getBitDepth()+"</bitDepth>");
+		}
 		if(pCalcSSIM) {
-			System.out.println("     <ssim calcTimeMS=\""+ssimCalc+"\">");
+			//a pair that failed a threshold early only has bounds (exact="false"), and no variance
+			System.out.println("     <ssim calcTimeMS=\""+ssimCalc+"\" window=\""+(pGaussian?"gaussian":"block")+"\""+
+								((null!=metrics&&!metrics.isExact())?" exact=\"false\"":"")+">");
 			if(ssim>0) {
 				System.out.println("          <mean>"+new DecimalFormat("0.0000000").format(ssim)+"</mean>");
-				System.out.println("          <min>"+new DecimalFormat("0.0000000").format(ssimMin.get(0))+"</min>");
-				System.out.println("          <variance>"+new DecimalFormat("0.0000000").format(ssimVariance.get(0))+"</variance>");
+				if(!Double.isNaN(ssimMin)) {
+					System.out.println("          <min>"+new DecimalFormat("0.0000000").format(ssimMin)+"</min>");
+				}
+				if(!Double.isNaN(ssimVariance)) {
+					System.out.println("          <variance>"+new DecimalFormat("0.0000000").format(ssimVariance)+"</variance>");
+				}
 			} else {
 				System.out.println("failed");
 			}
 			System.out.println("     </ssim>");
 		}
+		if(pMultiScale) {
+			System.out.println("     <msssim calcTimeMS=\""+multiScaleCalc+"\">");
+			if(null!=multiScale) {
+				final DecimalFormat format = new DecimalFormat("0.0000000");
+				System.out.println("          <mean>"+format.format(multiScale.getMsssim())+"</mean>");
+				final double[] contrast = multiScale.getMsssimContrast();
+				for(int scale=0;scale<contrast.length;scale++) {
+					System.out.println("          <scale level=\""+(scale+1)+"\" contrastStructure=\""+format.format(contrast[scale])+"\""+
+										((scale==contrast.length-1)?" luminance=\""+format.format(multiScale.getMsssimLuminance())+"\"":"")+"/>");
+				}
+			} else {
+				System.out.println("failed");
+			}
+			System.out.println("     </msssim>");
+		}
 		if(pCalcPSNR) {
-			System.out.println("     <psnr calcTimeMS=\""+psnrCalc+"\">"+new DecimalFormat("0.0000").format(psnr)+"</psnr>");
+			final DecimalFormat format = psnrFormat();
+			String perChannel = "";
+			if(null!=errors) {
+				//per-channel psnr (the channels are all the same for greyscale)
+				if(!errors.isGreyscale()) {
+					perChannel += " red=\""+format.format(errors.getPsnrRed())+"\" green=\""+format.format(errors.getPsnrGreen())+
+								"\" blue=\""+format.format(errors.getPsnrBlue())+"\"";
+				}
+				perChannel += " luma=\""+format.format(errors.getPsnrLuma())+"\"";
+			}
+			System.out.println("     <psnr calcTimeMS=\""+psnrCalc+"\""+perChannel+">"+format.format(psnr)+"</psnr>");
+		}
+		if(null!=metrics) {
+			System.out.println("     <difference maxAbsoluteError=\""+metrics.getMaxAbsoluteError()+"\" differingPixels=\""+metrics.getDifferingPixels()+
+								"\" identical=\""+metrics.isIdentical()+"\"/>");
+			if(metrics.isSampled()) {
+				//95% confidence intervals
+				final DecimalFormat format = new DecimalFormat("0.0000000");
+				System.out.println("     <estimate sampledPixels=\""+metrics.getSampledPixels()+"\" ssimLower=\""+format.format(metrics.getSsimLower())+
+									"\" ssimUpper=\""+format.format(metrics.getSsimUpper())+"\" psnrLower=\""+format.format(metrics.getPsnrLower())+
+									"\" psnrUpper=\""+format.format(metrics.getPsnrUpper())+"\"/>");
+			}
+			if(pSsimThreshold>Double.NEGATIVE_INFINITY||pPsnrThreshold>Double.NEGATIVE_INFINITY) {
+				//if not exact, the ssim and psnr values above are upper bounds (or estimates, if sampled)
+				System.out.println("     <threshold ssim=\""+pSsimThreshold+"\" psnr=\""+pPsnrThreshold+"\" exact=\""+metrics.isExact()+"\">"+
+									(metrics.isAccepted()?"accepted":"rejected")+"</threshold>");
+			}
 		}
 		System.out.println("</dissimilar>");
 		
 	}
 	
+	/**
+	 * Get the decoders used to load image files, e.g. to change their priorities or policy
+	 * @return decoders
+	 */
+	public static ImageDecoders getDecoders() {
+		return decoders;
+	}
+
 	/**
 	 * Main method
 	 * @param args command line arguments
@@ -578,12 +2155,43 @@ public class DissimilarV2 {
 		boolean calcPSNR = true;
 		boolean calcSSIM = true;
 		String heatMapImage = null;
+		int threads = 1;
+		boolean gaussian = false;
+		LumaPlane.Precision lumaPrecision = null;
+		boolean stream = false;
+		double ssimThreshold = Double.NEGATIVE_INFINITY;
+		double psnrThreshold = Double.NEGATIVE_INFINITY;
+		double sampleFraction = 0;
+		double targetError = 0;
+		boolean multiScale = false;
+		String psnrMapImage = null;
+		String maxErrorMapImage = null;
+		boolean verify = false;
+		Rectangle region = null;
+		File mask = null;
+		int scale = 1;
 		
 		CommandLineParser parser = new PosixParser();
 		Options options = new Options();
 		options.addOption("m", "heatmap", true, "file to save the ssim heatmap to (png)");
 		options.addOption("p", "psnr", false, "calculate just psnr");
 		options.addOption("s", "ssim", false, "calculate just ssim");
+		options.addOption("t", "threads", true, "number of threads to use for ssim (default 1)");
+		options.addOption("g", "gaussian", false, "use an 11x11 gaussian sliding window for ssim (default 8x8 blocks)");
+		options.addOption("l", "luma", true, "precision of luma planes for gaussian ssim: double, float, exact or fixed16");
+		options.addOption("b", "stream", false, "compare the images a band of rows at a time to save memory, holding images that cannot be streamed (and gaussian luma planes) off the java heap; only uncompressed or tiled images (e.g. bmp, tiled tiff) are streamed, png and jpeg are still decoded in full on the heap first");
+		options.addOption("S", "min-ssim", true, "minimum acceptable ssim; stop as soon as the pair is certain to fail (block ssim only)");
+		options.addOption("P", "min-psnr", true, "minimum acceptable psnr; stop as soon as the pair is certain to fail (block ssim only)");
+		options.addOption("e", "estimate", true, "estimate block ssim and psnr from this fraction of the image, calculating them fully if the estimate is too close to a threshold");
+		options.addOption("E", "target-error", true, "when estimating, stop sampling once the ssim 95% confidence interval half-width is this small");
+		options.addOption("M", "msssim", false, "also calculate multi-scale ssim (5 scales, 11x11 gaussian windows)");
+		options.addOption("T", "psnr-map", true, "file to save the per-tile (8x8) psnr map to (png; block ssim only)");
+		options.addOption("X", "error-map", true, "file to save the per-tile (8x8) maximum absolute error map to (png; block ssim only)");
+		options.addOption("V", "verify", false, "just check the images decode to identical pixels, a band of rows at a time, stopping at the first difference");
+		options.addOption("R", "region", true, "only compare this rectangle of the images: x,y,width,height (block ssim only)");
+		options.addOption("K", "mask", true, "only compare the pixels that are not black in this mask image (block ssim only)");
+		options.addOption("r", "reduce", true, "decode the images at 1/n of their width and height (e.g. 8) for a quick approximate comparison");
+		options.addOption("D", "decoders", true, "decoder policy and priorities, e.g. \"fastest\" or \"png=imageio,imaging;jp2=openjpeg\" (decoders: imaging, imageio, openjpeg)");
 		options.addOption("h", "help", false, "help text");
 
 		CommandLine com = null;
@@ -618,11 +2226,133 @@ public class DissimilarV2 {
 			heatMapImage = com.getOptionValue("heatmap");
 		}
 		
+		if(com.hasOption("threads")) {
+			try {
+				threads = Integer.parseInt(com.getOptionValue("threads"));
+			} catch (NumberFormatException e) {
+				HelpFormatter help = new HelpFormatter();
+				help.printHelp("Dissimilar v"+version, options);
+				return;
+			}
+		}
+		
+		if(com.hasOption("gaussian")) {
+			gaussian = true;
+		}
+		
+		if(com.hasOption("luma")) {
+			try {
+				lumaPrecision = LumaPlane.Precision.valueOf(com.getOptionValue("luma").toUpperCase());
+			} catch (IllegalArgumentException e) {
+				HelpFormatter help = new HelpFormatter();
+				help.printHelp("Dissimilar v"+version, options);
+				return;
+			}
+		}
+		
+		if(com.hasOption("stream")) {
+			stream = true;
+		}
+		
+		if(com.hasOption("msssim")) {
+			multiScale = true;
+		}
+		
+		if(com.hasOption("verify")) {
+			verify = true;
+		}
+		
+		if(com.hasOption("psnr-map")) {
+			psnrMapImage = com.getOptionValue("psnr-map");
+		}
+		
+		if(com.hasOption("error-map")) {
+			maxErrorMapImage = com.getOptionValue("error-map");
+		}
+		
+		try {
+			if(com.hasOption("min-ssim")) {
+				ssimThreshold = Double.parseDouble(com.getOptionValue("min-ssim"));
+			}
+			if(com.hasOption("min-psnr")) {
+				psnrThreshold = Double.parseDouble(com.getOptionValue("min-psnr"));
+			}
+			if(com.hasOption("estimate")) {
+				sampleFraction = Double.parseDouble(com.getOptionValue("estimate"));
+			}
+			if(com.hasOption("target-error")) {
+				targetError = Double.parseDouble(com.getOptionValue("target-error"));
+			}
+			if(com.hasOption("reduce")) {
+				scale = Integer.parseInt(com.getOptionValue("reduce"));
+				if(scale<1) throw new NumberFormatException("reduce must be at least 1");
+			}
+			if(com.hasOption("region")) {
+				final String[] values = com.getOptionValue("region").split(",");
+				if(values.length!=4) throw new NumberFormatException("region needs x,y,width,height");
+				region = new Rectangle(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()), 
+										Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim()));
+			}
+		} catch (NumberFormatException e) {
+			HelpFormatter help = new HelpFormatter();
+			help.printHelp("Dissimilar v"+version, options);
+			return;
+		}
+		
+		if(com.hasOption("mask")) {
+			mask = new File(com.getOptionValue("mask"));
+		}
+		
+		if((null!=region||null!=mask)&&!verify) {
+			//regions and masks are only compared with full-resolution block ssim, so refuse anything else
+			for(String option : new String[] { "gaussian", "msssim", "stream", "min-ssim", "min-psnr", "estimate", "target-error", 
+												"reduce", "psnr-map", "error-map" }) {
+				if(com.hasOption(option)) {
+					System.err.println("--"+option+" cannot be used with --region or --mask");
+					HelpFormatter help = new HelpFormatter();
+					help.printHelp("Dissimilar v"+version, options);
+					return;
+				}
+			}
+		}
+		
+		if(stream&&!verify) {
+			//streamed comparisons are a single band-by-band pass with nothing else, so refuse anything else
+			for(String option : new String[] { "threads", "min-ssim", "min-psnr", "estimate", "target-error", "msssim", 
+												"reduce", "psnr-map", "error-map" }) {
+				if(com.hasOption(option)) {
+					System.err.println("--"+option+" cannot be used with --stream");
+					HelpFormatter help = new HelpFormatter();
+					help.printHelp("Dissimilar v"+version, options);
+					return;
+				}
+			}
+		}
+		
+		if(com.hasOption("decoders")) {
+			try {
+				decoders.configure(com.getOptionValue("decoders"));
+			} catch (IllegalArgumentException e) {
+				HelpFormatter help = new HelpFormatter();
+				help.printHelp("Dissimilar v"+version, options);
+				return;
+			}
+		}
+		
 		File one = new File(com.getArgs()[0]);
 		File two = new File(com.getArgs()[1]);
 
 		if(one.exists()&&two.exists()) {
-			compare(one, two, heatMapImage, calcSSIM, calcPSNR);
+			if(verify) {
+				verify(one, two);
+			} else if(null!=region||null!=mask) {
+				compareRegion(one, two, region, mask, heatMapImage, calcSSIM, calcPSNR, threads);
+			} else if(stream) {
+				compareStreaming(one, two, heatMapImage, calcSSIM, calcPSNR, gaussian, lumaPrecision);
+			} else {
+				compare(one, two, heatMapImage, calcSSIM, calcPSNR, threads, gaussian, lumaPrecision, ssimThreshold, psnrThreshold, 
+						sampleFraction, targetError, multiScale, psnrMapImage, maxErrorMapImage, scale);
+			}
 		}
 
 	}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sliding window SSIM using a circular-symmetric Gaussian weighting window, moved one pixel at a time,
+ * as in Wang et al. (2004) and most published SSIM tools.  Only windows that fit entirely inside the
+ * image are used (the "valid" region).
+ *
+ * The local means, variances and covariance are found with separable 1-D Gaussian passes: each input
+ * row is filtered horizontally once, into a ring of windowSize row buffers, and each output row is a
+ * vertical pass over that ring.  The cost is therefore linear in the number of pixels (2*windowSize
+ * multiply-adds per statistic per pixel, rather than windowSize^2) and memory depends only on the width.
+ * @author wpalmer
+ */
+public class GaussianSSIM {
+
+	/**
+	 * Default Gaussian window size (11)
+	 */
+	public final static int WINDOWSIZE = 11;
+
+	/**
+	 * Default Gaussian window standard deviation (1.5)
+	 */
+	public final static double SIGMA = 1.5;
+
+	private final SSIMParameters gParameters;
+	private final double gC1;
+	private final double gC2;
+	private final int gOutStride;
+
+	private final int gWidth;
+	private final int gWindowSize;
+	private final int gOutWidth;
+	private final double[] gKernel;
+
+	//unpacked channels and luma for the current input row
+	private final int[] gRed;
+	private final int[] gGreen;
+	private final int[] gBlue;
+	private final int[] gFixedLuma;
+	private final double[] gLumaOne;
+	private final double[] gLumaTwo;
+
+	//horizontally filtered rows, used as a ring of gWindowSize rows
+	private final double[][] gRowX;
+	private final double[][] gRowY;
+	private final double[][] gRowXX;
+	private final double[][] gRowYY;
+	private final double[][] gRowXY;
+
+	//vertically filtered values for the current output row
+	private final double[] gUx;
+	private final double[] gUy;
+	private final double[] gXX;
+	private final double[] gYY;
+	private final double[] gXY;
+
+	/**
+	 * Create a new Gaussian SSIM engine for images of the given width, using an 11x11 window
+	 * with standard deviation 1.5
+	 * @param pWidth width of the images to be compared
+	 */
+	public GaussianSSIM(final int pWidth) {
+		this(pWidth, WINDOWSIZE, SIGMA);
+	}
+
+	/**
+	 * Create a new Gaussian SSIM engine for images of the given width
+	 * @param pWidth width of the images to be compared
+	 * @param pWindowSize Gaussian window size (should be odd)
+	 * @param pSigma standard deviation of the Gaussian window
+	 */
+	public GaussianSSIM(final int pWidth, final int pWindowSize, final double pSigma) {
+		this(pWidth, new SSIMParameters(pWindowSize, 1, SSIMParameters.K1, SSIMParameters.K2, SSIMParameters.L8, 
+											SSIMParameters.Weighting.GAUSSIAN, pSigma));
+	}
+
+	/**
+	 * Create a new Gaussian SSIM engine for images of the given width
+	 * @param pWidth width of the images to be compared
+	 * @param pParameters SSIM parameters (the weighting must be Gaussian); with a stride above one the
+	 * filtering is still done for every pixel, but only every stride'th window is evaluated
+	 */
+	public GaussianSSIM(final int pWidth, final SSIMParameters pParameters) {
+		if(SSIMParameters.Weighting.GAUSSIAN!=pParameters.getWeighting()) {
+			throw new IllegalArgumentException("parameters are not for a Gaussian window");
+		}
+		final int windowSize = pParameters.getWindowSize();
+		final double sigma = pParameters.getSigma();
+		gParameters = pParameters;
+		gC1 = pParameters.getC1();
+		gC2 = pParameters.getC2();
+		gOutStride = pParameters.getStride();
+		gWidth = pWidth;
+		gWindowSize = windowSize;
+		gOutWidth = Math.max(0, pWidth-windowSize+1);
+
+		//1-D kernel, normalised so the 2-D (outer product) kernel also sums to 1
+		gKernel = new double[windowSize];
+		final double centre = (windowSize-1)/2.0;
+		double sum = 0;
+		for(int i=0;i<windowSize;i++) {
+			gKernel[i] = Math.exp(-((i-centre)*(i-centre))/(2*sigma*sigma));
+			sum += gKernel[i];
+		}
+		for(int i=0;i<windowSize;i++) {
+			gKernel[i] /= sum;
+		}
+
+		gRed = new int[pWidth];
+		gGreen = new int[pWidth];
+		gBlue = new int[pWidth];
+		gFixedLuma = new int[pWidth];
+		gLumaOne = new double[pWidth];
+		gLumaTwo = new double[pWidth];
+		gRowX = new double[windowSize][gOutWidth];
+		gRowY = new double[windowSize][gOutWidth];
+		gRowXX = new double[windowSize][gOutWidth];
+		gRowYY = new double[windowSize][gOutWidth];
+		gRowXY = new double[windowSize][gOutWidth];
+		gUx = new double[gOutWidth];
+		gUy = new double[gOutWidth];
+		gXX = new double[gOutWidth];
+		gYY = new double[gOutWidth];
+		gXY = new double[gOutWidth];
+	}
+
+	/**
+	 * @return the width of the images this engine compares
+	 */
+	public int getWidth() {
+		return gWidth;
+	}
+
+	/**
+	 * @return the SSIM parameters this engine uses
+	 */
+	public SSIMParameters getParameters() {
+		return gParameters;
+	}
+
+	/**
+	 * Calculate the luma for a row of pixels
+	 * @param pPixels pixels for the image
+	 * @param pOffset index of the first pixel in the row
+	 * @param pGreyscale if the image is greyscale
+	 * @param pLuma array to hold the luma values
+	 */
+	private void lumaRow(final int[] pPixels, final int pOffset, final boolean pGreyscale, final double[] pLuma) {
+		if(pGreyscale) {
+			PixelKernels.unpack(pPixels, pOffset, gWidth, gBlue);
+			PixelKernels.luma(gBlue, gWidth, gFixedLuma);
+		} else {
+			PixelKernels.unpack(pPixels, pOffset, gWidth, gRed, gGreen, gBlue);
+			PixelKernels.luma(gRed, gGreen, gBlue, gWidth, gFixedLuma);
+		}
+		for(int w=0;w<gWidth;w++) {
+			pLuma[w] = (double)gFixedLuma[w]/LumaPlane.LUMASCALE;
+		}
+	}
+
+	/**
+	 * Horizontal Gaussian pass over one input row (already in gLumaOne/gLumaTwo), storing the
+	 * results in the ring
+	 * @param pY row being filtered
+	 */
+	private void filterRow(final int pY) {
+		final int slot = pY%gWindowSize;
+		final double[] rowX = gRowX[slot];
+		final double[] rowY = gRowY[slot];
+		final double[] rowXX = gRowXX[slot];
+		final double[] rowYY = gRowYY[slot];
+		final double[] rowXY = gRowXY[slot];
+
+		Arrays.fill(rowX, 0);
+		Arrays.fill(rowY, 0);
+		Arrays.fill(rowXX, 0);
+		Arrays.fill(rowYY, 0);
+		Arrays.fill(rowXY, 0);
+
+		//kernel tap outermost so the inner loops run along the row (and vectorise); each output
+		//is still summed in tap order
+		for(int k=0;k<gWindowSize;k++) {
+			final double weight = gKernel[k];
+			for(int w=0;w<gOutWidth;w++) {
+				final double one = gLumaOne[w+k];
+				final double two = gLumaTwo[w+k];
+				rowX[w]  += weight*one;
+				rowY[w]  += weight*two;
+				rowXX[w] += weight*one*one;
+				rowYY[w] += weight*two*two;
+				rowXY[w] += weight*one*two;
+			}
+		}
+	}
+
+	/**
+	 * Load a row of luma for both images, from the pixels, luma planes or luma arrays, and filter it
+	 * @param pOne pixels for first image (null if using planes or arrays)
+	 * @param pTwo pixels for second image (null if using planes or arrays)
+	 * @param pGreyscale if the images are greyscale
+	 * @param pPlaneOne luma plane for first image (null if using pixels or arrays)
+	 * @param pPlaneTwo luma plane for second image (null if using pixels or arrays)
+	 * @param pLumaOne luma array for first image (null if using pixels or planes)
+	 * @param pLumaTwo luma array for second image (null if using pixels or planes)
+	 * @param pY row to load
+	 */
+	private void loadRow(final int[] pOne, final int[] pTwo, final boolean pGreyscale, final LumaPlane pPlaneOne, final LumaPlane pPlaneTwo,
+							final double[] pLumaOne, final double[] pLumaTwo, final int pY) {
+		if(null!=pPlaneOne) {
+			pPlaneOne.getRow(pY, gLumaOne);
+			pPlaneTwo.getRow(pY, gLumaTwo);
+		} else if(null!=pLumaOne) {
+			System.arraycopy(pLumaOne, pY*gWidth, gLumaOne, 0, gWidth);
+			System.arraycopy(pLumaTwo, pY*gWidth, gLumaTwo, 0, gWidth);
+		} else {
+			lumaRow(pOne, pY*gWidth, pGreyscale, gLumaOne);
+			lumaRow(pTwo, pY*gWidth, pGreyscale, gLumaTwo);
+		}
+		filterRow(pY);
+	}
+
+	/**
+	 * Calculate the mean SSIM of two luma planes
+	 * @param pOne luma plane for first image
+	 * @param pTwo luma plane for second image
+	 * @param pMap array to hold the SSIM map (outWidth*outHeight, row by row), or null
+	 * @param pMin list to hold return value for ssim-minimum (can be null)
+	 * @param pVariance list to hold return value for ssim-variance (can be null)
+	 * @return mean SSIM, or -1 if the images are smaller than the window
+	 */
+	public double calcSSIM(final LumaPlane pOne, final LumaPlane pTwo, final double[] pMap, List<Double> pMin, List<Double> pVariance) {
+		final SSIMResult result = new SSIMResult();
+		calcSSIM(null, null, false, pOne, pTwo, null, null, pOne.getHeight(), pMap, result, null);
+		return report(result, pMin, pVariance);
+	}
+
+	/**
+	 * Calculate the mean SSIM of the two images
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pMap array to hold the SSIM map (outWidth*outHeight, row by row), or null
+	 * @param pMin list to hold return value for ssim-minimum (can be null)
+	 * @param pVariance list to hold return value for ssim-variance (can be null)
+	 * @return mean SSIM, or -1 if the images are smaller than the window
+	 */
+	public double calcSSIM(final int[] pOne, final int[] pTwo, final int pHeight, final boolean pGreyscale, final double[] pMap,
+							List<Double> pMin, List<Double> pVariance) {
+		final SSIMResult result = new SSIMResult();
+		calcSSIM(pOne, pTwo, pGreyscale, null, null, null, null, pHeight, pMap, result, null);
+		return report(result, pMin, pVariance);
+	}
+
+	/**
+	 * Calculate the SSIM of the two images into a (re-usable) result, without storing an SSIM map
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pResult result to hold the SSIM mean, minimum and variance (reset first)
+	 * @return false if the images are smaller than the window
+	 */
+	public boolean calcSSIM(final int[] pOne, final int[] pTwo, final int pHeight, final boolean pGreyscale, final SSIMResult pResult) {
+		return calcSSIM(pOne, pTwo, pGreyscale, null, null, null, null, pHeight, null, pResult, null);
+	}
+
+	/**
+	 * Copy the minimum and variance from a result into the lists used by the older methods
+	 * @param pResult result
+	 * @param pMin list to hold return value for ssim-minimum (can be null)
+	 * @param pVariance list to hold return value for ssim-variance (can be null)
+	 * @return mean SSIM, or -1 if there were no windows
+	 */
+	private static double report(final SSIMResult pResult, List<Double> pMin, List<Double> pVariance) {
+		if(pResult.getWindows()==0) return -1;
+		if(null!=pMin) {
+			pMin.add(0, new Double(pResult.getMin()));
+		}
+		if(null!=pVariance) {
+			pVariance.add(0, new Double(pResult.getVariance()));
+		}
+		return pResult.getMean();
+	}
+
+	/**
+	 * Calculate the mean SSIM of two arrays of luma values, and the mean of its contrast-structure and 
+	 * luminance terms (for MS-SSIM)
+	 * @param pOne luma for first image (width*height, row by row)
+	 * @param pTwo luma for second image (width*height, row by row)
+	 * @param pHeight height of the two images
+	 * @param pMin list to hold return value for ssim-minimum (can be null)
+	 * @param pVariance list to hold return value for ssim-variance (can be null)
+	 * @param pTerms array to hold the mean contrast-structure term [0] and mean luminance term [1]
+	 * @return mean SSIM, or -1 if the images are smaller than the window
+	 */
+	double calcSSIM(final double[] pOne, final double[] pTwo, final int pHeight, List<Double> pMin, List<Double> pVariance, 
+					final double[] pTerms) {
+		final SSIMResult result = new SSIMResult();
+		calcSSIM(null, null, false, null, null, pOne, pTwo, pHeight, null, result, pTerms);
+		return report(result, pMin, pVariance);
+	}
+
+	/**
+	 * Calculate the mean SSIM of the two images, from pixels, luma planes or luma arrays
+	 * @param pOne pixels for first image (null if using planes or arrays)
+	 * @param pTwo pixels for second image (null if using planes or arrays)
+	 * @param pGreyscale if the images are greyscale
+	 * @param pPlaneOne luma plane for first image (null if using pixels or arrays)
+	 * @param pPlaneTwo luma plane for second image (null if using pixels or arrays)
+	 * @param pLumaOne luma array for first image (null if using pixels or planes)
+	 * @param pLumaTwo luma array for second image (null if using pixels or planes)
+	 * @param pHeight height of the two images
+	 * @param pMap array to hold the SSIM map (one value per evaluated window, row by row), or null
+	 * @param pResult result to hold the SSIM mean, minimum and variance (reset first)
+	 * @param pTerms array to hold the mean contrast-structure [0] and luminance [1] terms, or null
+	 * @return false if the images are smaller than the window
+	 */
+	private boolean calcSSIM(final int[] pOne, final int[] pTwo, final boolean pGreyscale, final LumaPlane pPlaneOne, final LumaPlane pPlaneTwo,
+							final double[] pLumaOne, final double[] pLumaTwo, final int pHeight, final double[] pMap, 
+							final SSIMResult pResult, final double[] pTerms) {
+
+		pResult.reset();
+		final int outHeight = pHeight-gWindowSize+1;
+		if(gOutWidth<=0||outHeight<=0) return false;
+
+		double contrast = 0;
+		double luminance = 0;
+
+		//prime the ring with the first rows
+		for(int y=0;y<gWindowSize-1;y++) {
+			loadRow(pOne, pTwo, pGreyscale, pPlaneOne, pPlaneTwo, pLumaOne, pLumaTwo, y);
+		}
+
+		int index = 0;
+		for(int outY=0;outY<outHeight;outY++) {
+			loadRow(pOne, pTwo, pGreyscale, pPlaneOne, pPlaneTwo, pLumaOne, pLumaTwo, outY+gWindowSize-1);
+			if(outY%gOutStride!=0) {
+				//the row still has to be loaded into the ring
+				continue;
+			}
+
+			//vertical pass over the ring, again with the tap outermost
+			Arrays.fill(gUx, 0);
+			Arrays.fill(gUy, 0);
+			Arrays.fill(gXX, 0);
+			Arrays.fill(gYY, 0);
+			Arrays.fill(gXY, 0);
+			for(int k=0;k<gWindowSize;k++) {
+				final int slot = (outY+k)%gWindowSize;
+				final double weight = gKernel[k];
+				final double[] rowX = gRowX[slot];
+				final double[] rowY = gRowY[slot];
+				final double[] rowXX = gRowXX[slot];
+				final double[] rowYY = gRowYY[slot];
+				final double[] rowXY = gRowXY[slot];
+				for(int w=0;w<gOutWidth;w++) {
+					gUx[w] += weight*rowX[w];
+					gUy[w] += weight*rowY[w];
+					gXX[w] += weight*rowXX[w];
+					gYY[w] += weight*rowYY[w];
+					gXY[w] += weight*rowXY[w];
+				}
+			}
+
+			for(int w=0;w<gOutWidth;w+=gOutStride) {
+				final double ux = gUx[w];
+				final double uy = gUy[w];
+				final double xx = gXX[w];
+				final double yy = gYY[w];
+				final double xy = gXY[w];
+
+				final double o2x = xx-ux*ux;
+				final double o2y = yy-uy*uy;
+				final double oxy = xy-ux*uy;
+
+				final double num = (2*ux*uy+gC1)*(2*oxy+gC2);
+				final double den = (ux*ux+uy*uy+gC1)*(o2x+o2y+gC2);
+				final double ssim = num/den;
+
+				if(null!=pTerms) {
+					contrast += (2*oxy+gC2)/(o2x+o2y+gC2);
+					luminance += (2*ux*uy+gC1)/(ux*ux+uy*uy+gC1);
+				}
+				pResult.add(ssim);
+				if(null!=pMap) {
+					pMap[index++] = ssim;
+				}
+			}
+		}
+
+		if(null!=pTerms) {
+			pTerms[0] = contrast/pResult.getWindows();
+			pTerms[1] = luminance/pResult.getWindows();
+		}
+
+		return true;
+	}
+
+}
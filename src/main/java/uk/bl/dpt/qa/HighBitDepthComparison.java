@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import org.apache.commons.math3.stat.descriptive.moment.Variance;
+
+/**
+ * Block SSIM, PSNR and error statistics for images with up to 16 bits per sample, working on the
+ * samples at their native depth (see RasterPixels.getSamples) rather than on 8-bit packed pixels.
+ *
+ * The SSIM dynamic range L and the PSNR peak are both 2^bitDepth-1.  Squared errors are summed in
+ * long integers (a squared 16-bit difference does not fit in an int).  The luma of each strip of
+ * windows is held as doubles and the window statistics are found in two passes (mean, then the
+ * deviations from it), as sums of squares of 16-bit luma would lose precision.
+ * @author wpalmer
+ */
+public class HighBitDepthComparison {
+
+	private HighBitDepthComparison() {}
+
+	/**
+	 * Compare two images
+	 * @param pOne samples for first image (width*height*channels, interleaved)
+	 * @param pTwo samples for second image (width*height*channels, interleaved)
+	 * @param pWidth width of the images
+	 * @param pHeight height of the images
+	 * @param pChannels number of channels (1 for greyscale, 3 for rgb)
+	 * @param pBitDepth bits per sample
+	 * @param pWindowSize SSIM window size
+	 * @param pMap array to hold the SSIM value for each window (windowsH*windowsW, row by row), or null
+	 * @return comparison result
+	 */
+	public static ComparisonResult compare(final char[] pOne, final char[] pTwo, final int pWidth, final int pHeight, final int pChannels,
+											final int pBitDepth, final int pWindowSize, final double[] pMap) {
+
+		final double range = (1 << pBitDepth)-1;
+		//the same constants as for 8-bit images, scaled to the range
+		final double c1 = (SSIMParameters.K1*range)*(SSIMParameters.K1*range);
+		final double c2 = (SSIMParameters.K2*range)*(SSIMParameters.K2*range);
+		final boolean greyscale = pChannels==1;
+
+		final int windowsW = (pWidth+pWindowSize-1)/pWindowSize;
+		final int windowsH = (pHeight+pWindowSize-1)/pWindowSize;
+		final double[] ssim = (null==pMap)?new double[windowsW*windowsH]:pMap;
+
+		ComparisonResult result = new ComparisonResult();
+		result.setWidth(pWidth);
+		result.setHeight(pHeight);
+		result.setGreyscale(greyscale);
+		result.setBitDepth(pBitDepth);
+
+		final double[] lumaOne = new double[pWindowSize*pWidth];
+		final double[] lumaTwo = new double[pWindowSize*pWidth];
+		final long[] sse = new long[pChannels];
+
+		double mean = 0;
+		double min = 1;
+		int window = 0;
+		for(int strip=0;strip<windowsH;strip++) {
+			final int startY = strip*pWindowSize;
+			final int rows = Math.min(pWindowSize, pHeight-startY);
+
+			//luma and error statistics for the strip
+			int maxError = 0;
+			long differing = 0;
+			for(int row=0;row<rows;row++) {
+				final int offset = (startY+row)*pWidth*pChannels;
+				for(int x=0;x<pWidth;x++) {
+					final int pixel = offset+x*pChannels;
+					boolean differs = false;
+					for(int channel=0;channel<pChannels;channel++) {
+						final long diff = pOne[pixel+channel]-pTwo[pixel+channel];
+						sse[channel] += diff*diff;
+						maxError = Math.max(maxError, (int)Math.abs(diff));
+						differs |= diff!=0;
+					}
+					if(differs) differing++;
+					if(greyscale) {
+						lumaOne[row*pWidth+x] = pOne[pixel];
+						lumaTwo[row*pWidth+x] = pTwo[pixel];
+					} else {
+						lumaOne[row*pWidth+x] = 0.2126*pOne[pixel]+0.7152*pOne[pixel+1]+0.0722*pOne[pixel+2];
+						lumaTwo[row*pWidth+x] = 0.2126*pTwo[pixel]+0.7152*pTwo[pixel+1]+0.0722*pTwo[pixel+2];
+					}
+				}
+			}
+			result.addErrors(0, 0, 0, maxError, differing);
+			if(!greyscale) {
+				double sseLuma = 0;
+				for(int i=0;i<rows*pWidth;i++) {
+					final double diff = lumaOne[i]-lumaTwo[i];
+					sseLuma += diff*diff;
+				}
+				result.addLumaErrors(sseLuma);
+			}
+
+			for(int windowX=0;windowX<windowsW;windowX++) {
+				final int startX = windowX*pWindowSize;
+				final int columns = Math.min(pWindowSize, pWidth-startX);
+				ssim[window] = windowSSIM(lumaOne, lumaTwo, pWidth, startX, columns, rows, c1, c2);
+				mean += ssim[window];
+				if(ssim[window]<min) {
+					min = ssim[window];
+				}
+				window++;
+			}
+		}
+
+		if(greyscale) {
+			result.addErrors(0, 0, sse[0], 0, 0);
+		} else {
+			result.addErrors(sse[0], sse[1], sse[2], 0, 0);
+		}
+
+		result.setSsimMean(mean/(windowsW*windowsH));
+		result.setSsimMin(min);
+		result.setSsimVariance(new Variance().evaluate(ssim));
+
+		return result;
+	}
+
+	/**
+	 * Calculate the SSIM for one window of a strip
+	 * @param pOne luma for the strip of the first image
+	 * @param pTwo luma for the strip of the second image
+	 * @param pWidth width of the strip
+	 * @param pStartX first column of the window
+	 * @param pColumns width of the window
+	 * @param pRows height of the window
+	 * @param pC1 luminance stabilising constant
+	 * @param pC2 contrast stabilising constant
+	 * @return SSIM for the window
+	 */
+	private static double windowSSIM(final double[] pOne, final double[] pTwo, final int pWidth, final int pStartX, final int pColumns,
+										final int pRows, final double pC1, final double pC2) {
+		final int n = pColumns*pRows;
+		double ux = 0, uy = 0;
+		for(int row=0;row<pRows;row++) {
+			for(int x=pStartX;x<pStartX+pColumns;x++) {
+				ux += pOne[row*pWidth+x];
+				uy += pTwo[row*pWidth+x];
+			}
+		}
+		ux /= n;
+		uy /= n;
+
+		double o2x = 0, o2y = 0, oxy = 0;
+		for(int row=0;row<pRows;row++) {
+			for(int x=pStartX;x<pStartX+pColumns;x++) {
+				final double dx = pOne[row*pWidth+x]-ux;
+				final double dy = pTwo[row*pWidth+x]-uy;
+				o2x += dx*dx;
+				o2y += dy*dy;
+				oxy += dx*dy;
+			}
+		}
+		//bias corrected, as the 8-bit block SSIM; a single pixel has zero variance
+		if(n>1) {
+			o2x /= n-1;
+			o2y /= n-1;
+			oxy /= n-1;
+		}
+
+		final double num = (2*ux*uy+pC1)*(2*oxy+pC2);
+		final double den = (ux*ux+uy*uy+pC1)*(o2x+o2y+pC2);
+
+		return num/den;
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A way of decoding image files, so that the decoder used for each format can be chosen
+ * (see ImageDecoders)
+ * @author wpalmer
+ *
+ */
+public interface ImageDecoder {
+
+	/**
+	 * @return short name of the decoder, as used when configuring decoder priorities (e.g. "imageio")
+	 */
+	public String getName();
+
+	/**
+	 * @return whether the decoder can be used at all (e.g. an external executable is installed)
+	 */
+	public boolean isAvailable();
+
+	/**
+	 * @return whether decode(File,int) reduces the resolution while decoding, rather than decoding in full
+	 * and subsampling (ImageDecoders tries these first for reduced resolution decodes)
+	 */
+	public boolean canReduce();
+
+	/**
+	 * @return whether decoded images keep samples deeper than 8 bits (e.g. 16-bit tiffs), rather than
+	 * being converted to 8 bits per sample (see ImageDecoders.getDeepDecoder)
+	 */
+	public boolean keepsBitDepth();
+
+	/**
+	 * Decode an image file
+	 * @param pFile file to decode
+	 * @return decoded image
+	 * @throws IOException if the file cannot be decoded
+	 */
+	public BufferedImage decode(File pFile) throws IOException;
+
+	/**
+	 * Decode an image file at a reduced resolution, e.g. for previews and triage; decoders that cannot
+	 * reduce the resolution while decoding use DecodedImage.subsample on the full image
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor (1 for full resolution, 8 for 1/8 width and height)
+	 * @return decoded image, and the reduction factor it was decoded at
+	 * @throws IOException if the file cannot be decoded
+	 */
+	public DecodedImage decode(File pFile, int pScale) throws IOException;
+
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.Imaging;
+
+import uk.bl.dpt.openjpeg.OpenJPEGLoader;
+
+/**
+ * Chooses which ImageDecoder to use for each image format.  Each format has a list of decoders
+ * in priority order; if a decoder fails (or is not available) the next one is tried.
+ * 
+ * With the FASTEST policy the decode time per pixel of each decoder is measured as images are
+ * decoded, and once every decoder for a format has been measured a few times the fastest one is
+ * tried first.  Only the decoders listed for a format are ever used, so a decoder that gives
+ * different pixel values for a format (e.g. jai-imageio for tiff, see DissimilarV2) can be kept
+ * out of its list.
+ * 
+ * The defaults keep the previous behaviour: commons-imaging first (and only commons-imaging for tiff),
+ * and OpenJPEG first for jp2.
+ * @author wpalmer
+ *
+ */
+public class ImageDecoders {
+
+	/**
+	 * How to choose between the decoders for a format
+	 * @author wpalmer
+	 *
+	 */
+	public enum Policy {
+		/**
+		 * Always try the decoders in the configured order
+		 */
+		PRIORITY,
+		/**
+		 * Try the fastest measured decoder first
+		 */
+		FASTEST;
+	}
+
+	/**
+	 * Format used for files with an extension that has no list of its own
+	 */
+	public final static String DEFAULTFORMAT = "*";
+
+	/**
+	 * Number of times each decoder for a format is measured before the fastest is chosen
+	 */
+	private final static int MEASUREMENTS = 3;
+
+	/**
+	 * Format names for file extensions that share a list of decoders
+	 */
+	private final static Map<String, String> FORMATS = new HashMap<String, String>();
+	static {
+		FORMATS.put("tif", "tiff");
+		FORMATS.put("jpg", "jpeg");
+		FORMATS.put("jpe", "jpeg");
+		FORMATS.put("j2k", "jp2");
+		FORMATS.put("jpf", "jp2");
+		FORMATS.put("jpx", "jp2");
+	}
+
+	/**
+	 * Running average decode time for one decoder and format
+	 */
+	private static class Timing {
+		private int gCount = 0;
+		private double gNanosPerPixel = 0;
+	}
+
+	private final Map<String, ImageDecoder> gDecoders = new LinkedHashMap<String, ImageDecoder>();
+	private final Map<String, List<ImageDecoder>> gPriorities = new HashMap<String, List<ImageDecoder>>();
+	private final Map<String, Timing> gTimings = new HashMap<String, Timing>();
+	private Policy gPolicy = Policy.PRIORITY;
+
+	/**
+	 * Create a new set of decoders with the default priorities
+	 */
+	public ImageDecoders() {
+		final ImageDecoder imaging = new CommonsImagingDecoder();
+		final ImageDecoder imageio = new ImageIODecoder();
+		final ImageDecoder openjpeg = new OpenJPEGDecoder();
+		register(imaging);
+		register(imageio);
+		register(openjpeg);
+		setPriority("tiff", imaging);
+		setPriority("png", imaging, imageio);
+		setPriority("jpeg", imaging, imageio);
+		setPriority("jp2", openjpeg, imageio);
+		setPriority(DEFAULTFORMAT, imaging, imageio);
+	}
+
+	/**
+	 * Make a decoder available for use in priority lists (replacing any with the same name)
+	 * @param pDecoder decoder
+	 */
+	public synchronized void register(final ImageDecoder pDecoder) {
+		gDecoders.put(pDecoder.getName(), pDecoder);
+	}
+
+	/**
+	 * Get a registered decoder
+	 * @param pName name of the decoder
+	 * @return decoder, or null if there is none with that name
+	 */
+	public synchronized ImageDecoder getDecoder(final String pName) {
+		return gDecoders.get(pName);
+	}
+
+	/**
+	 * Set the decoders to use for a format, in priority order
+	 * @param pFormat format (a file extension, e.g. "tif", or DEFAULTFORMAT)
+	 * @param pDecoders decoders to use
+	 */
+	public synchronized void setPriority(final String pFormat, final ImageDecoder... pDecoders) {
+		final List<ImageDecoder> list = new ArrayList<ImageDecoder>();
+		Collections.addAll(list, pDecoders);
+		gPriorities.put(normalise(pFormat), list);
+	}
+
+	/**
+	 * Get the decoders used for a format, in priority order
+	 * @param pFormat format (a file extension, e.g. "tif", or DEFAULTFORMAT)
+	 * @return decoders for the format
+	 */
+	public synchronized List<ImageDecoder> getPriority(final String pFormat) {
+		final List<ImageDecoder> list = gPriorities.get(normalise(pFormat));
+		return new ArrayList<ImageDecoder>((null==list)?gPriorities.get(DEFAULTFORMAT):list);
+	}
+
+	/**
+	 * Get the decoder to use for images of a format that are deeper than 8 bits per sample: the first decoder
+	 * for the format that keeps the bit depth (see ImageDecoder.keepsBitDepth).  Deep images are only
+	 * decoded by a decoder configured for their format, so by default 16-bit tiffs (which are only decoded
+	 * with commons-imaging, see DissimilarV2) have no deep decoder.
+	 * @param pFormat format (a file extension, e.g. "tif", or DEFAULTFORMAT)
+	 * @return decoder, or null if no available decoder for the format keeps the bit depth
+	 */
+	public ImageDecoder getDeepDecoder(final String pFormat) {
+		for(ImageDecoder decoder : getPriority(pFormat)) {
+			if(decoder.keepsBitDepth()&&decoder.isAvailable()) return decoder;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the decoder that decode tries first for a file: the named decoder if it is one of the decoders for
+	 * the file's format, otherwise the first in the order the policy picks.  For a caller that decodes with
+	 * the decoder itself (e.g. a part of an image) but still follows the priorities and the same decoder
+	 * for both images of a pair.
+	 * @param pFile file to decode
+	 * @param pDecoder name of the decoder to prefer, e.g. the one for the first image of a pair (null to follow the policy)
+	 * @return decoder, or null if no decoder for the format is available
+	 */
+	public ImageDecoder getFirstDecoder(final File pFile, final String pDecoder) {
+		ImageDecoder first = null;
+		for(ImageDecoder decoder : order(getFormat(pFile))) {
+			if(!decoder.isAvailable()) continue;
+			if(decoder.getName().equals(pDecoder)) return decoder;
+			if(null==first) first = decoder;
+		}
+		return first;
+	}
+
+	/**
+	 * @param pPolicy how to choose between the decoders for a format
+	 */
+	public synchronized void setPolicy(final Policy pPolicy) {
+		gPolicy = pPolicy;
+	}
+
+	/**
+	 * @return how to choose between the decoders for a format
+	 */
+	public synchronized Policy getPolicy() {
+		return gPolicy;
+	}
+
+	/**
+	 * Configure the policy and priorities from a string, as given on the command line, e.g.
+	 * "fastest", "png=imageio,imaging" or "fastest;jp2=openjpeg;tif=imaging"
+	 * @param pSpec configuration: policy names and format=decoder,decoder entries, separated by ';'
+	 * @throws IllegalArgumentException if the configuration names an unknown policy or decoder
+	 */
+	public synchronized void configure(final String pSpec) {
+		for(String entry:pSpec.split(";")) {
+			entry = entry.trim();
+			if(entry.isEmpty()) continue;
+			final int equals = entry.indexOf('=');
+			if(equals<0) {
+				gPolicy = Policy.valueOf(entry.toUpperCase());
+				continue;
+			}
+			final String[] names = entry.substring(equals+1).split(",");
+			final ImageDecoder[] decoders = new ImageDecoder[names.length];
+			for(int i=0;i<names.length;i++) {
+				decoders[i] = gDecoders.get(names[i].trim());
+				if(null==decoders[i]) {
+					throw new IllegalArgumentException("Unknown decoder: "+names[i].trim());
+				}
+			}
+			setPriority(entry.substring(0, equals).trim(), decoders);
+		}
+	}
+
+	/**
+	 * Get the format of a file, from its extension
+	 * @param pFile file
+	 * @return format name (e.g. "tiff" for .tif and .tiff files)
+	 */
+	public static String getFormat(final File pFile) {
+		final String name = pFile.getName();
+		final int dot = name.lastIndexOf('.');
+		return normalise((dot<0)?"":name.substring(dot+1));
+	}
+
+	/**
+	 * @param pFormat format or file extension
+	 * @return the format name used for the lists
+	 */
+	private static String normalise(final String pFormat) {
+		final String format = pFormat.toLowerCase();
+		return FORMATS.containsKey(format)?FORMATS.get(format):format;
+	}
+
+	/**
+	 * Decode an image file, trying the decoders for its format in turn until one succeeds
+	 * @param pFile file to decode
+	 * @return decoded image
+	 * @throws IOException if no decoder can decode the file (the last decoder's error)
+	 */
+	public BufferedImage decode(final File pFile) throws IOException {
+		return decode(pFile, 1).getImage();
+	}
+
+	/**
+	 * Decode an image file at a reduced resolution, trying the decoders for its format in turn until one succeeds
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor (1 for full resolution, 8 for 1/8 width and height)
+	 * @return decoded image, and the reduction factor it was decoded at
+	 * @throws IOException if no decoder can decode the file (the last decoder's error)
+	 */
+	public DecodedImage decode(final File pFile, final int pScale) throws IOException {
+		return decode(pFile, pScale, null);
+	}
+
+	/**
+	 * Decode an image file at a reduced resolution, trying a particular decoder first.  Pass the decoder
+	 * of the first image of a pair (DecodedImage.getDecoder) when decoding the second, so that both images
+	 * are decoded by the same library whatever order the policy would pick (decoders can give different
+	 * pixels, e.g. for tiff, which would show up as differences between the images).
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor (1 for full resolution, 8 for 1/8 width and height)
+	 * @param pDecoder name of the decoder to try first (null to follow the policy)
+	 * @return decoded image, the reduction factor it was decoded at and the decoder used
+	 * @throws IOException if no decoder can decode the file (the last decoder's error)
+	 */
+	public DecodedImage decode(final File pFile, final int pScale, final String pDecoder) throws IOException {
+		return decode(pFile, pScale, pDecoder, null);
+	}
+
+	/**
+	 * Decode an image file at a reduced resolution with the decoders other than one that has already
+	 * failed to decode it (e.g. an asynchronous decode), so the file is not decoded twice by that decoder
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor (1 for full resolution, 8 for 1/8 width and height)
+	 * @param pFailed name of the decoder to skip
+	 * @return decoded image, the reduction factor it was decoded at and the decoder used
+	 * @throws IOException if no other decoder can decode the file (the last decoder's error)
+	 */
+	public DecodedImage decodeWithout(final File pFile, final int pScale, final String pFailed) throws IOException {
+		return decode(pFile, pScale, null, pFailed);
+	}
+
+	/**
+	 * Decode an image file, trying the decoders for its format in turn until one succeeds.  A cancelled
+	 * decode (InterruptedIOException) is not passed on to the next decoder.
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor
+	 * @param pDecoder name of the decoder to try first (null to follow the policy)
+	 * @param pSkip name of a decoder not to try (null to try them all)
+	 * @return decoded image, the reduction factor it was decoded at and the decoder used
+	 * @throws IOException if no decoder can decode the file (the last decoder's error)
+	 */
+	private DecodedImage decode(final File pFile, final int pScale, final String pDecoder, final String pSkip) throws IOException {
+		final String format = getFormat(pFile);
+		final List<ImageDecoder> order = order(format);
+		if(pScale>1) {
+			//decoders that reduce while decoding first, as subsampling a full decode saves nothing
+			//(a stable sort, so the policy order is kept otherwise)
+			Collections.sort(order, new Comparator<ImageDecoder>() {
+				@Override
+				public int compare(ImageDecoder pOne, ImageDecoder pTwo) {
+					return Boolean.compare(pTwo.canReduce(), pOne.canReduce());
+				}
+			});
+		}
+		for(int i=0;i<order.size();i++) {
+			if(order.get(i).getName().equals(pDecoder)) {
+				order.add(0, order.remove(i));
+				break;
+			}
+		}
+		IOException failure = null;
+		for(ImageDecoder decoder:order) {
+			if(!decoder.isAvailable()||decoder.getName().equals(pSkip)) continue;
+			try {
+				if(pScale>1) {
+					//reduced decodes are not timed, as they are not comparable with full ones
+					final DecodedImage decoded = decoder.decode(pFile, pScale);
+					return new DecodedImage(decoded.getImage(), decoded.getScale(), decoder.getName());
+				}
+				final long start = System.nanoTime();
+				final BufferedImage image = decoder.decode(pFile);
+				record(format, decoder, System.nanoTime()-start, (long)image.getWidth()*image.getHeight());
+				return new DecodedImage(image, 1, decoder.getName());
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if(null==failure) {
+			failure = new IOException("No decoder available for "+pFile);
+		}
+		throw failure;
+	}
+
+	/**
+	 * Read the width and height of an image file from its header, without decoding it
+	 * @param pFile image file
+	 * @return dimensions, or null if they cannot be read
+	 */
+	public static Dimension getDimensions(final File pFile) {
+		if("jp2".equals(getFormat(pFile))) {
+			return OpenJPEGLoader.getDimensions(pFile);
+		}
+		try {
+			return Imaging.getImageSize(pFile);
+		} catch (ImageReadException | IOException | RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the reduction factor for displaying an image file at no more than a given size, so that
+	 * previews can use reduced resolution decodes
+	 * @param pFile image file
+	 * @param pMaxSize largest width or height wanted
+	 * @return a power of two reduction factor (1 if the image is small enough or its size is unknown)
+	 */
+	public static int getPreviewScale(final File pFile, final int pMaxSize) {
+		final Dimension size = getDimensions(pFile);
+		if(null==size) return 1;
+		int scale = 1;
+		while(Math.max(size.width, size.height)>(long)pMaxSize*scale) {
+			scale *= 2;
+		}
+		return scale;
+	}
+
+	/**
+	 * Get the average decode time of a decoder for a format
+	 * @param pFormat format (a file extension, e.g. "tif")
+	 * @param pDecoder name of the decoder
+	 * @return average nanoseconds per pixel, or NaN if the decoder has not been used for the format
+	 */
+	public synchronized double getNanosPerPixel(final String pFormat, final String pDecoder) {
+		final Timing timing = gTimings.get(normalise(pFormat)+"/"+pDecoder);
+		return (null==timing)?Double.NaN:timing.gNanosPerPixel;
+	}
+
+	/**
+	 * Get the order to try the decoders for a format in, according to the policy
+	 * @param pFormat format name
+	 * @return decoders in the order to try them
+	 */
+	private synchronized List<ImageDecoder> order(final String pFormat) {
+		final List<ImageDecoder> decoders = getPriority(pFormat);
+		if(Policy.FASTEST!=gPolicy||decoders.size()<2) return decoders;
+		for(int i=0;i<decoders.size();i++) {
+			final Timing timing = gTimings.get(pFormat+"/"+decoders.get(i).getName());
+			if(null==timing||timing.gCount<MEASUREMENTS) {
+				//still measuring: try this one first, then the rest in priority order
+				decoders.add(0, decoders.remove(i));
+				return decoders;
+			}
+		}
+		//a stable sort, so equally fast decoders stay in priority order
+		Collections.sort(decoders, new Comparator<ImageDecoder>() {
+			@Override
+			public int compare(ImageDecoder pOne, ImageDecoder pTwo) {
+				return Double.compare(gTimings.get(pFormat+"/"+pOne.getName()).gNanosPerPixel, 
+										gTimings.get(pFormat+"/"+pTwo.getName()).gNanosPerPixel);
+			}
+		});
+		return decoders;
+	}
+
+	/**
+	 * Record the time taken for a successful decode
+	 * @param pFormat format name
+	 * @param pDecoder decoder used
+	 * @param pNanos time taken
+	 * @param pPixels number of pixels decoded
+	 */
+	private synchronized void record(final String pFormat, final ImageDecoder pDecoder, final long pNanos, final long pPixels) {
+		final String key = pFormat+"/"+pDecoder.getName();
+		Timing timing = gTimings.get(key);
+		if(null==timing) {
+			timing = new Timing();
+			gTimings.put(key, timing);
+		}
+		timing.gCount++;
+		timing.gNanosPerPixel += ((double)pNanos/Math.max(1, pPixels)-timing.gNanosPerPixel)/timing.gCount;
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * ImageDecoder using javax.imageio, including any plugins on the classpath (e.g. jai-imageio).  Reduced
+ * resolution decodes use ImageReadParam.setSourceSubsampling, so the reader only converts and stores the
+ * pixels that are kept (the jpeg reader still decodes every block in full; it has no DC-only mode).
+ * NOTE: see DissimilarV2 - jai-imageio tiff decodes may differ from commons-imaging decodes
+ * @author wpalmer
+ *
+ */
+public class ImageIODecoder implements ImageDecoder {
+
+	/**
+	 * Name of this decoder
+	 */
+	public final static String NAME = "imageio";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public boolean canReduce() {
+		return true;
+	}
+
+	@Override
+	public boolean keepsBitDepth() {
+		return true;
+	}
+
+	@Override
+	public BufferedImage decode(File pFile) throws IOException {
+		final BufferedImage image = ImageIO.read(pFile);
+		if(null==image) throw new IOException("No ImageIO reader for "+pFile);
+		return image;
+	}
+
+	@Override
+	public DecodedImage decode(File pFile, int pScale) throws IOException {
+		if(pScale<=1) return new DecodedImage(decode(pFile), 1);
+		final ImageInputStream input = ImageIO.createImageInputStream(pFile);
+		if(null==input) throw new IOException("Cannot open "+pFile);
+		try {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if(!readers.hasNext()) throw new IOException("No ImageIO reader for "+pFile);
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				//the reader skips the pixels that are not wanted, so less is converted and stored
+				final ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(pScale, pScale, 0, 0);
+				return new DecodedImage(reader.read(0, param), pScale);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * PixelSource that decodes a band of rows at a time using a javax.imageio reader and a source
+ * region, so the whole image is never decoded into memory at once.  How cheap each band is to
+ * decode depends on the reader and the file layout (e.g. striped or tiled tiffs are cheap).
+ * NOTE: see DissimilarV2 - jai-imageio tiff decodes may differ from commons-imaging decodes
+ * @author wpalmer
+ *
+ */
+public class ImageReaderPixelSource implements PixelSource {
+
+	private ImageInputStream gInput = null;
+	private ImageReader gReader = null;
+	private ImageReadParam gParam = null;
+	private final int gWidth;
+	private final int gHeight;
+	private final boolean gGreyscale;
+
+	/**
+	 * Create a new ImageReaderPixelSource
+	 * @param pFile file to read
+	 * @throws IOException if there is no reader for the file or it cannot be opened
+	 */
+	public ImageReaderPixelSource(File pFile) throws IOException {
+		gInput = ImageIO.createImageInputStream(pFile);
+		if(null==gInput) {
+			throw new IOException("Cannot open "+pFile.getAbsolutePath());
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(gInput);
+		if(!readers.hasNext()) {
+			gInput.close();
+			throw new IOException("No reader for "+pFile.getAbsolutePath());
+		}
+		gReader = readers.next();
+		gReader.setInput(gInput, false, true);
+		gParam = gReader.getDefaultReadParam();
+		gWidth = gReader.getWidth(0);
+		gHeight = gReader.getHeight(0);
+		final ImageTypeSpecifier type = gReader.getRawImageType(0);
+		final int bufferedType = (null==type)?BufferedImage.TYPE_CUSTOM:type.getBufferedImageType();
+		gGreyscale = (bufferedType==BufferedImage.TYPE_BYTE_GRAY||bufferedType==BufferedImage.TYPE_USHORT_GRAY);
+	}
+
+	/**
+	 * Check whether a file can be read a band at a time cheaply by a javax.imageio reader, i.e. the
+	 * reader says random access is easy (e.g. uncompressed) or the image is tiled.  Other readers
+	 * (png, jpeg) have to decode from the start of the image for every band.
+	 * @param pFile file to check
+	 * @return true if the file can be streamed
+	 */
+	public static boolean canStream(File pFile) {
+		try {
+			ImageInputStream input = ImageIO.createImageInputStream(pFile);
+			if(null==input) return false;
+			try {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+				if(!readers.hasNext()) return false;
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(input, false, true);
+					return reader.isRandomAccessEasy(0)||reader.isImageTiled(0);
+				} finally {
+					reader.dispose();
+				}
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return gWidth;
+	}
+
+	@Override
+	public int getHeight() {
+		return gHeight;
+	}
+
+	@Override
+	public boolean isGreyscale() {
+		return gGreyscale;
+	}
+
+	@Override
+	public void getRows(int pY, int pRows, int[] pPixels) throws IOException {
+		//pixels are packed 8 bits per component, so what about 16-bit images? (see getBand)
+		RasterPixels.getRows(getBand(pY, pRows), 0, pRows, pPixels);
+	}
+
+	@Override
+	public BufferedImage getBand(int pY, int pRows) throws IOException {
+		//some readers (e.g. bmp) do not re-seek to the image data on a second read, so reset the input
+		gInput.seek(0);
+		gReader.setInput(gInput, false, true);
+		gParam.setSourceRegion(new Rectangle(0, pY, gWidth, pRows));
+		return gReader.read(0, gParam);
+	}
+
+	/**
+	 * Read a rectangular region of the image as packed integer (ARGB) pixel values; only the region 
+	 * is decoded, as far as the reader allows
+	 * @param pRegion region to read (must be within the image)
+	 * @param pPixels array to hold the pixels (at least width*height of the region, row by row from index 0)
+	 * @throws IOException if the region cannot be read
+	 */
+	public void getRegion(Rectangle pRegion, int[] pPixels) throws IOException {
+		//readers that discard the stream as they go (e.g. png) can only read once, without a reset
+		if(0==gInput.getFlushedPosition()) {
+			gInput.seek(0);
+			gReader.setInput(gInput, false, true);
+		}
+		gParam.setSourceRegion(pRegion);
+		final BufferedImage region = gReader.read(0, gParam);
+		RasterPixels.getRows(region, 0, pRegion.height, pPixels);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(null!=gReader) {
+			gReader.dispose();
+			gReader = null;
+		}
+		if(null!=gInput) {
+			gInput.close();
+			gInput = null;
+		}
+	}
+
+}
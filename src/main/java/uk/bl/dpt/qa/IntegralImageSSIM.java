@@ -0,0 +1,458 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Block SSIM engine using summed-area tables (integral images) of x, y, x^2, y^2 and xy so that
+ * the statistics for each window are found in constant time, with no per-window allocations.
+ *
+ * The tables are built for one strip of windows at a time (windowSize rows) and re-used for the
+ * next strip, so memory use depends on the image width, not the image size.  All sums are exact
+ * long integers of the fixed-point luma (luma multiplied by LumaPlane.LUMASCALE, which makes the
+ * luma weights integers).  Table entries may wrap around, but as long arithmetic is modular the
+ * window sums taken from them are still exact.
+ * @author wpalmer
+ */
+public class IntegralImageSSIM {
+
+	private final int gWidth;
+	private final int gWindowSize;
+	private final int gStride;
+	private final SSIMParameters gParameters;
+	private final double gC1;
+	private final double gC2;
+
+	private final long[] gSumX;
+	private final long[] gSumY;
+	private final long[] gSumXX;
+	private final long[] gSumYY;
+	private final long[] gSumXY;
+
+	//unpacked channels and fixed-point luma for the current row
+	private final int[] gRedOne;
+	private final int[] gGreenOne;
+	private final int[] gBlueOne;
+	private final int[] gRedTwo;
+	private final int[] gGreenTwo;
+	private final int[] gBlueTwo;
+	private final int[] gLumaOne;
+	private final int[] gLumaTwo;
+
+	/**
+	 * Create a new SSIM engine for images of the given width
+	 * @param pWidth width of the images to be compared
+	 * @param pWindowSize SSIM window size
+	 */
+	public IntegralImageSSIM(final int pWidth, final int pWindowSize) {
+		this(pWidth, SSIMParameters.block(pWindowSize));
+	}
+
+	/**
+	 * Create a new SSIM engine for images of the given width
+	 * @param pWidth width of the images to be compared
+	 * @param pParameters SSIM parameters (the weighting must be uniform)
+	 */
+	public IntegralImageSSIM(final int pWidth, final SSIMParameters pParameters) {
+		if(SSIMParameters.Weighting.UNIFORM!=pParameters.getWeighting()) {
+			throw new IllegalArgumentException("summed-area tables need uniform weighting");
+		}
+		gParameters = pParameters;
+		gC1 = pParameters.getC1();
+		gC2 = pParameters.getC2();
+		gWidth = pWidth;
+		gWindowSize = pParameters.getWindowSize();
+		gStride = pWidth+1;
+		final int size = (gWindowSize+1)*gStride;
+		gSumX = new long[size];
+		gSumY = new long[size];
+		gSumXX = new long[size];
+		gSumYY = new long[size];
+		gSumXY = new long[size];
+		gRedOne = new int[pWidth];
+		gGreenOne = new int[pWidth];
+		gBlueOne = new int[pWidth];
+		gRedTwo = new int[pWidth];
+		gGreenTwo = new int[pWidth];
+		gBlueTwo = new int[pWidth];
+		gLumaOne = new int[pWidth];
+		gLumaTwo = new int[pWidth];
+	}
+
+	/**
+	 * @return the width of the images this engine compares
+	 */
+	public int getWidth() {
+		return gWidth;
+	}
+
+	/**
+	 * @return the SSIM parameters this engine uses
+	 */
+	public SSIMParameters getParameters() {
+		return gParameters;
+	}
+
+	/**
+	 * Build the summed-area tables for a strip of rows
+	 * @param pOne pixels for first image
+	 * @param pTwo pixels for second image
+	 * @param pGreyscale if the images are greyscale
+	 * @param pFirstPixel index of the first pixel of the strip in pOne and pTwo
+	 * @param pRows number of rows in the strip
+	 * @param pErrors result to add the error statistics for the strip to (can be null)
+	 * @param pTileRow row of tiles (windows) the strip is, for the error tile maps (if pErrors has them)
+	 */
+	private void buildStrip(final int[] pOne, final int[] pTwo, final boolean pGreyscale, final int pFirstPixel, final int pRows,
+							final ComparisonResult pErrors, final int pTileRow) {
+		//row 0 and column 0 of each table stay zero
+		for(int h=0;h<pRows;h++) {
+			final int offset = pFirstPixel+h*gWidth;
+			//unpack and convert the row with the vectorisable kernels, then do the (serial) prefix sums
+			if(pGreyscale) {
+				//just use one channel for greyscale - rgb should all be the same
+				PixelKernels.unpack(pOne, offset, gWidth, gBlueOne);
+				PixelKernels.unpack(pTwo, offset, gWidth, gBlueTwo);
+				PixelKernels.luma(gBlueOne, gWidth, gLumaOne);
+				PixelKernels.luma(gBlueTwo, gWidth, gLumaTwo);
+			} else {
+				PixelKernels.unpack(pOne, offset, gWidth, gRedOne, gGreenOne, gBlueOne);
+				PixelKernels.unpack(pTwo, offset, gWidth, gRedTwo, gGreenTwo, gBlueTwo);
+				PixelKernels.luma(gRedOne, gGreenOne, gBlueOne, gWidth, gLumaOne);
+				PixelKernels.luma(gRedTwo, gGreenTwo, gBlueTwo, gWidth, gLumaTwo);
+			}
+
+			long x = 0, y = 0, xx = 0, yy = 0, xy = 0;
+			final int above = h*gStride;
+			final int row = above+gStride;
+			for(int w=0;w<gWidth;w++) {
+				final long one = gLumaOne[w];
+				final long two = gLumaTwo[w];
+				x  += one;
+				y  += two;
+				xx += one*one;
+				yy += two*two;
+				xy += one*two;
+				gSumX[row+w+1]  = gSumX[above+w+1]+x;
+				gSumY[row+w+1]  = gSumY[above+w+1]+y;
+				gSumXX[row+w+1] = gSumXX[above+w+1]+xx;
+				gSumYY[row+w+1] = gSumYY[above+w+1]+yy;
+				gSumXY[row+w+1] = gSumXY[above+w+1]+xy;
+			}
+
+			if(null!=pErrors) {
+				final long sseBlue = PixelKernels.sumSquaredError(gBlueOne, gBlueTwo, gWidth);
+				int maxError = PixelKernels.maxAbsoluteError(gBlueOne, gBlueTwo, gWidth);
+				long sseRed = 0, sseGreen = 0;
+				if(!pGreyscale) {
+					sseRed = PixelKernels.sumSquaredError(gRedOne, gRedTwo, gWidth);
+					sseGreen = PixelKernels.sumSquaredError(gGreenOne, gGreenTwo, gWidth);
+					maxError = Math.max(maxError, Math.max(PixelKernels.maxAbsoluteError(gRedOne, gRedTwo, gWidth),
+															PixelKernels.maxAbsoluteError(gGreenOne, gGreenTwo, gWidth)));
+				}
+				final int differing = PixelKernels.countDiffering(pOne, pTwo, offset, gWidth, pGreyscale?0xFF:0xFFFFFF);
+				pErrors.addErrors(sseRed, sseGreen, sseBlue, maxError, differing);
+				if(!pGreyscale) {
+					pErrors.addLumaErrors(PixelKernels.sumSquaredLumaError(gLumaOne, gLumaTwo, gWidth));
+				}
+				if(pErrors.hasTileMaps()) {
+					addTileErrors(pGreyscale, pTileRow, pErrors);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the errors for the current (unpacked) row to the tile maps, while it is still in cache
+	 * @param pGreyscale if the images are greyscale
+	 * @param pTileRow row of tiles the row is in
+	 * @param pErrors result holding the tile maps
+	 */
+	private void addTileErrors(final boolean pGreyscale, final int pTileRow, final ComparisonResult pErrors) {
+		final int windowsW = (gWidth+gWindowSize-1)/gWindowSize;
+		for(int tile=0;tile<windowsW;tile++) {
+			final int start = tile*gWindowSize;
+			final int end = Math.min(gWidth, start+gWindowSize);
+			long sse = 0;
+			int maxError = 0;
+			for(int x=start;x<end;x++) {
+				final int diff = gBlueOne[x]-gBlueTwo[x];
+				sse += diff*diff;
+				maxError = Math.max(maxError, Math.abs(diff));
+			}
+			if(!pGreyscale) {
+				for(int x=start;x<end;x++) {
+					final int red = gRedOne[x]-gRedTwo[x];
+					final int green = gGreenOne[x]-gGreenTwo[x];
+					sse += red*red+green*green;
+					maxError = Math.max(maxError, Math.max(Math.abs(red), Math.abs(green)));
+				}
+			}
+			pErrors.addTileErrors(pTileRow*windowsW+tile, sse, maxError);
+		}
+	}
+
+	/**
+	 * Sum of a rectangle in a table of the current strip
+	 * @param pTable summed-area table
+	 * @param pStartX first column of the window
+	 * @param pEndX last column of the window (exclusive)
+	 * @param pRows number of rows in the strip
+	 * @return sum of the window
+	 */
+	private long sum(final long[] pTable, final int pStartX, final int pEndX, final int pRows) {
+		final int bottom = pRows*gStride;
+		return pTable[bottom+pEndX]-pTable[bottom+pStartX]-pTable[pEndX]+pTable[pStartX];
+	}
+
+	/**
+	 * Calculate the SSIM for a window in the current strip
+	 * @param pStartX first column of the window
+	 * @param pWindowWidth width of the window
+	 * @param pRows height of the window
+	 * @param pScale luma scale factor
+	 * @return SSIM for the window
+	 */
+	private double windowSSIM(final int pStartX, final int pWindowWidth, final int pRows, final double pScale) {
+
+		final int endX = pStartX+pWindowWidth;
+		final long n = pWindowWidth*pRows;
+
+		final long sx = sum(gSumX, pStartX, endX, pRows);
+		final long sy = sum(gSumY, pStartX, endX, pRows);
+		final long sxx = sum(gSumXX, pStartX, endX, pRows);
+		final long syy = sum(gSumYY, pStartX, endX, pRows);
+		final long sxy = sum(gSumXY, pStartX, endX, pRows);
+
+		final double ux = sx/(n*pScale);
+		final double uy = sy/(n*pScale);
+
+		double o2x = 0;
+		double o2y = 0;
+		double oxy = 0;
+		//bias corrected (as commons-math Variance/Covariance); a single pixel has zero variance
+		if(n>1) {
+			final double den = n*(n-1)*pScale*pScale;
+			o2x = (n*sxx-sx*sx)/den;
+			o2y = (n*syy-sy*sy)/den;
+			oxy = (n*sxy-sx*sy)/den;
+		}
+
+		final double num = (2*ux*uy+gC1)*(2*oxy+gC2);
+		final double den = (ux*ux+uy*uy+gC1)*(o2x+o2y+gC2);
+
+		return num/den;
+	}
+
+	/**
+	 * Calculate the SSIM for every window of the images
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pSSIM array to hold the SSIM value for each window (windowsH*windowsW, row by row)
+	 */
+	public void calcSSIM(final int[] pOne, final int[] pTwo, final int pHeight, final boolean pGreyscale, final double[] pSSIM) {
+		calcSSIM(pOne, pTwo, pHeight, pGreyscale, pSSIM, 0, (pHeight+gWindowSize-1)/gWindowSize, null);
+	}
+
+	/**
+	 * Calculate the SSIM for a band of window rows, optionally calculating the error statistics
+	 * for the pixels in the same pass
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pSSIM array to hold the SSIM value for each window (windowsH*windowsW, row by row)
+	 * @param pFirstRow first row of windows to calculate
+	 * @param pEndRow last row of windows to calculate (exclusive)
+	 * @param pErrors result to add the error statistics (and tile maps, if it has them) to (can be null)
+	 */
+	public void calcSSIM(final int[] pOne, final int[] pTwo, final int pHeight, final boolean pGreyscale, final double[] pSSIM,
+							final int pFirstRow, final int pEndRow, final ComparisonResult pErrors) {
+
+		final double scale = LumaPlane.LUMASCALE;
+		final int windowsW = (gWidth+gWindowSize-1)/gWindowSize;
+
+		int window = pFirstRow*windowsW;
+		for(int height=pFirstRow;height<pEndRow;height++) {
+			final int startY = height*gWindowSize;
+			final int rows = Math.min(gWindowSize, pHeight-startY);
+			buildStrip(pOne, pTwo, pGreyscale, startY*gWidth, rows, pErrors, height);
+			for(int width=0;width<windowsW;width++) {
+				final int startX = width*gWindowSize;
+				pSSIM[window++] = windowSSIM(startX, Math.min(gWindowSize, gWidth-startX), rows, scale);
+			}
+		}
+	}
+
+	/**
+	 * Calculate the SSIM for every window position of the images (using the stride from the parameters),
+	 * adding each window to a result as it goes, so no SSIM map is stored.  With a stride smaller than the
+	 * window size the tables for each strip are rebuilt, so the cost grows with windowSize/stride.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pResult result to hold the SSIM mean, minimum and variance (reset first)
+	 */
+	public void calcSSIM(final int[] pOne, final int[] pTwo, final int pHeight, final boolean pGreyscale, final SSIMResult pResult) {
+
+		pResult.reset();
+
+		final double scale = LumaPlane.LUMASCALE;
+		final int stride = gParameters.getStride();
+		final int windowsW = gParameters.windows(gWidth);
+		final int windowsH = gParameters.windows(pHeight);
+
+		for(int height=0;height<windowsH;height++) {
+			final int startY = height*stride;
+			final int rows = Math.min(gWindowSize, pHeight-startY);
+			buildStrip(pOne, pTwo, pGreyscale, startY*gWidth, rows, null, height);
+			for(int width=0;width<windowsW;width++) {
+				final int startX = width*stride;
+				pResult.add(windowSSIM(startX, Math.min(gWindowSize, gWidth-startX), rows, scale));
+			}
+		}
+	}
+
+	/**
+	 * Calculate the SSIM for one row of windows from a band of pixels (for streaming, where only
+	 * the current band of each image is in memory)
+	 * @param pOne pixels for the band of the first image (row by row, starting at index 0)
+	 * @param pTwo pixels for the band of the second image (row by row, starting at index 0)
+	 * @param pRows number of rows in the band (at most the window size)
+	 * @param pGreyscale if the images are greyscale
+	 * @param pSSIM array to hold the SSIM value for each window in the row (windowsW)
+	 * @param pErrors result to add the error statistics to (can be null; must not have tile maps)
+	 */
+	public void calcBand(final int[] pOne, final int[] pTwo, final int pRows, final boolean pGreyscale, final double[] pSSIM,
+							final ComparisonResult pErrors) {
+		calcStrip(pOne, pTwo, pGreyscale, 0, pRows, pSSIM, pErrors, 0);
+	}
+
+	/**
+	 * Calculate the SSIM for one row of windows of the images into an array for just that row (e.g. for
+	 * sampling rows, where a map of every window is not wanted)
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @param pRow row of windows to calculate
+	 * @param pSSIM array to hold the SSIM value for each window in the row (windowsW)
+	 * @param pErrors result to add the error statistics (and tile maps, if it has them) to (can be null)
+	 */
+	public void calcRow(final int[] pOne, final int[] pTwo, final int pHeight, final boolean pGreyscale, final int pRow, 
+							final double[] pSSIM, final ComparisonResult pErrors) {
+		final int startY = pRow*gWindowSize;
+		calcStrip(pOne, pTwo, pGreyscale, startY*gWidth, Math.min(gWindowSize, pHeight-startY), pSSIM, pErrors, pRow);
+	}
+
+	/**
+	 * Calculate the SSIM for one row of windows
+	 * @param pOne pixels for first image
+	 * @param pTwo pixels for second image
+	 * @param pGreyscale if the images are greyscale
+	 * @param pFirstPixel index of the first pixel of the row of windows in pOne and pTwo
+	 * @param pRows number of rows of pixels in the row of windows
+	 * @param pSSIM array to hold the SSIM value for each window in the row (windowsW)
+	 * @param pErrors result to add the error statistics to (can be null)
+	 * @param pTileRow row of tiles (windows) it is, for the error tile maps (if pErrors has them)
+	 */
+	private void calcStrip(final int[] pOne, final int[] pTwo, final boolean pGreyscale, final int pFirstPixel, final int pRows, 
+							final double[] pSSIM, final ComparisonResult pErrors, final int pTileRow) {
+
+		final double scale = LumaPlane.LUMASCALE;
+		final int windowsW = (gWidth+gWindowSize-1)/gWindowSize;
+
+		buildStrip(pOne, pTwo, pGreyscale, pFirstPixel, pRows, pErrors, pTileRow);
+		for(int width=0;width<windowsW;width++) {
+			final int startX = width*gWindowSize;
+			pSSIM[width] = windowSSIM(startX, Math.min(gWindowSize, gWidth-startX), pRows, scale);
+		}
+	}
+
+	/**
+	 * Calculate the SSIM for every window of the images, splitting the window rows into bands that
+	 * are processed by an executor.  Each window value is independent of the banding, so the result
+	 * is identical whatever the number of bands or threads.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pWindowSize SSIM window size
+	 * @param pGreyscale if the images are greyscale
+	 * @param pSSIM array to hold the SSIM value for each window (windowsH*windowsW, row by row)
+	 * @param pExecutor executor to run the bands on
+	 * @param pBands number of bands to split the window rows into
+	 * @param pErrors result to add the error statistics to (can be null)
+	 * @throws InterruptedException if interrupted while waiting for the bands to finish (the bands that have
+	 * not finished are cancelled, and stop at the next row of windows if their threads are interrupted)
+	 * @throws ExecutionException if a band fails
+	 */
+	public static void calcSSIM(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final int pWindowSize,
+								final boolean pGreyscale, final double[] pSSIM, final ExecutorService pExecutor, final int pBands,
+								final ComparisonResult pErrors) throws InterruptedException, ExecutionException {
+
+		final int windowsH = (pHeight+pWindowSize-1)/pWindowSize;
+		final int bands = Math.max(1, Math.min(pBands, windowsH));
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bands);
+		final ComparisonResult[] partials = new ComparisonResult[bands];
+		for(int band=0;band<bands;band++) {
+			final int firstRow = (int)((long)windowsH*band/bands);
+			final int endRow = (int)((long)windowsH*(band+1)/bands);
+			final ComparisonResult partial = (null==pErrors)?null:new ComparisonResult();
+			if(null!=pErrors&&pErrors.hasTileMaps()) {
+				//the bands fill in separate rows of the same maps
+				partial.shareTileMaps(pErrors);
+			}
+			partials[band] = partial;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					//each band has its own tables
+					final IntegralImageSSIM engine = new IntegralImageSSIM(pWidth, pWindowSize);
+					for(int row=firstRow;row<endRow;row++) {
+						if(Thread.currentThread().isInterrupted()) throw new InterruptedException();
+						engine.calcSSIM(pOne, pTwo, pHeight, pGreyscale, pSSIM, row, row+1, partial);
+					}
+					return null;
+				}
+			});
+		}
+
+		for(Future<Void> result:pExecutor.invokeAll(tasks)) {
+			//rethrows any failure from the band
+			result.get();
+		}
+
+		if(null!=pErrors) {
+			//integer sums and max, so the order does not matter, but keep it fixed anyway
+			for(ComparisonResult partial:partials) {
+				pErrors.addErrors(partial);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Checks whether two images decode to exactly the same pixels (e.g. after a supposedly lossless
+ * migration), reading a band of rows at a time so memory use does not depend on the image height.
+ * Rows are compared as they are read and the check stops at the first differing pixel; while the
+ * rows match, they are added to a running digest of the decoded pixels.
+ * 
+ * Images with the same sample layout (bands and bits per sample) are compared on their native samples,
+ * including alpha and all bits of 16-bit samples.  Otherwise images with at most 8 bits per sample are
+ * compared as packed r,g,b (and alpha, if either has it), so e.g. a palette image can match an rgb one.
+ * Deeper images with different layouts cannot be compared exactly, and are refused.
+ * @author wpalmer
+ *
+ */
+public class LosslessVerification {
+
+	/**
+	 * Number of rows read at a time
+	 */
+	public final static int BANDROWS = 16;
+
+	private final static String DIGEST = "SHA-256";
+
+	private LosslessVerification() {}
+
+	/**
+	 * Verify that two images are pixel-identical
+	 * @param pOne first image
+	 * @param pTwo second image
+	 * @return verification result
+	 * @throws IOException if there is an error reading the images, or their samples cannot be compared
+	 * exactly (more than 8 bits per sample, with different layouts)
+	 */
+	public static VerificationResult verify(final PixelSource pOne, final PixelSource pTwo) throws IOException {
+
+		final int width = pOne.getWidth();
+		final int height = pOne.getHeight();
+		if(width!=pTwo.getWidth()||height!=pTwo.getHeight()) {
+			return new VerificationResult(false, -1, -1, null);
+		}
+
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			//every JRE has SHA-256
+			throw new IOException(e);
+		}
+
+		//the layout is decided from the first band, as every band of an image has the same one
+		int bands = 0;
+		int bytesPerSample = 0;
+		boolean alpha = false;
+		boolean greyscale = false;
+		int[] bandOne = null;
+		int[] bandTwo = null;
+		byte[] bytes = null;
+
+		for(int y=0;y<height;y+=BANDROWS) {
+			final int rows = Math.min(BANDROWS, height-y);
+			final int length = rows*width;
+			final BufferedImage imageOne = pOne.getBand(y, rows);
+			final BufferedImage imageTwo = pTwo.getBand(y, rows);
+			if(null==bandOne) {
+				if(sameLayout(imageOne, imageTwo)) {
+					bands = imageOne.getRaster().getNumBands();
+					bytesPerSample = (maxSampleSize(imageOne)+7)/8;
+				} else if(maxSampleSize(imageOne)<=8&&maxSampleSize(imageTwo)<=8) {
+					alpha = imageOne.getColorModel().hasAlpha()||imageTwo.getColorModel().hasAlpha();
+					//grey pixels are repeated in r, g and b, so the comparison is the same either way
+					greyscale = !alpha&&pOne.isGreyscale()&&pTwo.isGreyscale();
+					bytesPerSample = 1;
+				} else {
+					throw new IOException("Cannot verify images with different sample layouts and more than 8 bits per sample");
+				}
+				final int samples = BANDROWS*width*Math.max(1, bands);
+				bandOne = new int[samples];
+				bandTwo = new int[samples];
+				bytes = new byte[BANDROWS*width*(bands>0?bands:greyscale?1:alpha?4:3)*bytesPerSample];
+			}
+			
+			if(bands>0) {
+				//native samples, pixel by pixel
+				imageOne.getRaster().getPixels(0, 0, width, rows, bandOne);
+				imageTwo.getRaster().getPixels(0, 0, width, rows, bandTwo);
+				final int first = PixelKernels.firstDiffering(bandOne, bandTwo, 0, length*bands, 0xFFFFFFFF);
+				if(first>=0) {
+					final int pixel = first/bands;
+					return new VerificationResult(true, pixel%width, y+pixel/width, null);
+				}
+				int index = 0;
+				for(int i=0;i<length*bands;i++) {
+					if(2==bytesPerSample) {
+						bytes[index++] = (byte)(bandOne[i] >> 8);
+					}
+					bytes[index++] = (byte)bandOne[i];
+				}
+				digest.update(bytes, 0, index);
+				continue;
+			}
+			
+			RasterPixels.getRows(imageOne, 0, rows, bandOne);
+			RasterPixels.getRows(imageTwo, 0, rows, bandTwo);
+			if(alpha) {
+				//the alpha byte is undefined for images without alpha (see RasterPixels), so make it opaque
+				if(!imageOne.getColorModel().hasAlpha()) setOpaque(bandOne, length);
+				if(!imageTwo.getColorModel().hasAlpha()) setOpaque(bandTwo, length);
+			}
+			final int first = PixelKernels.firstDiffering(bandOne, bandTwo, 0, length, alpha?0xFFFFFFFF:0xFFFFFF);
+			if(first>=0) {
+				return new VerificationResult(true, first%width, y+first/width, null);
+			}
+			if(greyscale) {
+				for(int i=0;i<length;i++) {
+					bytes[i] = (byte)bandOne[i];
+				}
+				digest.update(bytes, 0, length);
+			} else {
+				final int stride = alpha?4:3;
+				for(int i=0;i<length;i++) {
+					bytes[i*stride] = (byte)(bandOne[i] >> 16);
+					bytes[i*stride+1] = (byte)(bandOne[i] >> 8);
+					bytes[i*stride+2] = (byte)bandOne[i];
+					if(alpha) {
+						bytes[i*stride+3] = (byte)(bandOne[i] >>> 24);
+					}
+				}
+				digest.update(bytes, 0, length*stride);
+			}
+		}
+
+		final StringBuilder hex = new StringBuilder();
+		for(byte b:digest.digest()) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+		return new VerificationResult(true, -1, -1, hex.toString());
+	}
+
+	/**
+	 * Check whether two images have the same samples per pixel and bits per sample, so their native 
+	 * samples can be compared directly (palette images never can, as their samples are indices)
+	 * @param pOne first image
+	 * @param pTwo second image
+	 * @return true if the native samples are comparable
+	 */
+	private static boolean sameLayout(final BufferedImage pOne, final BufferedImage pTwo) {
+		final ColorModel one = pOne.getColorModel();
+		final ColorModel two = pTwo.getColorModel();
+		if(one instanceof IndexColorModel||two instanceof IndexColorModel) return false;
+		if(one.hasAlpha()!=two.hasAlpha()||one.isAlphaPremultiplied()!=two.isAlphaPremultiplied()) return false;
+		if(one.getColorSpace().getType()!=two.getColorSpace().getType()) return false;
+		return Arrays.equals(pOne.getSampleModel().getSampleSize(), pTwo.getSampleModel().getSampleSize())&&
+				maxSampleSize(pOne)<=16;
+	}
+
+	/**
+	 * @param pImage image
+	 * @return largest number of bits in any of the image's samples
+	 */
+	private static int maxSampleSize(final BufferedImage pImage) {
+		final SampleModel model = pImage.getSampleModel();
+		int max = 0;
+		for(int size:model.getSampleSize()) {
+			max = Math.max(max, size);
+		}
+		return max;
+	}
+
+	/**
+	 * Set the alpha byte of packed pixels to opaque
+	 * @param pPixels packed pixels
+	 * @param pLength number of pixels
+	 */
+	private static void setOpaque(final int[] pPixels, final int pLength) {
+		for(int i=0;i<pLength;i++) {
+			pPixels[i] |= 0xFF000000;
+		}
+	}
+
+}
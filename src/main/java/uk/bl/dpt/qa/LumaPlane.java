@@ -0,0 +1,383 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A plane of luma values for an image, stored at a selectable precision; see http://en.wikipedia.org/wiki/Luma_%28video%29
+ *
+ * Luma is calculated (by PixelKernels.luma) with the Rec. 709 weights multiplied by LUMASCALE, so the
+ * fixed-point luma of an 8-bit RGB pixel is an exact integer.  The error bounds below
+ * are the maximum absolute difference from 0.2126*r+0.7152*g+0.0722*b calculated in double precision.
+ *
+ * A plane can be held off the Java heap, in direct buffers of whole rows, so that planes of more than
+ * 2^31 values can be held with a small heap (see OffHeapPixels).
+ * @author wpalmer
+ */
+public class LumaPlane {
+
+	/**
+	 * Storage precision for luma values
+	 * @author wpalmer
+	 *
+	 */
+	public enum Precision {
+		/**
+		 * 8 bytes per pixel; the reference precision
+		 */
+		DOUBLE,
+		/**
+		 * 4 bytes per pixel; error at most 2^-17 (half a float ulp below 256, about 7.6e-6)
+		 */
+		FLOAT,
+		/**
+		 * 4 bytes per pixel; luma*LUMASCALE as an int, which is exact (no error beyond the
+		 * rounding of the double reference itself)
+		 */
+		EXACT,
+		/**
+		 * 2 bytes per pixel; 8.8 fixed point (luma*256, rounded) in a char, error at most 1/512
+		 * (about 0.002, below a hundredth of one 8-bit level).  Exact for greyscale images.
+		 */
+		FIXED16;
+	}
+
+	/**
+	 * Scale factor used for fixed-point luma (0.2126, 0.7152 and 0.0722 become integers)
+	 */
+	public final static int LUMASCALE = 10000;
+
+	private final Precision gPrecision;
+	private final int gWidth;
+	private final int gHeight;
+
+	//only the array for the precision in use is allocated
+	private double[] gDouble = null;
+	private float[] gFloat = null;
+	private int[] gInt = null;
+	private char[] gChar = null;
+
+	//off-heap buffers of gChunkRows rows each, of the type for the precision (null if on the heap)
+	private Buffer[] gChunks = null;
+	private int gChunkRows = 0;
+
+	//largest array most VMs will allocate
+	private final static long MAXARRAY = Integer.MAX_VALUE-8;
+
+	//scratch rows for setRow, allocated on first use
+	private int[] gRed = null;
+	private int[] gGreen = null;
+	private int[] gBlue = null;
+	private int[] gLuma = null;
+
+	/**
+	 * Create a new (empty) luma plane
+	 * @param pWidth width of the plane
+	 * @param pHeight height of the plane
+	 * @param pPrecision precision to store luma values at
+	 */
+	public LumaPlane(final int pWidth, final int pHeight, final Precision pPrecision) {
+		this(pWidth, pHeight, pPrecision, false);
+	}
+
+	/**
+	 * Create a new (empty) luma plane.  A plane with too many values for one array is held off the Java
+	 * heap whatever pOffHeap is (see isOffHeap).
+	 * @param pWidth width of the plane
+	 * @param pHeight height of the plane
+	 * @param pPrecision precision to store luma values at
+	 * @param pOffHeap whether to hold the values in direct buffers, off the Java heap
+	 */
+	public LumaPlane(final int pWidth, final int pHeight, final Precision pPrecision, final boolean pOffHeap) {
+		gWidth = pWidth;
+		gHeight = pHeight;
+		gPrecision = pPrecision;
+		final long size = (long)pWidth*pHeight;
+		if(pOffHeap||size>MAXARRAY) {
+			final int bytes = bytesPerValue(pPrecision);
+			if(pWidth<=0||pHeight<=0||pWidth>OffHeapPixels.MAXCHUNKBYTES/bytes) {
+				throw new IllegalArgumentException("Cannot hold a plane of "+pWidth+"x"+pHeight);
+			}
+			gChunkRows = Math.min(pHeight, OffHeapPixels.MAXCHUNKBYTES/(bytes*pWidth));
+			gChunks = new Buffer[(pHeight+gChunkRows-1)/gChunkRows];
+			for(int i=0;i<gChunks.length;i++) {
+				final int rows = Math.min(gChunkRows, pHeight-i*gChunkRows);
+				final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes*rows*pWidth).order(ByteOrder.nativeOrder());
+				switch(pPrecision) {
+				case DOUBLE:  gChunks[i] = buffer.asDoubleBuffer(); break;
+				case FLOAT:   gChunks[i] = buffer.asFloatBuffer(); break;
+				case EXACT:   gChunks[i] = buffer.asIntBuffer(); break;
+				case FIXED16: gChunks[i] = buffer.asCharBuffer(); break;
+				}
+			}
+			return;
+		}
+		if(size<0) {
+			throw new IllegalArgumentException("Cannot hold a plane of "+pWidth+"x"+pHeight);
+		}
+		switch(pPrecision) {
+		case DOUBLE:  gDouble = new double[(int)size]; break;
+		case FLOAT:   gFloat = new float[(int)size]; break;
+		case EXACT:   gInt = new int[(int)size]; break;
+		case FIXED16: gChar = new char[(int)size]; break;
+		}
+	}
+
+	/**
+	 * Calculate the luma plane for an image
+	 * @param pPixels integer pixel values for the image
+	 * @param pWidth width of the image
+	 * @param pHeight height of the image
+	 * @param pGreyscale if the image is greyscale
+	 * @param pPrecision precision to store luma values at
+	 * @return luma plane
+	 */
+	public static LumaPlane fromPixels(final int[] pPixels, final int pWidth, final int pHeight, final boolean pGreyscale, final Precision pPrecision) {
+		LumaPlane plane = new LumaPlane(pWidth, pHeight, pPrecision);
+		for(int y=0;y<pHeight;y++) {
+			plane.setRow(y, pPixels, y*pWidth, pGreyscale);
+		}
+		return plane;
+	}
+
+	/**
+	 * Set a row of the plane from integer pixel values (not thread safe, as scratch rows are shared)
+	 * @param pY row to set
+	 * @param pPixels integer pixel values
+	 * @param pOffset index of the first pixel of the row in pPixels
+	 * @param pGreyscale if the image is greyscale
+	 */
+	public void setRow(final int pY, final int[] pPixels, final int pOffset, final boolean pGreyscale) {
+		if(null==gLuma) {
+			gRed = new int[gWidth];
+			gGreen = new int[gWidth];
+			gBlue = new int[gWidth];
+			gLuma = new int[gWidth];
+		}
+		if(pGreyscale) {
+			PixelKernels.unpack(pPixels, pOffset, gWidth, gBlue);
+			PixelKernels.luma(gBlue, gWidth, gLuma);
+		} else {
+			PixelKernels.unpack(pPixels, pOffset, gWidth, gRed, gGreen, gBlue);
+			PixelKernels.luma(gRed, gGreen, gBlue, gWidth, gLuma);
+		}
+
+		if(null!=gChunks) {
+			putRow(pY);
+			return;
+		}
+
+		final int row = pY*gWidth;
+		switch(gPrecision) {
+		case DOUBLE:
+			for(int x=0;x<gWidth;x++) {
+				gDouble[row+x] = (double)gLuma[x]/LUMASCALE;
+			}
+			break;
+		case FLOAT:
+			for(int x=0;x<gWidth;x++) {
+				gFloat[row+x] = (float)((double)gLuma[x]/LUMASCALE);
+			}
+			break;
+		case EXACT:
+			System.arraycopy(gLuma, 0, gInt, row, gWidth);
+			break;
+		case FIXED16:
+			for(int x=0;x<gWidth;x++) {
+				//round to nearest 1/256 (max 255*256, so fits in a char)
+				gChar[row+x] = (char)((gLuma[x]*256+LUMASCALE/2)/LUMASCALE);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Copy a row of luma values into a buffer
+	 * @param pY row to copy
+	 * @param pLuma buffer (at least width long) to hold the luma values
+	 */
+	public void getRow(final int pY, final double[] pLuma) {
+		if(null!=gChunks) {
+			getOffHeapRow(pY, pLuma);
+			return;
+		}
+		final int row = pY*gWidth;
+		switch(gPrecision) {
+		case DOUBLE:
+			System.arraycopy(gDouble, row, pLuma, 0, gWidth);
+			break;
+		case FLOAT:
+			for(int x=0;x<gWidth;x++) {
+				pLuma[x] = gFloat[row+x];
+			}
+			break;
+		case EXACT:
+			for(int x=0;x<gWidth;x++) {
+				pLuma[x] = (double)gInt[row+x]/LUMASCALE;
+			}
+			break;
+		case FIXED16:
+			for(int x=0;x<gWidth;x++) {
+				pLuma[x] = gChar[row+x]/256.0;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Store the scratch luma row in the off-heap buffers, at the plane's precision
+	 * @param pY row to set
+	 */
+	private void putRow(final int pY) {
+		final Buffer chunk = gChunks[pY/gChunkRows];
+		final int row = (pY%gChunkRows)*gWidth;
+		switch(gPrecision) {
+		case DOUBLE:
+			final DoubleBuffer doubles = (DoubleBuffer)chunk;
+			for(int x=0;x<gWidth;x++) {
+				doubles.put(row+x, (double)gLuma[x]/LUMASCALE);
+			}
+			break;
+		case FLOAT:
+			final FloatBuffer floats = (FloatBuffer)chunk;
+			for(int x=0;x<gWidth;x++) {
+				floats.put(row+x, (float)((double)gLuma[x]/LUMASCALE));
+			}
+			break;
+		case EXACT:
+			final IntBuffer ints = ((IntBuffer)chunk).duplicate();
+			ints.position(row);
+			ints.put(gLuma, 0, gWidth);
+			break;
+		case FIXED16:
+			final CharBuffer chars = (CharBuffer)chunk;
+			for(int x=0;x<gWidth;x++) {
+				chars.put(row+x, (char)((gLuma[x]*256+LUMASCALE/2)/LUMASCALE));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Copy a row of luma values from the off-heap buffers (absolute gets, so safe for concurrent readers)
+	 * @param pY row to copy
+	 * @param pLuma buffer (at least width long) to hold the luma values
+	 */
+	private void getOffHeapRow(final int pY, final double[] pLuma) {
+		final Buffer chunk = gChunks[pY/gChunkRows];
+		final int row = (pY%gChunkRows)*gWidth;
+		switch(gPrecision) {
+		case DOUBLE:
+			final DoubleBuffer doubles = ((DoubleBuffer)chunk).duplicate();
+			doubles.position(row);
+			doubles.get(pLuma, 0, gWidth);
+			break;
+		case FLOAT:
+			final FloatBuffer floats = (FloatBuffer)chunk;
+			for(int x=0;x<gWidth;x++) {
+				pLuma[x] = floats.get(row+x);
+			}
+			break;
+		case EXACT:
+			final IntBuffer ints = (IntBuffer)chunk;
+			for(int x=0;x<gWidth;x++) {
+				pLuma[x] = (double)ints.get(row+x)/LUMASCALE;
+			}
+			break;
+		case FIXED16:
+			final CharBuffer chars = (CharBuffer)chunk;
+			for(int x=0;x<gWidth;x++) {
+				pLuma[x] = chars.get(row+x)/256.0;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * @param pPrecision precision
+	 * @return bytes needed to store one value at the precision
+	 */
+	private static int bytesPerValue(final Precision pPrecision) {
+		switch(pPrecision) {
+		case DOUBLE:  return 8;
+		case FIXED16: return 2;
+		default:      return 4;
+		}
+	}
+
+	/**
+	 * Get a single luma value
+	 * @param pX x coordinate
+	 * @param pY y coordinate
+	 * @return luma value
+	 */
+	public double get(final int pX, final int pY) {
+		if(null!=gChunks) {
+			final Buffer chunk = gChunks[pY/gChunkRows];
+			final int offset = (pY%gChunkRows)*gWidth+pX;
+			switch(gPrecision) {
+			case FLOAT:   return ((FloatBuffer)chunk).get(offset);
+			case EXACT:   return (double)((IntBuffer)chunk).get(offset)/LUMASCALE;
+			case FIXED16: return ((CharBuffer)chunk).get(offset)/256.0;
+			default:      return ((DoubleBuffer)chunk).get(offset);
+			}
+		}
+		final int index = pY*gWidth+pX;
+		switch(gPrecision) {
+		case FLOAT:   return gFloat[index];
+		case EXACT:   return (double)gInt[index]/LUMASCALE;
+		case FIXED16: return gChar[index]/256.0;
+		default:      return gDouble[index];
+		}
+	}
+
+	/**
+	 * @return the width
+	 */
+	public int getWidth() {
+		return gWidth;
+	}
+
+	/**
+	 * @return the height
+	 */
+	public int getHeight() {
+		return gHeight;
+	}
+
+	/**
+	 * @return whether the values are held off the Java heap
+	 */
+	public boolean isOffHeap() {
+		return null!=gChunks;
+	}
+
+	/**
+	 * @return the precision
+	 */
+	public Precision getPrecision() {
+		return gPrecision;
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Multi-scale SSIM, as in Wang, Simoncelli and Bovik (2003), "Multi-scale structural similarity for
+ * image quality assessment".  The contrast-structure term is found at each of five scales and the
+ * luminance term only at the coarsest; each scale uses the 11x11 Gaussian sliding window of GaussianSSIM.
+ * As in the paper, the mean of each term is used (the authors' code uses the mean SSIM, rather than
+ * the product of the mean terms, at the coarsest scale, so can differ slightly).
+ *
+ * The luma of both images is calculated once, into one array per image, and each coarser scale is
+ * made by averaging 2x2 blocks in place in the same array, so the whole pyramid needs no more memory
+ * than the first scale.
+ * @author wpalmer
+ */
+public class MultiScaleSSIM {
+
+	/**
+	 * Exponents for each scale, finest first (from the paper)
+	 */
+	public final static double[] WEIGHTS = { 0.0448, 0.2856, 0.3001, 0.2363, 0.1333 };
+
+	//largest array most VMs will allocate
+	private final static long MAXARRAY = Integer.MAX_VALUE-8;
+
+	private MultiScaleSSIM() {}
+
+	/**
+	 * Halve a luma array in each dimension, in place, by averaging 2x2 blocks.  A trailing odd row or
+	 * column is mirrored, as in the reference implementation's symmetric padding.  Each output value is
+	 * written at or before the first value it reads, so nothing is overwritten before it is used.
+	 * @param pLuma luma array (pWidth*pHeight, row by row)
+	 * @param pWidth width of the array
+	 * @param pHeight height of the array
+	 */
+	private static void downsample(final double[] pLuma, final int pWidth, final int pHeight) {
+		final int width = (pWidth+1)/2;
+		final int height = (pHeight+1)/2;
+		for(int y=0;y<height;y++) {
+			final int top = 2*y*pWidth;
+			final int bottom = Math.min(2*y+1, pHeight-1)*pWidth;
+			for(int x=0;x<width;x++) {
+				final int left = 2*x;
+				final int right = Math.min(2*x+1, pWidth-1);
+				pLuma[y*width+x] = (pLuma[top+left]+pLuma[top+right]+pLuma[bottom+left]+pLuma[bottom+right])/4;
+			}
+		}
+	}
+
+	/**
+	 * Calculate the MS-SSIM of two images, along with the error statistics (from the first pass over
+	 * the pixels) and the single scale Gaussian SSIM (from the first scale)
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pGreyscale if the images are greyscale
+	 * @return comparison result, or null if the images are too small for all the scales
+	 * @throws IllegalArgumentException if the images have too many pixels for the luma arrays
+	 */
+	public static ComparisonResult compare(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final boolean pGreyscale) {
+
+		final int scales = WEIGHTS.length;
+
+		//the coarsest scale must still fit a window
+		int coarsestWidth = pWidth;
+		int coarsestHeight = pHeight;
+		for(int scale=1;scale<scales;scale++) {
+			coarsestWidth = (coarsestWidth+1)/2;
+			coarsestHeight = (coarsestHeight+1)/2;
+		}
+		if(coarsestWidth<GaussianSSIM.WINDOWSIZE||coarsestHeight<GaussianSSIM.WINDOWSIZE) return null;
+
+		ComparisonResult result = new ComparisonResult();
+		result.setWidth(pWidth);
+		result.setHeight(pHeight);
+		result.setGreyscale(pGreyscale);
+
+		//first scale of the pyramid for both images, and the error statistics, in one pass
+		final long size = (long)pWidth*pHeight;
+		if(size>MAXARRAY) {
+			throw new IllegalArgumentException("Image too large for ms-ssim: "+pWidth+"x"+pHeight+" has more pixels than an array can hold");
+		}
+		final double[] lumaOne = new double[(int)size];
+		final double[] lumaTwo = new double[(int)size];
+		final int[] redOne = new int[pWidth], greenOne = new int[pWidth], blueOne = new int[pWidth];
+		final int[] redTwo = new int[pWidth], greenTwo = new int[pWidth], blueTwo = new int[pWidth];
+		final int[] fixedOne = new int[pWidth], fixedTwo = new int[pWidth];
+		for(int y=0;y<pHeight;y++) {
+			final int offset = y*pWidth;
+			long sseRed = 0, sseGreen = 0;
+			if(pGreyscale) {
+				PixelKernels.unpack(pOne, offset, pWidth, blueOne);
+				PixelKernels.unpack(pTwo, offset, pWidth, blueTwo);
+				PixelKernels.luma(blueOne, pWidth, fixedOne);
+				PixelKernels.luma(blueTwo, pWidth, fixedTwo);
+			} else {
+				PixelKernels.unpack(pOne, offset, pWidth, redOne, greenOne, blueOne);
+				PixelKernels.unpack(pTwo, offset, pWidth, redTwo, greenTwo, blueTwo);
+				PixelKernels.luma(redOne, greenOne, blueOne, pWidth, fixedOne);
+				PixelKernels.luma(redTwo, greenTwo, blueTwo, pWidth, fixedTwo);
+				sseRed = PixelKernels.sumSquaredError(redOne, redTwo, pWidth);
+				sseGreen = PixelKernels.sumSquaredError(greenOne, greenTwo, pWidth);
+				result.addLumaErrors(PixelKernels.sumSquaredLumaError(fixedOne, fixedTwo, pWidth));
+			}
+			for(int x=0;x<pWidth;x++) {
+				lumaOne[offset+x] = (double)fixedOne[x]/LumaPlane.LUMASCALE;
+				lumaTwo[offset+x] = (double)fixedTwo[x]/LumaPlane.LUMASCALE;
+			}
+			int maxError = PixelKernels.maxAbsoluteError(blueOne, blueTwo, pWidth);
+			if(!pGreyscale) {
+				maxError = Math.max(maxError, Math.max(PixelKernels.maxAbsoluteError(redOne, redTwo, pWidth),
+														PixelKernels.maxAbsoluteError(greenOne, greenTwo, pWidth)));
+			}
+			result.addErrors(sseRed, sseGreen, PixelKernels.sumSquaredError(blueOne, blueTwo, pWidth), maxError,
+								PixelKernels.countDiffering(pOne, pTwo, offset, pWidth, pGreyscale?0xFF:0xFFFFFF));
+		}
+
+		final double[] contrast = new double[scales];
+		final double[] terms = new double[2];
+		double msssim = 1;
+		int width = pWidth;
+		int height = pHeight;
+		for(int scale=0;scale<scales;scale++) {
+			if(scale>0) {
+				downsample(lumaOne, width, height);
+				downsample(lumaTwo, width, height);
+				width = (width+1)/2;
+				height = (height+1)/2;
+			}
+			final GaussianSSIM ssim = new GaussianSSIM(width);
+			if(scale==0) {
+				//the first scale is the normal (single scale) Gaussian SSIM
+				List<Double> min = new LinkedList<Double>();
+				List<Double> variance = new LinkedList<Double>();
+				result.setSsimMean(ssim.calcSSIM(lumaOne, lumaTwo, height, min, variance, terms));
+				result.setSsimMin(min.get(0));
+				result.setSsimVariance(variance.get(0));
+			} else {
+				ssim.calcSSIM(lumaOne, lumaTwo, height, null, null, terms);
+			}
+			contrast[scale] = terms[0];
+			//negative terms would make the fractional power undefined
+			msssim *= Math.pow(Math.max(0, terms[0]), WEIGHTS[scale]);
+		}
+		final double luminance = terms[1];
+		msssim *= Math.pow(Math.max(0, luminance), WEIGHTS[scales-1]);
+
+		result.setMultiScale(msssim, contrast, luminance);
+
+		return result;
+	}
+
+}
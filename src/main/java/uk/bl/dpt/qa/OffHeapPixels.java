@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * PixelSource holding packed integer (ARGB) pixel values outside the Java heap, in direct buffers
+ * indexed by long, so images of more than 2^31 pixels (the Java array limit) can be held with a small
+ * heap.  Each buffer holds a whole number of rows, so a band of rows is copied with bulk gets and puts.
+ * 
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size, so
+ * set it when holding large images with a small heap.
+ * @author wpalmer
+ *
+ */
+public class OffHeapPixels implements PixelSource {
+
+	/**
+	 * Maximum size of each direct buffer, in bytes
+	 */
+	final static int MAXCHUNKBYTES = 1<<30;
+
+	/**
+	 * Number of rows copied at a time by copyOf
+	 */
+	private final static int BANDROWS = 16;
+
+	private final int gWidth;
+	private final int gHeight;
+	private final boolean gGreyscale;
+	private final int gChunkRows;
+	private IntBuffer[] gChunks;
+
+	/**
+	 * Create a new (empty) off-heap pixel store
+	 * @param pWidth width of the image
+	 * @param pHeight height of the image
+	 * @param pGreyscale whether the image is greyscale
+	 */
+	public OffHeapPixels(final int pWidth, final int pHeight, final boolean pGreyscale) {
+		if(pWidth<=0||pHeight<=0||pWidth>MAXCHUNKBYTES/4) {
+			throw new IllegalArgumentException("Cannot hold an image of "+pWidth+"x"+pHeight);
+		}
+		gWidth = pWidth;
+		gHeight = pHeight;
+		gGreyscale = pGreyscale;
+		gChunkRows = Math.min(pHeight, MAXCHUNKBYTES/(4*pWidth));
+		gChunks = new IntBuffer[(pHeight+gChunkRows-1)/gChunkRows];
+		for(int i=0;i<gChunks.length;i++) {
+			final int rows = Math.min(gChunkRows, pHeight-i*gChunkRows);
+			gChunks[i] = ByteBuffer.allocateDirect(4*rows*pWidth).order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+	}
+
+	/**
+	 * Copy all the pixels of another source, a band of rows at a time
+	 * @param pSource source to copy (not closed)
+	 * @return off-heap copy of the source
+	 * @throws IOException if the source cannot be read
+	 */
+	public static OffHeapPixels copyOf(final PixelSource pSource) throws IOException {
+		final OffHeapPixels pixels = new OffHeapPixels(pSource.getWidth(), pSource.getHeight(), pSource.isGreyscale());
+		final int bandRows = Math.min(BANDROWS, pixels.gHeight);
+		final int[] band = new int[bandRows*pixels.gWidth];
+		for(int y=0;y<pixels.gHeight;y+=bandRows) {
+			final int rows = Math.min(bandRows, pixels.gHeight-y);
+			pSource.getRows(y, rows, band);
+			pixels.setRows(y, rows, band);
+		}
+		return pixels;
+	}
+
+	/**
+	 * @return number of pixels held (width*height)
+	 */
+	public long size() {
+		return (long)gWidth*gHeight;
+	}
+
+	/**
+	 * Get a single pixel
+	 * @param pIndex index of the pixel (y*width+x)
+	 * @return packed integer pixel value
+	 */
+	public int get(final long pIndex) {
+		final long chunkSize = (long)gChunkRows*gWidth;
+		return gChunks[(int)(pIndex/chunkSize)].get((int)(pIndex%chunkSize));
+	}
+
+	/**
+	 * Set a single pixel
+	 * @param pIndex index of the pixel (y*width+x)
+	 * @param pValue packed integer pixel value
+	 */
+	public void set(final long pIndex, final int pValue) {
+		final long chunkSize = (long)gChunkRows*gWidth;
+		gChunks[(int)(pIndex/chunkSize)].put((int)(pIndex%chunkSize), pValue);
+	}
+
+	/**
+	 * Set a band of rows from packed integer (ARGB) pixel values
+	 * @param pY first row to set
+	 * @param pRows number of rows to set
+	 * @param pPixels pixel values (at least width*pRows, row by row from index 0)
+	 */
+	public void setRows(final int pY, final int pRows, final int[] pPixels) {
+		int offset = 0;
+		for(int y=pY;y<pY+pRows;) {
+			//as many rows as are in this buffer
+			final int rows = Math.min(pY+pRows, (y/gChunkRows+1)*gChunkRows)-y;
+			final IntBuffer chunk = gChunks[y/gChunkRows].duplicate();
+			chunk.position((y%gChunkRows)*gWidth);
+			chunk.put(pPixels, offset, rows*gWidth);
+			offset += rows*gWidth;
+			y += rows;
+		}
+	}
+
+	@Override
+	public void getRows(final int pY, final int pRows, final int[] pPixels) throws IOException {
+		if(null==gChunks) throw new IOException("Pixels have been closed");
+		int offset = 0;
+		for(int y=pY;y<pY+pRows;) {
+			final int rows = Math.min(pY+pRows, (y/gChunkRows+1)*gChunkRows)-y;
+			//duplicate so concurrent readers do not share a position
+			final IntBuffer chunk = gChunks[y/gChunkRows].duplicate();
+			chunk.position((y%gChunkRows)*gWidth);
+			chunk.get(pPixels, offset, rows*gWidth);
+			offset += rows*gWidth;
+			y += rows;
+		}
+	}
+
+	/**
+	 * Read a band of rows as an image of the packed values that are held (8 bits per colour component
+	 * and no alpha, so deeper samples and alpha are not available here)
+	 */
+	@Override
+	public BufferedImage getBand(final int pY, final int pRows) throws IOException {
+		final int[] pixels = new int[gWidth*pRows];
+		getRows(pY, pRows, pixels);
+		final BufferedImage band = new BufferedImage(gWidth, pRows, BufferedImage.TYPE_INT_RGB);
+		band.setRGB(0, 0, gWidth, pRows, pixels, 0, gWidth);
+		return band;
+	}
+
+	@Override
+	public int getWidth() {
+		return gWidth;
+	}
+
+	@Override
+	public int getHeight() {
+		return gHeight;
+	}
+
+	@Override
+	public boolean isGreyscale() {
+		return gGreyscale;
+	}
+
+	/**
+	 * Release the buffers; the direct memory is freed when they are garbage collected
+	 */
+	@Override
+	public void close() throws IOException {
+		gChunks = null;
+	}
+
+}
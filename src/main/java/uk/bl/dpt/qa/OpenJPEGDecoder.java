@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import uk.bl.dpt.openjpeg.OpenJPEGLoader;
+import uk.bl.dpt.openjpeg.OpenJPEGPool;
+
+/**
+ * ImageDecoder for jp2 files using the OpenJPEG executable (see OpenJPEGLoader)
+ * @author wpalmer
+ *
+ */
+public class OpenJPEGDecoder implements ImageDecoder {
+
+	/**
+	 * Name of this decoder
+	 */
+	public final static String NAME = "openjpeg";
+
+	private static OpenJPEGPool pool = null;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return OpenJPEGLoader.isAvailable();
+	}
+
+	/**
+	 * Get the pool shared by all OpenJPEGDecoders for asynchronous decodes, creating it (sized to the 
+	 * cores and heap) if needed
+	 * @return shared pool
+	 */
+	public static synchronized OpenJPEGPool getPool() {
+		if(null==pool) {
+			pool = new OpenJPEGPool();
+		}
+		return pool;
+	}
+
+	/**
+	 * Start decoding a file in the shared pool, so the decode can overlap with other work
+	 * @param pFile file to decode
+	 * @param pScale requested reduction factor (1 for full resolution)
+	 * @return future decoded image (cancel it to kill the decoder); get() throws an ExecutionException
+	 * wrapping an IOException if it cannot be decoded
+	 */
+	public Future<DecodedImage> submit(final File pFile, final int pScale) {
+		return getPool().submit(new Callable<DecodedImage>() {
+			@Override
+			public DecodedImage call() throws IOException {
+				return new DecodedImage(decode(pFile, pScale).getImage(), Math.max(1, pScale), NAME);
+			}
+		});
+	}
+
+	@Override
+	public boolean canReduce() {
+		return true;
+	}
+
+	@Override
+	public boolean keepsBitDepth() {
+		//pipe output is read by PNMReader, which keeps 16-bit samples (scaling other depths, e.g. 12-bit, to
+		//16 bits), but the temporary tif used without a pipe is read back with commons-imaging, which does not
+		return false;
+	}
+
+	@Override
+	public BufferedImage decode(File pFile) throws IOException {
+		//bounded, so a hung decoder cannot block the caller (or a pool thread) for ever
+		final BufferedImage image = OpenJPEGLoader.loadJP2(pFile, 0, null, OpenJPEGPool.DEFAULTTIMEOUT);
+		if(null==image) throw failure(pFile);
+		return image;
+	}
+
+	@Override
+	public DecodedImage decode(File pFile, int pScale) throws IOException {
+		if(pScale<=1) return new DecodedImage(decode(pFile), 1);
+		//discard resolution levels for the power of two part of the scale (much cheaper than a full 
+		//decode) and subsample for the rest; the sizes match the other decoders' but the pixels are the
+		//wavelet low-pass image, which is why both images of a pair are decoded with the same decoder
+		final int reduce = Integer.numberOfTrailingZeros(pScale);
+		final BufferedImage image = OpenJPEGLoader.loadJP2(pFile, reduce, null, OpenJPEGPool.DEFAULTTIMEOUT);
+		if(null==image) {
+			if(Thread.currentThread().isInterrupted()) throw failure(pFile);
+			//e.g. fewer resolution levels in the file than requested
+			return new DecodedImage(DecodedImage.subsample(decode(pFile), pScale), pScale);
+		}
+		return new DecodedImage(DecodedImage.subsample(image, pScale>>reduce), pScale);
+	}
+
+	/**
+	 * Get the exception for a failed decode: an InterruptedIOException if the decode was cancelled (so
+	 * callers do not go on to try other decoders), otherwise an IOException
+	 * @param pFile file being decoded
+	 * @return exception to throw
+	 */
+	private static IOException failure(File pFile) {
+		if(Thread.currentThread().isInterrupted()) {
+			return new InterruptedIOException("OpenJPEG decode cancelled for "+pFile);
+		}
+		return new IOException("OpenJPEG could not decode "+pFile);
+	}
+
+}
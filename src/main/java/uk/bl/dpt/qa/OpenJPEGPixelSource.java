@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import uk.bl.dpt.openjpeg.OpenJPEGLoader;
+
+/**
+ * PixelSource for jp2 files that asks the OpenJPEG executable to decode only the rows or region that
+ * are wanted, so a region of a very large jp2 can be compared without decoding all of it.  The size
+ * is read from the jp2 header.  Every read runs the executable, so this is for regions, not for
+ * streaming a whole image a band at a time.
+ * @author wpalmer
+ *
+ */
+public class OpenJPEGPixelSource implements PixelSource {
+
+	private final File gFile;
+	private final int gWidth;
+	private final int gHeight;
+
+	/**
+	 * Create a new OpenJPEGPixelSource
+	 * @param pFile jp2 file to read
+	 * @throws IOException if OpenJPEG is not available or the jp2 header cannot be read
+	 */
+	public OpenJPEGPixelSource(File pFile) throws IOException {
+		if(!OpenJPEGLoader.isAvailable()) {
+			throw new IOException("No OpenJPEG decoder available for "+pFile.getAbsolutePath());
+		}
+		final Dimension size = OpenJPEGLoader.getDimensions(pFile);
+		if(null==size) {
+			throw new IOException("Cannot read jp2 header of "+pFile.getAbsolutePath());
+		}
+		gFile = pFile;
+		gWidth = size.width;
+		gHeight = size.height;
+	}
+
+	@Override
+	public int getWidth() {
+		return gWidth;
+	}
+
+	@Override
+	public int getHeight() {
+		return gHeight;
+	}
+
+	@Override
+	public boolean isGreyscale() {
+		//not known without decoding; the pixels are checked instead
+		return false;
+	}
+
+	@Override
+	public void getRows(int pY, int pRows, int[] pPixels) throws IOException {
+		getRegion(new Rectangle(0, pY, gWidth, pRows), pPixels);
+	}
+
+	@Override
+	public BufferedImage getBand(int pY, int pRows) throws IOException {
+		return decodeRegion(new Rectangle(0, pY, gWidth, pRows));
+	}
+
+	/**
+	 * Read a rectangular region of the image as packed integer (ARGB) pixel values; only the region 
+	 * is decoded, as far as the executable allows
+	 * @param pRegion region to read (must be within the image)
+	 * @param pPixels array to hold the pixels (at least width*height of the region, row by row from index 0)
+	 * @throws IOException if the region cannot be read
+	 */
+	public void getRegion(Rectangle pRegion, int[] pPixels) throws IOException {
+		RasterPixels.getRows(decodeRegion(pRegion), 0, pRegion.height, pPixels);
+	}
+
+	/**
+	 * Decode a rectangular region of the image
+	 * @param pRegion region to decode (must be within the image)
+	 * @return decoded region
+	 * @throws IOException if the region cannot be decoded
+	 */
+	private BufferedImage decodeRegion(Rectangle pRegion) throws IOException {
+		final BufferedImage region = OpenJPEGLoader.loadJP2(gFile, 0, pRegion);
+		if(null==region||region.getWidth()!=pRegion.width||region.getHeight()!=pRegion.height) {
+			throw new IOException("OpenJPEG could not decode "+pRegion+" of "+gFile.getAbsolutePath());
+		}
+		return region;
+	}
+
+	@Override
+	public void close() throws IOException {
+		//nothing held open
+	}
+
+}
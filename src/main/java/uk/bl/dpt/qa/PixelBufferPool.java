@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A set of image-sized pixel buffers that are kept from one comparison to the next, so that a batch
+ * of comparisons does not allocate (and then have to collect) two large arrays for every pair.  A
+ * buffer is only replaced when a larger image arrives, so it may be longer than width*height; the
+ * DissimilarV2 methods that take the image dimensions (calcErrors, calcSSIM) ignore the extra values.
+ * 
+ * Not thread safe: use one pool per worker thread.
+ * @author wpalmer
+ *
+ */
+public class PixelBufferPool {
+
+	private final int[][] gBuffers;
+
+	//statistics
+	private long gRequests = 0;
+	private long gAllocations = 0;
+	private long gShared = 0;
+
+	/**
+	 * Create a new (empty) pool
+	 * @param pBuffers number of buffers in the pool (e.g. 2, one for each image of a pair)
+	 */
+	public PixelBufferPool(final int pBuffers) {
+		gBuffers = new int[pBuffers][];
+	}
+
+	/**
+	 * Get the pixels of an image, packed as in getRGB, into one of the pool's buffers.  If the image's own
+	 * array can be used (see RasterPixels) it is returned instead and the buffer is left alone.  The
+	 * returned array is only valid until the same buffer is used again.
+	 * @param pImage image
+	 * @param pBuffer index of the buffer to use
+	 * @return packed pixel values (at least width*height, row by row)
+	 */
+	public int[] getPixels(final BufferedImage pImage, final int pBuffer) {
+		final int[] shared = RasterPixels.sharedPixels(pImage);
+		if(null!=shared) {
+			gRequests++;
+			gShared++;
+			return shared;
+		}
+		final int[] pixels = getBuffer(pBuffer, pImage.getWidth()*pImage.getHeight());
+		RasterPixels.getRows(pImage, 0, pImage.getHeight(), pixels);
+		return pixels;
+	}
+
+	/**
+	 * Get one of the pool's buffers, replacing it only if it is too small
+	 * @param pBuffer index of the buffer
+	 * @param pLength minimum length needed
+	 * @return buffer of at least pLength (the contents are undefined)
+	 */
+	public int[] getBuffer(final int pBuffer, final int pLength) {
+		gRequests++;
+		if(null==gBuffers[pBuffer]||gBuffers[pBuffer].length<pLength) {
+			//drop the old buffer first, so both are never held at once
+			gBuffers[pBuffer] = null;
+			gBuffers[pBuffer] = new int[pLength];
+			gAllocations++;
+		}
+		return gBuffers[pBuffer];
+	}
+
+	/**
+	 * Release all the buffers (e.g. after an unusually large image)
+	 */
+	public void clear() {
+		for(int i=0;i<gBuffers.length;i++) {
+			gBuffers[i] = null;
+		}
+	}
+
+	/**
+	 * @return number of requests for pixels or buffers
+	 */
+	public long getRequests() {
+		return gRequests;
+	}
+
+	/**
+	 * @return number of requests that needed a new buffer
+	 */
+	public long getAllocations() {
+		return gAllocations;
+	}
+
+	/**
+	 * @return number of requests that re-used an existing buffer
+	 */
+	public long getReuses() {
+		return gRequests-gAllocations-gShared;
+	}
+
+	/**
+	 * @return number of requests that used the image's own array, so needed no buffer
+	 */
+	public long getShared() {
+		return gShared;
+	}
+
+	/**
+	 * @return bytes currently held by the pool's buffers
+	 */
+	public long getCapacityBytes() {
+		long bytes = 0;
+		for(int[] buffer:gBuffers) {
+			if(null!=buffer) {
+				bytes += 4L*buffer.length;
+			}
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "requests="+gRequests+" allocations="+gAllocations+" reuses="+getReuses()+" shared="+gShared+
+				" capacityBytes="+getCapacityBytes();
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+/**
+ * Per-row pixel kernels used by the comparison engines.
+ *
+ * Each kernel is a simple counted loop over planar int arrays, with no calls, lookups or branches
+ * in the loop body, so that HotSpot's superword optimisation compiles it to SIMD instructions at
+ * whatever width the host supports (SSE, AVX2 or AVX-512); on JVMs that do not vectorise the same
+ * loops run as plain scalar code.  Sums of squared errors are accumulated in int blocks small
+ * enough that they cannot overflow, which keeps the reduction in int lanes.
+ *
+ * All results are exact integers, so they are identical whichever way the loops are compiled.
+ * @author wpalmer
+ */
+public class PixelKernels {
+
+	/**
+	 * Largest number of squared 8-bit differences (at most 255^2 each) that can be summed in an int
+	 */
+	private final static int SSEBLOCK = Integer.MAX_VALUE/(255*255);
+
+	/**
+	 * Number of pixels checked at a time when looking for the first difference
+	 */
+	private final static int DIFFBLOCK = 1024;
+
+	/**
+	 * Largest fixed-point luma difference (255*LUMASCALE)
+	 */
+	private final static long MAXLUMADIFF = 255L*LumaPlane.LUMASCALE;
+
+	/**
+	 * Largest number of squared fixed-point luma differences that can be summed in a long
+	 */
+	private final static int LUMASSEBLOCK = (int)(Long.MAX_VALUE/(MAXLUMADIFF*MAXLUMADIFF));
+
+	/**
+	 * Kernels are static
+	 */
+	private PixelKernels() {
+	}
+
+	/**
+	 * Unpack a run of ARGB pixels into separate channel arrays
+	 * @param pPixels integer pixel values
+	 * @param pOffset index of the first pixel in pPixels
+	 * @param pLength number of pixels to unpack
+	 * @param pRed array to hold the red values
+	 * @param pGreen array to hold the green values
+	 * @param pBlue array to hold the blue values
+	 */
+	public static void unpack(final int[] pPixels, final int pOffset, final int pLength, final int[] pRed, final int[] pGreen, final int[] pBlue) {
+		for(int i=0;i<pLength;i++) {
+			final int pixel = pPixels[pOffset+i];
+			pRed[i] = (pixel >> 16) & 0xFF;
+			pGreen[i] = (pixel >> 8) & 0xFF;
+			pBlue[i] = pixel & 0xFF;
+		}
+	}
+
+	/**
+	 * Unpack the blue channel of a run of ARGB pixels (the only channel needed for greyscale)
+	 * @param pPixels integer pixel values
+	 * @param pOffset index of the first pixel in pPixels
+	 * @param pLength number of pixels to unpack
+	 * @param pBlue array to hold the blue values
+	 */
+	public static void unpack(final int[] pPixels, final int pOffset, final int pLength, final int[] pBlue) {
+		for(int i=0;i<pLength;i++) {
+			pBlue[i] = pPixels[pOffset+i] & 0xFF;
+		}
+	}
+
+	/**
+	 * Calculate the fixed-point luma (multiplied by LumaPlane.LUMASCALE, using the Rec. 709 weights)
+	 * of unpacked RGB values.  This replaces the per-channel 256-entry lookup tables LumaPlane used to
+	 * have: each entry was just the scaled weight times the index, so the integer multiply-adds give the 
+	 * same values bit for bit, and unlike table lookups (gathers) they vectorise.
+	 * @param pRed red values
+	 * @param pGreen green values
+	 * @param pBlue blue values
+	 * @param pLength number of values
+	 * @param pLuma array to hold luma*LUMASCALE
+	 */
+	public static void luma(final int[] pRed, final int[] pGreen, final int[] pBlue, final int pLength, final int[] pLuma) {
+		for(int i=0;i<pLength;i++) {
+			pLuma[i] = 2126*pRed[i]+7152*pGreen[i]+722*pBlue[i];
+		}
+	}
+
+	/**
+	 * Calculate the fixed-point luma (multiplied by LumaPlane.LUMASCALE) of unpacked greyscale values
+	 * @param pGrey grey values
+	 * @param pLength number of values
+	 * @param pLuma array to hold luma*LUMASCALE
+	 */
+	public static void luma(final int[] pGrey, final int pLength, final int[] pLuma) {
+		for(int i=0;i<pLength;i++) {
+			pLuma[i] = LumaPlane.LUMASCALE*pGrey[i];
+		}
+	}
+
+	/**
+	 * Calculate the exact sum of squared differences between two runs of 8-bit values
+	 * @param pOne first values
+	 * @param pTwo second values
+	 * @param pLength number of values
+	 * @return sum of squared differences
+	 */
+	public static long sumSquaredError(final int[] pOne, final int[] pTwo, final int pLength) {
+		long sse = 0;
+		for(int start=0;start<pLength;start+=SSEBLOCK) {
+			final int end = Math.min(pLength, start+SSEBLOCK);
+			int block = 0;
+			for(int i=start;i<end;i++) {
+				final int diff = pOne[i]-pTwo[i];
+				block += diff*diff;
+			}
+			sse += block;
+		}
+		return sse;
+	}
+
+	/**
+	 * Calculate the sum of squared differences between two runs of fixed-point luma values (see luma),
+	 * in units of squared 8-bit levels.  Each block of values is summed exactly in a long and only the
+	 * block totals are scaled.
+	 * @param pOne first luma values (luma*LUMASCALE)
+	 * @param pTwo second luma values (luma*LUMASCALE)
+	 * @param pLength number of values
+	 * @return sum of squared differences
+	 */
+	public static double sumSquaredLumaError(final int[] pOne, final int[] pTwo, final int pLength) {
+		final double scale = (double)LumaPlane.LUMASCALE*LumaPlane.LUMASCALE;
+		double sse = 0;
+		for(int start=0;start<pLength;start+=LUMASSEBLOCK) {
+			final int end = Math.min(pLength, start+LUMASSEBLOCK);
+			long block = 0;
+			for(int i=start;i<end;i++) {
+				final long diff = pOne[i]-pTwo[i];
+				block += diff*diff;
+			}
+			sse += block/scale;
+		}
+		return sse;
+	}
+
+	/**
+	 * Calculate the maximum absolute difference between two runs of values
+	 * @param pOne first values
+	 * @param pTwo second values
+	 * @param pLength number of values
+	 * @return maximum absolute difference
+	 */
+	public static int maxAbsoluteError(final int[] pOne, final int[] pTwo, final int pLength) {
+		int max = 0;
+		for(int i=0;i<pLength;i++) {
+			max = Math.max(max, Math.abs(pOne[i]-pTwo[i]));
+		}
+		return max;
+	}
+
+	/**
+	 * Find the first pixel that differs in any of the bits in a mask; the pixels are checked a block
+	 * at a time with a branch-free inner loop, so it is almost as fast as a plain array comparison
+	 * @param pOne integer pixel values for first image
+	 * @param pTwo integer pixel values for second image
+	 * @param pOffset index of the first pixel in pOne and pTwo
+	 * @param pLength number of pixels to compare
+	 * @param pMask bits to compare (0xFFFFFF for RGB, 0xFF for greyscale)
+	 * @return index of the first differing pixel relative to pOffset, or -1 if none differ
+	 */
+	public static int firstDiffering(final int[] pOne, final int[] pTwo, final int pOffset, final int pLength, final int pMask) {
+		for(int start=0;start<pLength;start+=DIFFBLOCK) {
+			final int end = Math.min(pLength, start+DIFFBLOCK);
+			int diff = 0;
+			for(int i=start;i<end;i++) {
+				diff |= pOne[pOffset+i]^pTwo[pOffset+i];
+			}
+			if(0!=(diff & pMask)) {
+				for(int i=start;i<end;i++) {
+					if(0!=((pOne[pOffset+i]^pTwo[pOffset+i]) & pMask)) {
+						return i;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether every pixel in a run has equal red, green and blue values (i.e. the image
+	 * is effectively greyscale even if it is stored as RGB).  Checked a block at a time with a
+	 * branch-free inner loop, so a colour image is usually rejected within the first block.
+	 * @param pPixels integer pixel values
+	 * @param pOffset index of the first pixel in pPixels
+	 * @param pLength number of pixels to check
+	 * @return true if r=g=b for every pixel
+	 */
+	public static boolean isGreyscale(final int[] pPixels, final int pOffset, final int pLength) {
+		for(int start=0;start<pLength;start+=DIFFBLOCK) {
+			final int end = Math.min(pLength, start+DIFFBLOCK);
+			int diff = 0;
+			for(int i=start;i<end;i++) {
+				final int p = pPixels[pOffset+i];
+				//r^g in bits 8-15, g^b in bits 0-7
+				diff |= p^(p>>>8);
+			}
+			if(0!=(diff & 0xFFFF)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Count the pixels that differ in any of the bits in a mask
+	 * @param pOne integer pixel values for first image
+	 * @param pTwo integer pixel values for second image
+	 * @param pOffset index of the first pixel in pOne and pTwo
+	 * @param pLength number of pixels to compare
+	 * @param pMask bits to compare (0xFFFFFF for RGB, 0xFF for greyscale)
+	 * @return number of differing pixels
+	 */
+	public static int countDiffering(final int[] pOne, final int[] pTwo, final int pOffset, final int pLength, final int pMask) {
+		int count = 0;
+		for(int i=0;i<pLength;i++) {
+			final int diff = (pOne[pOffset+i]^pTwo[pOffset+i]) & pMask;
+			//1 if diff is non-zero (diff is never negative), without a branch
+			count += (diff|-diff) >>> 31;
+		}
+		return count;
+	}
+
+}
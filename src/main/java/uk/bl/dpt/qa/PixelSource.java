@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of image pixels that can be read a band of rows at a time, so that images can be
+ * compared without holding all of their pixels in memory
+ * @author wpalmer
+ *
+ */
+public interface PixelSource extends Closeable {
+
+	/**
+	 * @return width of the image
+	 */
+	public int getWidth();
+
+	/**
+	 * @return height of the image
+	 */
+	public int getHeight();
+
+	/**
+	 * @return whether the image is greyscale
+	 */
+	public boolean isGreyscale();
+
+	/**
+	 * Read a band of rows as packed integer (ARGB) pixel values
+	 * @param pY first row to read
+	 * @param pRows number of rows to read
+	 * @param pPixels array to hold the pixels (at least width*pRows, row by row from index 0)
+	 * @throws IOException if the rows cannot be read
+	 */
+	public void getRows(int pY, int pRows, int[] pPixels) throws IOException;
+
+	/**
+	 * Read a band of rows as decoded, with the samples at their native depth and including any alpha,
+	 * for checks that must see every bit (getRows packs 8 bits per component)
+	 * @param pY first row to read
+	 * @param pRows number of rows to read
+	 * @return image of the band (pRows high; may share its data with the source)
+	 * @throws IOException if the rows cannot be read
+	 */
+	public BufferedImage getBand(int pY, int pRows) throws IOException;
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads packed RGB pixel values (as returned by BufferedImage.getRGB) straight from an image's data
+ * buffer, instead of converting each pixel through the ColorModel.
+ *
+ * Only TYPE_INT_RGB and TYPE_INT_ARGB images with a plain layout are used with no copy at all (the raster's
+ * own array is returned), as packed ints are what the metric kernels take.  Interleaved 8-bit and 16-bit
+ * grey and sRGB layouts (TYPE_BYTE_GRAY, TYPE_USHORT_GRAY, TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, 48-bit RGB and 
+ * so on) are still copied into packed ints, but with simple loops over the buffer: getPixels copies the
+ * whole image, so to hold only a band of rows at a time use getRows (as BufferedImagePixelSource does).
+ * The stored sample values are used without colour space conversion, and 16-bit samples are scaled to 
+ * 8 bits with rounding.  Anything else falls back to getRGB.  Samples of more than 8 bits can also be 
+ * read at their native depth, for the high bit depth comparison.
+ * @author wpalmer
+ */
+public class RasterPixels {
+
+	private RasterPixels() {}
+
+	/**
+	 * Get the pixels of an image, packed as in getRGB.  For TYPE_INT_RGB and TYPE_INT_ARGB the array may be
+	 * the image's own data (so must not be modified), in which case the alpha byte of TYPE_INT_RGB pixels is
+	 * undefined; the comparisons never use it.  Other layouts are copied into a new array.
+	 * @param pImage image
+	 * @return packed pixel values (width*height, row by row)
+	 */
+	public static int[] getPixels(final BufferedImage pImage) {
+		final int[] shared = sharedPixels(pImage);
+		if(null!=shared) {
+			return shared;
+		}
+		final int[] pixels = new int[pImage.getWidth()*pImage.getHeight()];
+		getRows(pImage, 0, pImage.getHeight(), pixels);
+		return pixels;
+	}
+
+	/**
+	 * Copy a band of rows of an image into an array, packed as in getRGB
+	 * @param pImage image
+	 * @param pY first row to copy
+	 * @param pRows number of rows to copy
+	 * @param pPixels array to hold the packed pixel values (at least width*pRows)
+	 */
+	public static void getRows(final BufferedImage pImage, final int pY, final int pRows, final int[] pPixels) {
+		if(!readInt(pImage, pY, pRows, pPixels)&&!readInterleaved(pImage, pY, pRows, pPixels)) {
+			pImage.getRGB(0, pY, pImage.getWidth(), pRows, pPixels, 0, pImage.getWidth());
+		}
+	}
+
+	/**
+	 * Check if an image is TYPE_INT_RGB or TYPE_INT_ARGB, stored in a single array with the standard layout
+	 * @param pImage image
+	 * @return offset of the first pixel in the data array, or -1 if the layout is not standard
+	 */
+	private static int intOffset(final BufferedImage pImage) {
+		if(pImage.getType()!=BufferedImage.TYPE_INT_RGB&&pImage.getType()!=BufferedImage.TYPE_INT_ARGB) return -1;
+		final Raster raster = pImage.getRaster();
+		final SampleModel model = raster.getSampleModel();
+		if(!(raster.getDataBuffer() instanceof DataBufferInt)||!(model instanceof SinglePixelPackedSampleModel)) return -1;
+		if(((SinglePixelPackedSampleModel)model).getScanlineStride()!=pImage.getWidth()) return -1;
+		return raster.getDataBuffer().getOffset()-raster.getSampleModelTranslateY()*pImage.getWidth()-raster.getSampleModelTranslateX();
+	}
+
+	/**
+	 * Get the image's own pixel array, if it can be used as it is
+	 * @param pImage image
+	 * @return the image's pixel array, or null if it cannot be shared
+	 */
+	static int[] sharedPixels(final BufferedImage pImage) {
+		if(0!=intOffset(pImage)) return null;
+		final int[] data = ((DataBufferInt)pImage.getRaster().getDataBuffer()).getData();
+		return (data.length==pImage.getWidth()*pImage.getHeight())?data:null;
+	}
+
+	/**
+	 * Copy rows from a TYPE_INT_RGB or TYPE_INT_ARGB image
+	 * @param pImage image
+	 * @param pY first row to copy
+	 * @param pRows number of rows to copy
+	 * @param pPixels array to hold the pixels
+	 * @return false if the image does not have a standard int layout
+	 */
+	private static boolean readInt(final BufferedImage pImage, final int pY, final int pRows, final int[] pPixels) {
+		final int offset = intOffset(pImage);
+		if(offset<0) return false;
+		final int[] data = ((DataBufferInt)pImage.getRaster().getDataBuffer()).getData();
+		System.arraycopy(data, offset+pY*pImage.getWidth(), pPixels, 0, pRows*pImage.getWidth());
+		return true;
+	}
+
+	/**
+	 * Copy rows from an image with interleaved 8 or 16-bit grey or sRGB samples (with or without alpha)
+	 * @param pImage image
+	 * @param pY first row to copy
+	 * @param pRows number of rows to copy
+	 * @param pPixels array to hold the pixels
+	 * @return false if the image is not a supported interleaved layout
+	 */
+	private static boolean readInterleaved(final BufferedImage pImage, final int pY, final int pRows, final int[] pPixels) {
+		final int colourBands = getChannels(pImage);
+		if(colourBands<0) return false;
+
+		final Raster raster = pImage.getRaster();
+		final DataBuffer buffer = raster.getDataBuffer();
+		final boolean shorts = buffer instanceof DataBufferUShort;
+		final ColorModel colorModel = pImage.getColorModel();
+		for(int band=0;band<colorModel.getNumComponents();band++) {
+			if(colorModel.getComponentSize(band)!=(shorts?16:8)) return false;
+		}
+
+		final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel)raster.getSampleModel();
+		final boolean alpha = colorModel.hasAlpha();
+		final int width = pImage.getWidth();
+		final int stride = model.getPixelStride();
+		final int[] bandOffsets = model.getBandOffsets();
+		//colour bands are in r,g,b order in the colour model (grey is repeated), then alpha
+		final int red = bandOffsets[0];
+		final int green = bandOffsets[(colourBands==1)?0:1];
+		final int blue = bandOffsets[(colourBands==1)?0:2];
+		for(int row=0;row<pRows;row++) {
+			final int start = rowStart(raster, pY+row);
+			final int out = row*width;
+			if(shorts) {
+				final short[] data = ((DataBufferUShort)buffer).getData();
+				for(int x=0;x<width;x++) {
+					final int pixel = start+x*stride;
+					final int a = alpha?to8Bit(data[pixel+bandOffsets[colourBands]]):0xFF;
+					pPixels[out+x] = (a << 24)|(to8Bit(data[pixel+red]) << 16)|(to8Bit(data[pixel+green]) << 8)|to8Bit(data[pixel+blue]);
+				}
+			} else {
+				final byte[] data = ((DataBufferByte)buffer).getData();
+				for(int x=0;x<width;x++) {
+					final int pixel = start+x*stride;
+					final int a = alpha?(data[pixel+bandOffsets[colourBands]] & 0xFF):0xFF;
+					pPixels[out+x] = (a << 24)|((data[pixel+red] & 0xFF) << 16)|((data[pixel+green] & 0xFF) << 8)|(data[pixel+blue] & 0xFF);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Index of the first sample of a row in an interleaved raster's data array
+	 * @param pRaster raster
+	 * @param pY row
+	 * @return index of the first sample (before the band offsets are added)
+	 */
+	private static int rowStart(final Raster pRaster, final int pY) {
+		final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel)pRaster.getSampleModel();
+		return pRaster.getDataBuffer().getOffset()+(pY-pRaster.getSampleModelTranslateY())*model.getScanlineStride()-
+				pRaster.getSampleModelTranslateX()*model.getPixelStride();
+	}
+
+	/**
+	 * Get the number of colour channels of an image with interleaved 8 or 16-bit grey or sRGB samples
+	 * (with or without alpha) in a single array
+	 * @param pImage image
+	 * @return 1 for grey, 3 for rgb, or -1 if the image is not a supported interleaved layout
+	 */
+	public static int getChannels(final BufferedImage pImage) {
+		final Raster raster = pImage.getRaster();
+		final ColorModel colorModel = pImage.getColorModel();
+		final DataBuffer buffer = raster.getDataBuffer();
+		if(!(raster.getSampleModel() instanceof PixelInterleavedSampleModel)||buffer.getNumBanks()!=1) return -1;
+		if(!(buffer instanceof DataBufferUShort)&&!(buffer instanceof DataBufferByte)) return -1;
+		if(colorModel.isAlphaPremultiplied()) return -1;
+
+		final int colourBands = colorModel.hasAlpha()?raster.getNumBands()-1:raster.getNumBands();
+		final ColorSpace space = colorModel.getColorSpace();
+		if(colourBands==1) {
+			return (space.getType()==ColorSpace.TYPE_GRAY)?1:-1;
+		}
+		return (colourBands==3&&space.isCS_sRGB())?3:-1;
+	}
+
+	/**
+	 * Get the number of bits per colour sample of an image
+	 * @param pImage image
+	 * @return bits per sample (8 for packed and indexed images)
+	 */
+	public static int getBitDepth(final BufferedImage pImage) {
+		if(getChannels(pImage)<0) return 8;
+		return pImage.getColorModel().getComponentSize(0);
+	}
+
+	/**
+	 * Get the colour samples of an image with more than 8 bits per sample, at their native depth
+	 * @param pImage image
+	 * @return samples (width*height*channels, interleaved grey or r,g,b, without alpha), or null if the 
+	 * image does not store its samples in 16-bit interleaved form (see getChannels)
+	 */
+	public static char[] getSamples(final BufferedImage pImage) {
+		final int channels = getChannels(pImage);
+		if(channels<0||!(pImage.getRaster().getDataBuffer() instanceof DataBufferUShort)) return null;
+
+		final Raster raster = pImage.getRaster();
+		final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel)raster.getSampleModel();
+		final short[] data = ((DataBufferUShort)raster.getDataBuffer()).getData();
+		final int width = pImage.getWidth();
+		final int height = pImage.getHeight();
+		final int stride = model.getPixelStride();
+		final int[] bandOffsets = model.getBandOffsets();
+
+		final char[] samples = new char[width*height*channels];
+		for(int y=0;y<height;y++) {
+			final int start = rowStart(raster, y);
+			final int out = y*width*channels;
+			for(int x=0;x<width;x++) {
+				for(int channel=0;channel<channels;channel++) {
+					samples[out+x*channels+channel] = (char)data[start+x*stride+bandOffsets[channel]];
+				}
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Scale a 16-bit sample to 8 bits, with rounding (as ComponentColorModel does)
+	 * @param pSample 16-bit sample
+	 * @return 8-bit sample
+	 */
+	private static int to8Bit(final short pSample) {
+		return ((pSample & 0xFFFF)*255+32767)/65535;
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.awt.Rectangle;
+
+import org.apache.commons.math3.stat.descriptive.moment.Variance;
+
+/**
+ * Helpers for comparing just part of a pair of images: a rectangle, or the pixels set in a mask.
+ *
+ * The images are cropped to the rectangle (or to the bounding box of the mask) before anything else
+ * is done, so the work depends on the size of the region, not of the image.  Within a mask, pixels
+ * outside it are made identical in the two images so they add nothing to the errors.  The SSIM is then
+ * averaged over the windows that are at least half inside the mask.  Those windows may include a few
+ * of the equalised pixels, which pull their SSIM slightly towards 1.
+ * @author wpalmer
+ *
+ */
+public class RegionComparison {
+
+	private RegionComparison() {}
+
+	/**
+	 * Clip a region to the image bounds
+	 * @param pRegion region
+	 * @param pWidth width of the image
+	 * @param pHeight height of the image
+	 * @return the part of the region within the image, or null if none of it is
+	 */
+	public static Rectangle clip(final Rectangle pRegion, final int pWidth, final int pHeight) {
+		final Rectangle clipped = pRegion.intersection(new Rectangle(0, 0, pWidth, pHeight));
+		return clipped.isEmpty()?null:clipped;
+	}
+
+	/**
+	 * Find the bounding box of the pixels set in a mask
+	 * @param pMask mask (width*height, row by row; true for pixels to compare)
+	 * @param pWidth width of the mask
+	 * @param pHeight height of the mask
+	 * @return bounding box, or null if no pixels are set
+	 */
+	public static Rectangle bounds(final boolean[] pMask, final int pWidth, final int pHeight) {
+		int minX = pWidth, minY = pHeight, maxX = -1, maxY = -1;
+		for(int y=0;y<pHeight;y++) {
+			for(int x=0;x<pWidth;x++) {
+				if(pMask[y*pWidth+x]) {
+					minX = Math.min(minX, x);
+					maxX = Math.max(maxX, x);
+					minY = Math.min(minY, y);
+					maxY = Math.max(maxY, y);
+				}
+			}
+		}
+		return (maxX<0)?null:new Rectangle(minX, minY, maxX-minX+1, maxY-minY+1);
+	}
+
+	/**
+	 * Copy a rectangle of pixels
+	 * @param pPixels integer pixel values for the image
+	 * @param pWidth width of the image
+	 * @param pRegion region to copy (within the image)
+	 * @return pixels for the region (row by row)
+	 */
+	public static int[] crop(final int[] pPixels, final int pWidth, final Rectangle pRegion) {
+		final int[] region = new int[pRegion.width*pRegion.height];
+		for(int y=0;y<pRegion.height;y++) {
+			System.arraycopy(pPixels, (pRegion.y+y)*pWidth+pRegion.x, region, y*pRegion.width, pRegion.width);
+		}
+		return region;
+	}
+
+	/**
+	 * Copy a rectangle of a mask
+	 * @param pMask mask for the image
+	 * @param pWidth width of the image
+	 * @param pRegion region to copy (within the image)
+	 * @return mask for the region (row by row)
+	 */
+	public static boolean[] crop(final boolean[] pMask, final int pWidth, final Rectangle pRegion) {
+		final boolean[] region = new boolean[pRegion.width*pRegion.height];
+		for(int y=0;y<pRegion.height;y++) {
+			System.arraycopy(pMask, (pRegion.y+y)*pWidth+pRegion.x, region, y*pRegion.width, pRegion.width);
+		}
+		return region;
+	}
+
+	/**
+	 * Make the pixels outside a mask identical in both images, by copying them from the first image 
+	 * to the second
+	 * @param pOne integer pixel values for the first image
+	 * @param pTwo integer pixel values for the second image (changed)
+	 * @param pMask mask (true for pixels to compare)
+	 * @return number of pixels in the mask
+	 */
+	static long applyMask(final int[] pOne, final int[] pTwo, final boolean[] pMask) {
+		long count = 0;
+		for(int i=0;i<pMask.length;i++) {
+			if(pMask[i]) {
+				count++;
+			} else {
+				pTwo[i] = pOne[i];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Replace the SSIM statistics of a result with those over just the windows that are at least half
+	 * inside a mask, and set the number of pixels the errors are averaged over
+	 * @param pResult result with tile maps (one tile per SSIM window)
+	 * @param pMask mask (true for pixels to compare)
+	 * @param pMaskPixels number of pixels in the mask
+	 */
+	static void restrictToMask(final ComparisonResult pResult, final boolean[] pMask, final long pMaskPixels) {
+		final int width = pResult.getWidth();
+		final int height = pResult.getHeight();
+		final int size = pResult.getTileSize();
+		final int tilesWide = pResult.getTilesWide();
+		final double[] ssim = pResult.getTileSsim();
+		final double[] included = new double[ssim.length];
+		int count = 0;
+		double mean = 0;
+		double min = 1;
+		for(int tileY=0;tileY<pResult.getTilesHigh();tileY++) {
+			final int rows = Math.min(size, height-tileY*size);
+			for(int tileX=0;tileX<tilesWide;tileX++) {
+				final int columns = Math.min(size, width-tileX*size);
+				int set = 0;
+				for(int y=tileY*size;y<tileY*size+rows;y++) {
+					for(int x=tileX*size;x<tileX*size+columns;x++) {
+						if(pMask[y*width+x]) set++;
+					}
+				}
+				if(2*set>=rows*columns) {
+					final double value = ssim[tileY*tilesWide+tileX];
+					included[count++] = value;
+					mean += value;
+					min = Math.min(min, value);
+				}
+			}
+		}
+		pResult.setComparedPixels(pMaskPixels);
+		if(count==0) {
+			//no window is mostly inside the mask
+			pResult.setSsimMean(Double.NaN);
+			pResult.setSsimMin(Double.NaN);
+			pResult.setSsimVariance(Double.NaN);
+			return;
+		}
+		pResult.setSsimMean(mean/count);
+		pResult.setSsimMin(min);
+		pResult.setSsimVariance(new Variance().evaluate(included, 0, count));
+	}
+
+}
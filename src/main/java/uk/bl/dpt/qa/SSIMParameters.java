@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+/**
+ * SSIM parameters: window size and stride, the stabilising constants k1 and k2, the dynamic range L
+ * of the luma values and the window weighting.  The derived constants C1=(k1*L)^2 and C2=(k2*L)^2
+ * are calculated once, when the parameters are created.  Instances are immutable, so can be shared.
+ * @author wpalmer
+ *
+ */
+public class SSIMParameters {
+
+	/**
+	 * Weighting of the pixels in a window
+	 * @author wpalmer
+	 *
+	 */
+	public enum Weighting {
+		/**
+		 * All pixels weighted equally (block SSIM, with summed-area tables)
+		 */
+		UNIFORM,
+		/**
+		 * Circular-symmetric Gaussian weighting (only windows entirely inside the image are used)
+		 */
+		GAUSSIAN;
+	}
+
+	/**
+	 * Default stabilising constant for the luminance term
+	 */
+	public final static double K1 = 0.01;
+
+	/**
+	 * Default stabilising constant for the contrast-structure term
+	 */
+	public final static double K2 = 0.03;
+
+	/**
+	 * Dynamic range of 8-bit luma
+	 */
+	public final static double L8 = 255;
+
+	private final int gWindowSize;
+	private final int gStride;
+	private final double gK1;
+	private final double gK2;
+	private final double gDynamicRange;
+	private final Weighting gWeighting;
+	private final double gSigma;
+	private final double gC1;
+	private final double gC2;
+
+	/**
+	 * Create a new set of SSIM parameters
+	 * @param pWindowSize window size (width and height)
+	 * @param pStride distance between windows, from 1 to the window size (for uniform weighting)
+	 * @param pK1 luminance stabilising constant
+	 * @param pK2 contrast-structure stabilising constant
+	 * @param pDynamicRange dynamic range of the luma values (255 for 8-bit)
+	 * @param pWeighting window weighting
+	 * @param pSigma standard deviation of the Gaussian window (ignored for uniform weighting)
+	 */
+	public SSIMParameters(final int pWindowSize, final int pStride, final double pK1, final double pK2, final double pDynamicRange,
+							final Weighting pWeighting, final double pSigma) {
+		if(pWindowSize<1||pStride<1) {
+			throw new IllegalArgumentException("window size and stride must be positive");
+		}
+		if(Weighting.UNIFORM==pWeighting&&pStride>pWindowSize) {
+			//otherwise some rows would not be in any window, and so not in the error statistics
+			throw new IllegalArgumentException("stride must not be bigger than the window size");
+		}
+		gWindowSize = pWindowSize;
+		gStride = pStride;
+		gK1 = pK1;
+		gK2 = pK2;
+		gDynamicRange = pDynamicRange;
+		gWeighting = pWeighting;
+		gSigma = pSigma;
+		gC1 = (pK1*pDynamicRange)*(pK1*pDynamicRange);
+		gC2 = (pK2*pDynamicRange)*(pK2*pDynamicRange);
+	}
+
+	/**
+	 * @return the default block SSIM parameters: 8x8 non-overlapping uniform windows, 8-bit luma
+	 */
+	public static SSIMParameters block() {
+		return block(DissimilarV2.SSIMWINDOWSIZE);
+	}
+
+	/**
+	 * @param pWindowSize window size
+	 * @return block SSIM parameters with non-overlapping uniform windows of the given size, 8-bit luma
+	 */
+	public static SSIMParameters block(final int pWindowSize) {
+		return new SSIMParameters(pWindowSize, pWindowSize, K1, K2, L8, Weighting.UNIFORM, 0);
+	}
+
+	/**
+	 * @return the default Gaussian SSIM parameters: 11x11 window with standard deviation 1.5, moved one
+	 * pixel at a time, 8-bit luma
+	 */
+	public static SSIMParameters gaussian() {
+		return new SSIMParameters(GaussianSSIM.WINDOWSIZE, 1, K1, K2, L8, Weighting.GAUSSIAN, GaussianSSIM.SIGMA);
+	}
+
+	/**
+	 * Number of window positions along one dimension of an image
+	 * @param pLength width or height of the image
+	 * @return number of windows
+	 */
+	public int windows(final int pLength) {
+		if(Weighting.GAUSSIAN==gWeighting) {
+			//only windows entirely inside the image
+			return (pLength<gWindowSize)?0:(pLength-gWindowSize)/gStride+1;
+		}
+		//windows at the right and bottom edges may be clipped
+		return (pLength<=gWindowSize)?1:(pLength-gWindowSize+gStride-1)/gStride+1;
+	}
+
+	/**
+	 * @return the window size
+	 */
+	public int getWindowSize() {
+		return gWindowSize;
+	}
+
+	/**
+	 * @return the stride
+	 */
+	public int getStride() {
+		return gStride;
+	}
+
+	/**
+	 * @return k1
+	 */
+	public double getK1() {
+		return gK1;
+	}
+
+	/**
+	 * @return k2
+	 */
+	public double getK2() {
+		return gK2;
+	}
+
+	/**
+	 * @return the dynamic range L
+	 */
+	public double getDynamicRange() {
+		return gDynamicRange;
+	}
+
+	/**
+	 * @return the window weighting
+	 */
+	public Weighting getWeighting() {
+		return gWeighting;
+	}
+
+	/**
+	 * @return the standard deviation of the Gaussian window
+	 */
+	public double getSigma() {
+		return gSigma;
+	}
+
+	/**
+	 * @return C1=(k1*L)^2
+	 */
+	public double getC1() {
+		return gC1;
+	}
+
+	/**
+	 * @return C2=(k2*L)^2
+	 */
+	public double getC2() {
+		return gC2;
+	}
+
+	@Override
+	public boolean equals(final Object pOther) {
+		if(this==pOther) return true;
+		if(!(pOther instanceof SSIMParameters)) return false;
+		final SSIMParameters other = (SSIMParameters)pOther;
+		return gWindowSize==other.gWindowSize&&gStride==other.gStride&&gWeighting==other.gWeighting&&
+				Double.compare(gK1, other.gK1)==0&&Double.compare(gK2, other.gK2)==0&&
+				Double.compare(gDynamicRange, other.gDynamicRange)==0&&Double.compare(gSigma, other.gSigma)==0;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 31*gWindowSize+gStride;
+		hash = 31*hash+gWeighting.hashCode();
+		hash = 31*hash+Double.valueOf(gK1).hashCode();
+		hash = 31*hash+Double.valueOf(gK2).hashCode();
+		hash = 31*hash+Double.valueOf(gDynamicRange).hashCode();
+		return 31*hash+Double.valueOf(gSigma).hashCode();
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+/**
+ * Mutable SSIM result (mean, minimum and variance of the window values) that is filled in window by
+ * window, without storing the window values or boxing anything.  A single instance can be passed to
+ * DissimilarV2.calcSSIM and re-used for any number of image pairs; it is reset at the start of each.
+ *
+ * The variance is the bias-corrected variance updated in the same way as commons-math's Variance.increment,
+ * so is the same as the (streaming) variance reported elsewhere.  Not thread safe.
+ * @author wpalmer
+ *
+ */
+public class SSIMResult {
+
+	private long gWindows = 0;
+	private double gSum = 0;
+	private double gMin = 1;
+	private double gM1 = 0;
+	private double gM2 = 0;
+
+	/**
+	 * Create a new, empty, SSIMResult
+	 */
+	public SSIMResult() {
+	}
+
+	/**
+	 * Clear the result, ready for the next pair of images
+	 */
+	public void reset() {
+		gWindows = 0;
+		gSum = 0;
+		gMin = 1;
+		gM1 = 0;
+		gM2 = 0;
+	}
+
+	/**
+	 * Add the SSIM of a window
+	 * @param pSsim SSIM of the window
+	 */
+	void add(final double pSsim) {
+		gWindows++;
+		gSum += pSsim;
+		if(pSsim<gMin) {
+			gMin = pSsim;
+		}
+		//as commons-math FirstMoment/SecondMoment
+		final double dev = pSsim-gM1;
+		final double nDev = dev/gWindows;
+		gM1 += nDev;
+		gM2 += (gWindows-1)*dev*nDev;
+	}
+
+	/**
+	 * @return the number of windows
+	 */
+	public long getWindows() {
+		return gWindows;
+	}
+
+	/**
+	 * @return the mean SSIM (NaN if there are no windows)
+	 */
+	public double getMean() {
+		return (gWindows==0)?Double.NaN:gSum/gWindows;
+	}
+
+	/**
+	 * @return the minimum window SSIM (NaN if there are no windows)
+	 */
+	public double getMin() {
+		return (gWindows==0)?Double.NaN:gMin;
+	}
+
+	/**
+	 * @return the variance of the window SSIM values (NaN if there are no windows)
+	 */
+	public double getVariance() {
+		if(gWindows==0) return Double.NaN;
+		return (gWindows==1)?0:gM2/(gWindows-1);
+	}
+
+}
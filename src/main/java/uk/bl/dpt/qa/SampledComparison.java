@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.moment.Variance;
+
+/**
+ * Estimates the block SSIM and PSNR of two images from a random sample of rows of SSIM windows
+ * (strips), for quick triage of large numbers of pairs.
+ *
+ * Strips are drawn at random without replacement and each strip is calculated exactly (SSIM for its
+ * windows, squared errors for its pixels), so strips are the sampling units: the SSIM estimate is the
+ * mean of the strip means and the MSE estimate is the ratio of the sampled SSE to the sampled pixels.
+ * The 95% confidence intervals use the normal approximation with the finite population correction,
+ * so they shrink to nothing when every strip has been sampled.  A fixed seed is used so that results
+ * are repeatable.
+ * @author wpalmer
+ *
+ */
+public class SampledComparison {
+
+	/**
+	 * z value for a two-sided 95% confidence interval
+	 */
+	private final static double Z95 = 1.959964;
+
+	/**
+	 * Minimum number of strips to sample before the confidence interval is used
+	 */
+	private final static int MINSAMPLES = 8;
+
+	/**
+	 * Seed for the random sample, so estimates are repeatable
+	 */
+	private final static long SEED = 0x55494D;
+
+	private SampledComparison() {}
+
+	/**
+	 * Estimate the SSIM and PSNR of two images from a random sample of strips.  Sampling stops when
+	 * the fraction of strips has been sampled or, if a target error is given, when the SSIM confidence
+	 * interval half-width is at most the target.  At least MINSAMPLES strips are always sampled.
+	 * @param pOne array of integer pixel values for first image
+	 * @param pTwo array of integer pixel values for second image
+	 * @param pWidth width of the two images
+	 * @param pHeight height of the two images
+	 * @param pWindowSize SSIM window size
+	 * @param pGreyscale if the images are greyscale
+	 * @param pSampleFraction maximum fraction of strips to sample (0-1)
+	 * @param pTargetError target SSIM confidence interval half-width (0 to always sample pSampleFraction)
+	 * @return estimated result (see ComparisonResult.isSampled and the interval getters)
+	 */
+	public static ComparisonResult estimate(final int[] pOne, final int[] pTwo, final int pWidth, final int pHeight, final int pWindowSize,
+											final boolean pGreyscale, final double pSampleFraction, final double pTargetError) {
+
+		final int windowsW = (pWidth+pWindowSize-1)/pWindowSize;
+		final int windowsH = (pHeight+pWindowSize-1)/pWindowSize;
+		//always sample enough strips for the confidence interval to mean something
+		final int maxSamples = Math.min(windowsH, Math.max(MINSAMPLES, (int)Math.ceil(windowsH*pSampleFraction)));
+
+		//random order of strips (partial Fisher-Yates shuffle)
+		final int[] strips = new int[windowsH];
+		for(int i=0;i<windowsH;i++) {
+			strips[i] = i;
+		}
+		final Random random = new Random(SEED);
+
+		ComparisonResult result = new ComparisonResult();
+		result.setWidth(pWidth);
+		result.setHeight(pHeight);
+		result.setGreyscale(pGreyscale);
+
+		//only the current strip's windows are kept, so memory does not grow with the image
+		final double[] ssim = new double[windowsW];
+		final double[] stripMean = new double[maxSamples];
+		final long[] stripSse = new long[maxSamples];
+		final long[] stripPixels = new long[maxSamples];
+		final Variance windowVariance = new Variance();
+		final IntegralImageSSIM engine = new IntegralImageSSIM(pWidth, pWindowSize);
+		final int channels = pGreyscale?1:3;
+
+		double min = 1;
+		long pixels = 0;
+		int samples = 0;
+		while(samples<maxSamples) {
+			final int pick = samples+random.nextInt(windowsH-samples);
+			final int strip = strips[pick];
+			strips[pick] = strips[samples];
+			strips[samples] = strip;
+
+			ComparisonResult errors = new ComparisonResult();
+			engine.calcRow(pOne, pTwo, pHeight, pGreyscale, strip, ssim, errors);
+			result.addErrors(errors);
+
+			double sum = 0;
+			for(int window=0;window<windowsW;window++) {
+				sum += ssim[window];
+				if(ssim[window]<min) {
+					min = ssim[window];
+				}
+				windowVariance.increment(ssim[window]);
+			}
+			stripMean[samples] = sum/windowsW;
+			stripSse[samples] = errors.getSseRed()+errors.getSseGreen()+errors.getSseBlue();
+			stripPixels[samples] = (long)pWidth*Math.min(pWindowSize, pHeight-strip*pWindowSize);
+			pixels += stripPixels[samples];
+			samples++;
+
+			if(pTargetError>0&&samples>=MINSAMPLES) {
+				if(ssimHalfWidth(stripMean, samples, windowsH)<=pTargetError) {
+					break;
+				}
+			}
+		}
+
+		double mean = 0;
+		for(int i=0;i<samples;i++) {
+			mean += stripMean[i];
+		}
+		mean /= samples;
+
+		final double ssimError;
+		final double mseError;
+		if(samples==windowsH) {
+			ssimError = 0;
+			mseError = 0;
+		} else {
+			final long sse = result.getSseRed()+result.getSseGreen()+result.getSseBlue();
+			ssimError = ssimHalfWidth(stripMean, samples, windowsH);
+			mseError = mseHalfWidth(stripSse, stripPixels, samples, windowsH, sse, pixels, channels);
+		}
+
+		result.setSsimMean(mean);
+		result.setSsimMin(min);
+		result.setSsimVariance(windowVariance.getResult());
+		result.setSample(pixels, ssimError, mseError);
+		result.setExact(samples==windowsH);
+
+		return result;
+	}
+
+	/**
+	 * Calculate the half-width of the 95% confidence interval for the SSIM mean
+	 * @param pStripMean mean SSIM of each sampled strip
+	 * @param pSamples number of strips sampled
+	 * @param pStrips total number of strips
+	 * @return half-width of the confidence interval
+	 */
+	private static double ssimHalfWidth(final double[] pStripMean, final int pSamples, final int pStrips) {
+		if(pSamples<2) return Double.POSITIVE_INFINITY;
+		double mean = 0;
+		for(int i=0;i<pSamples;i++) {
+			mean += pStripMean[i];
+		}
+		mean /= pSamples;
+		double sumSquares = 0;
+		for(int i=0;i<pSamples;i++) {
+			sumSquares += (pStripMean[i]-mean)*(pStripMean[i]-mean);
+		}
+		//with the finite population correction
+		final double fpc = 1-(double)pSamples/pStrips;
+		return Z95*Math.sqrt(fpc*sumSquares/(pSamples-1)/pSamples);
+	}
+
+	/**
+	 * Calculate the half-width of the 95% confidence interval for the MSE (a ratio estimate, as the
+	 * last strip may have fewer pixels)
+	 * @param pStripSse sum of squared errors of each sampled strip
+	 * @param pStripPixels number of pixels in each sampled strip
+	 * @param pSamples number of strips sampled
+	 * @param pStrips total number of strips
+	 * @param pSse sum of squared errors of all the sampled strips
+	 * @param pPixels number of pixels in all the sampled strips
+	 * @param pChannels number of channels in the sum of squared errors
+	 * @return half-width of the confidence interval
+	 */
+	private static double mseHalfWidth(final long[] pStripSse, final long[] pStripPixels, final int pSamples, final int pStrips,
+										final long pSse, final long pPixels, final int pChannels) {
+		if(pSamples<2) return Double.POSITIVE_INFINITY;
+		final double ratio = (double)pSse/pPixels;
+		double sumSquares = 0;
+		for(int i=0;i<pSamples;i++) {
+			final double residual = pStripSse[i]-ratio*pStripPixels[i];
+			sumSquares += residual*residual;
+		}
+		final double meanPixels = (double)pPixels/pSamples;
+		final double fpc = 1-(double)pSamples/pStrips;
+		return Z95*Math.sqrt(fpc*sumSquares/(pSamples-1)/pSamples)/(meanPixels*pChannels);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+import java.io.IOException;
+
+import org.apache.commons.math3.stat.descriptive.moment.Variance;
+
+/**
+ * Compares two images a band of rows at a time, accumulating the block SSIM and the error statistics
+ * (and so PSNR) as it goes.  Only one band (one row of SSIM windows) of each image is held in memory,
+ * plus the summed-area tables for that band, so peak memory depends on the image width rather than
+ * the image size.
+ *
+ * The SSIM mean and minimum are the same as for the in-memory calculation; the variance is calculated
+ * incrementally so may differ from it in the last few digits.
+ * @author wpalmer
+ *
+ */
+public class StreamingComparison {
+
+	private StreamingComparison() {}
+
+	/**
+	 * Compare two images, reading them a band at a time
+	 * @param pOne first image to compare
+	 * @param pTwo second image to compare
+	 * @param pWindowSize SSIM window size (and so the band height)
+	 * @param pMap array to hold the SSIM value for each window (windowsH*windowsW, row by row), or null
+	 * @return comparison result, or null if the images are different sizes
+	 * @throws IOException if there is an error reading the images
+	 */
+	public static ComparisonResult compare(final PixelSource pOne, final PixelSource pTwo, final int pWindowSize, final double[] pMap) 
+			throws IOException {
+
+		final int width = pOne.getWidth();
+		final int height = pOne.getHeight();
+		if(width!=pTwo.getWidth()||height!=pTwo.getHeight()) return null;
+
+		final boolean greyscale = pOne.isGreyscale()&&pTwo.isGreyscale();
+		final int windowsW = (width+pWindowSize-1)/pWindowSize;
+		final int windowsH = (height+pWindowSize-1)/pWindowSize;
+
+		ComparisonResult result = new ComparisonResult();
+		result.setWidth(width);
+		result.setHeight(height);
+		result.setGreyscale(greyscale);
+
+		final int[] bandOne = new int[width*pWindowSize];
+		final int[] bandTwo = new int[width*pWindowSize];
+		final double[] ssimRow = new double[windowsW];
+		final IntegralImageSSIM ssim = new IntegralImageSSIM(width, pWindowSize);
+		final Variance variance = new Variance();
+
+		double mean = 0;
+		double min = 1;
+
+		for(int band=0;band<windowsH;band++) {
+			final int startY = band*pWindowSize;
+			final int rows = Math.min(pWindowSize, height-startY);
+			pOne.getRows(startY, rows, bandOne);
+			pTwo.getRows(startY, rows, bandTwo);
+			ssim.calcBand(bandOne, bandTwo, rows, greyscale, ssimRow, result);
+			//same (window) order as the in-memory reduction
+			for(int window=0;window<windowsW;window++) {
+				mean += ssimRow[window];
+				if(ssimRow[window]<min) {
+					min = ssimRow[window];
+				}
+				variance.increment(ssimRow[window]);
+			}
+			if(null!=pMap) {
+				System.arraycopy(ssimRow, 0, pMap, band*windowsW, windowsW);
+			}
+		}
+
+		mean /= (windowsH*windowsW);
+
+		result.setSsimMean(mean);
+		result.setSsimMin(min);
+		result.setSsimVariance(variance.getResult());
+
+		return result;
+	}
+
+}
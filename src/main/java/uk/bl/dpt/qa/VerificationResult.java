@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 The British Library/SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.bl.dpt.qa;
+
+/**
+ * Result of a lossless verification (see LosslessVerification): whether two images decode to
+ * identical pixels, where they first differ if not, and a digest of the decoded pixels if they match.
+ * @author wpalmer
+ *
+ */
+public class VerificationResult {
+
+	private final boolean gSameSize;
+	private final int gFirstDifferenceX;
+	private final int gFirstDifferenceY;
+	private final String gDigest;
+
+	/**
+	 * Create a new VerificationResult
+	 * @param pSameSize whether the images have the same dimensions
+	 * @param pFirstDifferenceX column of the first differing pixel (-1 if none)
+	 * @param pFirstDifferenceY row of the first differing pixel (-1 if none)
+	 * @param pDigest digest of the decoded pixels (null unless identical)
+	 */
+	VerificationResult(final boolean pSameSize, final int pFirstDifferenceX, final int pFirstDifferenceY, final String pDigest) {
+		gSameSize = pSameSize;
+		gFirstDifferenceX = pFirstDifferenceX;
+		gFirstDifferenceY = pFirstDifferenceY;
+		gDigest = pDigest;
+	}
+
+	/**
+	 * @return true if the images are the same size and every pixel is identical
+	 */
+	public boolean isIdentical() {
+		return gSameSize&&gFirstDifferenceY<0;
+	}
+
+	/**
+	 * @return whether the images have the same dimensions
+	 */
+	public boolean isSameSize() {
+		return gSameSize;
+	}
+
+	/**
+	 * @return column of the first differing pixel in row order (-1 if identical or different sizes)
+	 */
+	public int getFirstDifferenceX() {
+		return gFirstDifferenceX;
+	}
+
+	/**
+	 * @return row of the first differing pixel (-1 if identical or different sizes)
+	 */
+	public int getFirstDifferenceY() {
+		return gFirstDifferenceY;
+	}
+
+	/**
+	 * @return hex SHA-256 digest of the decoded pixels if the images are identical, otherwise null.  The
+	 * samples of each pixel are digested row by row in band order (e.g. r,g,b, r,g,b,a or grey), one byte
+	 * each, or two bytes (big-endian) for samples of more than 8 bits.
+	 */
+	public String getDigest() {
+		return gDigest;
+	}
+
+}
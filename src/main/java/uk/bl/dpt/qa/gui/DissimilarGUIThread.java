@@ -24,17 +24,27 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.net.URL;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.Imaging;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import uk.bl.dpt.qa.DecodedImage;
 import uk.bl.dpt.qa.DissimilarV2;
+import uk.bl.dpt.qa.ImageDecoders;
+import uk.bl.dpt.qa.PixelBufferPool;
 import uk.bl.dpt.qa.gui.CheckResult.ManualCheck;
 import javafx.animation.FadeTransition;
 import javafx.application.Platform;
@@ -305,11 +315,19 @@ public class DissimilarGUIThread {
     private boolean gArePrecachingNow = false;
     private Image gPrecachedLeft = null;
     private Image gPrecachedRight = null;
+    private int gPrecachedScale = 1;
+    //reduction factor of the displayed right image, for mapping it onto the heatmap
+    private int gDisplayScale = 1;
     
     private boolean gResizeCodeHooked = false;
     
     private final int gFadeDelayMS = 500;
     private final int gThreadSleepMS = 200;
+    /**
+     * Largest width/height to decode images at when they are only displayed (not compared), 
+     * so large images are previewed with reduced resolution decodes
+     */
+    private static final int PREVIEWSIZE = 2048;
     /**
      * Minimum height for window
      */
@@ -334,6 +352,8 @@ public class DissimilarGUIThread {
         gArePrecachingNow = false;
         gPrecachedLeft = null;
         gPrecachedRight = null;
+        gPrecachedScale = 1;
+        gDisplayScale = 1;
     	imageLeft.setScaleX(1);
     	imageLeft.setScaleY(1);
     	imageRight.setScaleX(1);
@@ -736,8 +756,8 @@ public class DissimilarGUIThread {
 						Thread.sleep(gThreadSleepMS);
 					}
 				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					//stop waiting, but keep the interrupt
+					Thread.currentThread().interrupt();
 				}
 				
 				internalAfterGUIThread();
@@ -796,13 +816,17 @@ public class DissimilarGUIThread {
     			@Override
     			protected Integer call() throws Exception {
     				gLogger.trace("just loading images for precache (no calcs)");
-    				final Image left = SwingFXUtils.toFXImage(internalLoadImage(gResults.get(pRecord).getFileOne()), null);
-    				final Image right = SwingFXUtils.toFXImage(internalLoadImage(gResults.get(pRecord).getFileTwo()), null);
+    				final int scale = ImageDecoders.getPreviewScale(gResults.get(pRecord).getFileOne(), PREVIEWSIZE);
+    				final DecodedImage one = internalLoadImage(gResults.get(pRecord).getFileOne(), null, scale);
+    				final DecodedImage two = internalLoadImage(gResults.get(pRecord).getFileTwo(), one.getDecoder(), scale);
+    				final Image left = SwingFXUtils.toFXImage(one.getImage(), null);
+    				final Image right = SwingFXUtils.toFXImage(two.getImage(), null);
     				Platform.runLater(new Runnable() {
     					//@Override
     					public void run() {
     						gPrecachedLeft = left;
     						gPrecachedRight = right;
+    						gPrecachedScale = two.getScale();
     	    				gPrecached = pRecord;
     	    		    	gArePrecachingNow = false;
     					}
@@ -848,8 +872,8 @@ public class DissimilarGUIThread {
 						Thread.sleep(gThreadSleepMS);
 					}
 				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					//stop waiting, but keep the interrupt
+					Thread.currentThread().interrupt();
 				}
     		}
     		gLogger.trace("Displaying precached record: "+pRecord);
@@ -860,6 +884,7 @@ public class DissimilarGUIThread {
     		internalDisableInterface(true);
     		imageLeft.setImage(gPrecachedLeft);
     		imageRight.setImage(gPrecachedRight);
+    		gDisplayScale = gPrecachedScale;
     		imageLeftLabel.setText(gResults.get(pRecord).getFileOne().getName());
     		imageRightLabel.setText(gResults.get(pRecord).getFileTwo().getName());
     		psnrLabelValue.setText(gResults.get(pRecord).getPsnr()+"");
@@ -952,7 +977,10 @@ public class DissimilarGUIThread {
 					}
 				});
 
-    			final BufferedImage one = internalLoadImage(gResults.get(pRecord).getFileOne());
+    			//only displayed, so large images can be decoded at a reduced resolution
+    			final int scale = ImageDecoders.getPreviewScale(gResults.get(pRecord).getFileOne(), PREVIEWSIZE);
+    			final DecodedImage decodedOne = internalLoadImage(gResults.get(pRecord).getFileOne(), null, scale);
+    			final BufferedImage one = decodedOne.getImage();
     			Platform.runLater(new Runnable() {
     				//@Override
     				public void run() {
@@ -960,11 +988,13 @@ public class DissimilarGUIThread {
     				}
     			});
     			updateProgress(++count, max);
-    			final BufferedImage two = internalLoadImage(gResults.get(pRecord).getFileTwo());
+    			final DecodedImage decodedTwo = internalLoadImage(gResults.get(pRecord).getFileTwo(), decodedOne.getDecoder(), scale);
+    			final BufferedImage two = decodedTwo.getImage();
     			Platform.runLater(new Runnable() {
     				//@Override
     				public void run() {
     					imageRight.setImage(SwingFXUtils.toFXImage(two, null));
+    					gDisplayScale = decodedTwo.getScale();
     					internalImageZoomToFit();
     				}
     			});
@@ -988,25 +1018,27 @@ public class DissimilarGUIThread {
     /**
      * Load an image 
      * @param pImage image to load
-     * @return loaded image
+     * @param pDecoder decoder to try first (the decoder of the other image of the pair, or null)
+     * @return loaded image (with a null image if it cannot be decoded)
+     */
+    private DecodedImage internalLoadImage(File pImage, String pDecoder) {
+    	return internalLoadImage(pImage, pDecoder, 1);
+    }
+
+    /**
+     * Load an image at a reduced resolution (for display only)
+     * @param pImage image to load
+     * @param pDecoder decoder to try first (the decoder of the other image of the pair, or null)
+     * @param pScale reduction factor (see ImageDecoders.getPreviewScale)
+     * @return loaded image and its reduction factor (with a null image if it cannot be decoded)
      */
-    private BufferedImage internalLoadImage(File pImage) {
+    private DecodedImage internalLoadImage(File pImage, String pDecoder, int pScale) {
     	try {
-    		if(pImage.getName().toLowerCase().endsWith(".jp2")) {
-    			//load a jp2?
-    			//FIXME: use openjpeg?
-    			//this uses jai (jj2000)
-    			//BufferedImage image = ImageIO.read(pImage);
-    			BufferedImage image = null;//OpenJPEGLoader.loadJP2(pImage);
-    			return image;
-    		}
-			return Imaging.getBufferedImage(pImage);
+    		//same decoders as the command line, so jp2 files use openjpeg
+			return DissimilarV2.getDecoders().decode(pImage, pScale, pDecoder);
 		} catch (IOException e) {
-			return null;
-		} catch (NullPointerException e) {
-			return null;
-		} catch (ImageReadException e) {
-			return null;
+			gLogger.error("Cannot decode "+pImage+": "+e.getMessage());
+			return new DecodedImage(null, 1);
 		}
     }
     
@@ -1038,11 +1070,16 @@ public class DissimilarGUIThread {
 						}
 		    		}
 		    		
+		    		//the displayed image may be a reduced resolution preview; the heatmap has one pixel per
+		    		//window of the full resolution image
+		    		final int scale = gDisplayScale;
 		    		for(int y=0;y<image.getHeight();y++) {    		
 		    			for(int x=0;x<image.getWidth();x++) {
 		    				int rgb = image.getRGB(x, y);
 
-		    				Color heatmapColor = new Color(gHeatmap.getRGB((x/DissimilarV2.SSIMWINDOWSIZE), (y/DissimilarV2.SSIMWINDOWSIZE)));
+		    				final int heatmapX = Math.min(gHeatmap.getWidth()-1, x*scale/DissimilarV2.SSIMWINDOWSIZE);
+		    				final int heatmapY = Math.min(gHeatmap.getHeight()-1, y*scale/DissimilarV2.SSIMWINDOWSIZE);
+		    				Color heatmapColor = new Color(gHeatmap.getRGB(heatmapX, heatmapY));
 		    				int heatmapPixel = heatmapColor.getGreen();//&maxPixelValue;
 		    				if(heatmapColor.getGreen()!=heatmapColor.getBlue()&&heatmapColor.getBlue()!=heatmapColor.getRed()) {
 		    					gLogger.error("Heatmap error (should not happen)");
@@ -1111,6 +1148,9 @@ public class DissimilarGUIThread {
     	private boolean ignoreClaims = false;
     	private boolean populatePrecache = false;
     	
+    	//pixel arrays are kept for the next pair, rather than reallocated (and collected) each time
+    	private final PixelBufferPool bufferPool = new PixelBufferPool(2);
+    	
     	/**
     	 * Create a new ProcessingLoadTask
     	 * @param pResults list of objects to process
@@ -1130,176 +1170,249 @@ public class DissimilarGUIThread {
 
 			gLogger.trace("LoadTask calculating: "+taskResults.size()+" entries");
 			
-			for(CheckResult result:taskResults) {
-
-				//some other process had claimed this record for processing
-				if(!ignoreClaims&!result.claimForProcessing()) {
-					gLogger.trace("LoadTask Skipping: "+result.toCSV());
-					continue;
-				} else {
-					gLogger.trace("LoadTask Processing: "+result.toCSV());
+			//in a batch, the next pair is decoded while this one is compared (only one pair ahead, so at
+			//most one extra pair of images is held in memory)
+			final List<CheckResult> results = new ArrayList<CheckResult>(taskResults);
+			final ExecutorService prefetcher = results.size()>1?Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable pRunnable) {
+					final Thread thread = new Thread(pRunnable);
+					thread.setDaemon(true);
+					return thread;
 				}
+			}):null;
+			Future<DecodedImage[]> prefetch = null;
+			CheckResult prefetched = null;
+			
+			try {
+				for(int i=0;i<results.size();i++) {
+					final CheckResult result = results.get(i);
+
+					//some other process had claimed this record for processing
+					if(!ignoreClaims&!result.claimForProcessing()) {
+						gLogger.trace("LoadTask Skipping: "+result.toCSV());
+						continue;
+					} else {
+						gLogger.trace("LoadTask Processing: "+result.toCSV());
+					}
 				
-				result.isProcessing = true;
+					result.isProcessing = true;
 				
-				if(updateGUI) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							internalBeforeGUIThread();
-							//filenames are set in calling method due to issues accessing members here
-							imageLeft.setImage(null);
-							imageRight.setImage(null);
-							String calculating = "Working";
-							psnrLabelValue.setText(calculating);
-							ssimLabelValue.setText(calculating);
-							ssimVarianceValue.setText(calculating);
-							ssimMinValue.setText(calculating);
+					DecodedImage[] pair = null;
+					if(null!=prefetch) {
+						if(prefetched==result) {
+							try {
+								pair = prefetch.get();
+							} catch (InterruptedException e) {
+								//cancelled: stop, keeping the interrupt
+								Thread.currentThread().interrupt();
+								return null;
+							} catch (ExecutionException e) {
+								//load the pair here instead
+								gLogger.error("Prefetch failed: "+result.toCSV());
+							}
+						} else {
+							prefetch.cancel(true);
 						}
-					});
-				}
+						prefetch = null;
+					}
+				
+					if(updateGUI) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								internalBeforeGUIThread();
+								//filenames are set in calling method due to issues accessing members here
+								imageLeft.setImage(null);
+								imageRight.setImage(null);
+								String calculating = "Working";
+								psnrLabelValue.setText(calculating);
+								ssimLabelValue.setText(calculating);
+								ssimVarianceValue.setText(calculating);
+								ssimMinValue.setText(calculating);
+							}
+						});
+					}
 
-				//if any more updateProgress() calls are added then increase this value!!!
-				int maxProgress = 8;
-				int progress = 0;
+					//if any more updateProgress() calls are added then increase this value!!!
+					int maxProgress = 8;
+					int progress = 0;
 
-				final BufferedImage imageOne = internalLoadImage(result.getFileOne());
-				updateProgress(++progress, maxProgress);
+					final DecodedImage decodedOne = (null!=pair)?pair[0]:internalLoadImage(result.getFileOne(), null);
+					final BufferedImage imageOne = decodedOne.getImage();
+					updateProgress(++progress, maxProgress);
 
-				if(updateGUI) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							if(imageOne!=null) imageLeft.setImage(SwingFXUtils.toFXImage(imageOne, null));
-						}
-					});
-				}
+					if(updateGUI) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								if(imageOne!=null) imageLeft.setImage(SwingFXUtils.toFXImage(imageOne, null));
+							}
+						});
+					}
 				
-				if(populatePrecache) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							gPrecachedLeft = SwingFXUtils.toFXImage(imageOne, null);
-						}
-					});
-				}
+					if(populatePrecache) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								gPrecachedLeft = SwingFXUtils.toFXImage(imageOne, null);
+							}
+						});
+					}
 
-				final BufferedImage imageTwo = internalLoadImage(result.getFileTwo());    	
-				updateProgress(++progress, maxProgress);
+					//the same decoder for both images, so decoder differences do not show up as image differences
+					final BufferedImage imageTwo = ((null!=pair)?pair[1]:internalLoadImage(result.getFileTwo(), decodedOne.getDecoder())).getImage();
+					pair = null;
+					updateProgress(++progress, maxProgress);
 
-				if(imageOne!=null&imageTwo!=null) {
-					//	    		System.out.println("Loaded ok");
-				} else {
-					gLogger.error("Loading error: "+result.toCSV());
-					//re-enable GUI here
-					if(updateGUI) {
-						internalAfterGUIThread();
+					if(null!=prefetcher&&i+1<results.size()) {
+						prefetched = results.get(i+1);
+						if(!prefetched.processed&&!prefetched.isProcessing) {
+							prefetch = prefetcher.submit(loadPair(prefetched));
+						}
 					}
-					return null;
-				}
 
-				final boolean greyscale = (imageOne.getType()==BufferedImage.TYPE_BYTE_GRAY||imageOne.getType()==BufferedImage.TYPE_USHORT_GRAY);
+					if(imageOne!=null&imageTwo!=null) {
+						//	    		System.out.println("Loaded ok");
+					} else {
+						gLogger.error("Loading error: "+result.toCSV());
+						//re-enable GUI here
+						if(updateGUI) {
+							internalAfterGUIThread();
+						}
+						return null;
+					}
 
-				if(updateGUI) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							imageRight.setImage(SwingFXUtils.toFXImage(imageTwo, null));
+					if(imageOne.getWidth()!=imageTwo.getWidth()||imageOne.getHeight()!=imageTwo.getHeight()) {
+						gLogger.error("Images are different sizes: "+result.toCSV());
+						if(updateGUI) {
+							internalAfterGUIThread();
 						}
-					});
-				}
+						return null;
+					}
+
+					if(updateGUI) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								imageRight.setImage(SwingFXUtils.toFXImage(imageTwo, null));
+								gDisplayScale = 1;
+							}
+						});
+					}
 				
-				if(populatePrecache) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							gPrecachedRight = SwingFXUtils.toFXImage(imageTwo, null);
-						}
-					});
-				}
+					if(populatePrecache) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								gPrecachedRight = SwingFXUtils.toFXImage(imageTwo, null);
+								gPrecachedScale = 1;
+							}
+						});
+					}
 
-				int[] oneA = imageOne.getRGB(0, 0, imageOne.getWidth(), imageOne.getHeight(), null, 0, imageOne.getWidth());
-				updateProgress(++progress, maxProgress);
-				int[] twoA = imageTwo.getRGB(0, 0, imageTwo.getWidth(), imageTwo.getHeight(), null, 0, imageTwo.getWidth());
-				updateProgress(++progress, maxProgress);
-				final int width = imageOne.getWidth();
-				final int height = imageOne.getHeight();
+					//the pooled arrays may be longer than width*height, so only use methods that take the dimensions
+					final int[] oneA = bufferPool.getPixels(imageOne, 0);
+					updateProgress(++progress, maxProgress);
+					final int[] twoA = bufferPool.getPixels(imageTwo, 1);
+					updateProgress(++progress, maxProgress);
+					final int width = imageOne.getWidth();
+					final int height = imageOne.getHeight();
+					final boolean greyscale = DissimilarV2.isGreyscale(imageOne.getType(), oneA, width*height)&&
+												DissimilarV2.isGreyscale(imageTwo.getType(), twoA, width*height);
 
-				//calculate psnr and ssim
-				final double psnr = DissimilarV2.calcPSNR(oneA, twoA, greyscale);
-				result.setPsnr(psnr);
+					//calculate psnr and ssim
+					final double psnr = DissimilarV2.calcErrors(oneA, twoA, width, height, greyscale).getPsnr();
+					result.setPsnr(psnr);
 
-				if(updateGUI) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							psnrLabelValue.setText(psnr+"");
-						}
-					});
-				}
-				updateProgress(++progress, maxProgress);
-
-				List<Double> ssimMinimum = new LinkedList<Double>();
-				List<Double> ssimVariance = new LinkedList<Double>();
-				final File tempHeatmap = File.createTempFile(result.getFileOne().getName()+"-"+result.getFileTwo().getName()+"-", ".png");
-				final double ssim = DissimilarV2.calcSSIM(oneA, twoA, width, height, greyscale, tempHeatmap.getAbsolutePath(), ssimMinimum, ssimVariance);
-				tempHeatmap.deleteOnExit();
-				result.setHeatmapTemp(tempHeatmap);
-				result.setSsimMean(ssim);
-				final double ssimVar = ssimVariance.get(0);
-				result.setSsimVariance(ssimVar);
-				final double ssimMin = ssimMinimum.get(0);
-				result.setSsimMin(ssimMin);
-				updateProgress(++progress, maxProgress);
-
-				if(updateGUI) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							try {
-								gHeatmap = Imaging.getBufferedImage(tempHeatmap);
-							} catch (IOException | ImageReadException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
+					if(updateGUI) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								psnrLabelValue.setText(psnr+"");
 							}
-							ssimLabelValue.setText(ssim+"");
-							internalSetSSIMVariance(ssimVar);
-							ssimMinValue.setText(ssimMin+"");
-							internalDisableInterface(false);
-						}
-					});
-				}
-				updateProgress(++progress, maxProgress);
+						});
+					}
+					updateProgress(++progress, maxProgress);
+
+					List<Double> ssimMinimum = new LinkedList<Double>();
+					List<Double> ssimVariance = new LinkedList<Double>();
+					final File tempHeatmap = File.createTempFile(result.getFileOne().getName()+"-"+result.getFileTwo().getName()+"-", ".png");
+					final double ssim = DissimilarV2.calcSSIM(oneA, twoA, width, height, greyscale, tempHeatmap.getAbsolutePath(), ssimMinimum, ssimVariance);
+					tempHeatmap.deleteOnExit();
+					result.setHeatmapTemp(tempHeatmap);
+					result.setSsimMean(ssim);
+					final double ssimVar = ssimVariance.get(0);
+					result.setSsimVariance(ssimVar);
+					final double ssimMin = ssimMinimum.get(0);
+					result.setSsimMin(ssimMin);
+					updateProgress(++progress, maxProgress);
 
-				//try and free some memory
-				oneA = null;
-				twoA = null;
-				System.gc();
+					if(updateGUI) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								try {
+									gHeatmap = Imaging.getBufferedImage(tempHeatmap);
+								} catch (IOException | ImageReadException e) {
+									// TODO Auto-generated catch block
+									e.printStackTrace();
+								}
+								ssimLabelValue.setText(ssim+"");
+								internalSetSSIMVariance(ssimVar);
+								ssimMinValue.setText(ssimMin+"");
+								internalDisableInterface(false);
+							}
+						});
+					}
+					updateProgress(++progress, maxProgress);
 
-				updateProgress(++progress, maxProgress);
+					updateProgress(++progress, maxProgress);
 
-				if(updateGUI) {
-					internalAfterGUIThread();
-					internalImageZoomToFit();
-				}
+					if(updateGUI) {
+						internalAfterGUIThread();
+						internalImageZoomToFit();
+					}
 
-				if(populatePrecache) {
-					Platform.runLater(new Runnable() {
-						//@Override
-						public void run() {
-							gArePrecachingNow = false;
-					    	gLogger.trace("Precaching done (incl calcs) for record "+gPrecached);
-						}
-					});
-				}
+					if(populatePrecache) {
+						Platform.runLater(new Runnable() {
+							//@Override
+							public void run() {
+								gArePrecachingNow = false;
+						    	gLogger.trace("Precaching done (incl calcs) for record "+gPrecached);
+							}
+						});
+					}
 				
-				result.processed = true;
-				result.isProcessing = false;
-				//System.out.println(result.toCSV());
+					result.processed = true;
+					result.isProcessing = false;
+					//System.out.println(result.toCSV());
 
+				}
+			} finally {
+				if(null!=prefetch) prefetch.cancel(true);
+				if(null!=prefetcher) prefetcher.shutdownNow();
 			}
+			gLogger.debug("LoadTask buffer pool: "+bufferPool);
 			return taskResults.size();
 		}
+
+		/**
+		 * Load both images of a pair, for decoding the next pair of a batch in the background
+		 * @param pResult pair to load
+		 * @return both decoded images (with null images if they cannot be decoded)
+		 */
+		private Callable<DecodedImage[]> loadPair(final CheckResult pResult) {
+			return new Callable<DecodedImage[]>() {
+				@Override
+				public DecodedImage[] call() {
+					final DecodedImage one = internalLoadImage(pResult.getFileOne(), null);
+					//the same decoder for both images, so decoder differences do not show up as image differences
+					final DecodedImage two = internalLoadImage(pResult.getFileTwo(), one.getDecoder());
+					return new DecodedImage[] { one, two };
+				}
+			};
+		}
     }
     
     
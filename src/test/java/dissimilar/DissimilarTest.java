@@ -18,11 +18,62 @@ package dissimilar;
 
 import static org.junit.Assert.*;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import javax.imageio.ImageIO;
+
+import org.apache.commons.imaging.Imaging;
 import org.junit.Test;
 
+import uk.bl.dpt.openjpeg.OpenJPEGLoader;
+import uk.bl.dpt.openjpeg.OpenJPEGPool;
+import uk.bl.dpt.openjpeg.PNMReader;
+import uk.bl.dpt.openjpeg.ToolRunner;
+import uk.bl.dpt.qa.BufferedImagePixelSource;
+import uk.bl.dpt.qa.CommonsImagingDecoder;
+import uk.bl.dpt.qa.ComparisonResult;
+import uk.bl.dpt.qa.DecodedImage;
 import uk.bl.dpt.qa.DissimilarV2;
+import uk.bl.dpt.qa.ImageDecoder;
+import uk.bl.dpt.qa.ImageDecoders;
+import uk.bl.dpt.qa.ImageIODecoder;
+import uk.bl.dpt.qa.LosslessVerification;
+import uk.bl.dpt.qa.LumaPlane;
+import uk.bl.dpt.qa.MultiScaleSSIM;
+import uk.bl.dpt.qa.OffHeapPixels;
+import uk.bl.dpt.qa.OpenJPEGDecoder;
+import uk.bl.dpt.qa.PixelBufferPool;
+import uk.bl.dpt.qa.PixelKernels;
+import uk.bl.dpt.qa.RasterPixels;
+import uk.bl.dpt.qa.SSIMParameters;
+import uk.bl.dpt.qa.SSIMResult;
+import uk.bl.dpt.qa.StreamingComparison;
+import uk.bl.dpt.qa.VerificationResult;
 
 /**
  * Test cases for DissimilarV2
@@ -406,9 +457,1388 @@ public class DissimilarTest {
 		}
 		
 	}
-	
 
+	@Test
+	public final void testCalcSSIMThreadsDeterministic() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		List<Double> min = new LinkedList<Double>();
+		List<Double> variance = new LinkedList<Double>();
+		final double ssim = DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, min, variance);
+		
+		//the reduction must give exactly the same values whatever the thread count
+		for(int threads:new int[] { 2, 3, 7, 32 }) {
+			List<Double> threadMin = new LinkedList<Double>();
+			List<Double> threadVariance = new LinkedList<Double>();
+			final double threadSSIM = DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, threadMin, threadVariance, threads);
+			assertEquals("mean, threads: "+threads, Double.doubleToLongBits(ssim), Double.doubleToLongBits(threadSSIM));
+			assertEquals("min, threads: "+threads, Double.doubleToLongBits(min.get(0)), Double.doubleToLongBits(threadMin.get(0)));
+			assertEquals("variance, threads: "+threads, Double.doubleToLongBits(variance.get(0)), Double.doubleToLongBits(threadVariance.get(0)));
+		}
+		
+		//an interrupted caller gets no result, and is still interrupted afterwards
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Thread.currentThread().interrupt();
+			assertEquals(-1, DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, null, null, executor), 0);
+			assertTrue(Thread.interrupted());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+	}
+
+	@Test
+	public final void testCalcSSIMGaussian1() throws Exception {
+		
+		//checked against a direct (non-separable) 11x11 gaussian window calculation
+		final double knownSSIM = 0.9759492184486143;
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		final double ssim = DissimilarV2.calcSSIMGaussian(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, null, null);
+		assertEquals(knownSSIM, ssim, 0.000001);
+		
+		final double same = DissimilarV2.calcSSIMGaussian(pair.gOnePixels, pair.gOnePixels, pair.gWidth, pair.gHeight, false, null, null, null);
+		assertEquals(1.0, same, 0.000001);
+		
+	}
+
+	@Test
+	public final void testCalcMetrics1() {
+		
+		//same ground truth as testCalcPSNR7 and testCalcSSIM7
+		final double imagemagickPSNR = 21.2522;
+		final double knownSSIM = 0.877086605653693;
+		
+		final File testmaster = new File(TESTFILEDIR+"test1-colour.png");
+		final File testcopy = new File(TESTFILEDIR+"test1-colour-redline.png");
+		
+		final ComparisonResult result = DissimilarV2.calcMetrics(testmaster, testcopy);
+		assertNotNull(result);
+		assertEquals(imagemagickPSNR, result.getPsnr(), 0.0001);
+		assertEquals(knownSSIM, result.getSsimMean(), 0.000001);
+		assertTrue(result.getDifferingPixels()>0);
+		assertTrue(result.getMaxAbsoluteError()>0);
+		
+	}
 	
+	@Test
+	public final void testCalcMetrics2() {
+		
+		final File testmaster = new File(TESTFILEDIR+"test1-bw.png");
+		final File testcopy = new File(TESTFILEDIR+"test1-bw.png");
+		
+		final ComparisonResult result = DissimilarV2.calcMetrics(testmaster, testcopy);
+		assertNotNull(result);
+		assertEquals(Double.POSITIVE_INFINITY, result.getPsnr(), 0.0001);
+		assertEquals(1.0, result.getSsimMean(), 0.000001);
+		assertEquals(0, result.getDifferingPixels());
+		assertEquals(0, result.getMaxAbsoluteError());
+		
+	}
+
+	@Test
+	public final void testCalcLumaPrecision() throws Exception {
+		
+		final BufferedImage image = Imaging.getBufferedImage(new File(TESTFILEDIR+"test1-colour.png"));
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+		
+		//documented error bounds from LumaPlane.Precision
+		final LumaPlane.Precision[] precisions = { LumaPlane.Precision.DOUBLE, LumaPlane.Precision.FLOAT, 
+													LumaPlane.Precision.EXACT, LumaPlane.Precision.FIXED16 };
+		final double[] bounds = { 1e-12, Math.pow(2, -17)+1e-12, 1e-12, 1.0/512+1e-12 };
+		
+		for(int i=0;i<precisions.length;i++) {
+			final LumaPlane luma = DissimilarV2.calcLuma(pixels, width, height, false, precisions[i]);
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					final int pixel = pixels[y*width+x];
+					final double expected = 0.2126*((pixel >> 16) & 0xFF)+0.7152*((pixel >> 8) & 0xFF)+0.0722*(pixel & 0xFF);
+					assertEquals(precisions[i].toString(), expected, luma.get(x, y), bounds[i]);
+				}
+			}
+		}
+		
+		final double ssim = DissimilarV2.calcSSIMGaussian(DissimilarV2.calcLuma(pixels, width, height, false, LumaPlane.Precision.FIXED16), 
+															DissimilarV2.calcLuma(pixels, width, height, false, LumaPlane.Precision.FIXED16), null, null, null);
+		assertEquals(1.0, ssim, 0.000001);
+		
+	}
+
+	@Test
+	public final void testCalcMetricsStreaming() throws Exception {
+		
+		final String[][] pairs = { { "test1-bw.png.bmp", "test1-bw.jpg.bmp" }, { "test1-colour.png", "test1-colour-redline.png" } };
+		
+		for(String[] pair:pairs) {
+			final File testmaster = new File(TESTFILEDIR+pair[0]);
+			final File testcopy = new File(TESTFILEDIR+pair[1]);
+			
+			final ComparisonResult streamed = DissimilarV2.calcMetricsStreaming(testmaster, testcopy, null);
+			final ComparisonResult inMemory = DissimilarV2.calcMetrics(testmaster, testcopy);
+			assertNotNull(streamed);
+			assertEquals(inMemory.getPsnr(), streamed.getPsnr(), 0.0000001);
+			assertEquals(inMemory.getSsimMean(), streamed.getSsimMean(), 0.0000001);
+			assertEquals(inMemory.getSsimMin(), streamed.getSsimMin(), 0.0000001);
+			assertEquals(inMemory.getSsimVariance(), streamed.getSsimVariance(), 0.0000001);
+			assertEquals(inMemory.getDifferingPixels(), streamed.getDifferingPixels());
+		}
+
+		//a grey image against a colour one is compared in colour, not just its blue channel
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		final BufferedImage grey = new BufferedImage(pair.gWidth, pair.gHeight, BufferedImage.TYPE_BYTE_GRAY);
+		grey.getGraphics().drawImage(pair.gOne, 0, 0, null);
+		final ComparisonResult mixed = StreamingComparison.compare(new BufferedImagePixelSource(grey), new BufferedImagePixelSource(pair.gTwo), 8, null);
+		final int[] greyA = RasterPixels.getPixels(grey);
+		assertFalse(mixed.isGreyscale());
+		assertEquals(DissimilarV2.calcSSIM(greyA, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, null, null), mixed.getSsimMean(), 0.0000001);
 
+	}
+
+	@Test
+	public final void testPixelKernels() {
+		
+		//long enough that the squared errors do not fit in an int (or one block of the kernel)
+		final int length = 100000;
+		final int[] one = new int[length];
+		final int[] two = new int[length];
+		for(int i=0;i<length;i++) {
+			one[i] = 255;
+		}
+		
+		assertEquals(255L*255*length, PixelKernels.sumSquaredError(one, two, length));
+		assertEquals(255, PixelKernels.maxAbsoluteError(two, one, length));
+		
+		final int[] pixelsOne = { 0x000000, 0x102030, 0xFFFFFF, 0x0000FF };
+		final int[] pixelsTwo = { 0xFF000000, 0x102031, 0xFFFEFF, 0x0000FF };
+		assertEquals(2, PixelKernels.countDiffering(pixelsOne, pixelsTwo, 0, pixelsOne.length, 0xFFFFFF));
+		assertEquals(1, PixelKernels.countDiffering(pixelsOne, pixelsTwo, 0, pixelsOne.length, 0xFF));
+		
+		final int[] red = new int[4], green = new int[4], blue = new int[4], luma = new int[4];
+		PixelKernels.unpack(pixelsOne, 0, pixelsOne.length, red, green, blue);
+		PixelKernels.luma(red, green, blue, pixelsOne.length, luma);
+		assertEquals(2126*0x10+7152*0x20+722*0x30, luma[1]);
+		assertEquals(255*LumaPlane.LUMASCALE, luma[2]);
+		
+	}
+
+	@Test
+	public final void testCalcMetricsThreshold() throws Exception {
+		
+		//same ground truth as testCalcMetrics1
+		final double imagemagickPSNR = 21.2522;
+		final double knownSSIM = 0.877086605653693;
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		//thresholds are met, so everything is calculated
+		ComparisonResult result = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 0.8, 20);
+		assertTrue(result.isAccepted());
+		assertTrue(result.isExact());
+		assertEquals(imagemagickPSNR, result.getPsnr(), 0.0001);
+		assertEquals(knownSSIM, result.getSsimMean(), 0.000001);
+		//reduced as for the full calculation
+		final ComparisonResult full = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 1);
+		assertEquals(full.getSsimMin(), result.getSsimMin(), 0);
+		assertEquals(full.getSsimVariance(), result.getSsimVariance(), 0);
+		
+		//fails the psnr threshold part way through, so the values are upper bounds
+		result = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, Double.NEGATIVE_INFINITY, 40);
+		assertFalse(result.isAccepted());
+		assertFalse(result.isExact());
+		assertTrue(Double.isNaN(result.getSsimVariance()));
+		assertTrue(result.getPsnr()>imagemagickPSNR-0.0001);
+		assertTrue(result.getSsimMean()>knownSSIM-0.000001);
+		
+		result = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 0.95, Double.NEGATIVE_INFINITY);
+		assertFalse(result.isAccepted());
+		assertTrue(result.getSsimMean()>knownSSIM-0.000001);
+		
+	}
+
+	@Test
+	public final void testCalcMetricsSampled() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour.jpg");
+		
+		//tile the test images so there are enough strips to sample from
+		final int width = pair.gWidth*10;
+		final int height = pair.gHeight*10;
+		final int[] one = tile(pair.gOnePixels, pair.gWidth, pair.gHeight, 10);
+		final int[] two = tile(pair.gTwoPixels, pair.gWidth, pair.gHeight, 10);
+		
+		final ComparisonResult full = DissimilarV2.calcMetrics(one, two, width, height, false, null, 1);
+		
+		ComparisonResult result = DissimilarV2.calcMetricsSampled(one, two, width, height, false, 0.25, 0, 
+																	Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		assertTrue(result.isSampled());
+		assertFalse(result.isExact());
+		assertTrue(result.getSampledPixels()<(long)width*height);
+		//a fixed seed is used, so this is repeatable
+		assertTrue(result.getSsimLower()<=full.getSsimMean()&&full.getSsimMean()<=result.getSsimUpper());
+		assertTrue(result.getPsnrLower()<=full.getPsnr()&&full.getPsnr()<=result.getPsnrUpper());
+		
+		//sampling everything gives the exact values
+		result = DissimilarV2.calcMetricsSampled(one, two, width, height, false, 1, 0, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		assertTrue(result.isExact());
+		assertEquals(full.getSsimMean(), result.getSsimMean(), 0.000001);
+		assertEquals(full.getPsnr(), result.getPsnr(), 0.000001);
+		
+		//the interval includes the threshold, so the full calculation is done
+		result = DissimilarV2.calcMetricsSampled(one, two, width, height, false, 0.25, 0, full.getSsimMean(), Double.NEGATIVE_INFINITY);
+		assertFalse(result.isSampled());
+		assertTrue(result.isExact());
+		assertEquals(full.getSsimMean(), result.getSsimMean(), 0.000001);
+		
+	}
+
+	@Test
+	public final void testCalcMSSSIM() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour.jpg");
+		
+		//too small for five scales of 11x11 windows
+		assertNull(DissimilarV2.calcMSSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false));
+		
+		final int width = pair.gWidth*3;
+		final int height = pair.gHeight*3;
+		final int[] one = tile(pair.gOnePixels, pair.gWidth, pair.gHeight, 3);
+		final int[] two = tile(pair.gTwoPixels, pair.gWidth, pair.gHeight, 3);
+		
+		ComparisonResult result = DissimilarV2.calcMSSSIM(one, one, width, height, false);
+		assertEquals(1.0, result.getMsssim(), 0.000001);
+		
+		result = DissimilarV2.calcMSSSIM(one, two, width, height, false);
+		assertEquals(MultiScaleSSIM.WEIGHTS.length, result.getMsssimContrast().length);
+		assertTrue(result.getMsssim()>0&&result.getMsssim()<1);
+		//the first scale is the single scale gaussian ssim, and the same pass gives psnr
+		assertEquals(DissimilarV2.calcSSIMGaussian(one, two, width, height, false, null, null, null), result.getSsimMean(), 0.000001);
+		assertEquals(DissimilarV2.calcPSNR(one, two, false), result.getPsnr(), 0.000001);
+		
+		//dimensions whose product overflows an int are refused, not allocated wrongly
+		assertNull(DissimilarV2.calcMSSSIM(one, two, 65536, 65536, false));
+		try {
+			MultiScaleSSIM.compare(one, two, 65536, 65536, false);
+			fail("overflowing dimensions accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		
+	}
+
+	@Test
+	public final void testRasterPixels() throws Exception {
+		
+		final BufferedImage source = Imaging.getBufferedImage(new File(TESTFILEDIR+"test1-colour-redline.png"));
+		final int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, 
+								BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR };
+		
+		for(int type:types) {
+			final BufferedImage image = new BufferedImage(source.getWidth(), source.getHeight(), type);
+			image.getGraphics().drawImage(source, 0, 0, null);
+			//whole images and sub-images (which have offsets into the raster data)
+			final BufferedImage[] images = { image, image.getSubimage(3, 5, 40, 30) };
+			for(BufferedImage test:images) {
+				final int width = test.getWidth();
+				final int[] expected = test.getRGB(0, 0, width, test.getHeight(), null, 0, width);
+				final int[] pixels = RasterPixels.getPixels(test);
+				final int[] rows = new int[width*4];
+				RasterPixels.getRows(test, 2, 4, rows);
+				for(int i=0;i<expected.length;i++) {
+					//the alpha byte is not used
+					assertEquals(expected[i] & 0xFFFFFF, pixels[i] & 0xFFFFFF);
+				}
+				for(int i=0;i<rows.length;i++) {
+					assertEquals(expected[2*width+i] & 0xFFFFFF, rows[i] & 0xFFFFFF);
+				}
+			}
+		}
+		
+		//grey values are the stored samples, without colour space conversion
+		final BufferedImage grey = new BufferedImage(3, 1, BufferedImage.TYPE_USHORT_GRAY);
+		grey.getRaster().setSample(0, 0, 0, 0);
+		grey.getRaster().setSample(1, 0, 0, 0x8080);
+		grey.getRaster().setSample(2, 0, 0, 0xFFFF);
+		final int[] pixels = RasterPixels.getPixels(grey);
+		assertEquals(0x000000, pixels[0] & 0xFFFFFF);
+		assertEquals(0x808080, pixels[1] & 0xFFFFFF);
+		assertEquals(0xFFFFFF, pixels[2] & 0xFFFFFF);
+		
+	}
+
+	/**
+	 * Test comparison of 16-bit images at native depth
+	 */
+	@Test
+	public final void testCalcMetricsNativeDepth() throws Exception {
+		
+		final int width = 37;
+		final int height = 21;
+		final ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, 
+																	Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+		final WritableRaster rasterOne = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, width, height, 3, null);
+		final WritableRaster rasterTwo = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, width, height, 3, null);
+		long sse = 0;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				for(int band=0;band<3;band++) {
+					final int value = ((x*977+y*1553+band*7919)*31)&0xFFFF;
+					//differences bigger than an 8-bit int square would allow for
+					final int diff = ((x+y+band)%5==0)?Math.min(50000, 0xFFFF-value):0;
+					rasterOne.setSample(x, y, band, value);
+					rasterTwo.setSample(x, y, band, value+diff);
+					sse += (long)diff*diff;
+				}
+			}
+		}
+		final BufferedImage one = new BufferedImage(model, rasterOne, false, null);
+		final BufferedImage two = new BufferedImage(model, rasterTwo, false, null);
+		assertEquals(16, RasterPixels.getBitDepth(one));
+		assertEquals(3, RasterPixels.getChannels(one));
+		final char[] oneS = RasterPixels.getSamples(one);
+		final char[] twoS = RasterPixels.getSamples(two);
+		assertEquals(rasterOne.getSample(5, 3, 2), oneS[(3*width+5)*3+2]);
+		
+		final ComparisonResult same = DissimilarV2.calcMetrics(oneS, oneS, width, height, 3, 16, null);
+		assertEquals(1, same.getSsimMean(), 0.0000001);
+		assertTrue(Double.isInfinite(same.getPsnr()));
+		
+		//psnr peak is 65535 for 16-bit images
+		final ComparisonResult result = DissimilarV2.calcMetrics(oneS, twoS, width, height, 3, 16, null);
+		final double mse = sse/(3.0*width*height);
+		assertEquals(16, result.getBitDepth());
+		assertEquals(mse, result.getMse(), 0.0000001);
+		assertEquals(10*Math.log10(65535.0*65535.0/mse), result.getPsnr(), 0.0000001);
+		assertTrue(result.getSsimMean()<1);
+		assertEquals(50000, result.getMaxAbsoluteError());
+		
+		//8-bit images cannot use the native path
+		assertNull(RasterPixels.getSamples(new BufferedImage(4, 4, BufferedImage.TYPE_3BYTE_BGR)));
+		
+		//16-bit pngs are decoded by the png deep decoder (imageio), so compare at native depth
+		final File fileOne = File.createTempFile("deep", ".png");
+		final File fileTwo = File.createTempFile("deep", ".png");
+		fileOne.deleteOnExit();
+		fileTwo.deleteOnExit();
+		ImageIO.write(one, "png", fileOne);
+		ImageIO.write(two, "png", fileTwo);
+		final ComparisonResult files = DissimilarV2.calcMetrics(fileOne, fileTwo);
+		assertEquals(16, files.getBitDepth());
+		assertEquals(result.getMse(), files.getMse(), 0);
+		assertEquals(result.getSsimMean(), files.getSsimMean(), 0);
+		
+	}
+
+	/**
+	 * Test per-channel and luma psnr against a direct calculation
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testPerChannelPSNR() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		final long[] sse = new long[3];
+		double sseLuma = 0;
+		for(int i=0;i<pair.gOnePixels.length;i++) {
+			for(int channel=0;channel<3;channel++) {
+				final long diff = ((pair.gOnePixels[i]>>(16-8*channel))&0xFF)-((pair.gTwoPixels[i]>>(16-8*channel))&0xFF);
+				sse[channel] += diff*diff;
+			}
+			final double diff = luma(pair.gOnePixels[i])-luma(pair.gTwoPixels[i]);
+			sseLuma += diff*diff;
+		}
+		final double pixels = pair.gOnePixels.length;
+		
+		final ComparisonResult errors = DissimilarV2.calcErrors(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false);
+		final ComparisonResult metrics = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 1);
+		for(ComparisonResult result:new ComparisonResult[] { errors, metrics }) {
+			assertEquals(sse[0], result.getSseRed());
+			assertEquals(sse[1], result.getSseGreen());
+			assertEquals(sse[2], result.getSseBlue());
+			assertEquals(10*Math.log10(255*255/(sse[0]/pixels)), result.getPsnrRed(), 0.0000001);
+			assertEquals(10*Math.log10(255*255/(sse[1]/pixels)), result.getPsnrGreen(), 0.0000001);
+			assertEquals(10*Math.log10(255*255/(sse[2]/pixels)), result.getPsnrBlue(), 0.0000001);
+			assertEquals(10*Math.log10(255*255/(sseLuma/pixels)), result.getPsnrLuma(), 0.0000001);
+		}
+		assertEquals(DissimilarV2.calcPSNR(pair.gOnePixels, pair.gTwoPixels, false), errors.getPsnr(), 0);
+		assertEquals(metrics.getMaxAbsoluteError(), errors.getMaxAbsoluteError());
+		assertEquals(metrics.getDifferingPixels(), errors.getDifferingPixels());
+		
+	}
+
+	/**
+	 * Test the per-tile maps agree with the whole-image values, whatever the threading
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testTileMaps() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		final ComparisonResult plain = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 1);
+		assertFalse(plain.hasTileMaps());
+		
+		final ComparisonResult tiles = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 1, true);
+		assertEquals((pair.gWidth+7)/8, tiles.getTilesWide());
+		assertEquals((pair.gHeight+7)/8, tiles.getTilesHigh());
+		long sse = 0;
+		int maxError = 0;
+		double ssim = 0;
+		for(int tile=0;tile<tiles.getTileSse().length;tile++) {
+			sse += tiles.getTileSse()[tile];
+			maxError = Math.max(maxError, tiles.getTileMaxError()[tile]);
+			ssim += tiles.getTileSsim()[tile];
+			if(0==tiles.getTileSse()[tile]) {
+				assertTrue(Double.isInfinite(tiles.getTilePsnr()[tile]));
+			}
+		}
+		assertEquals(plain.getSseRed()+plain.getSseGreen()+plain.getSseBlue(), sse);
+		assertEquals(plain.getMaxAbsoluteError(), maxError);
+		assertEquals(plain.getSsimMean(), ssim/tiles.getTileSsim().length, 0.0000001);
+		assertEquals(plain.getPsnr(), tiles.getPsnr(), 0);
+		
+		final ComparisonResult threaded = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 3, true);
+		assertArrayEquals(tiles.getTileSse(), threaded.getTileSse());
+		assertArrayEquals(tiles.getTileMaxError(), threaded.getTileMaxError());
+		
+	}
+
+	/**
+	 * Test lossless verification and the identical-pair fast path
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testVerifyLossless() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		int first = 0;
+		while((pair.gOnePixels[first]&0xFFFFFF)==(pair.gTwoPixels[first]&0xFFFFFF)) first++;
+		final VerificationResult differ = LosslessVerification.verify(new BufferedImagePixelSource(pair.gOne), new BufferedImagePixelSource(pair.gTwo));
+		assertFalse(differ.isIdentical());
+		assertEquals(first%pair.gWidth, differ.getFirstDifferenceX());
+		assertEquals(first/pair.gWidth, differ.getFirstDifferenceY());
+		assertNull(differ.getDigest());
+		
+		final VerificationResult same = LosslessVerification.verify(new BufferedImagePixelSource(pair.gOne), new BufferedImagePixelSource(pair.gOne));
+		assertTrue(same.isIdentical());
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for(int pixel:pair.gOnePixels) {
+			digest.update(new byte[] { (byte)(pixel>>16), (byte)(pixel>>8), (byte)pixel });
+		}
+		String hex = "";
+		for(byte b:digest.digest()) {
+			hex += String.format("%02x", b & 0xFF);
+		}
+		assertEquals(hex, same.getDigest());
+		
+		final ComparisonResult identical = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gOnePixels.clone(), pair.gWidth, pair.gHeight, false, null, 1);
+		assertTrue(identical.isIdentical());
+		assertEquals(1, identical.getSsimMean(), 0);
+		assertEquals(0, identical.getMaxAbsoluteError());
+		assertFalse(DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 1).isIdentical());
+		
+	}
+
+	/**
+	 * Test lossless verification sees differences in the low bits of 16-bit samples and in alpha, and
+	 * refuses to compare deep images with different layouts
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testVerifyLosslessNative() throws Exception {
+		
+		final int width = 5;
+		final int height = LosslessVerification.BANDROWS+3;
+		final BufferedImage deepOne = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+		final BufferedImage deepTwo = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				deepOne.getRaster().setSample(x, y, 0, 0x1200+x+y);
+				deepTwo.getRaster().setSample(x, y, 0, 0x1200+x+y);
+			}
+		}
+		
+		final VerificationResult deepSame = LosslessVerification.verify(new BufferedImagePixelSource(deepOne), new BufferedImagePixelSource(deepTwo));
+		assertTrue(deepSame.isIdentical());
+		//two bytes per sample, big-endian
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				digest.update(new byte[] { 0x12, (byte)(x+y) });
+			}
+		}
+		String hex = "";
+		for(byte b:digest.digest()) {
+			hex += String.format("%02x", b & 0xFF);
+		}
+		assertEquals(hex, deepSame.getDigest());
+		
+		//a difference in the low byte only, which packing to 8 bits would lose
+		deepTwo.getRaster().setSample(3, LosslessVerification.BANDROWS+1, 0, 0x1200+3+LosslessVerification.BANDROWS+1+1);
+		final VerificationResult deepDiffer = LosslessVerification.verify(new BufferedImagePixelSource(deepOne), new BufferedImagePixelSource(deepTwo));
+		assertFalse(deepDiffer.isIdentical());
+		assertEquals(3, deepDiffer.getFirstDifferenceX());
+		assertEquals(LosslessVerification.BANDROWS+1, deepDiffer.getFirstDifferenceY());
+		
+		//a difference in alpha only
+		final BufferedImage alphaOne = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		final BufferedImage alphaTwo = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		alphaOne.setRGB(2, 1, 0xFF102030);
+		alphaTwo.setRGB(2, 1, 0x80102030);
+		final VerificationResult alphaDiffer = LosslessVerification.verify(new BufferedImagePixelSource(alphaOne), new BufferedImagePixelSource(alphaTwo));
+		assertFalse(alphaDiffer.isIdentical());
+		assertEquals(2, alphaDiffer.getFirstDifferenceX());
+		assertEquals(1, alphaDiffer.getFirstDifferenceY());
+		
+		//an opaque image with alpha matches the same image without alpha
+		final BufferedImage opaque = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		final BufferedImage withAlpha = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				opaque.setRGB(x, y, 0xFF000000|(x*40<<16)|(y*10));
+				withAlpha.setRGB(x, y, 0xFF000000|(x*40<<16)|(y*10));
+			}
+		}
+		assertTrue(LosslessVerification.verify(new BufferedImagePixelSource(opaque), new BufferedImagePixelSource(withAlpha)).isIdentical());
+		
+		//16-bit against 8-bit cannot be compared exactly, so there is no verdict
+		final BufferedImage shallow = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		try {
+			LosslessVerification.verify(new BufferedImagePixelSource(deepOne), new BufferedImagePixelSource(shallow));
+			fail("16-bit and 8-bit images compared");
+		} catch (IOException e) {
+			//expected
+		}
+		
+	}
+
+	/**
+	 * Test rectangle and mask restricted comparisons
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testRegionAndMask() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		
+		final ComparisonResult full = DissimilarV2.calcMetrics(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, 1);
+		final ComparisonResult whole = DissimilarV2.calcMetricsRegion(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, new Rectangle(-5, -5, pair.gWidth+10, pair.gHeight+10), null, 1);
+		assertEquals(full.getSsimMean(), whole.getSsimMean(), 0);
+		assertEquals(full.getPsnr(), whole.getPsnr(), 0);
+		
+		//a region aligned to the windows has the same windows as the full image
+		final Rectangle rectangle = new Rectangle(8, 16, 24, 16);
+		final ComparisonResult region = DissimilarV2.calcMetricsRegion(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, rectangle, null, 1);
+		final ComparisonResult cropped = DissimilarV2.calcMetrics(pair.gOne.getSubimage(8, 16, 24, 16).getRGB(0, 0, 24, 16, null, 0, 24), 
+																	pair.gTwo.getSubimage(8, 16, 24, 16).getRGB(0, 0, 24, 16, null, 0, 24),
+																	24, 16, false, null, 1);
+		assertEquals(24, region.getWidth());
+		assertEquals(cropped.getSsimMean(), region.getSsimMean(), 0);
+		assertEquals(cropped.getSseRed(), region.getSseRed());
+		
+		//a mask of the same rectangle gives the same result
+		final boolean[] mask = new boolean[pair.gWidth*pair.gHeight];
+		for(int y=rectangle.y;y<rectangle.y+rectangle.height;y++) {
+			for(int x=rectangle.x;x<rectangle.x+rectangle.width;x++) {
+				mask[y*pair.gWidth+x] = true;
+			}
+		}
+		final ComparisonResult masked = DissimilarV2.calcMetricsMasked(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, mask, 1);
+		assertEquals(region.getSsimMean(), masked.getSsimMean(), 0.0000000001);
+		assertEquals(region.getPsnr(), masked.getPsnr(), 0.0000000001);
+		
+		//errors outside the mask are ignored, and the mse is over just the masked pixels
+		final boolean[] diagonal = new boolean[pair.gWidth*pair.gHeight];
+		long sse = 0;
+		long count = 0;
+		for(int y=0;y<pair.gHeight;y++) {
+			diagonal[y*pair.gWidth+Math.min(y, pair.gWidth-1)] = true;
+		}
+		for(int i=0;i<diagonal.length;i++) {
+			if(!diagonal[i]) continue;
+			count++;
+			for(int shift=0;shift<24;shift+=8) {
+				final long diff = ((pair.gOnePixels[i]>>shift)&0xFF)-((pair.gTwoPixels[i]>>shift)&0xFF);
+				sse += diff*diff;
+			}
+		}
+		final ComparisonResult thin = DissimilarV2.calcMetricsMasked(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, diagonal, 1);
+		assertEquals(count, thin.getMaskedPixels());
+		assertEquals(sse/(3.0*count), thin.getMse(), 0.0000001);
+		//no window is mostly inside a diagonal line, so there is no ssim
+		assertTrue(Double.isNaN(thin.getSsimMean()));
+		
+		//a mask that is not the same size as the images is an error
+		final File small = File.createTempFile("mask", ".png");
+		small.deleteOnExit();
+		ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY), "png", small);
+		assertNull(DissimilarV2.calcMetricsRegion(new File(TESTFILEDIR+"test1-colour.png"), new File(TESTFILEDIR+"test1-colour-redline.png"), 
+													null, small, null, 2));
+		
+		//the whole image as a region of the files agrees with a full comparison, which uses the same decoder
+		final File fileOne = new File(TESTFILEDIR+"test1-colour.png");
+		final File fileTwo = new File(TESTFILEDIR+"test1-colour.jpg");
+		final ComparisonResult fullFiles = DissimilarV2.calcMetrics(fileOne, fileTwo);
+		final ComparisonResult wholeFiles = DissimilarV2.calcMetricsRegion(fileOne, fileTwo, new Rectangle(0, 0, pair.gWidth, pair.gHeight), null, null);
+		assertEquals(fullFiles.getPsnr(), wholeFiles.getPsnr(), 0.0000001);
+		assertEquals(fullFiles.getSsimMean(), wholeFiles.getSsimMean(), 0.0000001);
+		//a region outside the images is an error
+		assertNull(DissimilarV2.calcMetricsRegion(fileOne, fileTwo, new Rectangle(pair.gWidth, 0, 8, 8), null, null));
+		
+	}
+
+	/**
+	 * Test SSIM with a parameters object and a re-used result agrees with the older methods
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testSSIMParameters() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		final SSIMResult result = new SSIMResult();
+		
+		List<Double> min = new LinkedList<Double>();
+		List<Double> variance = new LinkedList<Double>();
+		final double block = DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, min, variance);
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, SSIMParameters.block(), result));
+		assertEquals(block, result.getMean(), 0.0000000001);
+		assertEquals(min.get(0), result.getMin(), 0);
+		assertEquals(variance.get(0), result.getVariance(), 0.0000000001);
+		
+		//the same result object, re-used
+		min = new LinkedList<Double>();
+		variance = new LinkedList<Double>();
+		final double gaussian = DissimilarV2.calcSSIMGaussian(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, min, variance);
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, SSIMParameters.gaussian(), result));
+		assertEquals(gaussian, result.getMean(), 0);
+		assertEquals(min.get(0), result.getMin(), 0);
+		assertEquals(variance.get(0), result.getVariance(), 0);
+		
+		//overlapping windows: every window position of a stride 1 block ssim is a window of the image
+		final SSIMParameters overlap = new SSIMParameters(8, 4, 0.01, 0.03, 255, SSIMParameters.Weighting.UNIFORM, 0);
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, overlap, result));
+		assertEquals(overlap.windows(pair.gWidth)*overlap.windows(pair.gHeight), result.getWindows());
+		assertTrue(result.getMean()>0&&result.getMean()<1);
+		
+		//a bigger dynamic range makes the constants bigger, so the ssim closer to 1
+		final SSIMParameters wide = new SSIMParameters(8, 8, 0.01, 0.03, 65535, SSIMParameters.Weighting.UNIFORM, 0);
+		assertEquals((0.03*65535)*(0.03*65535), wide.getC2(), 0);
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, wide, result));
+		assertTrue(result.getMean()>block);
+		
+		//engines are re-used while the width and parameters match, and comparing another width in between changes nothing
+		assertEquals(SSIMParameters.block(), SSIMParameters.block());
+		assertFalse(SSIMParameters.block().equals(overlap));
+		for(SSIMParameters parameters : new SSIMParameters[] { SSIMParameters.block(), SSIMParameters.gaussian() }) {
+			assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, parameters, result));
+			final double expectedMean = result.getMean();
+			final double expectedVariance = result.getVariance();
+			assertTrue(DissimilarV2.calcSSIM(pair.gOne.getSubimage(0, 0, 24, 16).getRGB(0, 0, 24, 16, null, 0, 24), 
+												pair.gTwo.getSubimage(0, 0, 24, 16).getRGB(0, 0, 24, 16, null, 0, 24), 
+												24, 16, false, parameters, result));
+			assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, parameters, result));
+			assertEquals(expectedMean, result.getMean(), 0);
+			assertEquals(expectedVariance, result.getVariance(), 0);
+		}
+		
+		//the map is only built for a heatmap, and gives the same values
+		final File heatMap = File.createTempFile("heatmap", ".png");
+		heatMap.deleteOnExit();
+		final List<Double> mapMin = new LinkedList<Double>();
+		assertEquals(block, DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, heatMap.getAbsolutePath(), mapMin, null), 0.0000000001);
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, SSIMParameters.block(), result));
+		assertEquals(result.getMin(), mapMin.get(0), 0);
+		
+	}
+
+	/**
+	 * Test greyscale images stored as RGB are detected and give the same results as the greyscale originals
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testEffectiveGreyscale() throws Exception {
+		
+		final File greyOne = new File(TESTFILEDIR+"test1-bw.png");
+		final File greyTwo = new File(TESTFILEDIR+"test1-bw-line.png");
+		final File rgbOne = File.createTempFile("dissimilar-rgb-", ".png");
+		final File rgbTwo = File.createTempFile("dissimilar-rgb-", ".png");
+		rgbOne.deleteOnExit();
+		rgbTwo.deleteOnExit();
+		for(final File[] pair : new File[][] { { greyOne, rgbOne }, { greyTwo, rgbTwo } }) {
+			final BufferedImage grey = Imaging.getBufferedImage(pair[0]);
+			final BufferedImage rgb = new BufferedImage(grey.getWidth(), grey.getHeight(), BufferedImage.TYPE_INT_RGB);
+			rgb.getGraphics().drawImage(grey, 0, 0, null);
+			ImageIO.write(rgb, "png", pair[1]);
+		}
+		
+		final int[] rgbA = RasterPixels.getPixels(ImageIO.read(rgbOne));
+		assertTrue(DissimilarV2.isGreyscale(BufferedImage.TYPE_INT_RGB, rgbA));
+		//a single coloured pixel in the last block
+		rgbA[rgbA.length-1] ^= 0x010000;
+		assertFalse(PixelKernels.isGreyscale(rgbA, 0, rgbA.length));
+		assertTrue(PixelKernels.isGreyscale(rgbA, 0, rgbA.length-1));
+		final int[] colourA = RasterPixels.getPixels(Imaging.getBufferedImage(new File(TESTFILEDIR+"test1-colour.png")));
+		assertFalse(DissimilarV2.isGreyscale(BufferedImage.TYPE_INT_RGB, colourA));
+		
+		final ComparisonResult grey = DissimilarV2.calcMetrics(greyOne, greyTwo);
+		final ComparisonResult rgb = DissimilarV2.calcMetrics(rgbOne, rgbTwo);
+		assertTrue(grey.isGreyscale());
+		assertTrue(rgb.isGreyscale());
+		assertEquals(grey.getSsimMean(), rgb.getSsimMean(), 0);
+		assertEquals(grey.getPsnr(), rgb.getPsnr(), 0);
+		
+		//and a colour image is not
+		assertFalse(DissimilarV2.calcMetrics(new File(TESTFILEDIR+"test1-colour.png"), new File(TESTFILEDIR+"test1-colour-redline.png")).isGreyscale());
+		
+	}
+
+	/**
+	 * Test off-heap pixels and luma planes hold the same values, and the streamed Gaussian SSIM matches the in-memory one
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testOffHeap() throws Exception {
+		
+		final File fileOne = new File(TESTFILEDIR+"test1-colour.png");
+		final File fileTwo = new File(TESTFILEDIR+"test1-colour-redline.png");
+		final BufferedImage one = Imaging.getBufferedImage(fileOne);
+		final BufferedImage two = Imaging.getBufferedImage(fileTwo);
+		final int width = one.getWidth();
+		final int height = one.getHeight();
+		final int[] oneA = RasterPixels.getPixels(one);
+		final int[] twoA = RasterPixels.getPixels(two);
+		
+		final OffHeapPixels pixels = OffHeapPixels.copyOf(new BufferedImagePixelSource(one));
+		assertEquals((long)width*height, pixels.size());
+		final int[] rows = new int[3*width];
+		pixels.getRows(5, 3, rows);
+		for(int i=0;i<rows.length;i++) {
+			assertEquals(oneA[5*width+i], rows[i]);
+		}
+		assertEquals(oneA[oneA.length-1], pixels.get(oneA.length-1));
+		pixels.close();
+		
+		for(LumaPlane.Precision precision : LumaPlane.Precision.values()) {
+			final LumaPlane heap = LumaPlane.fromPixels(oneA, width, height, false, precision);
+			final LumaPlane offHeap = new LumaPlane(width, height, precision, true);
+			assertTrue(offHeap.isOffHeap());
+			for(int y=0;y<height;y++) {
+				offHeap.setRow(y, oneA, y*width, false);
+			}
+			final double[] heapRow = new double[width];
+			final double[] offHeapRow = new double[width];
+			for(int y=0;y<height;y++) {
+				heap.getRow(y, heapRow);
+				offHeap.getRow(y, offHeapRow);
+				assertArrayEquals(heapRow, offHeapRow, 0);
+			}
+			assertEquals(heap.get(width-1, height-1), offHeap.get(width-1, height-1), 0);
+		}
+		
+		final ComparisonResult streamed = DissimilarV2.calcMetricsStreamingGaussian(fileOne, fileTwo, LumaPlane.Precision.EXACT);
+		final double ssim = DissimilarV2.calcSSIMGaussian(DissimilarV2.calcLuma(oneA, width, height, false, LumaPlane.Precision.EXACT), 
+															DissimilarV2.calcLuma(twoA, width, height, false, LumaPlane.Precision.EXACT), null, null, null);
+		assertEquals(ssim, streamed.getSsimMean(), 0);
+		assertEquals(DissimilarV2.calcPSNR(oneA, twoA, false), streamed.getPsnr(), 0);
+		
+	}
+
+	/**
+	 * Test pooled pixel buffers are re-used, and give the same results when longer than the image
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testPixelBufferPool() throws Exception {
+		
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		final double psnr = DissimilarV2.calcPSNR(pair.gOnePixels, pair.gTwoPixels, false);
+		final double ssim = DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, null, null);
+		
+		final PixelBufferPool pool = new PixelBufferPool(2);
+		//a bigger image first, so the buffers are longer than the pixels
+		pool.getBuffer(0, 2*pair.gWidth*pair.gHeight);
+		pool.getBuffer(1, 2*pair.gWidth*pair.gHeight);
+		for(int i=0;i<3;i++) {
+			final int[] poolOne = pool.getPixels(pair.gOne, 0);
+			final int[] poolTwo = pool.getPixels(pair.gTwo, 1);
+			assertEquals(psnr, DissimilarV2.calcErrors(poolOne, poolTwo, pair.gWidth, pair.gHeight, false).getPsnr(), 0);
+			assertEquals(ssim, DissimilarV2.calcSSIM(poolOne, poolTwo, pair.gWidth, pair.gHeight, false, null, null, null), 0);
+		}
+		final boolean shared = pair.gOne.getType()==BufferedImage.TYPE_INT_RGB||pair.gOne.getType()==BufferedImage.TYPE_INT_ARGB;
+		assertEquals(8, pool.getRequests());
+		assertEquals(2, pool.getAllocations());
+		assertEquals(shared?0:6, pool.getReuses());
+		assertEquals(8L*2*pair.gWidth*pair.gHeight, pool.getCapacityBytes());
+		pool.clear();
+		assertEquals(0, pool.getCapacityBytes());
+
+	}
+
+	/**
+	 * Test SSIM of pooled buffers that are longer than the images, and of different lengths
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testCalcSSIMPooledBuffers() throws Exception {
+
+		final TestPair pair = new TestPair("test1-colour.png", "test1-colour-redline.png");
+		final int pixels = pair.gWidth*pair.gHeight;
+		final List<Double> min = new LinkedList<Double>();
+		final List<Double> variance = new LinkedList<Double>();
+		final double ssim = DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, null, min, variance);
+		final SSIMResult expected = new SSIMResult();
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, SSIMParameters.block(), expected));
+
+		final PixelBufferPool pool = new PixelBufferPool(2);
+		final int[] poolOne = pool.getBuffer(0, 2*pixels);
+		final int[] poolTwo = pool.getBuffer(1, 3*pixels);
+		//the values past the image must be ignored
+		Arrays.fill(poolOne, 0xFFFFFF);
+		Arrays.fill(poolTwo, 0);
+		System.arraycopy(pair.gOnePixels, 0, poolOne, 0, pixels);
+		System.arraycopy(pair.gTwoPixels, 0, poolTwo, 0, pixels);
+
+		final List<Double> poolMin = new LinkedList<Double>();
+		final List<Double> poolVariance = new LinkedList<Double>();
+		assertEquals(ssim, DissimilarV2.calcSSIM(poolOne, poolTwo, pair.gWidth, pair.gHeight, false, null, poolMin, poolVariance), 0);
+		assertEquals(min.get(0), poolMin.get(0));
+		assertEquals(variance.get(0), poolVariance.get(0));
+
+		final SSIMResult result = new SSIMResult();
+		assertTrue(DissimilarV2.calcSSIM(poolOne, poolTwo, pair.gWidth, pair.gHeight, false, SSIMParameters.block(), result));
+		assertEquals(expected.getMean(), result.getMean(), 0);
+		assertEquals(expected.getMin(), result.getMin(), 0);
+		assertTrue(DissimilarV2.calcSSIM(poolOne, poolTwo, pair.gWidth, pair.gHeight, false, SSIMParameters.gaussian(), result));
+		assertTrue(DissimilarV2.calcSSIM(pair.gOnePixels, pair.gTwoPixels, pair.gWidth, pair.gHeight, false, SSIMParameters.gaussian(), expected));
+		assertEquals(expected.getMean(), result.getMean(), 0);
+
+		//too short is still refused
+		assertFalse(DissimilarV2.calcSSIM(Arrays.copyOf(poolOne, pixels-1), poolTwo, pair.gWidth, pair.gHeight, false, SSIMParameters.block(), result));
+
+	}
+
+	/**
+	 * Test decoder priorities, fallback and the fastest decoder policy
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testImageDecoders() throws Exception {
+		
+		final ImageDecoders decoders = new ImageDecoders();
+		assertEquals("tiff", ImageDecoders.getFormat(new File("a.TIF")));
+		assertEquals("jp2", ImageDecoders.getFormat(new File("a.j2k")));
+		assertEquals(CommonsImagingDecoder.NAME, decoders.getPriority("tiff").get(0).getName());
+		assertEquals(1, decoders.getPriority("tif").size());
+		assertEquals(OpenJPEGDecoder.NAME, decoders.getPriority("jp2").get(0).getName());
+		assertEquals(decoders.getPriority(ImageDecoders.DEFAULTFORMAT).size(), decoders.getPriority("gif").size());
+		//only decoders configured for a format decode its deep images, so there is none for tiff by default
+		assertNull(decoders.getDeepDecoder("tiff"));
+		assertEquals(ImageIODecoder.NAME, decoders.getDeepDecoder("png").getName());
+		
+		final File file = new File(TESTFILEDIR+"test1-colour.png");
+		final int[] expected = RasterPixels.getPixels(Imaging.getBufferedImage(file));
+		
+		//a decoder that fails falls through to the next
+		final ImageDecoder broken = new TestDecoder("broken", 0, true);
+		decoders.register(broken);
+		decoders.configure("png=broken,imageio");
+		assertArrayEquals(expected, RasterPixels.getPixels(decoders.decode(file)));
+		//the first decoder is the one decode tries first, or the named one if it decodes the format
+		assertEquals("broken", decoders.getFirstDecoder(file, null).getName());
+		assertEquals(ImageIODecoder.NAME, decoders.getFirstDecoder(file, ImageIODecoder.NAME).getName());
+		assertEquals("broken", decoders.getFirstDecoder(file, OpenJPEGDecoder.NAME).getName());
+		
+		//the slow decoder is first in priority, but once both are measured the fast one is used
+		decoders.register(new TestDecoder("slow", 20, false));
+		decoders.register(new TestDecoder("fast", 0, false));
+		decoders.configure("fastest;png=slow,fast");
+		assertEquals(ImageDecoders.Policy.FASTEST, decoders.getPolicy());
+		for(int i=0;i<8;i++) {
+			assertArrayEquals(expected, RasterPixels.getPixels(decoders.decode(file)));
+		}
+		assertTrue(decoders.getNanosPerPixel("png", "fast")<decoders.getNanosPerPixel("png", "slow"));
+		final int slowCalls = ((TestDecoder)decoders.getDecoder("slow")).gCalls;
+		decoders.decode(file);
+		assertEquals(slowCalls, ((TestDecoder)decoders.getDecoder("slow")).gCalls);
+		
+		//while measuring, FASTEST rotates the decoders; both images of a pair must still use the same one
+		final TestDecoder normal = new TestDecoder("normal", 0, false);
+		final TestDecoder inverted = new TestDecoder("inverted", 0, false, true);
+		decoders.register(normal);
+		decoders.register(inverted);
+		decoders.configure("fastest;png=normal,inverted");
+		for(int i=0;i<8;i++) {
+			final DecodedImage one = decoders.decode(file, 1);
+			final DecodedImage two = decoders.decode(file, 1, one.getDecoder());
+			assertEquals(one.getDecoder(), two.getDecoder());
+			assertArrayEquals(RasterPixels.getPixels(one.getImage()), RasterPixels.getPixels(two.getImage()));
+		}
+		assertTrue(normal.gCalls>0);
+		assertTrue(inverted.gCalls>0);
+		
+		try {
+			decoders.configure("png=nosuchdecoder");
+			fail("unknown decoder accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		
+	}
+
+	/**
+	 * Test reduced resolution decodes agree between decoders and are reported in the result
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testReducedDecode() throws Exception {
+		
+		final File one = new File(TESTFILEDIR+"test1-colour.png");
+		final File two = new File(TESTFILEDIR+"test1-colour.jpg");
+		final BufferedImage full = Imaging.getBufferedImage(one);
+		final int scale = 4;
+		
+		//imageio subsampling picks the same pixels as decimating the full decode
+		final DecodedImage reduced = new ImageIODecoder().decode(one, scale);
+		assertEquals(scale, reduced.getScale());
+		assertEquals((full.getWidth()+scale-1)/scale, reduced.getImage().getWidth());
+		assertEquals((full.getHeight()+scale-1)/scale, reduced.getImage().getHeight());
+		final int[] expected = RasterPixels.getPixels(DecodedImage.subsample(full, scale));
+		final int[] actual = RasterPixels.getPixels(reduced.getImage());
+		assertEquals(expected.length, actual.length);
+		for(int i=0;i<expected.length;i++) {
+			//alpha depends on the raster type and is not used by the metrics
+			assertEquals(expected[i]&0xFFFFFF, actual[i]&0xFFFFFF);
+		}
+		assertEquals(1, new ImageIODecoder().decode(one, 1).getScale());
+		
+		final ComparisonResult result = DissimilarV2.calcMetrics(one, two, scale);
+		assertEquals(scale, result.getDecodeScale());
+		assertEquals(1, DissimilarV2.calcMetrics(one, two).getDecodeScale());
+		assertTrue(result.getPsnr()>0);
+		
+		//reduced decodes prefer a decoder that reduces while decoding, full decodes keep the priority order
+		final ImageDecoders decoders = new ImageDecoders();
+		decoders.configure("png=imaging,imageio");
+		assertEquals(ImageIODecoder.NAME, decoders.decode(one, scale).getDecoder());
+		assertEquals(CommonsImagingDecoder.NAME, decoders.decode(one, 1).getDecoder());
+		
+		//previews are reduced by powers of two to fit
+		final int largest = Math.max(full.getWidth(), full.getHeight());
+		assertEquals(1, ImageDecoders.getPreviewScale(one, largest));
+		assertEquals(2, ImageDecoders.getPreviewScale(one, largest-1));
+		assertEquals(4, ImageDecoders.getPreviewScale(one, (largest+3)/4));
+		
+	}
+
+	/**
+	 * Test reading jp2 and j2k dimensions from the header and mapping areas to reduced resolutions
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testOpenJPEGHeader() throws Exception {
+		
+		//signature, ftyp, jp2h containing ihdr (height then width)
+		final ByteArrayOutputStream jp2 = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(jp2);
+		out.writeInt(12); out.writeInt(0x6A502020); out.writeInt(0x0D0A870A);
+		out.writeInt(20); out.writeInt(0x66747970); out.writeInt(0x6A703220); out.writeInt(0); out.writeInt(0x6A703220);
+		out.writeInt(8+22); out.writeInt(0x6A703268);
+		out.writeInt(22); out.writeInt(0x69686472); out.writeInt(3000); out.writeInt(4000); out.writeShort(3);
+		out.writeByte(7); out.writeByte(7); out.writeByte(0); out.writeByte(0);
+		final File jp2File = File.createTempFile("dissimilar-test-", ".jp2");
+		jp2File.deleteOnExit();
+		Files.write(jp2File.toPath(), jp2.toByteArray());
+		assertEquals(new Dimension(4000, 3000), OpenJPEGLoader.getDimensions(jp2File));
+		
+		//SOC, SIZ (Lsiz, Rsiz, Xsiz, Ysiz, XOsiz, YOsiz)
+		final ByteArrayOutputStream j2k = new ByteArrayOutputStream();
+		final DataOutputStream codestream = new DataOutputStream(j2k);
+		codestream.writeInt(0xFF4FFF51); codestream.writeShort(41); codestream.writeShort(0);
+		codestream.writeInt(1010); codestream.writeInt(520); codestream.writeInt(10); codestream.writeInt(20);
+		final File j2kFile = File.createTempFile("dissimilar-test-", ".j2k");
+		j2kFile.deleteOnExit();
+		Files.write(j2kFile.toPath(), j2k.toByteArray());
+		assertEquals(new Dimension(1000, 500), OpenJPEGLoader.getDimensions(j2kFile));
+		
+		assertNull(OpenJPEGLoader.getDimensions(new File(TESTFILEDIR+"test1-colour.png")));
+		
+		assertEquals(new Rectangle(13, 0, 12, 1), OpenJPEGLoader.getReducedArea(new Rectangle(100, 0, 100, 1), 3));
+		assertEquals(new Rectangle(100, 0, 100, 1), OpenJPEGLoader.getReducedArea(new Rectangle(100, 0, 100, 1), 0));
+		
+	}
+
+	/**
+	 * Test decoding through a named pipe with stand-in decoder scripts, including one that exits without 
+	 * ever opening the pipe (which must not leave the reader waiting)
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testOpenJPEGPipe() throws Exception {
+		
+		//needs a unix shell and mkfifo
+		if(!new File("/bin/sh").exists()||!OpenJPEGLoader.isPipeOutput()) return;
+		
+		final File jp2 = new File("test.jp2");
+		try {
+			//arguments are -i input -o output
+			OpenJPEGLoader.setExecutable(writeScript("printf 'P5\\n2 1\\n255\\n\\001\\002' > \"$4\""));
+			final BufferedImage image = OpenJPEGLoader.loadJP2(jp2);
+			assertEquals(2, image.getWidth());
+			assertEquals(2, image.getRaster().getSample(1, 0, 0));
+			
+			OpenJPEGLoader.setExecutable(writeScript("exit 1"));
+			final long start = System.currentTimeMillis();
+			assertNull(OpenJPEGLoader.loadJP2(jp2));
+			assertTrue(System.currentTimeMillis()-start<10000);
+			assertTrue(OpenJPEGLoader.isPipeOutput());
+
+			//output the reader cannot handle (pam) makes the executable fail when the pipe is closed, but
+			//is decoded through a temporary file instead; anything else written next to the pipe is removed
+			final File pipeDir = File.createTempFile("dissimilar-test-", ".dir");
+			pipeDir.deleteOnExit();
+			OpenJPEGLoader.setExecutable(writeScript("case \"$4\" in *.ppm) "+
+											"echo extra > \"$(dirname \"$4\")/extra.txt\"; dirname \"$4\" > \""+pipeDir.getAbsolutePath()+"\"; "+
+											"printf 'P7\\nWIDTH 2\\nHEIGHT 1\\nDEPTH 2\\nMAXVAL 255\\nTUPLTYPE GRAYSCALE_ALPHA\\nENDHDR\\n' > \"$4\" || exit 1; "+
+											"exit 1;; "+
+											"*) cp \""+new File(TESTFILEDIR+"test1-colour.png").getAbsolutePath()+"\" \"$4\";; esac"));
+			final BufferedImage fallback = OpenJPEGLoader.loadJP2(jp2);
+			assertNotNull(fallback);
+			assertEquals(Imaging.getBufferedImage(new File(TESTFILEDIR+"test1-colour.png")).getWidth(), fallback.getWidth());
+			assertTrue(OpenJPEGLoader.isPipeOutput());
+			final String usedDir = new String(Files.readAllBytes(pipeDir.toPath()), "US-ASCII").trim();
+			assertFalse(usedDir.isEmpty());
+			assertFalse(new File(usedDir).exists());
+		} finally {
+			OpenJPEGLoader.setExecutable(null);
+		}
+
+	}
+
+	/**
+	 * Test reduced resolution decodes are passed to the executable (-r) and areas are copied out of
+	 * full decodes when the executable cannot decode areas itself
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testOpenJPEGReduceAndArea() throws Exception {
+		
+		if(!new File("/bin/sh").exists()) return;
+		
+		final File jp2 = new File("test.jp2");
+		try {
+			//arguments are -i input -o output [-r levels]; a reduced decode is the (fake) low-pass image
+			OpenJPEGLoader.setExecutable(writeScript("if [ \"$5\" = \"-r\" ]; then "+
+											"printf 'P5\\n2 1\\n255\\n\\001\\002' > \"$4\"; else "+
+											"printf 'P5\\n4 2\\n255\\n\\001\\002\\003\\004\\005\\006\\007\\010' > \"$4\"; fi"));
+			final OpenJPEGDecoder decoder = new OpenJPEGDecoder();
+			assertTrue(decoder.canReduce());
+			DecodedImage reduced = decoder.decode(jp2, 2);
+			assertEquals(2, reduced.getScale());
+			assertEquals(2, reduced.getImage().getWidth());
+			//from the executable's reduced decode, not a subsample of the full one (which would be 3)
+			assertEquals(2, reduced.getImage().getRaster().getSample(1, 0, 0));
+			//the remaining factor of 3 is subsampled
+			reduced = decoder.decode(jp2, 6);
+			assertEquals(6, reduced.getScale());
+			assertEquals(1, reduced.getImage().getWidth());
+			
+			//j2k_to_image cannot decode areas, so the area is copied out of the full decode
+			final BufferedImage area = OpenJPEGLoader.loadJP2(jp2, 0, new Rectangle(1, 1, 2, 1));
+			assertEquals(2, area.getWidth());
+			assertEquals(1, area.getHeight());
+			assertEquals(6, area.getRaster().getSample(0, 0, 0));
+			assertEquals(7, area.getRaster().getSample(1, 0, 0));
+			assertNull(area.getRaster().getParent());
+		} finally {
+			OpenJPEGLoader.setExecutable(null);
+		}
+		
+	}
+
+	/**
+	 * Test reading PGM and PPM images as written by the OpenJPEG executables
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testPNMReader() throws Exception {
+		
+		final BufferedImage colour = Imaging.getBufferedImage(new File(TESTFILEDIR+"test1-colour.png"));
+		final int width = colour.getWidth();
+		final int height = colour.getHeight();
+		final int[] expected = RasterPixels.getPixels(colour);
+		
+		//8-bit ppm, with a comment in the header
+		final ByteArrayOutputStream ppm = new ByteArrayOutputStream();
+		ppm.write(("P6\n# written by a test\n"+width+" "+height+"\n255\n").getBytes("US-ASCII"));
+		for(int pixel : expected) {
+			ppm.write(pixel>>16);
+			ppm.write(pixel>>8);
+			ppm.write(pixel);
+		}
+		final BufferedImage image = PNMReader.read(new ByteArrayInputStream(ppm.toByteArray()));
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+		final int[] actual = RasterPixels.getPixels(image);
+		for(int i=0;i<expected.length;i++) {
+			assertEquals(expected[i]&0xFFFFFF, actual[i]&0xFFFFFF);
+		}
+		
+		//12-bit pgm is scaled to 16 bits
+		final ByteArrayOutputStream pgm = new ByteArrayOutputStream();
+		pgm.write("P5 2 1 4095\n".getBytes("US-ASCII"));
+		pgm.write(new byte[] { 0x0F, (byte)0xFF, 0x08, 0x00 });
+		final BufferedImage grey = PNMReader.read(new ByteArrayInputStream(pgm.toByteArray()));
+		assertEquals(BufferedImage.TYPE_USHORT_GRAY, grey.getType());
+		assertEquals(65535, grey.getRaster().getSample(0, 0, 0));
+		assertEquals(Math.round(2048*65535.0/4095), grey.getRaster().getSample(1, 0, 0));
+		
+		try {
+			PNMReader.read(new ByteArrayInputStream("P7\n".getBytes("US-ASCII")));
+			fail("pam accepted");
+		} catch (IOException e) {
+			//expected
+		}
+		
+	}
+
+	/**
+	 * Test external commands time out and run asynchronously, and the OpenJPEG pool size
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testToolRunner() throws Exception {
+		
+		assertTrue(OpenJPEGPool.getDefaultProcesses()>=1);
+		try {
+			new OpenJPEGPool(0, 0);
+			fail("empty pool accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		
+		//the rest needs unix commands
+		if(!new File("/bin/sleep").exists()) return;
+		
+		final ToolRunner runner = new ToolRunner(true);
+		runner.setTimeout(200);
+		final long start = System.currentTimeMillis();
+		try {
+			runner.runCommand(new LinkedList<String>(Arrays.asList("/bin/sleep", "10")));
+			fail("command did not time out");
+		} catch (IOException e) {
+			assertFalse(e instanceof InterruptedIOException);
+		}
+		assertTrue(System.currentTimeMillis()-start<5000);
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<Integer> sleeping = new ToolRunner(true).submitCommand(new LinkedList<String>(Arrays.asList("/bin/sleep", "10")), executor);
+			final Future<Integer> echo = new ToolRunner(true).submitCommand(new LinkedList<String>(Arrays.asList("/bin/sh", "-c", "exit 3")), executor);
+			assertEquals(3, echo.get().intValue());
+			assertTrue(sleeping.cancel(true));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		
+	}
+
+	/**
+	 * Test pooled pipe decodes of a decoder that never finishes: a timeout and a cancel must both kill
+	 * it and free the pool thread
+	 * @throws Exception on error
+	 */
+	@Test
+	public final void testOpenJPEGPoolTimeoutAndCancel() throws Exception {
+		
+		if(!new File("/bin/sh").exists()||!OpenJPEGLoader.isPipeOutput()) return;
+		
+		final File jp2 = new File("test.jp2");
+		final OpenJPEGPool timed = new OpenJPEGPool(1, 300);
+		final OpenJPEGPool untimed = new OpenJPEGPool(1, 0);
+		try {
+			//exec, so that killing the decoder process kills the sleep too
+			OpenJPEGLoader.setExecutable(writeScript("exec sleep 30"));
+			
+			long start = System.currentTimeMillis();
+			try {
+				timed.submit(jp2).get(10, TimeUnit.SECONDS);
+				fail("decode did not time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertTrue(System.currentTimeMillis()-start<10000);
+			
+			final Future<BufferedImage> cancelled = untimed.submit(jp2);
+			Thread.sleep(200);
+			assertTrue(cancelled.cancel(true));
+			//the only pool thread must be free again for the next task
+			start = System.currentTimeMillis();
+			final Future<Boolean> next = untimed.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return true;
+				}
+			});
+			assertTrue(next.get(10, TimeUnit.SECONDS));
+			assertTrue(System.currentTimeMillis()-start<10000);
+			
+			//neither failure is mistaken for the pipe not working
+			assertTrue(OpenJPEGLoader.isPipeOutput());
+		} finally {
+			timed.shutdown();
+			untimed.shutdown();
+			OpenJPEGLoader.setExecutable(null);
+		}
+		
+	}
+
+	/**
+	 * Decoder for testing ImageDecoders, using ImageIO after a delay
+	 */
+	private static class TestDecoder implements ImageDecoder {
+		private final String gName;
+		private final long gDelay;
+		private final boolean gFail;
+		private final boolean gInvert;
+		private int gCalls = 0;
+		
+		TestDecoder(final String pName, final long pDelay, final boolean pFail) {
+			this(pName, pDelay, pFail, false);
+		}
+		
+		TestDecoder(final String pName, final long pDelay, final boolean pFail, final boolean pInvert) {
+			gName = pName;
+			gDelay = pDelay;
+			gFail = pFail;
+			gInvert = pInvert;
+		}
+		
+		@Override
+		public String getName() {
+			return gName;
+		}
+		
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+		
+		@Override
+		public boolean canReduce() {
+			return false;
+		}
+		
+		@Override
+		public boolean keepsBitDepth() {
+			return false;
+		}
+		
+		@Override
+		public BufferedImage decode(File pFile) throws IOException {
+			gCalls++;
+			if(gFail) throw new IOException("broken");
+			try {
+				Thread.sleep(gDelay);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			final BufferedImage image = ImageIO.read(pFile);
+			if(gInvert) {
+				//stands in for a library that decodes the same file to different pixels
+				for(int y=0;y<image.getHeight();y++) {
+					for(int x=0;x<image.getWidth();x++) {
+						image.setRGB(x, y, image.getRGB(x, y)^0xFFFFFF);
+					}
+				}
+			}
+			return image;
+		}
+		
+		@Override
+		public DecodedImage decode(File pFile, int pScale) throws IOException {
+			return new DecodedImage(DecodedImage.subsample(decode(pFile), pScale), Math.max(1, pScale));
+		}
+	}
+
+	/**
+	 * Write a shell script to stand in for an external decoder
+	 * @param pBody commands to run
+	 * @return executable script (deleted on exit)
+	 * @throws IOException on error
+	 */
+	private static File writeScript(final String pBody) throws IOException {
+		final File script = File.createTempFile("dissimilar-test-", ".sh");
+		script.deleteOnExit();
+		Files.write(script.toPath(), ("#!/bin/sh\n"+pBody+"\n").getBytes("US-ASCII"));
+		script.setExecutable(true);
+		return script;
+	}
+
+	/**
+	 * A pair of test images, decoded with commons-imaging, with their pixels as used by DissimilarV2.
+	 * The pixel arrays may be the images' own data so must not be modified.
+	 * @author wpalmer
+	 */
+	private static class TestPair {
+		private final BufferedImage gOne;
+		private final BufferedImage gTwo;
+		private final int gWidth;
+		private final int gHeight;
+		private final int[] gOnePixels;
+		private final int[] gTwoPixels;
+
+		/**
+		 * Load a pair of images from the test resources
+		 * @param pOne name of the first image
+		 * @param pTwo name of the second image
+		 * @throws Exception if either image cannot be read
+		 */
+		private TestPair(final String pOne, final String pTwo) throws Exception {
+			gOne = Imaging.getBufferedImage(new File(TESTFILEDIR+pOne));
+			gTwo = Imaging.getBufferedImage(new File(TESTFILEDIR+pTwo));
+			gWidth = gOne.getWidth();
+			gHeight = gOne.getHeight();
+			assertEquals(gWidth, gTwo.getWidth());
+			assertEquals(gHeight, gTwo.getHeight());
+			gOnePixels = RasterPixels.getPixels(gOne);
+			gTwoPixels = RasterPixels.getPixels(gTwo);
+		}
+	}
+
+	/**
+	 * Rec. 709 luma of a pixel
+	 * @param pPixel integer pixel value
+	 * @return luma
+	 */
+	private static double luma(final int pPixel) {
+		return 0.2126*((pPixel>>16)&0xFF)+0.7152*((pPixel>>8)&0xFF)+0.0722*(pPixel&0xFF);
+	}
+
+	/**
+	 * Repeat an image in both directions
+	 * @param pPixels pixels of the image
+	 * @param pWidth width of the image
+	 * @param pHeight height of the image
+	 * @param pTimes number of times to repeat it in each direction
+	 * @return pixels of the tiled image
+	 */
+	private static int[] tile(final int[] pPixels, final int pWidth, final int pHeight, final int pTimes) {
+		final int width = pWidth*pTimes;
+		final int height = pHeight*pTimes;
+		final int[] tiled = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				tiled[y*width+x] = pPixels[(y%pHeight)*pWidth+(x%pWidth)];
+			}
+		}
+		return tiled;
+	}
 
 }